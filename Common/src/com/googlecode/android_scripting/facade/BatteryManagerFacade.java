@@ -27,11 +27,16 @@ import android.os.Bundle;
 import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcParameter;
 import com.googlecode.android_scripting.rpc.RpcStartEvent;
 import com.googlecode.android_scripting.rpc.RpcStopEvent;
 
 import java.lang.reflect.Field;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * Exposes Batterymanager API. Note that in order to use any of the batteryGet* functions, you need
  * to batteryStartMonitoring, and then wait for a "battery" event. Sleeping for a second will
@@ -45,6 +50,7 @@ public class BatteryManagerFacade extends RpcReceiver {
   private final int mSdkVersion;
 
   private BatteryStateListener mReceiver;
+  private BatterySampler mSampler;
 
   private volatile Bundle mBatteryData = null;
   private volatile Integer mBatteryStatus = null;
@@ -149,9 +155,79 @@ public class BatteryManagerFacade extends RpcReceiver {
     mBatteryData = null;
   }
 
+  @Rpc(description = "Starts sampling battery current, charge and energy counters, voltage and "
+      + "temperature into an on-device time series. Replaces any sampling in progress.")
+  public synchronized void batteryStartSampling(
+      @RpcParameter(name = "periodMs", description = "Time between samples in milliseconds")
+      @RpcDefault("1000") Integer periodMs,
+      @RpcParameter(name = "capacity", description = "Number of samples kept on the device")
+      @RpcDefault("36000") Integer capacity) {
+    if (periodMs <= 0) {
+      throw new IllegalArgumentException("periodMs must be positive: " + periodMs);
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    batteryStopSampling();
+    mSampler = new BatterySampler(mService, periodMs, capacity);
+  }
+
+  @Rpc(description = "Ends the current test phase, if any, and starts a new one whose samples are "
+      + "summarized separately.", returns = "The index of the new phase.")
+  public Integer batteryMarkPhase(@RpcParameter(name = "name") String name) throws Exception {
+    return getSampler().mark(name);
+  }
+
+  @Rpc(description = "Returns battery samples as parallel arrays; unsupported counters are null.",
+      returns = "The batch, with 'next' to pass as since on the following call and 'dropped', "
+          + "the number of samples overwritten before they were read.")
+  public JSONObject batteryReadSamples(
+      @RpcParameter(name = "since", description = "Sequence number of the first sample to return")
+      @RpcDefault("0") Integer since,
+      @RpcParameter(name = "maxCount", description = "Maximum number of samples to return")
+      @RpcDefault("1000") Integer maxCount)
+      throws Exception {
+    if (maxCount < 0) {
+      throw new IllegalArgumentException("maxCount must not be negative: " + maxCount);
+    }
+    return getSampler().read(since, maxCount);
+  }
+
+  @Rpc(description = "Returns min, max and avg of current, voltage and temperature, charge and "
+      + "energy counter deltas and the energy estimated from voltage and current, for the whole "
+      + "sampling run and for every phase.")
+  public JSONObject batteryGetSamplingSummary() throws Exception {
+    return getSampler().getSummary();
+  }
+
+  private synchronized BatterySampler getSampler() throws Exception {
+    if (mSampler == null) {
+      throw new Exception("Battery sampling is not running.");
+    }
+    return mSampler;
+  }
+
+  @Rpc(description = "Stops battery sampling.",
+      returns = "The final summary, or null if sampling was not running.")
+  public synchronized JSONObject batteryStopSampling() {
+    if (mSampler == null) {
+      return null;
+    }
+    mSampler.stop();
+    JSONObject summary = null;
+    try {
+      summary = mSampler.getSummary();
+    } catch (JSONException e) {
+      Log.e("Failed to summarize battery samples.", e);
+    }
+    mSampler = null;
+    return summary;
+  }
+
   @Override
   public void shutdown() {
     batteryStopMonitoring();
+    batteryStopSampling();
   }
 
   @Rpc(description = "Returns  the most recently received battery status data:" + "\n1 - unknown;"
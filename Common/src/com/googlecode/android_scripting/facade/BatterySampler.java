@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+import com.googlecode.android_scripting.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Samples battery current, charge and energy counters, voltage and temperature at a fixed period.
+ *
+ * <p>Samples go into a ring of primitive arrays that scripts can page through. Aggregates are
+ * updated as samples arrive, for the whole run and for the phase opened by the latest marker, so
+ * summaries stay exact after old samples have been overwritten. Counters the device does not
+ * support are reported as null.
+ */
+class BatterySampler {
+
+  private final Context mContext;
+  private final BatteryManager mBatteryManager;
+  private final ScheduledExecutorService mExecutor;
+  private final int mCapacity;
+
+  private final long[] mTime;
+  private final long[] mCurrent;
+  private final long[] mChargeCounter;
+  private final long[] mEnergyCounter;
+  private final int[] mVoltage;
+  private final int[] mTemperature;
+  private long mNextSequence = 0;
+
+  private final Aggregate mTotal = new Aggregate("total");
+  private final List<Aggregate> mPhases = new ArrayList<Aggregate>();
+  private long mLastTime = -1;
+
+  private volatile int mLastVoltage = -1;
+  private volatile int mLastTemperature = Integer.MIN_VALUE;
+
+  private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      mLastVoltage = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
+      mLastTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+    }
+  };
+
+  BatterySampler(Context context, long periodMs, int capacity) {
+    mContext = context;
+    mBatteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    mCapacity = capacity;
+    mTime = new long[capacity];
+    mCurrent = new long[capacity];
+    mChargeCounter = new long[capacity];
+    mEnergyCounter = new long[capacity];
+    mVoltage = new int[capacity];
+    mTemperature = new int[capacity];
+    // ACTION_BATTERY_CHANGED is sticky, so the current voltage is delivered right away.
+    mContext.registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    mExecutor = Executors.newSingleThreadScheduledExecutor();
+    mExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sample();
+        } catch (RuntimeException e) {
+          Log.e("Battery sample failed.", e);
+        }
+      }
+    }, 0, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    mExecutor.shutdownNow();
+    synchronized (this) {
+      long now = SystemClock.elapsedRealtime();
+      mTotal.mmEnd = now;
+      if (!mPhases.isEmpty() && mPhases.get(mPhases.size() - 1).mmEnd < 0) {
+        mPhases.get(mPhases.size() - 1).mmEnd = now;
+      }
+    }
+    try {
+      mContext.unregisterReceiver(mReceiver);
+    } catch (IllegalArgumentException e) {
+      // Already unregistered.
+    }
+  }
+
+  private void sample() {
+    long time = SystemClock.elapsedRealtime();
+    long current = property(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+    long charge = property(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+    long energy = property(BatteryManager.BATTERY_PROPERTY_ENERGY_COUNTER);
+    int voltage = mLastVoltage;
+    int temperature = mLastTemperature;
+    synchronized (this) {
+      int slot = RingIndex.slot(mNextSequence, mCapacity);
+      mTime[slot] = time;
+      mCurrent[slot] = current;
+      mChargeCounter[slot] = charge;
+      mEnergyCounter[slot] = energy;
+      mVoltage[slot] = voltage;
+      mTemperature[slot] = temperature;
+      mNextSequence++;
+      long previous = mLastTime;
+      mLastTime = time;
+      mTotal.add(time, previous < 0 ? 0 : time - previous, current, charge, energy, voltage,
+          temperature);
+      // The interval since the previous sample is split between the phases it overlaps, so a
+      // phase is credited from its marker rather than from its first sample.
+      for (int i = mPhases.size() - 1; i >= 0; i--) {
+        Aggregate phase = mPhases.get(i);
+        long end = phase.mmEnd < 0 ? time : phase.mmEnd;
+        if (previous >= 0 && end <= previous) {
+          break;
+        }
+        long overlap = previous < 0 ? 0 : end - Math.max(previous, phase.mmStart);
+        if (i == mPhases.size() - 1) {
+          phase.add(time, overlap, current, charge, energy, voltage, temperature);
+        } else {
+          phase.integrate(overlap, current, voltage);
+        }
+      }
+    }
+  }
+
+  /** Returns the property, or Long.MIN_VALUE if the device does not report it. */
+  private long property(int id) {
+    long value = mBatteryManager.getLongProperty(id);
+    return value == 0 && id != BatteryManager.BATTERY_PROPERTY_CURRENT_NOW ? Long.MIN_VALUE
+        : value;
+  }
+
+  /** Ends the current phase, if any, and starts a new one. Returns the index of the new phase. */
+  synchronized int mark(String name) {
+    long now = SystemClock.elapsedRealtime();
+    if (!mPhases.isEmpty()) {
+      mPhases.get(mPhases.size() - 1).mmEnd = now;
+    }
+    Aggregate phase = new Aggregate(name);
+    phase.mmStart = now;
+    mPhases.add(phase);
+    return mPhases.size() - 1;
+  }
+
+  /**
+   * Returns up to {@code maxCount} samples starting at sequence number {@code since} as parallel
+   * arrays, with "next" and "dropped" as in the other recorders.
+   */
+  synchronized JSONObject read(long since, int maxCount) throws JSONException {
+    long first = RingIndex.first(since, mNextSequence, mCapacity);
+    long end = RingIndex.end(first, maxCount, mNextSequence);
+    JSONArray time = new JSONArray();
+    JSONArray current = new JSONArray();
+    JSONArray charge = new JSONArray();
+    JSONArray energy = new JSONArray();
+    JSONArray voltage = new JSONArray();
+    JSONArray temperature = new JSONArray();
+    for (long sequence = first; sequence < end; sequence++) {
+      int slot = RingIndex.slot(sequence, mCapacity);
+      time.put(mTime[slot]);
+      current.put(toJson(mCurrent[slot]));
+      charge.put(toJson(mChargeCounter[slot]));
+      energy.put(toJson(mEnergyCounter[slot]));
+      voltage.put(mVoltage[slot] < 0 ? JSONObject.NULL : (Object) mVoltage[slot]);
+      temperature.put(mTemperature[slot] == Integer.MIN_VALUE ? JSONObject.NULL
+          : (Object) mTemperature[slot]);
+    }
+    JSONObject batch = new JSONObject();
+    batch.put("first", first);
+    batch.put("next", end);
+    batch.put("dropped", RingIndex.dropped(since, first));
+    batch.put("elapsedRealtimeMs", time);
+    batch.put("currentUa", current);
+    batch.put("chargeCounterUah", charge);
+    batch.put("energyCounterNwh", energy);
+    batch.put("voltageMv", voltage);
+    batch.put("temperatureDeciC", temperature);
+    return batch;
+  }
+
+  /** Returns the aggregates of the whole run and of every phase. */
+  synchronized JSONObject getSummary() throws JSONException {
+    JSONArray phases = new JSONArray();
+    for (Aggregate phase : mPhases) {
+      phases.put(phase.toJson());
+    }
+    JSONObject summary = new JSONObject();
+    summary.put("samples", mNextSequence);
+    summary.put("total", mTotal.toJson());
+    summary.put("phases", phases);
+    return summary;
+  }
+
+  private static Object toJson(long value) {
+    return value == Long.MIN_VALUE ? JSONObject.NULL : (Object) value;
+  }
+
+  /** Running min, max and average of a series of samples. */
+  private static class Stat {
+    private long mmCount = 0;
+    private long mmMin = Long.MAX_VALUE;
+    private long mmMax = Long.MIN_VALUE;
+    private double mmSum = 0;
+
+    void add(long value) {
+      mmCount++;
+      mmMin = Math.min(mmMin, value);
+      mmMax = Math.max(mmMax, value);
+      mmSum += value;
+    }
+
+    Object toJson() throws JSONException {
+      if (mmCount == 0) {
+        return JSONObject.NULL;
+      }
+      JSONObject stat = new JSONObject();
+      stat.put("min", mmMin);
+      stat.put("max", mmMax);
+      stat.put("avg", mmSum / mmCount);
+      return stat;
+    }
+  }
+
+  /** Aggregates of the samples of one phase, or of the whole run. */
+  private static class Aggregate {
+    private final String mmName;
+    private long mmStart = -1;
+    private long mmEnd = -1;
+    private long mmSamples = 0;
+    private final Stat mmCurrent = new Stat();
+    private final Stat mmVoltage = new Stat();
+    private final Stat mmTemperature = new Stat();
+    private long mmFirstCharge = Long.MIN_VALUE;
+    private long mmLastCharge = Long.MIN_VALUE;
+    private long mmFirstEnergy = Long.MIN_VALUE;
+    private long mmLastEnergy = Long.MIN_VALUE;
+    private double mmEstimatedEnergyMwh = 0;
+
+    Aggregate(String name) {
+      mmName = name;
+    }
+
+    void add(long time, long elapsedMs, long current, long charge, long energy, int voltage,
+        int temperature) {
+      if (mmStart < 0) {
+        mmStart = time;
+      }
+      mmSamples++;
+      if (current != Long.MIN_VALUE) {
+        mmCurrent.add(current);
+      }
+      if (voltage >= 0) {
+        mmVoltage.add(voltage);
+      }
+      if (temperature != Integer.MIN_VALUE) {
+        mmTemperature.add(temperature);
+      }
+      if (charge != Long.MIN_VALUE) {
+        if (mmFirstCharge == Long.MIN_VALUE) {
+          mmFirstCharge = charge;
+        }
+        mmLastCharge = charge;
+      }
+      if (energy != Long.MIN_VALUE) {
+        if (mmFirstEnergy == Long.MIN_VALUE) {
+          mmFirstEnergy = energy;
+        }
+        mmLastEnergy = energy;
+      }
+      integrate(elapsedMs, current, voltage);
+    }
+
+    /** Adds the energy of an interval that ended with a sample of this current and voltage. */
+    void integrate(long elapsedMs, long current, int voltage) {
+      if (elapsedMs > 0 && current != Long.MIN_VALUE && voltage >= 0) {
+        // mV * uA = nW; nW * ms / 3.6e12 = mWh.
+        mmEstimatedEnergyMwh += (double) voltage * current * elapsedMs / 3.6e12;
+      }
+    }
+
+    JSONObject toJson() throws JSONException {
+      long end = mmEnd >= 0 ? mmEnd : SystemClock.elapsedRealtime();
+      JSONObject aggregate = new JSONObject();
+      aggregate.put("name", mmName);
+      aggregate.put("startMs", mmStart);
+      aggregate.put("durationMs", mmStart < 0 ? 0 : end - mmStart);
+      aggregate.put("samples", mmSamples);
+      aggregate.put("currentUa", mmCurrent.toJson());
+      aggregate.put("voltageMv", mmVoltage.toJson());
+      aggregate.put("temperatureDeciC", mmTemperature.toJson());
+      aggregate.put("chargeDeltaUah", mmFirstCharge == Long.MIN_VALUE ? JSONObject.NULL
+          : (Object) (mmLastCharge - mmFirstCharge));
+      aggregate.put("energyDeltaNwh", mmFirstEnergy == Long.MIN_VALUE ? JSONObject.NULL
+          : (Object) (mmLastEnergy - mmFirstEnergy));
+      aggregate.put("estimatedEnergyMwh", mmEstimatedEnergyMwh);
+      return aggregate;
+    }
+  }
+}
@@ -39,6 +39,11 @@ public class ConnectivityConstants {
     public static final String NetworkCallbackLinkPropertiesChanged = "LinkPropertiesChanged";
     public static final String NetworkCallbackInvalid = "Invalid";
 
+    /**
+     * Coalesced network callback changes
+     */
+    public static final String EventNetworkCallbackSnapshot = "NetworkCallbackSnapshot";
+
     /**
      * Connectivity changed event
      */
@@ -76,6 +81,26 @@ public class ConnectivityConstants {
         public static final String INTERFACE_NAME = "interfaceName";
     }
 
+    /**
+     * Constants for network callback snapshots and NetworkCallbackSnapshot events.
+     */
+    public static class NetworkSnapshotContainer {
+        public static final String VERSION = "version";
+        public static final String NETWORKS = "networks";
+        public static final String CHANGES = "changes";
+        public static final String NET_ID = "netId";
+        public static final String STATE = "state";
+        public static final String SUSPENDED = "suspended";
+        public static final String UNAVAILABLE = "unavailable";
+        public static final String TRANSPORTS = "transports";
+        public static final String CAPABILITIES = "capabilities";
+        public static final String UPSTREAM_KBPS = "linkUpstreamBandwidthKbps";
+        public static final String DOWNSTREAM_KBPS = "linkDownstreamBandwidthKbps";
+        public static final String ADDRESSES = "linkAddresses";
+        public static final String DNS_SERVERS = "dnsServers";
+        public static final String MTU = "mtu";
+    }
+
     /**
      * Constants for OnStartTetheringCallback
      */
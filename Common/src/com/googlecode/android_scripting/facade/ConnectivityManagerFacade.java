@@ -49,6 +49,7 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Access ConnectivityManager functions.
@@ -185,12 +186,37 @@ public class ConnectivityManagerFacade extends RpcReceiver {
                 EVENT_LINK_PROPERTIES_CHANGED;
 
         private int mEvents;
+        // Set while coalesced snapshot events replace the per-callback events in mEvents.
+        private volatile boolean mSnapshotEvents;
         public String mId;
+        public final NetworkStateSnapshot mSnapshot;
 
         public NetworkCallback(int events) {
             super();
             mEvents = events;
             mId = this.toString();
+            mSnapshot = new NetworkStateSnapshot(mId, mEventFacade);
+        }
+
+        /**
+         * Posts coalesced snapshot changes every intervalMs instead of one event per callback,
+         * or restores the per-callback events if intervalMs is 0.
+         */
+        public synchronized void setSnapshotInterval(long intervalMs) {
+            if (intervalMs <= 0 && mSnapshotEvents) {
+                mSnapshot.flush();
+            }
+            mSnapshot.setInterval(Math.max(intervalMs, 0));
+            mSnapshotEvents = intervalMs > 0;
+        }
+
+        /** Stops the snapshot events once the callback is unregistered. */
+        public void release() {
+            mSnapshot.close();
+        }
+
+        private boolean isEventEnabled(int event) {
+            return !mSnapshotEvents && (mEvents & event) == event;
         }
 
         public void startListeningForEvents(int events) {
@@ -204,7 +230,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onPreCheck(Network network) {
             Log.d("NetworkCallback onPreCheck");
-            if ((mEvents & EVENT_PRECHECK) == EVENT_PRECHECK) {
+            mSnapshot.onState(network, ConnectivityConstants.NetworkCallbackPreCheck);
+            if (isEventEnabled(EVENT_PRECHECK)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -216,7 +243,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onAvailable(Network network) {
             Log.d("NetworkCallback onAvailable");
-            if ((mEvents & EVENT_AVAILABLE) == EVENT_AVAILABLE) {
+            mSnapshot.onState(network, ConnectivityConstants.NetworkCallbackAvailable);
+            if (isEventEnabled(EVENT_AVAILABLE)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -228,7 +256,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onLosing(Network network, int maxMsToLive) {
             Log.d("NetworkCallback onLosing");
-            if ((mEvents & EVENT_LOSING) == EVENT_LOSING) {
+            mSnapshot.onLosing(network, maxMsToLive);
+            if (isEventEnabled(EVENT_LOSING)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventOnLosing(
@@ -241,7 +270,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onLost(Network network) {
             Log.d("NetworkCallback onLost");
-            if ((mEvents & EVENT_LOST) == EVENT_LOST) {
+            mSnapshot.onState(network, ConnectivityConstants.NetworkCallbackLost);
+            if (isEventEnabled(EVENT_LOST)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -253,7 +283,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onUnavailable() {
             Log.d("NetworkCallback onUnavailable");
-            if ((mEvents & EVENT_UNAVAILABLE) == EVENT_UNAVAILABLE) {
+            mSnapshot.onUnavailable();
+            if (isEventEnabled(EVENT_UNAVAILABLE)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -267,7 +298,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
                 NetworkCapabilities networkCapabilities) {
             Log.d("NetworkCallback onCapabilitiesChanged. RSSI:" +
                     networkCapabilities.getSignalStrength());
-            if ((mEvents & EVENT_CAPABILITIES_CHANGED) == EVENT_CAPABILITIES_CHANGED) {
+            mSnapshot.onCapabilitiesChanged(network, networkCapabilities);
+            if (isEventEnabled(EVENT_CAPABILITIES_CHANGED)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventOnCapabilitiesChanged(
@@ -280,7 +312,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onNetworkSuspended(Network network) {
             Log.d("NetworkCallback onNetworkSuspended");
-            if ((mEvents & EVENT_SUSPENDED) == EVENT_SUSPENDED) {
+            mSnapshot.onSuspended(network, true);
+            if (isEventEnabled(EVENT_SUSPENDED)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -293,7 +326,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         public void onLinkPropertiesChanged(Network network,
                 LinkProperties linkProperties) {
             Log.d("NetworkCallback onLinkPropertiesChanged");
-            if ((mEvents & EVENT_LINK_PROPERTIES_CHANGED) == EVENT_LINK_PROPERTIES_CHANGED) {
+            mSnapshot.onLinkPropertiesChanged(network, linkProperties);
+            if (isEventEnabled(EVENT_LINK_PROPERTIES_CHANGED)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                         new ConnectivityEvents.NetworkCallbackEventOnLinkPropertiesChanged(mId,
@@ -305,7 +339,8 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         @Override
         public void onNetworkResumed(Network network) {
             Log.d("NetworkCallback onNetworkResumed");
-            if ((mEvents & EVENT_RESUMED) == EVENT_RESUMED) {
+            mSnapshot.onSuspended(network, false);
+            if (isEventEnabled(EVENT_RESUMED)) {
                 mEventFacade.postEvent(
                         ConnectivityConstants.EventNetworkCallback,
                     new ConnectivityEvents.NetworkCallbackEventBase(
@@ -539,6 +574,36 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         }
     }
 
+    @Rpc(description = "Post coalesced NetworkCallbackSnapshot events with the changed network"
+            + " state at most once per interval, instead of one NetworkCallback event per"
+            + " callback. An interval of 0 restores the per-callback events. Network state is"
+            + " tracked from the first call.")
+    public Boolean connectivityNetworkCallbackSetSnapshotInterval(
+            @RpcParameter(name = "key") String key,
+            @RpcParameter(name = "intervalMs") Integer intervalMs) {
+        NetworkCallback mNetworkCallback = mNetworkCallbackMap.get(key);
+        if (mNetworkCallback != null) {
+            mNetworkCallback.setSnapshotInterval(intervalMs);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Rpc(description = "Get the versioned state of every network reported to a network callback"
+            + " since connectivityNetworkCallbackSetSnapshotInterval was first called, or null if"
+            + " it was not.")
+    public Map<String, Object> connectivityNetworkCallbackGetSnapshot(
+            @RpcParameter(name = "key") String key) {
+        NetworkCallback mNetworkCallback = mNetworkCallbackMap.get(key);
+        if (mNetworkCallback != null) {
+            return mNetworkCallback.mSnapshot.isTracking()
+                    ? mNetworkCallback.mSnapshot.getSnapshot() : null;
+        } else {
+            return null;
+        }
+    }
+
     @Rpc(description = "Set Rssi Threshold Monitor")
     public String connectivitySetRssiThresholdMonitor(Integer rssi) {
         Log.d("SL4A:setRssiThresholdMonitor rssi = " + rssi);
@@ -624,6 +689,7 @@ public class ConnectivityManagerFacade extends RpcReceiver {
         if (mNetworkCallback != null) {
             mNetworkCallbackMap.remove(key);
             mManager.unregisterNetworkCallback(mNetworkCallback);
+            mNetworkCallback.release();
             return true;
         } else {
             return false;
@@ -16,6 +16,7 @@
 
 package com.googlecode.android_scripting.facade;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Queue;
@@ -47,6 +48,7 @@ import com.googlecode.android_scripting.rpc.RpcDefault;
 import com.googlecode.android_scripting.rpc.RpcDeprecated;
 import com.googlecode.android_scripting.rpc.RpcName;
 import com.googlecode.android_scripting.rpc.RpcOptional;
+import com.googlecode.android_scripting.rpc.RpcMetrics;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
 /**
@@ -295,10 +297,12 @@ public class EventFacade extends RpcReceiver {
      */
     public void postEvent(String name, Object data, boolean enqueue) {
         Event event = new Event(name, data);
+        RpcMetrics metrics = RpcMetrics.getInstance();
+        metrics.recordEventPosted(name);
         if (enqueue != false) {
             synchronized (mEventQueue) {
                 while (mEventQueue.size() >= MAX_QUEUE_SIZE) {
-                    mEventQueue.remove();
+                    metrics.recordEventDropped(mEventQueue.remove().getName());
                 }
                 mEventQueue.add(event);
             }
@@ -403,7 +407,9 @@ public class EventFacade extends RpcReceiver {
     }
 
     public void removeEventObserver(EventObserver observer) {
-        mNamedEventObservers.removeAll(observer);
+        synchronized (mNamedEventObservers) {
+            mNamedEventObservers.values().removeAll(Collections.singleton(observer));
+        }
         mGlobalEventObservers.remove(observer);
     }
 
@@ -29,16 +29,20 @@ import com.google.common.collect.Maps;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
 import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 import com.googlecode.android_scripting.rpc.RpcStartEvent;
 import com.googlecode.android_scripting.rpc.RpcStopEvent;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.json.JSONObject;
+
 /**
  * This facade exposes the LocationManager related functionality.<br>
  * <br>
@@ -84,6 +88,30 @@ public class LocationFacade extends RpcReceiver {
   private final Map<String, Location> mLocationUpdates;
   private final LocationManager mLocationManager;
   private final Geocoder mGeocoder;
+  // Read by mRecordingListener on the main looper.
+  private volatile LocationRecorder mRecorder;
+
+  private final LocationListener mRecordingListener = new LocationListener() {
+    @Override
+    public void onLocationChanged(Location location) {
+      LocationRecorder recorder = mRecorder;
+      if (recorder != null) {
+        recorder.record(location);
+      }
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+    }
+  };
 
   private final LocationListener mLocationListener = new LocationListener() {
     @Override
@@ -121,6 +149,7 @@ public class LocationFacade extends RpcReceiver {
   @Override
   public void shutdown() {
     stopLocating();
+    locationStopRecording();
   }
 
   @Rpc(description = "Returns availables providers on the phone")
@@ -157,6 +186,66 @@ public class LocationFacade extends RpcReceiver {
     mLocationUpdates.clear();
   }
 
+  @Rpc(description = "Starts recording every location fix of all providers into an on-device ring buffer, read with locationReadRecording. Restarts any recording in progress. The passive provider, which repeats the fixes of the other providers, is left out unless includePassive is set.")
+  public void locationStartRecording(
+      @RpcParameter(name = "minUpdateTime", description = "minimum time between updates requested from the providers in milliseconds") @RpcDefault("1000") Integer minUpdateTime,
+      @RpcParameter(name = "minUpdateDistance", description = "minimum distance between updates requested from the providers in meters") @RpcDefault("0") Integer minUpdateDistance,
+      @RpcParameter(name = "minInterval", description = "drop fixes less than this many milliseconds after the previous recorded fix of their provider") @RpcDefault("0") Integer minInterval,
+      @RpcParameter(name = "minDistance", description = "drop fixes less than this many meters from the previous recorded fix of their provider") @RpcDefault("0") Integer minDistance,
+      @RpcParameter(name = "capacity", description = "number of fixes kept on the device") @RpcDefault("65536") Integer capacity,
+      @RpcParameter(name = "spillPath", description = "file to also append every recorded fix to") @RpcOptional String spillPath,
+      @RpcParameter(name = "includePassive", description = "also record fixes from the passive provider") @RpcDefault("false") Boolean includePassive)
+      throws IOException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    locationStopRecording();
+    LocationRecorder recorder = new LocationRecorder(capacity, minInterval,
+        minDistance, spillPath == null ? null : new File(spillPath));
+    synchronized (this) {
+      mRecorder = recorder;
+    }
+    for (String provider : mLocationManager.getAllProviders()) {
+      if (!includePassive && LocationManager.PASSIVE_PROVIDER.equals(provider)) {
+        continue;
+      }
+      mLocationManager.requestLocationUpdates(provider, minUpdateTime, minUpdateDistance,
+          mRecordingListener, mService.getMainLooper());
+    }
+  }
+
+  @Rpc(description = "Returns recorded location fixes as parallel arrays: time, latitude, longitude, accuracy, speed, bearing and provider, an index into providers.", returns = "The batch, with 'next' to pass as since on the following call and 'dropped', the number of fixes overwritten before they were read.")
+  public JSONObject locationReadRecording(
+      @RpcParameter(name = "since", description = "sequence number of the first fix to return") @RpcDefault("0") Integer since,
+      @RpcParameter(name = "maxCount", description = "maximum number of fixes to return") @RpcDefault("1000") Integer maxCount)
+      throws Exception {
+    if (maxCount < 0) {
+      throw new IllegalArgumentException("maxCount must not be negative: " + maxCount);
+    }
+    return getRecorder().read(since, maxCount);
+  }
+
+  @Rpc(description = "Returns the number of fixes received and recorded by the current recording.")
+  public JSONObject locationGetRecordingStatus() throws Exception {
+    return getRecorder().getStatus();
+  }
+
+  private synchronized LocationRecorder getRecorder() throws Exception {
+    if (mRecorder == null) {
+      throw new Exception("Location recording is not running.");
+    }
+    return mRecorder;
+  }
+
+  @Rpc(description = "Stops recording location fixes and closes the spill file. The recorded fixes can no longer be read.")
+  public synchronized void locationStopRecording() {
+    if (mRecorder != null) {
+      mLocationManager.removeUpdates(mRecordingListener);
+      mRecorder.close();
+      mRecorder = null;
+    }
+  }
+
   @Rpc(description = "Returns the last known location of the device.", returns = "A map of location information by provider.")
   public Map<String, Location> getLastKnownLocation() {
     Map<String, Location> location = new HashMap<String, Location>();
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.location.Location;
+
+import com.googlecode.android_scripting.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records location fixes into a ring buffer of primitive arrays.
+ *
+ * <p>Every recorded fix gets a sequence number. Readers ask for the fixes after the last sequence
+ * number they saw and are told how many were overwritten before they got to them. A fix is only
+ * recorded if it is at least the minimum interval and distance away from the previous fix recorded
+ * for its provider.
+ *
+ * <p>If a spill file is given, every recorded fix is also appended to it as a big-endian record of
+ * {@link #SPILL_RECORD_SIZE} bytes: time (long), latitude and longitude (double), accuracy, speed
+ * and bearing (float, NaN if unknown) and the provider index (byte, see
+ * {@link #getProviders}), padded with zeros.
+ */
+class LocationRecorder {
+
+  static final int SPILL_RECORD_SIZE = 40;
+
+  private final int mCapacity;
+  private final long[] mTime;
+  private final double[] mLatitude;
+  private final double[] mLongitude;
+  private final float[] mAccuracy;
+  private final float[] mSpeed;
+  private final float[] mBearing;
+  private final byte[] mProvider;
+  private final List<String> mProviders = new ArrayList<String>();
+
+  private final long mMinIntervalMs;
+  private final float mMinDistanceMeters;
+  private final List<double[]> mLastRecorded = new ArrayList<double[]>();
+  private final float[] mDistance = new float[1];
+
+  private final DataOutputStream mSpill;
+  private final byte[] mSpillPadding = new byte[SPILL_RECORD_SIZE - 37];
+
+  private long mNextSequence = 0;
+  private long mReceived = 0;
+
+  LocationRecorder(int capacity, long minIntervalMs, float minDistanceMeters, File spillFile)
+      throws IOException {
+    mCapacity = capacity;
+    mTime = new long[capacity];
+    mLatitude = new double[capacity];
+    mLongitude = new double[capacity];
+    mAccuracy = new float[capacity];
+    mSpeed = new float[capacity];
+    mBearing = new float[capacity];
+    mProvider = new byte[capacity];
+    mMinIntervalMs = minIntervalMs;
+    mMinDistanceMeters = minDistanceMeters;
+    mSpill = spillFile == null ? null
+        : new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+  }
+
+  /** Records the fix unless it is too close in time and space to the previous one. */
+  synchronized void record(Location location) {
+    mReceived++;
+    int provider = providerIndex(location.getProvider());
+    double[] last = mLastRecorded.get(provider);
+    if (last != null) {
+      if (location.getTime() - (long) last[0] < mMinIntervalMs) {
+        return;
+      }
+      if (mMinDistanceMeters > 0) {
+        Location.distanceBetween(last[1], last[2], location.getLatitude(),
+            location.getLongitude(), mDistance);
+        if (mDistance[0] < mMinDistanceMeters) {
+          return;
+        }
+      }
+    } else {
+      last = new double[3];
+      mLastRecorded.set(provider, last);
+    }
+    last[0] = location.getTime();
+    last[1] = location.getLatitude();
+    last[2] = location.getLongitude();
+
+    int slot = RingIndex.slot(mNextSequence, mCapacity);
+    mTime[slot] = location.getTime();
+    mLatitude[slot] = location.getLatitude();
+    mLongitude[slot] = location.getLongitude();
+    mAccuracy[slot] = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+    mSpeed[slot] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+    mBearing[slot] = location.hasBearing() ? location.getBearing() : Float.NaN;
+    mProvider[slot] = (byte) provider;
+    mNextSequence++;
+
+    if (mSpill != null) {
+      try {
+        mSpill.writeLong(mTime[slot]);
+        mSpill.writeDouble(mLatitude[slot]);
+        mSpill.writeDouble(mLongitude[slot]);
+        mSpill.writeFloat(mAccuracy[slot]);
+        mSpill.writeFloat(mSpeed[slot]);
+        mSpill.writeFloat(mBearing[slot]);
+        mSpill.writeByte(provider);
+        mSpill.write(mSpillPadding);
+      } catch (IOException e) {
+        Log.e("Failed to spill location fix.", e);
+      }
+    }
+  }
+
+  private int providerIndex(String provider) {
+    int index = mProviders.indexOf(provider);
+    if (index < 0) {
+      index = mProviders.size();
+      mProviders.add(provider);
+      mLastRecorded.add(null);
+    }
+    return index;
+  }
+
+  synchronized List<String> getProviders() {
+    return new ArrayList<String>(mProviders);
+  }
+
+  /**
+   * Returns up to {@code maxCount} fixes with sequence numbers from {@code since} on, as parallel
+   * arrays. "next" is the sequence number to pass on the following call, and "dropped" the number
+   * of requested fixes that were already overwritten.
+   *
+   * <p>The fixes are copied out under the lock and converted to JSON after releasing it, so that
+   * a large read does not hold up {@link #record} on the main looper.
+   */
+  JSONObject read(long since, int maxCount) throws JSONException {
+    long first;
+    long end;
+    long[] times;
+    double[] latitudes;
+    double[] longitudes;
+    float[] accuracies;
+    float[] speeds;
+    float[] bearings;
+    byte[] providers;
+    List<String> providerNames;
+    synchronized (this) {
+      flushSpill();
+      first = RingIndex.first(since, mNextSequence, mCapacity);
+      end = RingIndex.end(first, maxCount, mNextSequence);
+      int count = (int) (end - first);
+      times = new long[count];
+      latitudes = new double[count];
+      longitudes = new double[count];
+      accuracies = new float[count];
+      speeds = new float[count];
+      bearings = new float[count];
+      providers = new byte[count];
+      for (int i = 0; i < count; i++) {
+        int slot = RingIndex.slot(first + i, mCapacity);
+        times[i] = mTime[slot];
+        latitudes[i] = mLatitude[slot];
+        longitudes[i] = mLongitude[slot];
+        accuracies[i] = mAccuracy[slot];
+        speeds[i] = mSpeed[slot];
+        bearings[i] = mBearing[slot];
+        providers[i] = mProvider[slot];
+      }
+      providerNames = new ArrayList<String>(mProviders);
+    }
+
+    JSONArray time = new JSONArray();
+    JSONArray latitude = new JSONArray();
+    JSONArray longitude = new JSONArray();
+    JSONArray accuracy = new JSONArray();
+    JSONArray speed = new JSONArray();
+    JSONArray bearing = new JSONArray();
+    JSONArray provider = new JSONArray();
+    for (int i = 0; i < times.length; i++) {
+      time.put(times[i]);
+      latitude.put(latitudes[i]);
+      longitude.put(longitudes[i]);
+      accuracy.put(toJson(accuracies[i]));
+      speed.put(toJson(speeds[i]));
+      bearing.put(toJson(bearings[i]));
+      provider.put(providers[i]);
+    }
+    JSONObject batch = new JSONObject();
+    batch.put("first", first);
+    batch.put("next", end);
+    batch.put("dropped", RingIndex.dropped(since, first));
+    batch.put("providers", new JSONArray(providerNames));
+    batch.put("time", time);
+    batch.put("latitude", latitude);
+    batch.put("longitude", longitude);
+    batch.put("accuracy", accuracy);
+    batch.put("speed", speed);
+    batch.put("bearing", bearing);
+    batch.put("provider", provider);
+    return batch;
+  }
+
+  private static Object toJson(float value) {
+    return Float.isNaN(value) ? JSONObject.NULL : (Object) (double) value;
+  }
+
+  /** Returns the counters of the recording. */
+  synchronized JSONObject getStatus() throws JSONException {
+    JSONObject status = new JSONObject();
+    status.put("received", mReceived);
+    status.put("recorded", mNextSequence);
+    status.put("oldest", RingIndex.oldest(mNextSequence, mCapacity));
+    status.put("capacity", mCapacity);
+    status.put("providers", new JSONArray(mProviders));
+    return status;
+  }
+
+  private void flushSpill() {
+    if (mSpill != null) {
+      try {
+        mSpill.flush();
+      } catch (IOException e) {
+        Log.e("Failed to flush location spill file.", e);
+      }
+    }
+  }
+
+  synchronized void close() {
+    if (mSpill != null) {
+      try {
+        mSpill.close();
+      } catch (IOException e) {
+        Log.e("Failed to close location spill file.", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcMetrics;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the per-RPC and per-event metrics recorded by {@link RpcMetrics}.
+ *
+ * <p>Metrics are shared by all sessions in the process. Latencies are in microseconds and response
+ * sizes in characters of the JSON response line.
+ */
+public class MetricsFacade extends RpcReceiver {
+
+    private ScheduledExecutorService mDumpExecutor;
+    private Writer mDumpWriter;
+
+    public MetricsFacade(FacadeManager manager) {
+        super(manager);
+    }
+
+    @Rpc(description = "Returns the RPC and event metrics recorded since the last reset.",
+            returns = "A map with the keys methods and events. Each RPC has calls, errors, "
+                    + "latency mean, p50, p90, p99 and max in microseconds, and mean and max "
+                    + "response size. Each event has posted and dropped counts.")
+    public JSONObject metricsGetSnapshot() throws JSONException {
+        return RpcMetrics.getInstance().snapshot();
+    }
+
+    @Rpc(description = "Resets all RPC and event metrics.")
+    public void metricsReset() {
+        RpcMetrics.getInstance().reset();
+    }
+
+    @Rpc(description = "Periodically appends a metrics snapshot, one JSON object per line, to a "
+            + "file until metricsStopDump is called or the session ends.")
+    public synchronized void metricsStartDump(
+            @RpcParameter(name = "path", description = "File to append snapshots to.") String path,
+            @RpcParameter(name = "periodMs", description = "Time between snapshots.")
+            @RpcDefault("10000") Integer periodMs) throws IOException {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("periodMs must be positive: " + periodMs);
+        }
+        metricsStopDump();
+        final Writer writer = new FileWriter(path, true);
+        mDumpWriter = writer;
+        mDumpExecutor = Executors.newSingleThreadScheduledExecutor();
+        mDumpExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writer.write(RpcMetrics.getInstance().snapshot().toString());
+                    writer.write('\n');
+                    writer.flush();
+                } catch (Exception e) {
+                    Log.e("Failed to dump metrics.", e);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Rpc(description = "Stops the periodic metrics dump started by metricsStartDump.")
+    public synchronized void metricsStopDump() {
+        if (mDumpExecutor != null) {
+            mDumpExecutor.shutdown();
+            try {
+                mDumpExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDumpExecutor = null;
+        }
+        if (mDumpWriter != null) {
+            try {
+                mDumpWriter.close();
+            } catch (IOException e) {
+                Log.e("Failed to close metrics dump.", e);
+            }
+            mDumpWriter = null;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        metricsStopDump();
+    }
+}
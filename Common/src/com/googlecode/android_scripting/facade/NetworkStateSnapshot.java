@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.facade.ConnectivityConstants.NetworkSnapshotContainer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of the networks seen by one network callback, one record per network.
+ *
+ * <p>Callbacks only update the records; the version is bumped when a value actually changes, so
+ * repeated identical capability or link property updates cost nothing. With a positive interval
+ * the changes are coalesced and posted at most once per interval as a
+ * {@link ConnectivityConstants#EventNetworkCallbackSnapshot} event that holds, for each network,
+ * only the values that differ from the previous event.
+ *
+ * <p>Nothing is recorded until the interval is first set, so callbacks that never use snapshots
+ * pay no bookkeeping. The thread that posts the events belongs to the snapshot and only runs while
+ * the interval is positive, since the callback can outlive the facade that registered it.
+ */
+class NetworkStateSnapshot {
+
+    private final String mCallbackId;
+    private final EventFacade mEventFacade;
+    private ScheduledExecutorService mExecutor;
+    // Read without the lock by every callback before it builds any record.
+    private volatile boolean mTracking = false;
+    private final Map<Integer, Map<String, Object>> mNetworks =
+            new TreeMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> mPosted =
+            new HashMap<Integer, Map<String, Object>>();
+    private final TreeSet<Integer> mDirty = new TreeSet<Integer>();
+    private long mVersion = 0;
+    private boolean mUnavailable = false;
+    private boolean mUnavailableDirty = false;
+    private long mIntervalMs = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NetworkStateSnapshot(String callbackId, EventFacade eventFacade) {
+        mCallbackId = callbackId;
+        mEventFacade = eventFacade;
+    }
+
+    /**
+     * Starts tracking and sets how often coalesced change events are posted; 0 stops them.
+     * Changes made before the events are enabled are not reported.
+     */
+    synchronized void setInterval(long intervalMs) {
+        mTracking = true;
+        if (intervalMs > 0 && mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor();
+        } else if (intervalMs <= 0) {
+            stopExecutor();
+        }
+        mIntervalMs = intervalMs;
+        mDirty.clear();
+        mUnavailableDirty = false;
+        mPosted.clear();
+        for (Map.Entry<Integer, Map<String, Object>> entry : mNetworks.entrySet()) {
+            mPosted.put(entry.getKey(), new HashMap<String, Object>(entry.getValue()));
+        }
+    }
+
+    boolean isTracking() {
+        return mTracking;
+    }
+
+    /** Stops posting events, once the callback is unregistered. */
+    synchronized void close() {
+        mIntervalMs = 0;
+        stopExecutor();
+    }
+
+    private void stopExecutor() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mFlushScheduled = false;
+    }
+
+    void onState(Network network, String state) {
+        update(network, NetworkSnapshotContainer.STATE, state);
+    }
+
+    void onLosing(Network network, int maxMsToLive) {
+        if (!mTracking) {
+            return;
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(NetworkSnapshotContainer.STATE, ConnectivityConstants.NetworkCallbackLosing);
+        values.put(ConnectivityConstants.NetworkCallbackContainer.MAX_MS_TO_LIVE, maxMsToLive);
+        update(network, values);
+    }
+
+    void onSuspended(Network network, boolean suspended) {
+        update(network, NetworkSnapshotContainer.SUSPENDED, suspended);
+    }
+
+    void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        if (!mTracking) {
+            return;
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(NetworkSnapshotContainer.TRANSPORTS, toList(capabilities.getTransportTypes()));
+        values.put(NetworkSnapshotContainer.CAPABILITIES, toList(capabilities.getCapabilities()));
+        values.put(ConnectivityConstants.NetworkCallbackContainer.RSSI,
+                capabilities.getSignalStrength());
+        values.put(NetworkSnapshotContainer.UPSTREAM_KBPS,
+                capabilities.getLinkUpstreamBandwidthKbps());
+        values.put(NetworkSnapshotContainer.DOWNSTREAM_KBPS,
+                capabilities.getLinkDownstreamBandwidthKbps());
+        update(network, values);
+    }
+
+    void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+        if (!mTracking) {
+            return;
+        }
+        List<String> addresses = new ArrayList<String>();
+        for (LinkAddress address : linkProperties.getLinkAddresses()) {
+            addresses.add(address.toString());
+        }
+        List<String> dnsServers = new ArrayList<String>();
+        for (InetAddress server : linkProperties.getDnsServers()) {
+            dnsServers.add(server.getHostAddress());
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(ConnectivityConstants.NetworkCallbackContainer.INTERFACE_NAME,
+                linkProperties.getInterfaceName());
+        values.put(NetworkSnapshotContainer.ADDRESSES, addresses);
+        values.put(NetworkSnapshotContainer.DNS_SERVERS, dnsServers);
+        values.put(NetworkSnapshotContainer.MTU, linkProperties.getMtu());
+        update(network, values);
+    }
+
+    synchronized void onUnavailable() {
+        if (mTracking && !mUnavailable) {
+            mUnavailable = true;
+            mUnavailableDirty = true;
+            changed();
+        }
+    }
+
+    private void update(Network network, String key, Object value) {
+        if (!mTracking) {
+            return;
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(key, value);
+        update(network, values);
+    }
+
+    private synchronized void update(Network network, Map<String, Object> values) {
+        Map<String, Object> record = mNetworks.get(network.netId);
+        if (record == null) {
+            record = new HashMap<String, Object>();
+            record.put(NetworkSnapshotContainer.NET_ID, network.netId);
+            mNetworks.put(network.netId, record);
+        }
+        boolean changed = false;
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            Object old = record.put(value.getKey(), value.getValue());
+            changed |= !equal(old, value.getValue());
+        }
+        if (!changed) {
+            return;
+        }
+        if (mIntervalMs > 0) {
+            mDirty.add(network.netId);
+        } else if (ConnectivityConstants.NetworkCallbackLost.equals(
+                record.get(NetworkSnapshotContainer.STATE))) {
+            mNetworks.remove(network.netId);
+        }
+        changed();
+    }
+
+    private void changed() {
+        mVersion++;
+        if (mExecutor != null && !mFlushScheduled) {
+            try {
+                mExecutor.schedule(mFlush, mIntervalMs, TimeUnit.MILLISECONDS);
+                mFlushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                Log.d("Network snapshot executor is shut down.");
+            }
+        }
+    }
+
+    /** Posts the changes since the previous event, if there are any. */
+    void flush() {
+        Map<String, Object> event;
+        synchronized (this) {
+            mFlushScheduled = false;
+            List<Map<String, Object>> changes = new ArrayList<Map<String, Object>>();
+            for (Integer netId : mDirty) {
+                Map<String, Object> record = mNetworks.get(netId);
+                Map<String, Object> posted = mPosted.get(netId);
+                Map<String, Object> diff = new TreeMap<String, Object>();
+                for (Map.Entry<String, Object> value : record.entrySet()) {
+                    if (posted == null || !equal(posted.get(value.getKey()), value.getValue())) {
+                        diff.put(value.getKey(), value.getValue());
+                    }
+                }
+                if (ConnectivityConstants.NetworkCallbackLost.equals(
+                        record.get(NetworkSnapshotContainer.STATE))) {
+                    mNetworks.remove(netId);
+                    mPosted.remove(netId);
+                } else {
+                    mPosted.put(netId, new HashMap<String, Object>(record));
+                }
+                if (!diff.isEmpty()) {
+                    diff.put(NetworkSnapshotContainer.NET_ID, netId);
+                    changes.add(diff);
+                }
+            }
+            mDirty.clear();
+            if (changes.isEmpty() && !mUnavailableDirty) {
+                return;
+            }
+            event = new TreeMap<String, Object>();
+            event.put(ConnectivityConstants.NetworkCallbackContainer.ID, mCallbackId);
+            event.put(NetworkSnapshotContainer.VERSION, mVersion);
+            event.put(NetworkSnapshotContainer.CHANGES, changes);
+            if (mUnavailableDirty) {
+                event.put(NetworkSnapshotContainer.UNAVAILABLE, mUnavailable);
+                mUnavailableDirty = false;
+            }
+        }
+        mEventFacade.postEvent(ConnectivityConstants.EventNetworkCallbackSnapshot, event);
+    }
+
+    /** Returns the version and the records of the networks that are not lost. */
+    synchronized Map<String, Object> getSnapshot() {
+        List<Map<String, Object>> networks = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> record : mNetworks.values()) {
+            if (!ConnectivityConstants.NetworkCallbackLost.equals(
+                    record.get(NetworkSnapshotContainer.STATE))) {
+                networks.add(new TreeMap<String, Object>(record));
+            }
+        }
+        Map<String, Object> snapshot = new TreeMap<String, Object>();
+        snapshot.put(ConnectivityConstants.NetworkCallbackContainer.ID, mCallbackId);
+        snapshot.put(NetworkSnapshotContainer.VERSION, mVersion);
+        snapshot.put(NetworkSnapshotContainer.UNAVAILABLE, mUnavailable);
+        snapshot.put(NetworkSnapshotContainer.NETWORKS, networks);
+        return snapshot;
+    }
+
+    private static List<Integer> toList(int[] values) {
+        List<Integer> list = new ArrayList<Integer>(values.length);
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
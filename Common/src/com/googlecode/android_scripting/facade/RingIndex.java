@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+/**
+ * Sequence number arithmetic shared by the recorders that keep their records in a ring buffer.
+ *
+ * <p>Records are numbered from 0 in the order they are recorded, and record {@code sequence} is
+ * kept in slot {@code sequence % capacity}. With {@code next} records recorded so far, the buffer
+ * holds records {@link #oldest} to {@code next - 1}. A read asks for up to {@code maxCount}
+ * records from {@code since} on; it returns records {@link #first} to {@link #end} exclusive and
+ * reports the {@link #dropped} ones that were overwritten before the reader got to them.
+ */
+final class RingIndex {
+
+  private RingIndex() {
+  }
+
+  /** Returns the slot of a record. */
+  static int slot(long sequence, int capacity) {
+    return (int) (sequence % capacity);
+  }
+
+  /** Returns the sequence number of the oldest record still in the buffer. */
+  static long oldest(long next, int capacity) {
+    return Math.max(next - capacity, 0);
+  }
+
+  /** Returns the first record a read from {@code since} returns. */
+  static long first(long since, long next, int capacity) {
+    return Math.max(Math.min(since, next), oldest(next, capacity));
+  }
+
+  /** Returns the sequence number after the last record a read starting at {@code first} returns. */
+  static long end(long first, int maxCount, long next) {
+    return Math.min(first + maxCount, next);
+  }
+
+  /** Returns how many of the records a read from {@code since} asked for were overwritten. */
+  static long dropped(long since, long first) {
+    return Math.max(first - Math.max(since, 0), 0);
+  }
+}
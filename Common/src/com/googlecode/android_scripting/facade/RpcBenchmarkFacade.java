@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.os.Bundle;
+import android.util.Base64;
+
+import com.googlecode.android_scripting.jsonrpc.JsonRpcResult;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.rpc.MethodDescriptor;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcError;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+import com.googlecode.android_scripting.rpc.RpcUnmetered;
+
+import org.apache.commons.codec.binary.Base64Codec;
+import org.apache.commons.codec.binary.FastBase64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stub RPCs for measuring the cost of the RPC dispatch path.
+ *
+ * <p>The echo and payload RPCs do no work of their own, so a client timing them over one or more
+ * sessions measures framing, the socket round trip, parameter conversion, reflective invocation
+ * and result serialization. {@link #rpcBenchmarkDispatch} runs those stages in process and reports
+ * the time spent in each, without the socket. {@link #rpcBenchmarkBase64} compares the Base64
+ * codecs used for binary payloads, and {@link #rpcBenchmarkTerminalRelay} measures terminal
+ * output throughput.
+ *
+ * <p>This facade is only registered when the {@code debug.sl4a.benchmark} system property is true,
+ * e.g. after {@code adb shell setprop debug.sl4a.benchmark true} and a restart of the service.
+ * Its calls are never recorded in {@link com.googlecode.android_scripting.rpc.RpcMetrics}.
+ */
+@RpcUnmetered
+public class RpcBenchmarkFacade extends RpcReceiver {
+
+    private static final String PAYLOAD_STRING = "string";
+    private static final String PAYLOAD_LIST = "list";
+    private static final String PAYLOAD_MAP = "map";
+
+    // Lives in the terminal app rather than in this library, so it is looked up by name.
+    private static final String RELAY_BENCHMARK_CLASS = "org.connectbot.service.RelayBenchmark";
+
+    public RpcBenchmarkFacade(FacadeManager manager) {
+        super(manager);
+    }
+
+    @Rpc(description = "Returns its argument unchanged.")
+    public Object rpcBenchmarkEcho(
+            @RpcParameter(name = "payload") Object payload) {
+        return payload;
+    }
+
+    @Rpc(description = "Returns a generated payload of the requested size.",
+            returns = "A string of size characters, or a list or map of size entries.")
+    public Object rpcBenchmarkPayload(
+            @RpcParameter(name = "size", description = "Characters or entries in the payload.")
+            Integer size,
+            @RpcParameter(name = "type", description = "One of string, list or map.")
+            @RpcDefault(PAYLOAD_STRING) String type) throws RpcError {
+        return buildPayload(size, type);
+    }
+
+    @Rpc(description = "Runs an RPC repeatedly in process and times each stage of dispatch.",
+            returns = "A map of total nanoseconds spent parsing the request line, converting "
+                    + "parameters, invoking the method and serializing the result, along with "
+                    + "the number of iterations and the size of one response line.")
+    public Bundle rpcBenchmarkDispatch(
+            @RpcParameter(name = "method", description = "Name of the RPC to run.") String method,
+            @RpcParameter(name = "params", description = "Parameters to pass to the RPC.")
+            JSONArray params,
+            @RpcParameter(name = "iterations") @RpcDefault("1000") Integer iterations)
+            throws Throwable {
+        MethodDescriptor rpc = mManager.getMethodDescriptor(method);
+        if (rpc == null) {
+            throw new RpcError("Unknown RPC: " + method);
+        }
+        JSONObject request = new JSONObject();
+        request.put("id", 0);
+        request.put("method", method);
+        request.put("params", params);
+        String requestLine = request.toString();
+
+        long parseNanos = 0;
+        long convertNanos = 0;
+        long invokeNanos = 0;
+        long serializeNanos = 0;
+        int responseLength = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            JSONArray parsedParams = new JSONObject(requestLine).getJSONArray("params");
+            long parsed = System.nanoTime();
+            Object[] args = rpc.convertParameters(parsedParams);
+            long converted = System.nanoTime();
+            Object result = rpc.invokeUnmetered(mManager, args);
+            long invoked = System.nanoTime();
+            responseLength = JsonRpcResult.result(i, result).toString().length();
+            long serialized = System.nanoTime();
+            parseNanos += parsed - start;
+            convertNanos += converted - parsed;
+            invokeNanos += invoked - converted;
+            serializeNanos += serialized - invoked;
+        }
+
+        Bundle stats = new Bundle();
+        stats.putInt("iterations", iterations);
+        stats.putLong("parseNanos", parseNanos);
+        stats.putLong("convertNanos", convertNanos);
+        stats.putLong("invokeNanos", invokeNanos);
+        stats.putLong("serializeNanos", serializeNanos);
+        stats.putInt("responseLength", responseLength);
+        return stats;
+    }
+
+    @Rpc(description = "Encodes and decodes a random payload repeatedly with each Base64 codec.",
+            returns = "A map of total nanoseconds spent encoding and decoding by the streaming "
+                    + "Base64Codec, the allocation free FastBase64 and android.util.Base64, "
+                    + "along with the payload size, the number of iterations and a checksum of "
+                    + "the outputs.")
+    public Bundle rpcBenchmarkBase64(
+            @RpcParameter(name = "size", description = "Bytes in the payload.")
+            @RpcDefault("65536") Integer size,
+            @RpcParameter(name = "iterations") @RpcDefault("100") Integer iterations)
+            throws RpcError {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        }
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        byte[] encoded = new byte[FastBase64.encodedLength(size, false, 0, 0)];
+        byte[] decoded = new byte[size];
+        FastBase64.encode(data, 0, size, encoded, 0, false, 0, null);
+        Base64Codec legacy = new Base64Codec(0);
+        if (!Arrays.equals(encoded, legacy.encode(data))
+                || !Arrays.equals(encoded, Base64.encode(data, Base64.NO_WRAP))) {
+            throw new RpcError("Base64 codecs disagree on the encoded payload.");
+        }
+
+        // Every output feeds the checksum, so the compiler cannot drop a loop as dead code.
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += sample(legacy.encode(data), i);
+        }
+        long legacyEncodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += sample(legacy.decode(encoded), i);
+        }
+        long legacyDecodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += FastBase64.encode(data, 0, size, encoded, 0, false, 0, null);
+            checksum += sample(encoded, i);
+        }
+        long fastEncodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += FastBase64.decode(encoded, 0, encoded.length, decoded, 0);
+            checksum += sample(decoded, i);
+        }
+        long fastDecodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += sample(Base64.encode(data, Base64.NO_WRAP), i);
+        }
+        long androidEncodeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += sample(Base64.decode(encoded, Base64.NO_WRAP), i);
+        }
+        long androidDecodeNanos = System.nanoTime() - start;
+
+        if (!Arrays.equals(data, decoded)) {
+            throw new RpcError("FastBase64 did not round trip the payload.");
+        }
+        Bundle stats = new Bundle();
+        stats.putInt("size", size);
+        stats.putInt("iterations", iterations);
+        stats.putLong("legacyEncodeNanos", legacyEncodeNanos);
+        stats.putLong("legacyDecodeNanos", legacyDecodeNanos);
+        stats.putLong("fastEncodeNanos", fastEncodeNanos);
+        stats.putLong("fastDecodeNanos", fastDecodeNanos);
+        stats.putLong("androidEncodeNanos", androidEncodeNanos);
+        stats.putLong("androidDecodeNanos", androidDecodeNanos);
+        stats.putLong("checksum", checksum);
+        return stats;
+    }
+
+    /** Returns a byte of the output that moves with the iteration. */
+    private static int sample(byte[] output, int iteration) {
+        return output[iteration % output.length];
+    }
+
+    @Rpc(description = "Relays generated terminal output into an 80x24 terminal emulator.",
+            returns = "A map of the bytes relayed, the nanoseconds taken and the resulting "
+                    + "bytes per second.")
+    public Bundle rpcBenchmarkTerminalRelay(
+            @RpcParameter(name = "text", description = "Output to repeat, e.g. a line of a log.")
+            @RpcDefault("The quick brown fox jumps over the lazy dog.\r\n") String text,
+            @RpcParameter(name = "size", description = "Minimum bytes to relay.")
+            @RpcDefault("1048576") Integer size,
+            @RpcParameter(name = "encoding") @RpcDefault("UTF-8") String encoding)
+            throws Throwable {
+        Method run;
+        try {
+            run = Class.forName(RELAY_BENCHMARK_CLASS)
+                    .getMethod("run", String.class, int.class, String.class);
+        } catch (ClassNotFoundException e) {
+            throw new RpcError("The terminal is not part of this build.");
+        }
+        try {
+            return (Bundle) run.invoke(null, text, size, encoding);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Object buildPayload(int size, String type) throws RpcError {
+        if (PAYLOAD_STRING.equals(type)) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            return new String(chars);
+        } else if (PAYLOAD_LIST.equals(type)) {
+            List<Integer> list = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(i);
+            }
+            return list;
+        } else if (PAYLOAD_MAP.equals(type)) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (int i = 0; i < size; i++) {
+                map.put("key" + i, i);
+            }
+            return map;
+        }
+        throw new RpcError("Unknown payload type: " + type);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.googlecode.android_scripting.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Captures every event of a set of sensors at a requested sampling period.
+ *
+ * <p>Each sensor gets a ring buffer of preallocated primitive arrays holding the event timestamp
+ * in nanoseconds, the accuracy and the values, so recording does not allocate per event. Events
+ * are delivered on a dedicated thread. Readers page through a ring by sequence number and are told
+ * how many events were overwritten before they read them.
+ *
+ * <p>Events can also be appended to a file, either as CSV lines of
+ * {@code type,timestamp,accuracy,value...} or as big-endian binary records of sensor type (int),
+ * timestamp (long), accuracy (byte), value count (byte) and the values (float).
+ */
+class SensorCapture {
+
+  static final String FORMAT_BINARY = "binary";
+  static final String FORMAT_CSV = "csv";
+
+  private final SensorManager mSensorManager;
+  private final HandlerThread mThread;
+  private final List<Channel> mChannels = new ArrayList<Channel>();
+  private final Closeable mFile;
+  private final DataOutputStream mBinary;
+  private final Writer mCsv;
+  private final StringBuilder mCsvLine;
+  private char[] mCsvChars;
+  private boolean mStopped = false;
+
+  SensorCapture(SensorManager sensorManager, List<Sensor> sensors, int samplingPeriodUs,
+      int capacity, File file, String format) throws IOException {
+    mSensorManager = sensorManager;
+    if (file == null) {
+      mFile = null;
+      mBinary = null;
+      mCsv = null;
+      mCsvLine = null;
+    } else if (FORMAT_CSV.equals(format)) {
+      mCsv = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"),
+          64 * 1024);
+      mFile = mCsv;
+      mBinary = null;
+      mCsvLine = new StringBuilder(256);
+      mCsvChars = new char[256];
+    } else if (FORMAT_BINARY.equals(format)) {
+      mBinary =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      mFile = mBinary;
+      mCsv = null;
+      mCsvLine = null;
+    } else {
+      throw new IllegalArgumentException("Unknown capture format: " + format);
+    }
+    for (Sensor sensor : sensors) {
+      mChannels.add(new Channel(sensor, capacity));
+    }
+    mThread = new HandlerThread("SensorCapture");
+    mThread.start();
+    Handler handler = new Handler(mThread.getLooper());
+    for (Channel channel : mChannels) {
+      mSensorManager.registerListener(channel, channel.mmSensor, samplingPeriodUs, handler);
+    }
+  }
+
+  /** Unregisters the sensors and closes the file. The buffered events can still be read. */
+  void stop() {
+    for (Channel channel : mChannels) {
+      mSensorManager.unregisterListener(channel);
+    }
+    mThread.quitSafely();
+    synchronized (this) {
+      mStopped = true;
+      if (mFile != null) {
+        try {
+          mFile.close();
+        } catch (IOException e) {
+          Log.e("Failed to close sensor capture file.", e);
+        }
+      }
+    }
+  }
+
+  private synchronized void write(Channel channel, SensorEvent event) {
+    if (mStopped) {
+      return;
+    }
+    try {
+      if (mBinary != null) {
+        mBinary.writeInt(channel.mmSensor.getType());
+        mBinary.writeLong(event.timestamp);
+        mBinary.writeByte(event.accuracy);
+        mBinary.writeByte(event.values.length);
+        for (float value : event.values) {
+          mBinary.writeFloat(value);
+        }
+      } else {
+        mCsvLine.setLength(0);
+        mCsvLine.append(channel.mmSensor.getType()).append(',').append(event.timestamp)
+            .append(',').append(event.accuracy);
+        for (float value : event.values) {
+          mCsvLine.append(',').append(value);
+        }
+        mCsvLine.append('\n');
+        int length = mCsvLine.length();
+        if (length > mCsvChars.length) {
+          mCsvChars = new char[length];
+        }
+        mCsvLine.getChars(0, length, mCsvChars, 0);
+        mCsv.write(mCsvChars, 0, length);
+      }
+    } catch (IOException e) {
+      Log.e("Failed to write sensor event, closing capture file.", e);
+      mStopped = true;
+    }
+  }
+
+  private Channel getChannel(int sensorType) {
+    for (Channel channel : mChannels) {
+      if (channel.mmSensor.getType() == sensorType) {
+        return channel;
+      }
+    }
+    throw new IllegalArgumentException("Sensor type " + sensorType + " is not being captured.");
+  }
+
+  /**
+   * Returns up to {@code maxCount} events of a sensor starting at sequence number {@code since}.
+   * Values are flattened, {@code valueCount} per event.
+   */
+  JSONObject read(int sensorType, long since, int maxCount) throws JSONException {
+    return getChannel(sensorType).read(since, maxCount);
+  }
+
+  /** Returns the event counts and effective rate of every captured sensor. */
+  JSONArray getStatus() throws JSONException {
+    JSONArray status = new JSONArray();
+    for (Channel channel : mChannels) {
+      status.put(channel.getStatus());
+    }
+    return status;
+  }
+
+  private class Channel implements SensorEventListener {
+    private final Sensor mmSensor;
+    private final int mmCapacity;
+    private final long[] mmTimestamp;
+    private final byte[] mmAccuracy;
+    private float[] mmValues;
+    private int mmValueCount = 0;
+    private long mmNextSequence = 0;
+    private long mmFirstTimestamp = 0;
+
+    Channel(Sensor sensor, int capacity) {
+      mmSensor = sensor;
+      mmCapacity = capacity;
+      mmTimestamp = new long[capacity];
+      mmAccuracy = new byte[capacity];
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+      synchronized (this) {
+        if (mmValues == null) {
+          // The number of values is fixed per sensor; size the ring on the first event.
+          mmValueCount = event.values.length;
+          mmValues = new float[mmCapacity * mmValueCount];
+          mmFirstTimestamp = event.timestamp;
+        }
+        int slot = RingIndex.slot(mmNextSequence, mmCapacity);
+        mmTimestamp[slot] = event.timestamp;
+        mmAccuracy[slot] = (byte) event.accuracy;
+        System.arraycopy(event.values, 0, mmValues, slot * mmValueCount,
+            Math.min(mmValueCount, event.values.length));
+        mmNextSequence++;
+      }
+      if (mFile != null) {
+        write(this, event);
+      }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    synchronized JSONObject read(long since, int maxCount) throws JSONException {
+      long first = RingIndex.first(since, mmNextSequence, mmCapacity);
+      long end = RingIndex.end(first, maxCount, mmNextSequence);
+      JSONArray timestamps = new JSONArray();
+      JSONArray accuracies = new JSONArray();
+      JSONArray values = new JSONArray();
+      for (long sequence = first; sequence < end; sequence++) {
+        int slot = RingIndex.slot(sequence, mmCapacity);
+        timestamps.put(mmTimestamp[slot]);
+        accuracies.put(mmAccuracy[slot]);
+        for (int i = slot * mmValueCount; i < (slot + 1) * mmValueCount; i++) {
+          values.put((double) mmValues[i]);
+        }
+      }
+      JSONObject batch = new JSONObject();
+      batch.put("sensorType", mmSensor.getType());
+      batch.put("first", first);
+      batch.put("next", end);
+      batch.put("dropped", RingIndex.dropped(since, first));
+      batch.put("valueCount", mmValueCount);
+      batch.put("timestamp", timestamps);
+      batch.put("accuracy", accuracies);
+      batch.put("values", values);
+      return batch;
+    }
+
+    synchronized JSONObject getStatus() throws JSONException {
+      JSONObject status = new JSONObject();
+      status.put("sensorType", mmSensor.getType());
+      status.put("name", mmSensor.getName());
+      status.put("events", mmNextSequence);
+      status.put("oldest", RingIndex.oldest(mmNextSequence, mmCapacity));
+      status.put("capacity", mmCapacity);
+      long last = mmNextSequence == 0 ? 0
+          : mmTimestamp[RingIndex.slot(mmNextSequence - 1, mmCapacity)];
+      double seconds = (last - mmFirstTimestamp) / 1e9;
+      status.put("rateHz", seconds > 0 ? (mmNextSequence - 1) / seconds : 0);
+      return status;
+    }
+  }
+}
@@ -27,13 +27,19 @@ import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
 import com.googlecode.android_scripting.rpc.RpcDefault;
 import com.googlecode.android_scripting.rpc.RpcDeprecated;
+import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 import com.googlecode.android_scripting.rpc.RpcStartEvent;
 import com.googlecode.android_scripting.rpc.RpcStopEvent;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 /**
  * Exposes the SensorManager related functionality. <br>
  * <br>
@@ -126,6 +132,7 @@ public class SensorManagerFacade extends RpcReceiver {
   private volatile Long mDelayTime;
 
   private SensorEventListener mSensorListener;
+  private SensorCapture mCapture;
 
   public SensorManagerFacade(FacadeManager manager) {
     super(manager);
@@ -257,9 +264,71 @@ public class SensorManagerFacade extends RpcReceiver {
     }
   }
 
+  @Rpc(description = "Starts capturing every event of the given sensors into on-device ring buffers, read with sensorsReadCapture. Replaces any previous capture.")
+  public void sensorsStartCapture(
+      @RpcParameter(name = "sensorTypes", description = "android.hardware.Sensor TYPE_ constants") Integer[] sensorTypes,
+      @RpcParameter(name = "samplingPeriodUs", description = "Requested time between events in microseconds") @RpcDefault("5000") Integer samplingPeriodUs,
+      @RpcParameter(name = "capacity", description = "Number of events kept per sensor") @RpcDefault("65536") Integer capacity,
+      @RpcParameter(name = "filePath", description = "File to also write every event to") @RpcOptional String filePath,
+      @RpcParameter(name = "format", description = "binary or csv") @RpcDefault("binary") String format)
+      throws Exception {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    List<Sensor> sensors = new ArrayList<Sensor>();
+    for (Integer type : sensorTypes) {
+      Sensor sensor = mSensorManager.getDefaultSensor(type);
+      if (sensors.contains(sensor)) {
+        throw new IllegalArgumentException("Sensor type " + type + " is listed more than once.");
+      }
+      if (sensor == null) {
+        throw new Exception("No sensor of type " + type);
+      }
+      sensors.add(sensor);
+    }
+    sensorsStopCapture();
+    SensorCapture capture = new SensorCapture(mSensorManager, sensors, samplingPeriodUs,
+        capacity, filePath == null ? null : new File(filePath), format);
+    synchronized (this) {
+      mCapture = capture;
+    }
+  }
+
+  @Rpc(description = "Returns captured events of one sensor: nanosecond timestamps, accuracies and the values, valueCount per event.", returns = "The batch, with 'next' to pass as since on the following call and 'dropped', the number of events overwritten before they were read.")
+  public JSONObject sensorsReadCapture(
+      @RpcParameter(name = "sensorType") Integer sensorType,
+      @RpcParameter(name = "since", description = "Sequence number of the first event to return") @RpcDefault("0") Integer since,
+      @RpcParameter(name = "maxCount", description = "Maximum number of events to return") @RpcDefault("1000") Integer maxCount)
+      throws Exception {
+    if (maxCount < 0) {
+      throw new IllegalArgumentException("maxCount must not be negative: " + maxCount);
+    }
+    return getCapture().read(sensorType, since, maxCount);
+  }
+
+  @Rpc(description = "Returns the number of events and the effective rate of every captured sensor.")
+  public JSONArray sensorsGetCaptureStatus() throws Exception {
+    return getCapture().getStatus();
+  }
+
+  private synchronized SensorCapture getCapture() throws Exception {
+    if (mCapture == null) {
+      throw new Exception("No sensor capture was started.");
+    }
+    return mCapture;
+  }
+
+  @Rpc(description = "Stops capturing sensor events and closes the capture file. Captured events stay readable until the next capture starts.")
+  public synchronized void sensorsStopCapture() {
+    if (mCapture != null) {
+      mCapture.stop();
+    }
+  }
+
   @Override
   public void shutdown() {
     stopSensing();
+    sensorsStopCapture();
   }
 
   private class SensorValuesCollector implements SensorEventListener {
@@ -28,12 +28,12 @@ import android.os.Bundle;
 import android.os.ParcelUuid;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
 import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
@@ -62,9 +62,9 @@ public class BluetoothFacade extends RpcReceiver {
 
     public static ConcurrentHashMap<String, BluetoothDevice> DiscoveredDevices;
 
-    public BluetoothFacade(FacadeManager manager) {
+    public BluetoothFacade(FacadeManager manager) throws RpcError {
         super(manager);
-        mBluetoothAdapter = MainThread.run(manager.getService(), new Callable<BluetoothAdapter>() {
+        mBluetoothAdapter = runOnMainThread(manager.getService(), new Callable<BluetoothAdapter>() {
             @Override
             public BluetoothAdapter call() throws Exception {
                 return BluetoothAdapter.getDefaultAdapter();
@@ -16,7 +16,6 @@
 
 package com.googlecode.android_scripting.facade.bluetooth;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -31,11 +30,12 @@ import android.os.Bundle;
 import android.os.ParcelUuid;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
+import com.googlecode.android_scripting.jsonrpc.HandleRegistry;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
 /**
@@ -46,21 +46,18 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
 
     private final EventFacade mEventFacade;
     private BluetoothAdapter mBluetoothAdapter;
-    private static int BleAdvertiseCallbackCount;
-    private static int BleAdvertiseSettingsCount;
-    private static int BleAdvertiseDataCount;
-    private final HashMap<Integer, myAdvertiseCallback> mAdvertiseCallbackList;
+    private final HandleRegistry<myAdvertiseCallback> mAdvertiseCallbackList;
     private final BluetoothLeAdvertiser mAdvertise;
     private final Service mService;
     private Builder mAdvertiseDataBuilder;
     private android.bluetooth.le.AdvertiseSettings.Builder mAdvertiseSettingsBuilder;
-    private final HashMap<Integer, AdvertiseData> mAdvertiseDataList;
-    private final HashMap<Integer, AdvertiseSettings> mAdvertiseSettingsList;
+    private final HandleRegistry<AdvertiseData> mAdvertiseDataList;
+    private final HandleRegistry<AdvertiseSettings> mAdvertiseSettingsList;
 
-    public BluetoothLeAdvertiseFacade(FacadeManager manager) {
+    public BluetoothLeAdvertiseFacade(FacadeManager manager) throws RpcError {
         super(manager);
         mService = manager.getService();
-        mBluetoothAdapter = MainThread.run(mService,
+        mBluetoothAdapter = runOnMainThread(mService,
                 new Callable<BluetoothAdapter>() {
                     @Override
                     public BluetoothAdapter call() throws Exception {
@@ -68,10 +65,12 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
                     }
                 });
         mEventFacade = manager.getReceiver(EventFacade.class);
-        mAdvertiseCallbackList = new HashMap<Integer, myAdvertiseCallback>();
+        mAdvertiseCallbackList = createHandleRegistry("advertise callback");
         mAdvertise = mBluetoothAdapter.getBluetoothLeAdvertiser();
-        mAdvertiseDataList = new HashMap<Integer, AdvertiseData>();
-        mAdvertiseSettingsList = new HashMap<Integer, AdvertiseSettings>();
+        mAdvertiseDataList = createHandleRegistry("advertise data",
+                HandleRegistry.VALUE_IDLE_TIMEOUT_MS, null);
+        mAdvertiseSettingsList = createHandleRegistry("advertise settings",
+                HandleRegistry.VALUE_IDLE_TIMEOUT_MS, null);
         mAdvertiseDataBuilder = new Builder();
         mAdvertiseSettingsBuilder = new android.bluetooth.le.AdvertiseSettings.Builder();
     }
@@ -83,8 +82,7 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
      */
     @Rpc(description = "Generate a new myAdvertisement Object")
     public Integer bleGenBleAdvertiseCallback() {
-        BleAdvertiseCallbackCount += 1;
-        int index = BleAdvertiseCallbackCount;
+        int index = mAdvertiseCallbackList.reserve();
         myAdvertiseCallback mCallback = new myAdvertiseCallback(index);
         mAdvertiseCallbackList.put(mCallback.index,
                 mCallback);
@@ -98,10 +96,7 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
      */
     @Rpc(description = "Constructs a new Builder obj for AdvertiseData and returns its index")
     public Integer bleBuildAdvertiseData() {
-        BleAdvertiseDataCount += 1;
-        int index = BleAdvertiseDataCount;
-        mAdvertiseDataList.put(index,
-                mAdvertiseDataBuilder.build());
+        int index = mAdvertiseDataList.register(mAdvertiseDataBuilder.build());
         mAdvertiseDataBuilder = new Builder();
         return index;
     }
@@ -113,10 +108,7 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
      */
     @Rpc(description = "Constructs a new Builder obj for AdvertiseData and returns its index")
     public Integer bleBuildAdvertiseSettings() {
-        BleAdvertiseSettingsCount += 1;
-        int index = BleAdvertiseSettingsCount;
-        mAdvertiseSettingsList.put(index,
-                mAdvertiseSettingsBuilder.build());
+        int index = mAdvertiseSettingsList.register(mAdvertiseSettingsBuilder.build());
         mAdvertiseSettingsBuilder = new android.bluetooth.le.AdvertiseSettings.Builder();
         return index;
     }
@@ -597,8 +589,8 @@ public class BluetoothLeAdvertiseFacade extends RpcReceiver {
                 }
             }
         }
-        mAdvertiseCallbackList.clear();
-        mAdvertiseSettingsList.clear();
-        mAdvertiseDataList.clear();
+        mAdvertiseCallbackList.close();
+        mAdvertiseSettingsList.close();
+        mAdvertiseDataList.close();
     }
 }
@@ -17,7 +17,6 @@
 package com.googlecode.android_scripting.facade.bluetooth;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -36,11 +35,12 @@ import android.os.Bundle;
 import android.os.ParcelUuid;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
+import com.googlecode.android_scripting.jsonrpc.HandleRegistry;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
@@ -53,23 +53,19 @@ public class BluetoothLeScanFacade extends RpcReceiver {
     private final EventFacade mEventFacade;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private static int ScanCallbackCount;
-    private static int FilterListCount;
-    private static int LeScanCallbackCount;
-    private static int ScanSettingsCount;
     private final Service mService;
     private final BluetoothLeScanner mScanner;
     private android.bluetooth.le.ScanSettings.Builder mScanSettingsBuilder;
     private Builder mScanFilterBuilder;
-    private final HashMap<Integer, myScanCallback> mScanCallbackList;
-    private final HashMap<Integer, myLeScanCallback> mLeScanCallbackList;
-    private final HashMap<Integer, ArrayList<ScanFilter>> mScanFilterList;
-    private final HashMap<Integer, ScanSettings> mScanSettingsList;
+    private final HandleRegistry<myScanCallback> mScanCallbackList;
+    private final HandleRegistry<myLeScanCallback> mLeScanCallbackList;
+    private final HandleRegistry<ArrayList<ScanFilter>> mScanFilterList;
+    private final HandleRegistry<ScanSettings> mScanSettingsList;
 
-    public BluetoothLeScanFacade(FacadeManager manager) {
+    public BluetoothLeScanFacade(FacadeManager manager) throws RpcError {
         super(manager);
         mService = manager.getService();
-        mBluetoothAdapter = MainThread.run(mService,
+        mBluetoothAdapter = runOnMainThread(mService,
                 new Callable<BluetoothAdapter>() {
                     @Override
                     public BluetoothAdapter call() throws Exception {
@@ -78,10 +74,12 @@ public class BluetoothLeScanFacade extends RpcReceiver {
                 });
         mScanner = mBluetoothAdapter.getBluetoothLeScanner();
         mEventFacade = manager.getReceiver(EventFacade.class);
-        mScanFilterList = new HashMap<Integer, ArrayList<ScanFilter>>();
-        mLeScanCallbackList = new HashMap<Integer, myLeScanCallback>();
-        mScanSettingsList = new HashMap<Integer, ScanSettings>();
-        mScanCallbackList = new HashMap<Integer, myScanCallback>();
+        mScanFilterList = createHandleRegistry("filter list",
+                HandleRegistry.VALUE_IDLE_TIMEOUT_MS, null);
+        mLeScanCallbackList = createHandleRegistry("le scan callback");
+        mScanSettingsList = createHandleRegistry("scan settings",
+                HandleRegistry.VALUE_IDLE_TIMEOUT_MS, null);
+        mScanCallbackList = createHandleRegistry("scan callback");
         mScanFilterBuilder = new Builder();
         mScanSettingsBuilder = new android.bluetooth.le.ScanSettings.Builder();
     }
@@ -93,8 +91,7 @@ public class BluetoothLeScanFacade extends RpcReceiver {
      */
     @Rpc(description = "Generate a new myScanCallback Object")
     public Integer bleGenScanCallback() {
-        ScanCallbackCount += 1;
-        int index = ScanCallbackCount;
+        int index = mScanCallbackList.reserve();
         myScanCallback mScan = new myScanCallback(index);
         mScanCallbackList.put(mScan.index, mScan);
         return mScan.index;
@@ -107,8 +104,7 @@ public class BluetoothLeScanFacade extends RpcReceiver {
      */
     @Rpc(description = "Generate a new myScanCallback Object")
     public Integer bleGenLeScanCallback() {
-        LeScanCallbackCount += 1;
-        int index = LeScanCallbackCount;
+        int index = mLeScanCallbackList.reserve();
         myLeScanCallback mScan = new myLeScanCallback(index);
         mLeScanCallbackList.put(mScan.index, mScan);
         return mScan.index;
@@ -121,9 +117,7 @@ public class BluetoothLeScanFacade extends RpcReceiver {
      */
     @Rpc(description = "Generate a new Filter list")
     public Integer bleGenFilterList() {
-        FilterListCount += 1;
-        int index = FilterListCount;
-        mScanFilterList.put(index, new ArrayList<ScanFilter>());
+        int index = mScanFilterList.register(new ArrayList<ScanFilter>());
         return index;
     }
 
@@ -149,9 +143,7 @@ public class BluetoothLeScanFacade extends RpcReceiver {
      */
     @Rpc(description = "Generate a new scan settings Object")
     public Integer bleBuildScanSetting() {
-        ScanSettingsCount += 1;
-        int index = ScanSettingsCount;
-        mScanSettingsList.put(index, mScanSettingsBuilder.build());
+        int index = mScanSettingsList.register(mScanSettingsBuilder.build());
         mScanSettingsBuilder = new android.bluetooth.le.ScanSettings.Builder();
         return index;
     }
@@ -906,9 +898,9 @@ public class BluetoothLeScanFacade extends RpcReceiver {
               }
           }
       }
-      mScanCallbackList.clear();
-      mScanFilterList.clear();
-      mScanSettingsList.clear();
-      mLeScanCallbackList.clear();
+      mScanCallbackList.close();
+      mScanFilterList.close();
+      mScanSettingsList.close();
+      mLeScanCallbackList.close();
     }
 }
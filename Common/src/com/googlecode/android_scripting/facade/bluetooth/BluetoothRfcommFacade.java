@@ -21,6 +21,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 
 import com.googlecode.android_scripting.Log;
@@ -40,6 +41,8 @@ import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.lang.reflect.Field;
 import java.lang.Thread;
 
@@ -63,6 +66,8 @@ public class BluetoothRfcommFacade extends RpcReceiver {
   private final EventFacade mEventFacade;
   private ConnectThread mConnectThread;
   private AcceptThread mAcceptThread;
+  private final ScheduledExecutorService mStreamStatsTimer =
+      Executors.newSingleThreadScheduledExecutor();
 
   public BluetoothRfcommFacade(FacadeManager manager) {
     super(manager);
@@ -261,6 +266,97 @@ public class BluetoothRfcommFacade extends RpcReceiver {
     }
   }
 
+  @Rpc(description = "Switches a connection to streaming mode. A background reader drains the "
+      + "socket into a ring buffer (buffer), checks it against the test pattern (verify) or only "
+      + "counts it (discard). The connection stays in streaming mode until it is stopped, and "
+      + "the non-stream read and write RPCs are rejected on it.")
+  public void bluetoothRfcommStartStream(
+      @RpcParameter(name = "mode", description = "buffer, verify or discard")
+      @RpcDefault(RfcommStream.MODE_BUFFER)
+      String mode,
+      @RpcParameter(name = "bufferSize", description = "Ring buffer size in buffer mode")
+      @RpcDefault("1048576")
+      Integer bufferSize,
+      @RpcParameter(name = "statsIntervalMs",
+                    description = "Period of BluetoothRfcommStream<connID>onStats events, 0 for none")
+      @RpcDefault("1000")
+      Integer statsIntervalMs,
+      @RpcParameter(name = "connID", description = "Connection id")
+      @RpcDefault("") @RpcOptional
+      String connID)
+      throws IOException {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+    }
+    if (statsIntervalMs < 0) {
+      throw new IllegalArgumentException("statsIntervalMs must not be negative: "
+          + statsIntervalMs);
+    }
+    BluetoothConnection conn = getConnection(connID);
+    conn.startStream(mEventFacade, mode, bufferSize, mStreamStatsTimer, statsIntervalMs);
+  }
+
+  @Rpc(description = "Read up to maxBytes buffered stream bytes as a base64 encoded string.",
+       returns = "The bytes read, empty if none arrived within timeout, null once the connection "
+           + "is closed and drained.")
+  public String bluetoothRfcommStreamRead(
+      @RpcParameter(name = "maxBytes") @RpcDefault("65536") Integer maxBytes,
+      @RpcParameter(name = "timeout", description = "How long to wait for data, in milliseconds")
+      @RpcDefault("0")
+      Integer timeout,
+      @RpcParameter(name = "connID", description = "Connection id")
+      @RpcDefault("") @RpcOptional
+      String connID)
+      throws IOException, InterruptedException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+    }
+    byte[] data = getConnection(connID).getStream().read(maxBytes, timeout);
+    return data == null ? null : Base64Codec.encodeBase64String(data);
+  }
+
+  @Rpc(description = "Queue bytes to be sent on a streaming connection.")
+  public void bluetoothRfcommStreamWrite(
+      @RpcParameter(name = "base64",
+                    description = "A base64 encoded String of the bytes to be sent.")
+      String base64,
+      @RpcParameter(name = "connID", description = "Connection id")
+      @RpcDefault("") @RpcOptional
+      String connID)
+      throws IOException {
+    getConnection(connID).getStream().write(Base64Codec.decodeBase64(base64));
+  }
+
+  @Rpc(description = "Queue bytes of the test pattern to be sent on a streaming connection. "
+      + "Posts BluetoothRfcommStream<connID>onSendComplete when done.")
+  public void bluetoothRfcommStreamSendPattern(
+      @RpcParameter(name = "totalBytes") Long totalBytes,
+      @RpcParameter(name = "chunkSize", description = "Bytes per socket write")
+      @RpcDefault("8192")
+      Integer chunkSize,
+      @RpcParameter(name = "connID", description = "Connection id")
+      @RpcDefault("") @RpcOptional
+      String connID)
+      throws IOException {
+    if (totalBytes < 0) {
+      throw new IllegalArgumentException("totalBytes must not be negative: " + totalBytes);
+    }
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+    }
+    getConnection(connID).getStream().sendPattern(totalBytes, chunkSize);
+  }
+
+  @Rpc(description = "Returns the byte counts, CRC32 checksums, pattern errors and write latency "
+      + "of a streaming connection.")
+  public Bundle bluetoothRfcommStreamStats(
+      @RpcParameter(name = "connID", description = "Connection id")
+      @RpcDefault("") @RpcOptional
+      String connID)
+      throws IOException {
+    return getConnection(connID).getStream().getStats();
+  }
+
   @Rpc(description = "Stops Bluetooth connection.")
   public void bluetoothRfcommStop(
       @RpcParameter
@@ -300,6 +396,7 @@ public class BluetoothRfcommFacade extends RpcReceiver {
     if (mConnectThread != null) {
         mConnectThread.cancel();
     }
+    mStreamStatsTimer.shutdownNow();
   }
 
   private class ConnectThread extends Thread {
@@ -409,6 +506,7 @@ class BluetoothConnection {
   private BufferedReader mReader;
   private BluetoothServerSocket mServerSocket;
   private String UUID;
+  private RfcommStream mStream;
 
   public BluetoothConnection(BluetoothSocket mSocket) throws IOException {
     this(mSocket, null);
@@ -436,6 +534,31 @@ class BluetoothConnection {
     return mDevice.getAddress();
   }
 
+  public synchronized void startStream(EventFacade eventFacade, String mode, int bufferSize,
+      ScheduledExecutorService statsTimer, long statsIntervalMs) throws IOException {
+    if (mStream != null) {
+      throw new IOException("Bluetooth connection is already streaming.");
+    }
+    if (mInputStream == null) {
+      throw new IOException("Bluetooth not ready.");
+    }
+    mStream = new RfcommStream(UUID, mInputStream, mOutputStream, eventFacade, mode, bufferSize,
+        statsTimer, statsIntervalMs);
+  }
+
+  public synchronized RfcommStream getStream() throws IOException {
+    if (mStream == null) {
+      throw new IOException("Bluetooth connection is not streaming.");
+    }
+    return mStream;
+  }
+
+  private synchronized void checkNotStreaming() throws IOException {
+    if (mStream != null) {
+      throw new IOException("Bluetooth connection is streaming.");
+    }
+  }
+
   public boolean isConnected() {
     if (mSocket == null) {
       return false;
@@ -451,6 +574,7 @@ class BluetoothConnection {
   }
 
   public void write(byte[] out) throws IOException {
+    checkNotStreaming();
     if (mOutputStream != null) {
       mOutputStream.write(out);
     } else {
@@ -463,6 +587,7 @@ class BluetoothConnection {
   }
 
   public Boolean readReady() throws IOException {
+    checkNotStreaming();
     if (mReader != null) {
       return mReader.ready();
     }
@@ -474,6 +599,7 @@ class BluetoothConnection {
   }
 
   public byte[] readBinary(int bufferSize) throws IOException {
+    checkNotStreaming();
     if (mReader != null) {
       byte[] buffer = new byte[bufferSize];
       int bytesRead = mInputStream.read(buffer);
@@ -495,6 +621,7 @@ class BluetoothConnection {
   }
 
   public String read(int bufferSize) throws IOException {
+    checkNotStreaming();
     if (mReader != null) {
       char[] buffer = new char[bufferSize];
       int bytesRead = mReader.read(buffer);
@@ -508,6 +635,7 @@ class BluetoothConnection {
   }
 
   public String readLine() throws IOException {
+    checkNotStreaming();
     if (mReader != null) {
       return mReader.readLine();
     }
@@ -538,6 +666,11 @@ class BluetoothConnection {
   }
 
   public void stop() {
+    synchronized (this) {
+      if (mStream != null) {
+        mStream.close();
+      }
+    }
     if (mSocket != null) {
       try {
         mSocket.close();
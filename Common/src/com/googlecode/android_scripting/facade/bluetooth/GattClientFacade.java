@@ -30,19 +30,29 @@ import android.content.Context;
 import android.os.Bundle;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
+import com.googlecode.android_scripting.jsonrpc.HandleRegistry;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 import com.googlecode.android_scripting.rpc.RpcStopEvent;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GattClientFacade extends RpcReceiver {
     private final EventFacade mEventFacade;
@@ -50,28 +60,20 @@ public class GattClientFacade extends RpcReceiver {
     private BluetoothManager mBluetoothManager;
     private final Service mService;
     private final Context mContext;
-    private final HashMap<Integer, myBluetoothGattCallback> mGattCallbackList;
-    private final HashMap<Integer, BluetoothGatt> mBluetoothGattList;
-    private final HashMap<Integer, BluetoothGattCharacteristic> mCharacteristicList;
-    private final HashMap<Integer, BluetoothGattDescriptor> mDescriptorList;
-    private final HashMap<Integer, BluetoothGattService> mGattServiceList;
-    private final HashMap<Integer, List<BluetoothGattService>> mBluetoothGattDiscoveredServicesList;
-    private final HashMap<Integer, List<BluetoothDevice>> mGattServerDiscoveredDevicesList;
-    private static int GattCallbackCount;
-    private static int BluetoothGattDiscoveredServicesCount;
-    private static int BluetoothGattCount;
-    private static int CharacteristicCount;
-    private static int DescriptorCount;
-    private static int GattServerCallbackCount;
-    private static int GattServerCount;
-    private static int GattServiceCount;
-
-    public GattClientFacade(FacadeManager manager) {
+    private final HandleRegistry<myBluetoothGattCallback> mGattCallbackList;
+    private final HandleRegistry<BluetoothGatt> mBluetoothGattList;
+    private final HandleRegistry<List<BluetoothGattService>> mBluetoothGattDiscoveredServicesList;
+    private final ConcurrentHashMap<BluetoothGatt, GattOperationQueue> mOperationQueues;
+    private final AtomicInteger mOperationBatchCount;
+    // Flushes notification batches and times out queued GATT operations.
+    private final ScheduledExecutorService mScheduler;
+
+    public GattClientFacade(FacadeManager manager) throws RpcError {
         super(manager);
         mService = manager.getService();
         mContext = mService.getApplicationContext();
         mBluetoothAdapter =
-                MainThread.run(
+                runOnMainThread(
                         mService,
                         new Callable<BluetoothAdapter>() {
                             @Override
@@ -81,13 +83,28 @@ public class GattClientFacade extends RpcReceiver {
                         });
         mBluetoothManager = (BluetoothManager) mContext.getSystemService(Service.BLUETOOTH_SERVICE);
         mEventFacade = manager.getReceiver(EventFacade.class);
-        mGattCallbackList = new HashMap<Integer, myBluetoothGattCallback>();
-        mCharacteristicList = new HashMap<Integer, BluetoothGattCharacteristic>();
-        mBluetoothGattList = new HashMap<Integer, BluetoothGatt>();
-        mDescriptorList = new HashMap<Integer, BluetoothGattDescriptor>();
-        mGattServiceList = new HashMap<Integer, BluetoothGattService>();
-        mBluetoothGattDiscoveredServicesList = new HashMap<Integer, List<BluetoothGattService>>();
-        mGattServerDiscoveredDevicesList = new HashMap<Integer, List<BluetoothDevice>>();
+        mGattCallbackList = createHandleRegistry("gatt callback");
+        mBluetoothGattList = createHandleRegistry("gatt", 0,
+                new HandleRegistry.Releaser<BluetoothGatt>() {
+                    @Override
+                    public void release(BluetoothGatt gatt) {
+                        closeGatt(gatt);
+                    }
+                });
+        // Every service discovery adds a list, so unused ones are reclaimed.
+        mBluetoothGattDiscoveredServicesList = createHandleRegistry("discovered services",
+                HandleRegistry.VALUE_IDLE_TIMEOUT_MS, null);
+        mOperationQueues = new ConcurrentHashMap<BluetoothGatt, GattOperationQueue>();
+        mOperationBatchCount = new AtomicInteger();
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    private void closeGatt(BluetoothGatt gatt) {
+        GattOperationQueue queue = mOperationQueues.remove(gatt);
+        if (queue != null) {
+            queue.abort();
+        }
+        gatt.close();
     }
 
     /**
@@ -117,9 +134,7 @@ public class GattClientFacade extends RpcReceiver {
                             autoConnect,
                             mGattCallbackList.get(index),
                             transport);
-            BluetoothGattCount += 1;
-            mBluetoothGattList.put(BluetoothGattCount, mBluetoothGatt);
-            return BluetoothGattCount;
+            return mBluetoothGattList.register(mBluetoothGatt);
         } else {
             throw new Exception("Invalid index input:" + Integer.toString(index));
         }
@@ -235,8 +250,9 @@ public class GattClientFacade extends RpcReceiver {
      */
     @Rpc(description = "Close a Bluetooth GATT object")
     public void gattClientClose(@RpcParameter(name = "index") Integer index) throws Exception {
-        if (mBluetoothGattList.get(index) != null) {
-            mBluetoothGattList.get(index).close();
+        BluetoothGatt gatt = mBluetoothGattList.remove(index);
+        if (gatt != null) {
+            closeGatt(gatt);
         } else {
             throw new Exception("Invalid index input: " + index);
         }
@@ -716,6 +732,141 @@ public class GattClientFacade extends RpcReceiver {
         }
     }
 
+    /**
+     * Queues reads and writes to run back to back on a bluetooth gatt. Each operation is a JSON
+     * object with a "type" (readCharacteristic, writeCharacteristic, readDescriptor or
+     * writeDescriptor), a "serviceIndex", a "characteristicUuid", a "descriptorUuid" for
+     * descriptor operations, a "value" byte list for writes and an optional "writeType".
+     * Operations started this way post no per-operation callback events; once all are done a
+     * single GattOperations{batchId}onComplete event carries the status of each, and the value
+     * of each read.
+     *
+     * @param gattIndex the gatt index to use
+     * @param discoveredServiceListIndex the discovered service list index
+     * @param operations the operations, issued in order
+     * @return the id of the batch
+     * @throws Exception
+     */
+    @Rpc(description = "Queue GATT reads and writes to run back to back on a bluetooth gatt",
+            returns = "The batch id used in the GattOperations{batchId}onComplete event")
+    public int gattClientQueueOperations(
+            @RpcParameter(name = "gattIndex") Integer gattIndex,
+            @RpcParameter(name = "discoveredServiceListIndex") Integer discoveredServiceListIndex,
+            @RpcParameter(name = "operations") JSONArray operations) throws Exception {
+        final BluetoothGatt bluetoothGatt = mBluetoothGattList.get(gattIndex);
+        if (bluetoothGatt == null) {
+            throw new Exception("Invalid gattIndex " + gattIndex);
+        }
+        List<BluetoothGattService> discoveredServiceList =
+                mBluetoothGattDiscoveredServicesList.get(discoveredServiceListIndex);
+        if (discoveredServiceList == null) {
+            throw new Exception("Invalid discoveredServiceListIndex " + discoveredServiceListIndex);
+        }
+        // Everything is resolved up front so a bad entry rejects the whole batch.
+        List<GattOperationQueue.Operation> queued =
+                new ArrayList<GattOperationQueue.Operation>(operations.length());
+        for (int i = 0; i < operations.length(); i++) {
+            queued.add(parseOperation(discoveredServiceList, operations.getJSONObject(i)));
+        }
+        GattOperationQueue queue = mOperationQueues.get(bluetoothGatt);
+        if (queue == null) {
+            GattOperationQueue newQueue = new GattOperationQueue(bluetoothGatt,
+                    new GattOperationQueue.Listener() {
+                        @Override
+                        public void onBatchComplete(int batchId, ArrayList<Bundle> results) {
+                            Bundle batch = new Bundle();
+                            batch.putInt("BatchId", batchId);
+                            batch.putParcelableArrayList("Results", results);
+                            mEventFacade.postEvent("GattOperations" + batchId + "onComplete",
+                                    batch);
+                        }
+                    }, mScheduler);
+            queue = mOperationQueues.putIfAbsent(bluetoothGatt, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        int batchId = mOperationBatchCount.incrementAndGet();
+        queue.enqueue(batchId, queued);
+        return batchId;
+    }
+
+    private GattOperationQueue.Operation parseOperation(
+            List<BluetoothGattService> discoveredServiceList, JSONObject operation)
+            throws Exception {
+        String type = operation.getString("type");
+        int serviceIndex = operation.getInt("serviceIndex");
+        if (serviceIndex < 0 || serviceIndex >= discoveredServiceList.size()) {
+            throw new Exception("Invalid serviceIndex " + serviceIndex);
+        }
+        String characteristicUuid = operation.getString("characteristicUuid");
+        BluetoothGattCharacteristic gattCharacteristic = discoveredServiceList.get(serviceIndex)
+                .getCharacteristic(UUID.fromString(characteristicUuid));
+        if (gattCharacteristic == null) {
+            throw new Exception("Invalid characteristic uuid: " + characteristicUuid);
+        }
+        BluetoothGattDescriptor gattDescriptor = null;
+        if (type.endsWith("Descriptor")) {
+            String descriptorUuid = operation.getString("descriptorUuid");
+            gattDescriptor = gattCharacteristic.getDescriptor(UUID.fromString(descriptorUuid));
+            if (gattDescriptor == null) {
+                throw new Exception("Invalid descriptor uuid: " + descriptorUuid);
+            }
+        }
+        byte[] value = null;
+        if (type.startsWith("write")) {
+            JSONArray list = operation.getJSONArray("value");
+            value = new byte[list.length()];
+            for (int i = 0; i < list.length(); i++) {
+                value[i] = (byte) list.getInt(i);
+            }
+        }
+        Integer writeType = operation.has("writeType") ? operation.getInt("writeType") : null;
+        switch (type) {
+            case "readCharacteristic":
+                return new GattOperationQueue.Operation(
+                        GattOperationQueue.TYPE_READ_CHARACTERISTIC, gattCharacteristic, null,
+                        null, null);
+            case "writeCharacteristic":
+                return new GattOperationQueue.Operation(
+                        GattOperationQueue.TYPE_WRITE_CHARACTERISTIC, gattCharacteristic, null,
+                        value, writeType);
+            case "readDescriptor":
+                return new GattOperationQueue.Operation(
+                        GattOperationQueue.TYPE_READ_DESCRIPTOR, gattCharacteristic,
+                        gattDescriptor, null, null);
+            case "writeDescriptor":
+                return new GattOperationQueue.Operation(
+                        GattOperationQueue.TYPE_WRITE_DESCRIPTOR, gattCharacteristic,
+                        gattDescriptor, value, null);
+            default:
+                throw new Exception("Invalid operation type: " + type);
+        }
+    }
+
+    /**
+     * Batches the characteristic change notifications of a gatt callback. Once enabled,
+     * notifications are posted together as one onCharacteristicChangedBatch event when
+     * maxBatchSize have arrived or maxDelayMs after the first, whichever comes first.
+     *
+     * @param index the gatt callback index
+     * @param maxBatchSize notifications per event; 1 posts each one as before
+     * @param maxDelayMs longest time a notification is held back
+     * @throws Exception
+     */
+    @Rpc(description = "Batch characteristic change notifications of a gatt callback")
+    public void gattClientSetNotificationBatching(
+            @RpcParameter(name = "index") Integer index,
+            @RpcParameter(name = "maxBatchSize") Integer maxBatchSize,
+            @RpcParameter(name = "maxDelayMs") @RpcDefault("100") Integer maxDelayMs)
+            throws Exception {
+        myBluetoothGattCallback callback = mGattCallbackList.get(index);
+        if (callback == null) {
+            throw new Exception("Invalid index input:" + index);
+        }
+        callback.setNotificationBatching(maxBatchSize, maxDelayMs);
+    }
+
     /**
      * Create a new GattCallback object
      *
@@ -723,8 +874,7 @@ public class GattClientFacade extends RpcReceiver {
      */
     @Rpc(description = "Create a new GattCallback object")
     public Integer gattCreateGattCallback() {
-        GattCallbackCount += 1;
-        int index = GattCallbackCount;
+        int index = mGattCallbackList.reserve();
         mGattCallbackList.put(index, new myBluetoothGattCallback(index));
         return index;
     }
@@ -842,6 +992,10 @@ public class GattClientFacade extends RpcReceiver {
         private final Bundle mResults;
         private final int index;
         private final String mEventType;
+        private int mNotificationBatchSize = 1;
+        private long mNotificationBatchDelayMs;
+        private ArrayList<Bundle> mNotifications = new ArrayList<Bundle>();
+        private ScheduledFuture<?> mNotificationFlush;
 
         public myBluetoothGattCallback(int idx) {
             mResults = new Bundle();
@@ -849,6 +1003,27 @@ public class GattClientFacade extends RpcReceiver {
             index = idx;
         }
 
+        synchronized void setNotificationBatching(int maxBatchSize, long maxDelayMs) {
+            flushNotifications();
+            mNotificationBatchSize = Math.max(1, maxBatchSize);
+            mNotificationBatchDelayMs = maxDelayMs;
+        }
+
+        private synchronized void flushNotifications() {
+            if (mNotificationFlush != null) {
+                mNotificationFlush.cancel(false);
+                mNotificationFlush = null;
+            }
+            if (mNotifications.isEmpty()) {
+                return;
+            }
+            Bundle batch = new Bundle();
+            batch.putInt("ID", index);
+            batch.putParcelableArrayList("Notifications", mNotifications);
+            mNotifications = new ArrayList<Bundle>();
+            mEventFacade.postEvent(mEventType + index + "onCharacteristicChangedBatch", batch);
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             Log.d("gatt_connect change onConnectionStateChange " + mEventType + " " + index);
@@ -879,6 +1054,12 @@ public class GattClientFacade extends RpcReceiver {
             }
             mResults.putInt("Status", status);
             mResults.putInt("State", newState);
+            if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                GattOperationQueue queue = mOperationQueues.get(gatt);
+                if (queue != null) {
+                    queue.abort();
+                }
+            }
             mEventFacade.postEvent(
                     mEventType + index + "onConnectionStateChange", mResults.clone());
             mResults.clear();
@@ -887,8 +1068,7 @@ public class GattClientFacade extends RpcReceiver {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             Log.d("gatt_connect change onServicesDiscovered " + mEventType + " " + index);
-            int idx = BluetoothGattDiscoveredServicesCount++;
-            mBluetoothGattDiscoveredServicesList.put(idx, gatt.getServices());
+            int idx = mBluetoothGattDiscoveredServicesList.register(gatt.getServices());
             mResults.putInt("ServicesIndex", idx);
             mResults.putInt("Status", status);
             mEventFacade.postEvent(mEventType + index + "onServicesDiscovered", mResults.clone());
@@ -898,6 +1078,10 @@ public class GattClientFacade extends RpcReceiver {
         @Override
         public void onCharacteristicRead(
                 BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperationQueue queue = mOperationQueues.get(gatt);
+            if (queue != null && queue.onCharacteristicRead(characteristic, status)) {
+                return;
+            }
             Log.d("gatt_connect change onCharacteristicRead " + mEventType + " " + index);
             mResults.putInt("Status", status);
             mResults.putString("CharacteristicUuid", characteristic.getUuid().toString());
@@ -909,6 +1093,10 @@ public class GattClientFacade extends RpcReceiver {
         @Override
         public void onCharacteristicWrite(
                 BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            GattOperationQueue queue = mOperationQueues.get(gatt);
+            if (queue != null && queue.onCharacteristicWrite(characteristic, status)) {
+                return;
+            }
             Log.d("gatt_connect change onCharacteristicWrite " + mEventType + " " + index);
             mResults.putInt("Status", status);
             mResults.putString("CharacteristicUuid", characteristic.getUuid().toString());
@@ -921,6 +1109,26 @@ public class GattClientFacade extends RpcReceiver {
         public void onCharacteristicChanged(
                 BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             Log.d("gatt_connect change onCharacteristicChanged " + mEventType + " " + index);
+            synchronized (this) {
+                if (mNotificationBatchSize > 1) {
+                    Bundle notification = new Bundle();
+                    notification.putString("CharacteristicUuid",
+                            characteristic.getUuid().toString());
+                    notification.putByteArray("CharacteristicValue", characteristic.getValue());
+                    mNotifications.add(notification);
+                    if (mNotifications.size() >= mNotificationBatchSize) {
+                        flushNotifications();
+                    } else if (mNotificationFlush == null) {
+                        mNotificationFlush = mScheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                flushNotifications();
+                            }
+                        }, mNotificationBatchDelayMs, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
             mResults.putInt("ID", index);
             mResults.putString("CharacteristicUuid", characteristic.getUuid().toString());
             mResults.putByteArray("CharacteristicValue", characteristic.getValue());
@@ -932,6 +1140,10 @@ public class GattClientFacade extends RpcReceiver {
         @Override
         public void onDescriptorRead(
                 BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattOperationQueue queue = mOperationQueues.get(gatt);
+            if (queue != null && queue.onDescriptorRead(descriptor, status)) {
+                return;
+            }
             Log.d("gatt_connect change onServicesDiscovered " + mEventType + " " + index);
             mResults.putInt("Status", status);
             mResults.putString("DescriptorUuid", descriptor.getUuid().toString());
@@ -942,6 +1154,10 @@ public class GattClientFacade extends RpcReceiver {
         @Override
         public void onDescriptorWrite(
                 BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            GattOperationQueue queue = mOperationQueues.get(gatt);
+            if (queue != null && queue.onDescriptorWrite(descriptor, status)) {
+                return;
+            }
             Log.d("gatt_connect change onDescriptorWrite " + mEventType + " " + index);
             mResults.putInt("ID", index);
             mResults.putInt("Status", status);
@@ -980,13 +1196,9 @@ public class GattClientFacade extends RpcReceiver {
 
     @Override
     public void shutdown() {
-        if (!mBluetoothGattList.isEmpty()) {
-            if (mBluetoothGattList.values() != null) {
-                for (BluetoothGatt mBluetoothGatt : mBluetoothGattList.values()) {
-                    mBluetoothGatt.close();
-                }
-            }
-        }
-        mGattCallbackList.clear();
+        // Closes every connection still open.
+        mBluetoothGattList.close();
+        mGattCallbackList.close();
+        mScheduler.shutdownNow();
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs queued reads and writes on one {@link BluetoothGatt} back to back. Android allows a single
+ * outstanding GATT operation, so each operation is started from the callback of the previous one
+ * rather than after a round trip to the script.
+ *
+ * <p>An operation whose callback does not arrive within {@link #OPERATION_TIMEOUT_MS} is failed so
+ * that the rest of the queue can proceed. Callbacks that do not answer the operation in flight,
+ * including late ones for a timed out or aborted operation, are dropped.
+ */
+class GattOperationQueue {
+    static final int TYPE_READ_CHARACTERISTIC = 0;
+    static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    static final int TYPE_READ_DESCRIPTOR = 2;
+    static final int TYPE_WRITE_DESCRIPTOR = 3;
+
+    /** Status reported for an operation the stack refused to start. */
+    static final int STATUS_NOT_INITIATED = -1;
+    /** Status reported for operations dropped because the connection went away. */
+    static final int STATUS_ABORTED = -2;
+    /** Status reported for an operation whose callback did not arrive in time. */
+    static final int STATUS_TIMED_OUT = -3;
+
+    static final long OPERATION_TIMEOUT_MS = 10000;
+
+    interface Listener {
+        void onBatchComplete(int batchId, ArrayList<Bundle> results);
+    }
+
+    static class Operation {
+        final int mType;
+        final BluetoothGattCharacteristic mCharacteristic;
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+        final Integer mWriteType;
+        Batch mBatch;
+        int mPosition;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic,
+                BluetoothGattDescriptor descriptor, byte[] value, Integer writeType) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mWriteType = writeType;
+        }
+    }
+
+    private static class Batch {
+        final int mId;
+        final int mSize;
+        final ArrayList<Bundle> mResults;
+
+        Batch(int id, int size) {
+            mId = id;
+            mSize = size;
+            mResults = new ArrayList<Bundle>(size);
+        }
+    }
+
+    private final BluetoothGatt mGatt;
+    private final Listener mListener;
+    private final ScheduledExecutorService mTimer;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mInFlight;
+    private ScheduledFuture<?> mInFlightTimeout;
+    // The last operation given up on while still outstanding in the stack. Its callback, should it
+    // still arrive, is dropped.
+    private Operation mAbandoned;
+
+    GattOperationQueue(BluetoothGatt gatt, Listener listener, ScheduledExecutorService timer) {
+        mGatt = gatt;
+        mListener = listener;
+        mTimer = timer;
+    }
+
+    /** Queues the operations as one batch, reported through the listener once all complete. */
+    synchronized void enqueue(int batchId, List<Operation> operations) {
+        Batch batch = new Batch(batchId, operations.size());
+        if (operations.isEmpty()) {
+            mListener.onBatchComplete(batchId, batch.mResults);
+            return;
+        }
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            operation.mBatch = batch;
+            operation.mPosition = i;
+            mPending.add(operation);
+        }
+        if (mInFlight == null) {
+            issueNext();
+        }
+    }
+
+    /** Fails the in-flight and all pending operations. */
+    synchronized void abort() {
+        if (mInFlight != null) {
+            Operation operation = clearInFlight();
+            mAbandoned = operation;
+            complete(operation, STATUS_ABORTED, null);
+        }
+        Operation operation;
+        while ((operation = mPending.poll()) != null) {
+            complete(operation, STATUS_ABORTED, null);
+        }
+    }
+
+    /** Returns true if the callback answered an operation of this queue. */
+    synchronized boolean onCharacteristicRead(BluetoothGattCharacteristic characteristic,
+            int status) {
+        return onCallback(TYPE_READ_CHARACTERISTIC, characteristic, null, status,
+                characteristic.getValue());
+    }
+
+    synchronized boolean onCharacteristicWrite(BluetoothGattCharacteristic characteristic,
+            int status) {
+        return onCallback(TYPE_WRITE_CHARACTERISTIC, characteristic, null, status, null);
+    }
+
+    synchronized boolean onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+        return onCallback(TYPE_READ_DESCRIPTOR, descriptor.getCharacteristic(), descriptor, status,
+                descriptor.getValue());
+    }
+
+    synchronized boolean onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        return onCallback(TYPE_WRITE_DESCRIPTOR, descriptor.getCharacteristic(), descriptor, status,
+                null);
+    }
+
+    private boolean onCallback(int type, BluetoothGattCharacteristic characteristic,
+            BluetoothGattDescriptor descriptor, int status, byte[] value) {
+        if (mAbandoned != null && matches(mAbandoned, type, characteristic, descriptor)) {
+            Log.d("Dropping late GATT callback of a timed out or aborted operation.");
+            mAbandoned = null;
+            return true;
+        }
+        Operation operation = mInFlight;
+        if (operation == null) {
+            return false;
+        }
+        if (!matches(operation, type, characteristic, descriptor)) {
+            // Only one operation can be outstanding, so this is a stray callback.
+            Log.d("Dropping GATT callback that does not match the queued operation in flight.");
+            return true;
+        }
+        clearInFlight();
+        complete(operation, status, value);
+        issueNext();
+        return true;
+    }
+
+    private synchronized void onTimeout(Operation operation) {
+        if (mInFlight != operation) {
+            return;
+        }
+        Log.d("GATT operation timed out after " + OPERATION_TIMEOUT_MS + " ms.");
+        mInFlight = null;
+        mInFlightTimeout = null;
+        mAbandoned = operation;
+        complete(operation, STATUS_TIMED_OUT, null);
+        issueNext();
+    }
+
+    private Operation clearInFlight() {
+        Operation operation = mInFlight;
+        mInFlight = null;
+        if (mInFlightTimeout != null) {
+            mInFlightTimeout.cancel(false);
+            mInFlightTimeout = null;
+        }
+        return operation;
+    }
+
+    private static boolean matches(Operation operation, int type,
+            BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor) {
+        return operation.mType == type
+                && isSameCharacteristic(operation.mCharacteristic, characteristic)
+                && (descriptor == null
+                        || operation.mDescriptor.getUuid().equals(descriptor.getUuid()));
+    }
+
+    private static boolean isSameCharacteristic(BluetoothGattCharacteristic a,
+            BluetoothGattCharacteristic b) {
+        return b != null && a.getInstanceId() == b.getInstanceId()
+                && a.getUuid().equals(b.getUuid());
+    }
+
+    private void issueNext() {
+        Operation operation;
+        while ((operation = mPending.poll()) != null) {
+            if (start(operation)) {
+                mInFlight = operation;
+                final Operation started = operation;
+                mInFlightTimeout = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(started);
+                    }
+                }, OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            complete(operation, STATUS_NOT_INITIATED, null);
+        }
+    }
+
+    private boolean start(Operation operation) {
+        switch (operation.mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return mGatt.readCharacteristic(operation.mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                // Values are applied only now, so several writes to one characteristic can queue.
+                operation.mCharacteristic.setValue(operation.mValue);
+                if (operation.mWriteType != null) {
+                    operation.mCharacteristic.setWriteType(operation.mWriteType);
+                }
+                return mGatt.writeCharacteristic(operation.mCharacteristic);
+            case TYPE_READ_DESCRIPTOR:
+                return mGatt.readDescriptor(operation.mDescriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                operation.mDescriptor.setValue(operation.mValue);
+                return mGatt.writeDescriptor(operation.mDescriptor);
+            default:
+                return false;
+        }
+    }
+
+    private void complete(Operation operation, int status, byte[] value) {
+        Bundle result = new Bundle();
+        result.putInt("Index", operation.mPosition);
+        result.putInt("Type", operation.mType);
+        result.putInt("Status", status);
+        result.putString("CharacteristicUuid", operation.mCharacteristic.getUuid().toString());
+        if (operation.mDescriptor != null) {
+            result.putString("DescriptorUuid", operation.mDescriptor.getUuid().toString());
+        }
+        if (value != null) {
+            result.putByteArray("Value", value);
+        }
+        Batch batch = operation.mBatch;
+        batch.mResults.add(result);
+        if (batch.mResults.size() == batch.mSize) {
+            mListener.onBatchComplete(batch.mId, batch.mResults);
+        }
+    }
+}
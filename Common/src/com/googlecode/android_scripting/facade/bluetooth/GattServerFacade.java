@@ -30,11 +30,11 @@ import android.content.Context;
 import android.os.Bundle;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
 import java.util.ArrayList;
@@ -62,11 +62,11 @@ public class GattServerFacade extends RpcReceiver {
     private static int sGattServerCount;
     private static int sGattServiceCount;
 
-    public GattServerFacade(FacadeManager manager) {
+    public GattServerFacade(FacadeManager manager) throws RpcError {
         super(manager);
         mService = manager.getService();
         mContext = mService.getApplicationContext();
-        mBluetoothAdapter = MainThread.run(mService, new Callable<BluetoothAdapter>() {
+        mBluetoothAdapter = runOnMainThread(mService, new Callable<BluetoothAdapter>() {
             @Override
             public BluetoothAdapter call() throws Exception {
                 return BluetoothAdapter.getDefaultAdapter();
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.bluetooth;
+
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.SingleThreadExecutor;
+import com.googlecode.android_scripting.facade.EventFacade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming mode of an RFCOMM connection. A reader thread drains the socket into a bounded ring
+ * buffer (or checks it against the test pattern), and sends run on a dedicated thread, so data
+ * moves at link speed and scripts only pick up large chunks and counters.
+ *
+ * <p>The test pattern byte at stream offset n is n % 251, which both ends can generate and check
+ * without coordination.
+ */
+class RfcommStream {
+  static final String MODE_BUFFER = "buffer";
+  static final String MODE_VERIFY = "verify";
+  static final String MODE_DISCARD = "discard";
+
+  private static final int PATTERN_PERIOD = 251;
+  private static final int READ_CHUNK_SIZE = 16 * 1024;
+
+  private final String mConnId;
+  private final InputStream mInputStream;
+  private final OutputStream mOutputStream;
+  private final EventFacade mEventFacade;
+  private final String mMode;
+  private final byte[] mRing;
+  private final ExecutorService mSender = new SingleThreadExecutor();
+  private final Thread mReader;
+  private final ScheduledFuture<?> mStatsTask;
+
+  // Ring buffer state, guarded by this.
+  private int mRingHead;
+  private int mRingSize;
+  private boolean mClosed;
+
+  // Receive side, written only by the reader thread.
+  private final CRC32 mReceiveCrc = new CRC32();
+  private volatile long mReceiveCrcValue;
+  private volatile long mBytesReceived;
+  private volatile long mVerifyErrors;
+
+  // Send side, written only by the sender thread.
+  private final CRC32 mSendCrc = new CRC32();
+  private volatile long mSendCrcValue;
+  private volatile long mBytesSent;
+  private volatile long mPatternOffset;
+  private volatile long mWriteCount;
+  private volatile long mWriteNanos;
+  private volatile long mMaxWriteNanos;
+
+  // Values at the previous stats snapshot, used for rates.
+  private long mLastStatsTime;
+  private long mLastBytesSent;
+  private long mLastBytesReceived;
+  private long mLastWriteCount;
+  private long mLastWriteNanos;
+
+  RfcommStream(String connId, InputStream inputStream, OutputStream outputStream,
+      EventFacade eventFacade, String mode, int bufferSize, ScheduledExecutorService statsTimer,
+      long statsIntervalMs) {
+    if (!MODE_BUFFER.equals(mode) && !MODE_VERIFY.equals(mode) && !MODE_DISCARD.equals(mode)) {
+      throw new IllegalArgumentException("Unknown stream mode: " + mode);
+    }
+    mConnId = connId;
+    mInputStream = inputStream;
+    mOutputStream = outputStream;
+    mEventFacade = eventFacade;
+    mMode = mode;
+    mRing = new byte[MODE_BUFFER.equals(mode) ? bufferSize : 0];
+    mLastStatsTime = System.nanoTime();
+    mReader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive();
+      }
+    }, "RfcommStreamReader");
+    if (statsIntervalMs > 0) {
+      mStatsTask = statsTimer.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          postStats();
+        }
+      }, statsIntervalMs, statsIntervalMs, TimeUnit.MILLISECONDS);
+    } else {
+      mStatsTask = null;
+    }
+    mReader.start();
+  }
+
+  private void receive() {
+    byte[] chunk = new byte[READ_CHUNK_SIZE];
+    try {
+      while (true) {
+        int count = mInputStream.read(chunk);
+        if (count == -1) {
+          break;
+        }
+        mReceiveCrc.update(chunk, 0, count);
+        mReceiveCrcValue = mReceiveCrc.getValue();
+        if (MODE_VERIFY.equals(mMode)) {
+          verify(chunk, count);
+        } else if (MODE_BUFFER.equals(mMode)) {
+          store(chunk, count);
+        }
+        mBytesReceived += count;
+      }
+    } catch (IOException e) {
+      Log.d("RFCOMM stream " + mConnId + " read ended: " + e.getMessage());
+    } catch (InterruptedException e) {
+      // Stream closed while waiting for buffer space.
+    }
+    synchronized (this) {
+      mClosed = true;
+      notifyAll();
+    }
+    if (mStatsTask != null) {
+      mStatsTask.cancel(false);
+    }
+    mEventFacade.postEvent("BluetoothRfcommStream" + mConnId + "onClosed", getStats());
+  }
+
+  private void verify(byte[] chunk, int count) {
+    int expected = (int) (mBytesReceived % PATTERN_PERIOD);
+    long errors = 0;
+    for (int i = 0; i < count; i++) {
+      if ((chunk[i] & 0xff) != expected) {
+        errors++;
+      }
+      if (++expected == PATTERN_PERIOD) {
+        expected = 0;
+      }
+    }
+    if (errors > 0) {
+      mVerifyErrors += errors;
+    }
+  }
+
+  private synchronized void store(byte[] chunk, int count) throws InterruptedException {
+    int offset = 0;
+    while (offset < count) {
+      while (mRingSize == mRing.length && !mClosed) {
+        wait();
+      }
+      if (mClosed) {
+        throw new InterruptedException();
+      }
+      int tail = (mRingHead + mRingSize) % mRing.length;
+      int length = Math.min(count - offset,
+          Math.min(mRing.length - mRingSize, mRing.length - tail));
+      System.arraycopy(chunk, offset, mRing, tail, length);
+      mRingSize += length;
+      offset += length;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns up to maxBytes buffered bytes, waiting up to timeoutMs for the first one. Returns an
+   * empty array on timeout, and null once the stream is closed and drained.
+   */
+  synchronized byte[] read(int maxBytes, long timeoutMs) throws InterruptedException {
+    if (!MODE_BUFFER.equals(mMode)) {
+      throw new IllegalStateException("Stream is in " + mMode + " mode.");
+    }
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (mRingSize == 0 && !mClosed) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return new byte[0];
+      }
+      wait(remaining);
+    }
+    if (mRingSize == 0) {
+      return null;
+    }
+    byte[] data = new byte[Math.min(maxBytes, mRingSize)];
+    int first = Math.min(data.length, mRing.length - mRingHead);
+    System.arraycopy(mRing, mRingHead, data, 0, first);
+    System.arraycopy(mRing, 0, data, first, data.length - first);
+    mRingHead = (mRingHead + data.length) % mRing.length;
+    mRingSize -= data.length;
+    notifyAll();
+    return data;
+  }
+
+  /** Queues data to be sent after any earlier sends. */
+  void write(final byte[] data) {
+    mSender.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          send(data, data.length);
+        } catch (IOException e) {
+          Log.e("RFCOMM stream " + mConnId + " write failed: " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues totalBytes of the test pattern, continuing from where the last pattern send stopped,
+   * and posts onSendComplete when done.
+   */
+  void sendPattern(final long totalBytes, final int chunkSize) {
+    mSender.execute(new Runnable() {
+      @Override
+      public void run() {
+        byte[] chunk = new byte[chunkSize];
+        long remaining = totalBytes;
+        long start = System.nanoTime();
+        try {
+          while (remaining > 0) {
+            int length = (int) Math.min(chunkSize, remaining);
+            int value = (int) (mPatternOffset % PATTERN_PERIOD);
+            for (int i = 0; i < length; i++) {
+              chunk[i] = (byte) value;
+              if (++value == PATTERN_PERIOD) {
+                value = 0;
+              }
+            }
+            send(chunk, length);
+            mPatternOffset += length;
+            remaining -= length;
+          }
+        } catch (IOException e) {
+          Log.e("RFCOMM stream " + mConnId + " pattern send failed: " + e.getMessage());
+        }
+        Bundle result = getStats();
+        result.putLong("PatternBytesSent", totalBytes - remaining);
+        result.putLong("ElapsedMs",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        mEventFacade.postEvent("BluetoothRfcommStream" + mConnId + "onSendComplete", result);
+      }
+    });
+  }
+
+  private void send(byte[] data, int length) throws IOException {
+    long start = System.nanoTime();
+    mOutputStream.write(data, 0, length);
+    long elapsed = System.nanoTime() - start;
+    mSendCrc.update(data, 0, length);
+    mSendCrcValue = mSendCrc.getValue();
+    mBytesSent += length;
+    mWriteCount++;
+    mWriteNanos += elapsed;
+    if (elapsed > mMaxWriteNanos) {
+      mMaxWriteNanos = elapsed;
+    }
+  }
+
+  /** Returns the cumulative counters. */
+  Bundle getStats() {
+    Bundle stats = new Bundle();
+    stats.putString("ConnId", mConnId);
+    stats.putString("Mode", mMode);
+    stats.putLong("BytesSent", mBytesSent);
+    stats.putLong("BytesReceived", mBytesReceived);
+    stats.putLong("SendCrc32", mSendCrcValue);
+    stats.putLong("ReceiveCrc32", mReceiveCrcValue);
+    stats.putLong("VerifyErrors", mVerifyErrors);
+    stats.putLong("MaxWriteLatencyUs", TimeUnit.NANOSECONDS.toMicros(mMaxWriteNanos));
+    synchronized (this) {
+      stats.putInt("Buffered", mRingSize);
+      stats.putBoolean("Closed", mClosed);
+    }
+    return stats;
+  }
+
+  /** Posts the counters with the rates since the previous call as an onStats event. */
+  synchronized void postStats() {
+    long now = System.nanoTime();
+    long bytesSent = mBytesSent;
+    long bytesReceived = mBytesReceived;
+    long writeCount = mWriteCount;
+    long writeNanos = mWriteNanos;
+    double seconds = Math.max(now - mLastStatsTime, 1) / 1e9;
+    Bundle stats = getStats();
+    stats.putDouble("SendBytesPerSecond", (bytesSent - mLastBytesSent) / seconds);
+    stats.putDouble("ReceiveBytesPerSecond", (bytesReceived - mLastBytesReceived) / seconds);
+    long writes = writeCount - mLastWriteCount;
+    stats.putLong("WriteLatencyUs", writes == 0 ? 0
+        : TimeUnit.NANOSECONDS.toMicros((writeNanos - mLastWriteNanos) / writes));
+    mLastStatsTime = now;
+    mLastBytesSent = bytesSent;
+    mLastBytesReceived = bytesReceived;
+    mLastWriteCount = writeCount;
+    mLastWriteNanos = writeNanos;
+    mEventFacade.postEvent("BluetoothRfcommStream" + mConnId + "onStats", stats);
+  }
+
+  /** Stops sending and wakes up readers. The socket itself is closed by its connection. */
+  void close() {
+    if (mStatsTask != null) {
+      mStatsTask.cancel(false);
+    }
+    mSender.shutdownNow();
+    synchronized (this) {
+      mClosed = true;
+      notifyAll();
+    }
+  }
+}
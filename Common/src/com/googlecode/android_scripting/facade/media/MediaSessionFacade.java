@@ -32,12 +32,12 @@ import android.media.session.MediaSession.Callback;
 import android.view.KeyEvent;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
 import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
 /**
@@ -101,8 +101,8 @@ public class MediaSessionFacade extends RpcReceiver {
     }
 
     @Rpc(description = "Add callback to media session.")
-    public void mediaSessionAddCallback() {
-        MainThread.run(mService, new Callable<Object>() {
+    public void mediaSessionAddCallback() throws RpcError {
+        runOnMainThread(mService, new Callable<Object>() {
             @Override
             public Object call() throws Exception {
                 Log.d("Adding callback.");
@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.telecom.Call;
 import android.telecom.Call.Details;
@@ -49,13 +51,13 @@ public class InCallServiceImpl extends InCallService {
         public static final int LISTEN_CALL_REMOVED = 1 << 1;
         public static final int LISTEN_ALL = LISTEN_CALL_ADDED | LISTEN_CALL_REMOVED;
 
-        private static int sListenedEvents = 0;
+        private static volatile int sListenedEvents = 0;
 
-        public static void startListeningForEvent( int event ) {
+        public static synchronized void startListeningForEvent( int event ) {
             sListenedEvents |= event & LISTEN_ALL;
         }
 
-        public static void stopListeningForEvent( int event ) {
+        public static synchronized void stopListeningForEvent( int event ) {
             sListenedEvents &= ~(event & LISTEN_ALL);
         }
 
@@ -162,8 +164,9 @@ public class InCallServiceImpl extends InCallService {
                 EVENT_CALL_DESTROYED |
                 EVENT_CONFERENCABLE_CALLS_CHANGED;
 
-        private int mEvents;
-        private String mCallId;
+        // Written by RPC threads, read by every Telecom callback before it builds an event.
+        private volatile int mEvents;
+        private final String mCallId;
 
         public CallCallback(String callId, int events) {
             super();
@@ -171,20 +174,20 @@ public class InCallServiceImpl extends InCallService {
             mCallId = callId;
         }
 
-        public void startListeningForEvents(int events) {
+        public synchronized void startListeningForEvents(int events) {
             mEvents |= events & EVENT_ALL;
         }
 
-        public void stopListeningForEvents(int events) {
+        public synchronized void stopListeningForEvents(int events) {
             mEvents &= ~(events & EVENT_ALL);
         }
 
         @Override
         public void onStateChanged(
                 Call call, int state) {
-            Log.d("CallCallback:onStateChanged()");
             if ((mEvents & EVENT_STATE_CHANGED)
                     == EVENT_STATE_CHANGED) {
+                Log.d("CallCallback:onStateChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallStateChanged,
                         new CallEvent<String>(mCallId, getCallStateString(state)));
             }
@@ -193,9 +196,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onParentChanged(
                 Call call, Call parent) {
-            Log.d("CallCallback:onParentChanged()");
             if ((mEvents & EVENT_PARENT_CHANGED)
                     == EVENT_PARENT_CHANGED) {
+                Log.d("CallCallback:onParentChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallParentChanged,
                         new CallEvent<String>(mCallId, getCallId(parent)));
             }
@@ -204,10 +207,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onChildrenChanged(
                 Call call, List<Call> children) {
-            Log.d("CallCallback:onChildrenChanged()");
-
             if ((mEvents & EVENT_CHILDREN_CHANGED)
                     == EVENT_CHILDREN_CHANGED) {
+                Log.d("CallCallback:onChildrenChanged()");
                 List<String> childList = new ArrayList<String>();
 
                 for (Call child : children) {
@@ -221,10 +223,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onDetailsChanged(
                 Call call, Details details) {
-            Log.d("CallCallback:onDetailsChanged()");
-
             if ((mEvents & EVENT_DETAILS_CHANGED)
                     == EVENT_DETAILS_CHANGED) {
+                Log.d("CallCallback:onDetailsChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallDetailsChanged,
                         new CallEvent<Details>(mCallId, details));
             }
@@ -233,9 +234,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onCannedTextResponsesLoaded(
                 Call call, List<String> cannedTextResponses) {
-            Log.d("CallCallback:onCannedTextResponsesLoaded()");
             if ((mEvents & EVENT_CANNED_TEXT_RESPONSES_LOADED)
                     == EVENT_CANNED_TEXT_RESPONSES_LOADED) {
+                Log.d("CallCallback:onCannedTextResponsesLoaded()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallCannedTextResponsesLoaded,
                         new CallEvent<List<String>>(mCallId, cannedTextResponses));
             }
@@ -244,9 +245,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onPostDialWait(
                 Call call, String remainingPostDialSequence) {
-            Log.d("CallCallback:onPostDialWait()");
             if ((mEvents & EVENT_POST_DIAL_WAIT)
                     == EVENT_POST_DIAL_WAIT) {
+                Log.d("CallCallback:onPostDialWait()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallPostDialWait,
                         new CallEvent<String>(mCallId, remainingPostDialSequence));
             }
@@ -262,10 +263,8 @@ public class InCallServiceImpl extends InCallService {
              * method as a way of determining the lifetime of the VideoCall object rather than
              * onCallAdded/onCallRemoved.
              */
-            Log.d("CallCallback:onVideoCallChanged()");
-
             if (call != null) {
-                String callId = getCallId(call);
+                String callId = mCallId;
                 CallContainer cc = mCallContainerMap.get(callId);
                 if (cc == null) {
                     Log.d(String.format("Call container returned null for callId %s", callId));
@@ -315,6 +314,7 @@ public class InCallServiceImpl extends InCallService {
 
             if ((mEvents & EVENT_VIDEO_CALL_CHANGED)
                     == EVENT_VIDEO_CALL_CHANGED) {
+                Log.d("CallCallback:onVideoCallChanged()");
                 // TODO: b/26273778 Need to determine what to return;
                 // probably not the whole video call
                 servicePostEvent(TelephonyConstants.EventTelecomCallVideoCallChanged,
@@ -324,10 +324,9 @@ public class InCallServiceImpl extends InCallService {
 
         @Override
         public void onCallDestroyed(Call call) {
-            Log.d("CallCallback:onCallDestroyed()");
-
             if ((mEvents & EVENT_CALL_DESTROYED)
                     == EVENT_CALL_DESTROYED) {
+                Log.d("CallCallback:onCallDestroyed()");
                 servicePostEvent(TelephonyConstants.EventTelecomCallDestroyed,
                         new CallEvent<Call>(mCallId, call));
             }
@@ -336,10 +335,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onConferenceableCallsChanged(
                 Call call, List<Call> conferenceableCalls) {
-            Log.d("CallCallback:onConferenceableCallsChanged()");
-
             if ((mEvents & EVENT_CONFERENCABLE_CALLS_CHANGED)
                     == EVENT_CONFERENCABLE_CALLS_CHANGED) {
+                Log.d("CallCallback:onConferenceableCallsChanged()");
                 List<String> confCallList = new ArrayList<String>();
                 for (Call cc : conferenceableCalls) {
                     confCallList.add(getCallId(cc));
@@ -370,8 +368,8 @@ public class InCallServiceImpl extends InCallService {
                 EVENT_DATA_USAGE_CHANGED |
                 EVENT_CAMERA_CAPABILITIES_CHANGED;
 
-        private String mCallId;
-        private int mEvents;
+        private final String mCallId;
+        private volatile int mEvents;
 
         public VideoCallCallback(String callId, int listeners) {
 
@@ -379,7 +377,7 @@ public class InCallServiceImpl extends InCallService {
             mEvents = listeners & EVENT_ALL;
         }
 
-        public void startListeningForEvents(int events) {
+        public synchronized void startListeningForEvents(int events) {
             Log.d(String.format(
                     "VideoCallCallback(%s):startListeningForEvents(%x): events:%x",
                     mCallId, events, mEvents));
@@ -388,16 +386,16 @@ public class InCallServiceImpl extends InCallService {
 
         }
 
-        public void stopListeningForEvents(int events) {
+        public synchronized void stopListeningForEvents(int events) {
             mEvents &= ~(events & EVENT_ALL);
         }
 
         @Override
         public void onSessionModifyRequestReceived(VideoProfile videoProfile) {
-            Log.d(String.format("VideoCallCallback(%s):onSessionModifyRequestReceived()", mCallId));
-
             if ((mEvents & EVENT_SESSION_MODIFY_REQUEST_RECEIVED)
                     == EVENT_SESSION_MODIFY_REQUEST_RECEIVED) {
+                Log.d(String.format("VideoCallCallback(%s):onSessionModifyRequestReceived()",
+                        mCallId));
                 servicePostEvent(TelephonyConstants.EventTelecomVideoCallSessionModifyRequestReceived,
                         new VideoCallEvent<VideoProfile>(mCallId, videoProfile));
             }
@@ -407,10 +405,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onSessionModifyResponseReceived(int status,
                 VideoProfile requestedProfile, VideoProfile responseProfile) {
-            Log.d("VideoCallCallback:onSessionModifyResponseReceived()");
-
             if ((mEvents & EVENT_SESSION_MODIFY_RESPONSE_RECEIVED)
                     == EVENT_SESSION_MODIFY_RESPONSE_RECEIVED) {
+                Log.d("VideoCallCallback:onSessionModifyResponseReceived()");
 
                 HashMap<String, VideoProfile> smrrInfo = new HashMap<String, VideoProfile>();
 
@@ -424,12 +421,10 @@ public class InCallServiceImpl extends InCallService {
 
         @Override
         public void onCallSessionEvent(int event) {
-            Log.d("VideoCallCallback:onCallSessionEvent()");
-
-            String eventString = getVideoCallSessionEventString(event);
-
             if ((mEvents & EVENT_SESSION_EVENT)
                     == EVENT_SESSION_EVENT) {
+                Log.d("VideoCallCallback:onCallSessionEvent()");
+                String eventString = getVideoCallSessionEventString(event);
                 servicePostEvent(TelephonyConstants.EventTelecomVideoCallSessionEvent,
                         new VideoCallEvent<String>(mCallId, eventString));
             }
@@ -437,10 +432,9 @@ public class InCallServiceImpl extends InCallService {
 
         @Override
         public void onPeerDimensionsChanged(int width, int height) {
-            Log.d("VideoCallCallback:onPeerDimensionsChanged()");
-
             if ((mEvents & EVENT_PEER_DIMENSIONS_CHANGED)
                     == EVENT_PEER_DIMENSIONS_CHANGED) {
+                Log.d("VideoCallCallback:onPeerDimensionsChanged()");
 
                 HashMap<String, Integer> temp = new HashMap<String, Integer>();
                 temp.put("Width", width);
@@ -453,10 +447,9 @@ public class InCallServiceImpl extends InCallService {
 
         @Override
         public void onVideoQualityChanged(int videoQuality) {
-            Log.d("VideoCallCallback:onVideoQualityChanged()");
-
             if ((mEvents & EVENT_VIDEO_QUALITY_CHANGED)
                     == EVENT_VIDEO_QUALITY_CHANGED) {
+                Log.d("VideoCallCallback:onVideoQualityChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomVideoCallVideoQualityChanged,
                         new VideoCallEvent<String>(mCallId,
                                 getVideoCallQualityString(videoQuality)));
@@ -465,10 +458,9 @@ public class InCallServiceImpl extends InCallService {
 
         @Override
         public void onCallDataUsageChanged(long dataUsage) {
-            Log.d("VideoCallCallback:onCallDataUsageChanged()");
-
             if ((mEvents & EVENT_DATA_USAGE_CHANGED)
                     == EVENT_DATA_USAGE_CHANGED) {
+                Log.d("VideoCallCallback:onCallDataUsageChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomVideoCallDataUsageChanged,
                         new VideoCallEvent<Long>(mCallId, dataUsage));
             }
@@ -477,10 +469,9 @@ public class InCallServiceImpl extends InCallService {
         @Override
         public void onCameraCapabilitiesChanged(
                 CameraCapabilities cameraCapabilities) {
-            Log.d("VideoCallCallback:onCallDataUsageChanged()");
-
-            if ((mEvents & EVENT_DATA_USAGE_CHANGED)
-                    == EVENT_DATA_USAGE_CHANGED) {
+            if ((mEvents & EVENT_CAMERA_CAPABILITIES_CHANGED)
+                    == EVENT_CAMERA_CAPABILITIES_CHANGED) {
+                Log.d("VideoCallCallback:onCameraCapabilitiesChanged()");
                 servicePostEvent(TelephonyConstants.EventTelecomVideoCallCameraCapabilities,
                         new VideoCallEvent<CameraCapabilities>(mCallId, cameraCapabilities));
             }
@@ -540,6 +531,16 @@ public class InCallServiceImpl extends InCallService {
             mVideoCall = videoCall;
             mVideoCallCallback = videoCallCallback;
         }
+
+        /** Unregisters the callbacks of this entry once it leaves the registry. */
+        public void release() {
+            mCall.unregisterCallback(mCallCallback);
+            synchronized (mLock) {
+                if (mVideoCall != null && mVideoCallCallback != null) {
+                    mVideoCall.unregisterCallback(mVideoCallCallback);
+                }
+            }
+        }
     }
 
     /*
@@ -549,8 +550,17 @@ public class InCallServiceImpl extends InCallService {
      */
 
     private static EventFacade mEventFacade = null;
-    private static HashMap<String, CallContainer> mCallContainerMap =
-            new HashMap<String, CallContainer>();
+
+    // Call IDs are handed out the first time a call is seen, which may be as the parent or child
+    // of another call before Telecom reports it. Callbacks keep the ID they were created with.
+    // An ID is dropped when its call is removed, so the map only holds calls Telecom knows about.
+    private static final AtomicLong sNextCallId = new AtomicLong();
+    private static final ConcurrentHashMap<Call, String> sCallIds =
+            new ConcurrentHashMap<Call, String>();
+
+    // Written by Telecom callbacks and read by every call-control RPC.
+    private static final ConcurrentHashMap<String, CallContainer> mCallContainerMap =
+            new ConcurrentHashMap<String, CallContainer>();
 
     @Override
     public void onCallAdded(Call call) {
@@ -559,8 +569,6 @@ public class InCallServiceImpl extends InCallService {
         Log.d("Adding " + id);
         CallCallback callCallback = new CallCallback(id, CallCallback.EVENT_NONE);
 
-        call.registerCallback(callCallback);
-
         VideoCall videoCall = call.getVideoCall();
         VideoCallCallback videoCallCallback = null;
 
@@ -582,6 +590,8 @@ public class InCallServiceImpl extends InCallService {
                         callCallback,
                         videoCall,
                         videoCallCallback));
+        // Registered only once the entry exists, so the first callback can already find it.
+        call.registerCallback(callCallback);
 
         /*
          * Once we have a call active, anchor the inCallService instance as a psuedo-singleton.
@@ -604,11 +614,15 @@ public class InCallServiceImpl extends InCallService {
         String id = getCallId(call);
         Log.d("Removing " + id);
 
-        mCallContainerMap.remove(id);
+        CallContainer cc = mCallContainerMap.remove(id);
+        if (cc != null) {
+            cc.release();
+        }
 
         CallListener.onCallRemoved(id, call);
+        sCallIds.remove(call);
 
-        if (mCallContainerMap.size() == 0) {
+        if (mCallContainerMap.isEmpty()) {
             sService = null;
         }
     }
@@ -632,11 +646,18 @@ public class InCallServiceImpl extends InCallService {
     }
 
     public static String getCallId(Call call) {
-        if (call != null) {
-            return "Call:" + call.hashCode();
-        }
-        else
+        if (call == null) {
             return "";
+        }
+        String id = sCallIds.get(call);
+        if (id == null) {
+            String newId = "Call:" + sNextCallId.incrementAndGet();
+            id = sCallIds.putIfAbsent(call, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
     }
 
     public static String getVideoCallId(InCallServiceImpl.VideoCall videoCall) {
@@ -759,7 +780,13 @@ public class InCallServiceImpl extends InCallService {
     }
 
     public static void clearCallList() {
-        mCallContainerMap.clear();
+        for (String id : mCallContainerMap.keySet()) {
+            CallContainer cc = mCallContainerMap.remove(id);
+            if (cc != null) {
+                cc.release();
+                sCallIds.remove(cc.getCall());
+            }
+        }
     }
 
     public static String callGetState(String callId) {
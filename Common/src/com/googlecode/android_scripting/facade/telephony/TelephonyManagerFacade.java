@@ -43,19 +43,7 @@ import com.googlecode.android_scripting.facade.AndroidFacade;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
 import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .CallStateChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .CellInfoChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .DataConnectionRealTimeInfoChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .DataConnectionStateChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .ServiceStateChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .SignalStrengthChangeListener;
-import com.googlecode.android_scripting.facade.telephony.TelephonyStateListeners
-                                                   .VoiceMailStateChangeListener;
+                                                   .MultiplexedStateListener;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
 import com.googlecode.android_scripting.rpc.RpcDefault;
@@ -77,8 +65,8 @@ public class TelephonyManagerFacade extends RpcReceiver {
     private final EventFacade mEventFacade;
     private final TelephonyManager mTelephonyManager;
     private final SubscriptionManager mSubscriptionManager;
-    private HashMap<Integer, StateChangeListener> mStateChangeListeners =
-                             new HashMap<Integer, StateChangeListener>();
+    private HashMap<Integer, MultiplexedStateListener> mStateChangeListeners =
+                             new HashMap<Integer, MultiplexedStateListener>();
 
     private static final String[] sProjection = new String[] {
             Telephony.Carriers._ID, // 0
@@ -218,14 +206,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingCallStateForSubscription(
                 @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mCallStateChangeListener,
-            CallStateChangeListener.sListeningStates);
+        listener.startListening(MultiplexedStateListener.LISTEN_CALL_STATES);
         return true;
     }
 
@@ -240,14 +226,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingCellInfoChangeForSubscription(
                 @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mCellInfoChangeListener,
-            PhoneStateListener.LISTEN_CELL_INFO);
+        listener.startListening(PhoneStateListener.LISTEN_CELL_INFO);
         return true;
     }
 
@@ -266,18 +250,18 @@ public class TelephonyManagerFacade extends RpcReceiver {
             @RpcParameter(name = "type") String type,
             @RpcParameter(name = "listen") Boolean listen,
             @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
 
         if (type.equals(TelephonyConstants.PRECISE_CALL_STATE_LISTEN_LEVEL_FOREGROUND)) {
-            listener.mCallStateChangeListener.listenForeground = listen;
+            listener.listenForeground = listen;
         } else if (type.equals(TelephonyConstants.PRECISE_CALL_STATE_LISTEN_LEVEL_RINGING)) {
-            listener.mCallStateChangeListener.listenRinging = listen;
+            listener.listenRinging = listen;
         } else if (type.equals(TelephonyConstants.PRECISE_CALL_STATE_LISTEN_LEVEL_BACKGROUND)) {
-            listener.mCallStateChangeListener.listenBackground = listen;
+            listener.listenBackground = listen;
         } else {
             throw new IllegalArgumentException("Invalid listen level type " + type);
         }
@@ -296,14 +280,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingCellInfoChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mCellInfoChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(PhoneStateListener.LISTEN_CELL_INFO);
         return true;
     }
     @Rpc(description = "Stops tracking call state change " +
@@ -317,14 +299,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingCallStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mCallStateChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(MultiplexedStateListener.LISTEN_CALL_STATES);
         return true;
     }
 
@@ -339,14 +319,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingDataConnectionRTInfoChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mDataConnectionRTInfoChangeListener,
-            DataConnectionRealTimeInfoChangeListener.sListeningStates);
+        listener.startListening(PhoneStateListener.LISTEN_DATA_CONNECTION_REAL_TIME_INFO);
         return true;
     }
 
@@ -361,14 +339,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingDataConnectionRTInfoChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mDataConnectionRTInfoChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(PhoneStateListener.LISTEN_DATA_CONNECTION_REAL_TIME_INFO);
         return true;
     }
 
@@ -383,14 +359,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingDataConnectionStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mDataConnectionStateChangeListener,
-            DataConnectionStateChangeListener.sListeningStates);
+        listener.startListening(PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
         return true;
     }
 
@@ -405,14 +379,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID..")
     public Boolean telephonyStopTrackingDataConnectionStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mDataConnectionStateChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(PhoneStateListener.LISTEN_DATA_CONNECTION_STATE);
         return true;
     }
 
@@ -427,14 +399,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingServiceStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mServiceStateChangeListener,
-            ServiceStateChangeListener.sListeningStates);
+        listener.startListening(PhoneStateListener.LISTEN_SERVICE_STATE);
         return true;
     }
 
@@ -449,14 +419,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingServiceStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mServiceStateChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(PhoneStateListener.LISTEN_SERVICE_STATE);
             return true;
     }
 
@@ -471,14 +439,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingSignalStrengthChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mSignalStrengthChangeListener,
-            SignalStrengthChangeListener.sListeningStates);
+        listener.startListening(PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
         return true;
     }
 
@@ -493,14 +459,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingSignalStrengthChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mSignalStrengthChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.stopListening(PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
         return true;
     }
 
@@ -515,14 +479,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStartTrackingVoiceMailStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, true);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mVoiceMailStateChangeListener,
-            VoiceMailStateChangeListener.sListeningStates);
+        listener.startListening(PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR);
         return true;
     }
 
@@ -537,14 +499,44 @@ public class TelephonyManagerFacade extends RpcReceiver {
                        "for specified subscription ID.")
     public Boolean telephonyStopTrackingVoiceMailStateChangeForSubscription(
                    @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
+        if(listener == null) {
+            Log.e("Invalid subscription ID");
+            return false;
+        }
+        listener.stopListening(PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR);
+        return true;
+    }
+
+    @Rpc(description = "Starts tracking a mask of PhoneStateListener.LISTEN_* events " +
+                       "for specified subscription ID. Each start needs a matching stop.")
+    public Boolean telephonyStartTrackingStatesForSubscription(
+                   @RpcParameter(name = "events") Integer events,
+                   @RpcParameter(name = "subId") Integer subId) {
+        if ((events & ~MultiplexedStateListener.SUPPORTED_EVENTS) != 0) {
+            throw new IllegalArgumentException("Unsupported listen events " +
+                    Integer.toHexString(events & ~MultiplexedStateListener.SUPPORTED_EVENTS));
+        }
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, true);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return false;
         }
-        mTelephonyManager.listen(
-            listener.mVoiceMailStateChangeListener,
-            PhoneStateListener.LISTEN_NONE);
+        listener.startListening(events);
+        return true;
+    }
+
+    @Rpc(description = "Stops tracking a mask of PhoneStateListener.LISTEN_* events " +
+                       "for specified subscription ID.")
+    public Boolean telephonyStopTrackingStatesForSubscription(
+                   @RpcParameter(name = "events") Integer events,
+                   @RpcParameter(name = "subId") Integer subId) {
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
+        if(listener == null) {
+            Log.e("Invalid subscription ID");
+            return false;
+        }
+        listener.stopListening(events);
         return true;
     }
 
@@ -1141,12 +1133,12 @@ public class TelephonyManagerFacade extends RpcReceiver {
     @Rpc(description = "Returns current signal strength for specified subscription ID.")
     public SignalStrength telephonyGetSignalStrengthForSubscription(
                     @RpcParameter(name = "subId") Integer subId) {
-        StateChangeListener listener = getStateChangeListenerForSubscription(subId, false);
+        MultiplexedStateListener listener = getStateChangeListenerForSubscription(subId, false);
         if(listener == null) {
             Log.e("Invalid subscription ID");
             return null;
         }
-        return listener.mSignalStrengthChangeListener.mSignalStrengths;
+        return listener.mSignalStrengths;
     }
 
     @Rpc(description = "Returns the sim count.")
@@ -1170,7 +1162,7 @@ public class TelephonyManagerFacade extends RpcReceiver {
         return null;
     }
 
-    private StateChangeListener getStateChangeListenerForSubscription(
+    private synchronized MultiplexedStateListener getStateChangeListenerForSubscription(
             int subId,
             boolean createIfNeeded) {
 
@@ -1184,77 +1176,17 @@ public class TelephonyManagerFacade extends RpcReceiver {
                 return null;
             }
 
-            mStateChangeListeners.put(subId, new StateChangeListener(subId));
+            mStateChangeListeners.put(subId, new MultiplexedStateListener(
+                    mEventFacade, mTelephonyManager, subId, mService.getMainLooper()));
         }
 
         return mStateChangeListeners.get(subId);
     }
 
-    //FIXME: This whole class needs reworking. Why do we have separate listeners for everything?
-    //We need one listener that overrides multiple methods.
-    private final class StateChangeListener {
-        public ServiceStateChangeListener mServiceStateChangeListener;
-        public SignalStrengthChangeListener mSignalStrengthChangeListener;
-        public CallStateChangeListener mCallStateChangeListener;
-        public CellInfoChangeListener mCellInfoChangeListener;
-        public DataConnectionStateChangeListener mDataConnectionStateChangeListener;
-        public DataConnectionRealTimeInfoChangeListener mDataConnectionRTInfoChangeListener;
-        public VoiceMailStateChangeListener mVoiceMailStateChangeListener;
-
-        public StateChangeListener(int subId) {
-            mServiceStateChangeListener =
-                new ServiceStateChangeListener(mEventFacade, subId, mService.getMainLooper());
-            mSignalStrengthChangeListener =
-                new SignalStrengthChangeListener(mEventFacade, subId, mService.getMainLooper());
-            mDataConnectionStateChangeListener =
-                new DataConnectionStateChangeListener(
-                        mEventFacade, mTelephonyManager, subId, mService.getMainLooper());
-            mCallStateChangeListener =
-                new CallStateChangeListener(mEventFacade, subId, mService.getMainLooper());
-            mCellInfoChangeListener =
-                new CellInfoChangeListener(mEventFacade, subId, mService.getMainLooper());
-            mDataConnectionRTInfoChangeListener =
-                new DataConnectionRealTimeInfoChangeListener(
-                        mEventFacade, subId, mService.getMainLooper());
-            mVoiceMailStateChangeListener =
-                new VoiceMailStateChangeListener(mEventFacade, subId, mService.getMainLooper());
-        }
-
-        public void shutdown() {
-            mTelephonyManager.listen(
-                    mServiceStateChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mSignalStrengthChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mCallStateChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mCellInfoChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mDataConnectionStateChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mDataConnectionRTInfoChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-            mTelephonyManager.listen(
-                    mVoiceMailStateChangeListener,
-                    PhoneStateListener.LISTEN_NONE);
-        }
-
-        protected void finalize() {
-            try {
-                shutdown();
-            } catch(Exception e) {}
-        }
-    }
-
     @Override
-    public void shutdown() {
-        for(StateChangeListener listener : mStateChangeListeners.values()) {
-            listener.shutdown();
+    public synchronized void shutdown() {
+        for(MultiplexedStateListener listener : mStateChangeListeners.values()) {
+            listener.stopAll();
         }
     }
 }
@@ -18,13 +18,17 @@ package com.googlecode.android_scripting.facade.telephony;
 
 import com.googlecode.android_scripting.facade.EventFacade;
 import android.os.Looper;
+import android.text.TextUtils;
 import android.telephony.CellInfo;
+import android.telephony.CellInfoCdma;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoWcdma;
 import android.telephony.DataConnectionRealTimeInfo;
 import android.telephony.PhoneStateListener;
 import android.telephony.PreciseCallState;
 import android.telephony.ServiceState;
 import android.telephony.SignalStrength;
-import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.VoLteServiceState;
 
@@ -35,37 +39,144 @@ import java.util.List;
  */
 public class TelephonyStateListeners {
 
-    public static class CallStateChangeListener extends PhoneStateListener {
+    /**
+     * The single listener of one subscription. Each LISTEN_* event is reference counted and the
+     * listener is registered for the union of the events in use, so consumers tracking the same
+     * event share one registration. Changing the registration makes the telephony registry replay
+     * the current value of every event in it, so each callback remembers the last value it reported
+     * and drops repeats before any event is built. Every start of an event clears its remembered
+     * value and renews the registration, so each new consumer, including one joining an event that
+     * is already tracked, gets the current value from the replay.
+     */
+    public static class MultiplexedStateListener extends PhoneStateListener {
+
+        public static final int LISTEN_CALL_STATES = PhoneStateListener.LISTEN_CALL_STATE |
+                                                     PhoneStateListener.LISTEN_PRECISE_CALL_STATE;
+        public static final int SUPPORTED_EVENTS = LISTEN_CALL_STATES |
+                PhoneStateListener.LISTEN_SERVICE_STATE |
+                PhoneStateListener.LISTEN_SIGNAL_STRENGTHS |
+                PhoneStateListener.LISTEN_CELL_INFO |
+                PhoneStateListener.LISTEN_DATA_CONNECTION_STATE |
+                PhoneStateListener.LISTEN_DATA_CONNECTION_REAL_TIME_INFO |
+                PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR |
+                PhoneStateListener.LISTEN_VOLTE_STATE;
 
         private final EventFacade mEventFacade;
-        public static final int sListeningStates = PhoneStateListener.LISTEN_CALL_STATE |
-                                                   PhoneStateListener.LISTEN_PRECISE_CALL_STATE;
+        private final TelephonyManager mTelephonyManager;
+        private final int[] mRefCounts = new int[Integer.SIZE];
+        private int mListenedEvents = PhoneStateListener.LISTEN_NONE;
+
+        public final int subscriptionId;
+        public volatile boolean listenForeground = true;
+        public volatile boolean listenRinging = false;
+        public volatile boolean listenBackground = false;
+        public volatile SignalStrength mSignalStrengths;
+
+        // Last reported values, guarded by this and cleared when their event is restarted.
+        private ServiceState mLastServiceState;
+        private SignalStrength mLastSignalStrength;
+        private List<CellInfo> mLastCellInfo;
+        private Integer mLastCallState;
+        private String mLastIncomingNumber;
+        private PreciseCallState mLastPreciseCallState;
+        private Integer mLastDataConnectionState;
+        private String mLastDataNetworkType;
+        private DataConnectionRealTimeInfo mLastDataConnectionRealTimeInfo;
+        private Boolean mLastMessageWaitingIndicator;
+        private VoLteServiceState mLastVolteServiceState;
+
+        public MultiplexedStateListener(
+                EventFacade ef, TelephonyManager tm, int subId, Looper looper) {
+            super(subId, looper);
+            mEventFacade = ef;
+            mTelephonyManager = tm;
+            subscriptionId = subId;
+        }
 
-        public boolean listenForeground = true;
-        public boolean listenRinging = false;
-        public boolean listenBackground = false;
-        public int subscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        /**
+         * Adds a reference to each of the events and renews the registration, so that the registry
+         * replays their current values for the new consumer.
+         */
+        public synchronized void startListening(int events) {
+            events &= SUPPORTED_EVENTS;
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                if ((events & (1 << bit)) != 0) {
+                    mRefCounts[bit]++;
+                    forgetLastValue(1 << bit);
+                }
+            }
+            updateRegistration(events != 0);
+        }
 
-        public CallStateChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-            subscriptionId = SubscriptionManager.DEFAULT_SUBSCRIPTION_ID;
+        /** Drops a reference to each of the events and unregisters the ones no longer in use. */
+        public synchronized void stopListening(int events) {
+            events &= SUPPORTED_EVENTS;
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                if ((events & (1 << bit)) != 0 && mRefCounts[bit] > 0) {
+                    mRefCounts[bit]--;
+                }
+            }
+            updateRegistration(false);
         }
 
-        public CallStateChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-            subscriptionId = subId;
+        public synchronized void stopAll() {
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                mRefCounts[bit] = 0;
+            }
+            updateRegistration(false);
+        }
+
+        /**
+         * Registers for the events in use if they changed, or always if forced. Values that did
+         * not change since they were last reported are dropped from the replay.
+         */
+        private void updateRegistration(boolean force) {
+            int events = PhoneStateListener.LISTEN_NONE;
+            for (int bit = 0; bit < Integer.SIZE; bit++) {
+                if (mRefCounts[bit] > 0) {
+                    events |= 1 << bit;
+                }
+            }
+            if (force || events != mListenedEvents) {
+                mListenedEvents = events;
+                mTelephonyManager.listen(this, events);
+            }
         }
 
-        public CallStateChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-            subscriptionId = subId;
+        private void forgetLastValue(int event) {
+            if (event == PhoneStateListener.LISTEN_SERVICE_STATE) {
+                mLastServiceState = null;
+            } else if (event == PhoneStateListener.LISTEN_SIGNAL_STRENGTHS) {
+                mLastSignalStrength = null;
+            } else if (event == PhoneStateListener.LISTEN_CELL_INFO) {
+                mLastCellInfo = null;
+            } else if (event == PhoneStateListener.LISTEN_CALL_STATE) {
+                mLastCallState = null;
+                mLastIncomingNumber = null;
+            } else if (event == PhoneStateListener.LISTEN_PRECISE_CALL_STATE) {
+                mLastPreciseCallState = null;
+            } else if (event == PhoneStateListener.LISTEN_DATA_CONNECTION_STATE) {
+                mLastDataConnectionState = null;
+                mLastDataNetworkType = null;
+            } else if (event == PhoneStateListener.LISTEN_DATA_CONNECTION_REAL_TIME_INFO) {
+                mLastDataConnectionRealTimeInfo = null;
+            } else if (event == PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR) {
+                mLastMessageWaitingIndicator = null;
+            } else if (event == PhoneStateListener.LISTEN_VOLTE_STATE) {
+                mLastVolteServiceState = null;
+            }
         }
 
         @Override
         public void onCallStateChanged(int state, String incomingNumber) {
+            synchronized (this) {
+                if (mLastCallState != null && mLastCallState == state
+                        && TextUtils.equals(incomingNumber, mLastIncomingNumber)) {
+                    return;
+                }
+                mLastCallState = state;
+                mLastIncomingNumber = incomingNumber;
+            }
             mEventFacade.postEvent(TelephonyConstants.EventCallStateChanged,
                 new TelephonyEvents.CallStateEvent(
                     state, incomingNumber, subscriptionId));
@@ -73,6 +184,12 @@ public class TelephonyStateListeners {
 
         @Override
         public void onPreciseCallStateChanged(PreciseCallState callState) {
+            synchronized (this) {
+                if (callState.equals(mLastPreciseCallState)) {
+                    return;
+                }
+                mLastPreciseCallState = callState;
+            }
             int foregroundState = callState.getForegroundCallState();
             int ringingState = callState.getRingingCallState();
             int backgroundState = callState.getBackgroundCallState();
@@ -102,230 +219,154 @@ public class TelephonyStateListeners {
                 new TelephonyEvents.PreciseCallStateEvent(
                     newState, which, callState, subscriptionId));
         }
-    }
-
-    public static class DataConnectionRealTimeInfoChangeListener extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-        public static final int sListeningStates =
-                PhoneStateListener.LISTEN_DATA_CONNECTION_REAL_TIME_INFO;
-        public int subscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-
-        public DataConnectionRealTimeInfoChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-            subscriptionId = SubscriptionManager.DEFAULT_SUBSCRIPTION_ID;
-        }
-
-        public DataConnectionRealTimeInfoChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-            subscriptionId = subId;
-        }
-
-        public DataConnectionRealTimeInfoChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-            subscriptionId = subId;
-        }
 
         @Override
         public void onDataConnectionRealTimeInfoChanged(
             DataConnectionRealTimeInfo dcRtInfo) {
+            synchronized (this) {
+                if (dcRtInfo.equals(mLastDataConnectionRealTimeInfo)) {
+                    return;
+                }
+                mLastDataConnectionRealTimeInfo = dcRtInfo;
+            }
             mEventFacade.postEvent(
                 TelephonyConstants.EventDataConnectionRealTimeInfoChanged,
                 new TelephonyEvents.DataConnectionRealTimeInfoEvent(
                     dcRtInfo, subscriptionId));
         }
-    }
-
-    public static class DataConnectionStateChangeListener extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-        private final TelephonyManager mTelephonyManager;
-        public static final int sListeningStates =
-                PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
-        public int subscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-
-        public DataConnectionStateChangeListener(EventFacade ef, TelephonyManager tm) {
-            super();
-            mEventFacade = ef;
-            mTelephonyManager = tm;
-            subscriptionId = SubscriptionManager.DEFAULT_SUBSCRIPTION_ID;
-        }
-
-        public DataConnectionStateChangeListener(EventFacade ef, TelephonyManager tm, int subId) {
-            super(subId);
-            mEventFacade = ef;
-            mTelephonyManager = tm;
-            subscriptionId = subId;
-        }
-
-        public DataConnectionStateChangeListener(
-                EventFacade ef, TelephonyManager tm, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-            mTelephonyManager = tm;
-            subscriptionId = subId;
-        }
 
         @Override
         public void onDataConnectionStateChanged(int state) {
+            String networkType = TelephonyUtils.getNetworkTypeString(
+                    mTelephonyManager.getDataNetworkType());
+            synchronized (this) {
+                if (mLastDataConnectionState != null && mLastDataConnectionState == state
+                        && TextUtils.equals(networkType, mLastDataNetworkType)) {
+                    return;
+                }
+                mLastDataConnectionState = state;
+                mLastDataNetworkType = networkType;
+            }
             mEventFacade.postEvent(
                 TelephonyConstants.EventDataConnectionStateChanged,
-                new TelephonyEvents.DataConnectionStateEvent(state,
-                    TelephonyUtils.getNetworkTypeString(
-                                 mTelephonyManager.getDataNetworkType()),
+                new TelephonyEvents.DataConnectionStateEvent(state, networkType,
                     subscriptionId));
         }
-    }
-
-    public static class ServiceStateChangeListener extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-        public static final int sListeningStates = PhoneStateListener.LISTEN_SERVICE_STATE;
-        public int subscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-
-        public ServiceStateChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-            subscriptionId = SubscriptionManager.DEFAULT_SUBSCRIPTION_ID;
-        }
-
-        public ServiceStateChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-            subscriptionId = subId;
-        }
-
-        public ServiceStateChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-            subscriptionId = subId;
-        }
 
         @Override
         public void onServiceStateChanged(ServiceState serviceState) {
+            synchronized (this) {
+                if (serviceState.equals(mLastServiceState)) {
+                    return;
+                }
+                mLastServiceState = serviceState;
+            }
             mEventFacade.postEvent(TelephonyConstants.EventServiceStateChanged,
                 new TelephonyEvents.ServiceStateEvent(
                     serviceState, subscriptionId));
         }
 
-    }
-
-    public static class CellInfoChangeListener
-            extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-
-        public CellInfoChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-        }
-
-        public CellInfoChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-        }
-
-        public CellInfoChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-        }
-
         @Override
         public void onCellInfoChanged(List<CellInfo> cellInfo) {
+            synchronized (this) {
+                if (isSameCellInfo(cellInfo, mLastCellInfo)) {
+                    return;
+                }
+                mLastCellInfo = cellInfo;
+            }
             mEventFacade.postEvent(
                 TelephonyConstants.EventCellInfoChanged, cellInfo);
         }
-    }
-
-    public static class VolteServiceStateChangeListener
-            extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-
-        public VolteServiceStateChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-        }
-
-        public VolteServiceStateChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-        }
-
-        public VolteServiceStateChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-        }
 
         @Override
         public void onVoLteServiceStateChanged(VoLteServiceState volteInfo) {
+            synchronized (this) {
+                if (volteInfo.equals(mLastVolteServiceState)) {
+                    return;
+                }
+                mLastVolteServiceState = volteInfo;
+            }
             mEventFacade.postEvent(
                     TelephonyConstants.EventVolteServiceStateChanged,
                     volteInfo);
         }
-    }
-
-    public static class VoiceMailStateChangeListener extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-
-        public static final int sListeningStates =
-                PhoneStateListener.LISTEN_MESSAGE_WAITING_INDICATOR;
-
-        public VoiceMailStateChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-        }
-
-        public VoiceMailStateChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-        }
-
-        public VoiceMailStateChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-        }
 
         @Override
         public void onMessageWaitingIndicatorChanged(boolean messageWaitingIndicator) {
+            synchronized (this) {
+                if (mLastMessageWaitingIndicator != null
+                        && mLastMessageWaitingIndicator == messageWaitingIndicator) {
+                    return;
+                }
+                mLastMessageWaitingIndicator = messageWaitingIndicator;
+            }
             mEventFacade.postEvent(
                     TelephonyConstants.EventMessageWaitingIndicatorChanged,
                     new TelephonyEvents.MessageWaitingIndicatorEvent(
                         messageWaitingIndicator));
         }
-    }
-
-
-    public static class SignalStrengthChangeListener extends PhoneStateListener {
-
-        private final EventFacade mEventFacade;
-        public SignalStrength mSignalStrengths;
-        public static final int sListeningStates = PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
-        public SignalStrengthChangeListener(EventFacade ef) {
-            super();
-            mEventFacade = ef;
-        }
-
-        public SignalStrengthChangeListener(EventFacade ef, int subId) {
-            super(subId);
-            mEventFacade = ef;
-        }
-
-        public SignalStrengthChangeListener(EventFacade ef, int subId, Looper looper) {
-            super(subId, looper);
-            mEventFacade = ef;
-        }
 
         @Override
         public void onSignalStrengthsChanged(SignalStrength signalStrength) {
             mSignalStrengths = signalStrength;
+            synchronized (this) {
+                if (signalStrength.equals(mLastSignalStrength)) {
+                    return;
+                }
+                mLastSignalStrength = signalStrength;
+            }
             mEventFacade.postEvent(
                 TelephonyConstants.EventSignalStrengthChanged, signalStrength);
         }
+
+        /**
+         * Compares cell lists by identity, registration and signal strength. CellInfo.equals also
+         * compares the timestamp, which changes on every report.
+         */
+        private static boolean isSameCellInfo(List<CellInfo> a, List<CellInfo> b) {
+            if (a == null || b == null || a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < a.size(); i++) {
+                CellInfo x = a.get(i);
+                CellInfo y = b.get(i);
+                if (x.getClass() != y.getClass() || x.isRegistered() != y.isRegistered()) {
+                    return false;
+                }
+                if (x instanceof CellInfoLte) {
+                    CellInfoLte lx = (CellInfoLte) x;
+                    CellInfoLte ly = (CellInfoLte) y;
+                    if (!lx.getCellIdentity().equals(ly.getCellIdentity())
+                            || !lx.getCellSignalStrength().equals(ly.getCellSignalStrength())) {
+                        return false;
+                    }
+                } else if (x instanceof CellInfoWcdma) {
+                    CellInfoWcdma wx = (CellInfoWcdma) x;
+                    CellInfoWcdma wy = (CellInfoWcdma) y;
+                    if (!wx.getCellIdentity().equals(wy.getCellIdentity())
+                            || !wx.getCellSignalStrength().equals(wy.getCellSignalStrength())) {
+                        return false;
+                    }
+                } else if (x instanceof CellInfoGsm) {
+                    CellInfoGsm gx = (CellInfoGsm) x;
+                    CellInfoGsm gy = (CellInfoGsm) y;
+                    if (!gx.getCellIdentity().equals(gy.getCellIdentity())
+                            || !gx.getCellSignalStrength().equals(gy.getCellSignalStrength())) {
+                        return false;
+                    }
+                } else if (x instanceof CellInfoCdma) {
+                    CellInfoCdma cx = (CellInfoCdma) x;
+                    CellInfoCdma cy = (CellInfoCdma) y;
+                    if (!cx.getCellIdentity().equals(cy.getCellIdentity())
+                            || !cx.getCellSignalStrength().equals(cy.getCellSignalStrength())) {
+                        return false;
+                    }
+                } else if (!x.equals(y)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
 }
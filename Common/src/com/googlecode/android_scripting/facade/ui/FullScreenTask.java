@@ -33,12 +33,15 @@ import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.future.FutureActivityTask;
 
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 
 public class FullScreenTask extends FutureActivityTask<Object> implements OnClickListener,
@@ -165,6 +168,47 @@ public class FullScreenTask extends FutureActivityTask<Object> implements OnClic
     return mInflater.getErrors().get(0);
   }
 
+  /**
+   * Applies a list of property updates in a single pass on the UI thread. Each update is a list of
+   * id, property and value, or a map with those keys. Returns "OK" or an error for each update.
+   */
+  public List<String> setViewProperties(JSONArray updates) throws JSONException {
+    List<View> views = new ArrayList<View>(updates.length());
+    List<String> properties = new ArrayList<String>(updates.length());
+    List<String> values = new ArrayList<String>(updates.length());
+    List<String> results = new ArrayList<String>(updates.length());
+    for (int i = 0; i < updates.length(); i++) {
+      String idName;
+      String property;
+      String value;
+      Object update = updates.get(i);
+      if (update instanceof JSONArray) {
+        JSONArray tuple = (JSONArray) update;
+        idName = tuple.getString(0);
+        property = tuple.getString(1);
+        value = tuple.getString(2);
+      } else {
+        JSONObject map = (JSONObject) update;
+        idName = map.getString("id");
+        property = map.getString("property");
+        value = map.getString("value");
+      }
+      View v = getViewByName(idName);
+      views.add(v);
+      properties.add(property);
+      values.add(value);
+      results.add(v == null ? "View " + idName + " not found." : "OK");
+    }
+    SetProperties p = new SetProperties(views, properties, values, results);
+    mHandler.post(p);
+    try {
+      p.mLatch.await();
+    } catch (InterruptedException e) {
+      mInflater.getErrors().add(e.toString());
+    }
+    return results;
+  }
+
   public String setList(String id, JSONArray items) {
     View v = getViewByName(id);
     mInflater.getErrors().clear();
@@ -190,6 +234,26 @@ public class FullScreenTask extends FutureActivityTask<Object> implements OnClic
     mEventFacade.postEvent("click", mInflater.getViewInfo(view));
   }
 
+  /**
+   * Applies the attribute changes between the current layout and the new one to the views on
+   * screen, keeping their state. Falls back to {@link #loadLayout} if the layouts differ in
+   * structure.
+   */
+  public void updateLayout(String layout) {
+    try {
+      mInflater.getErrors().clear();
+      if (mView != null && mLayout != null && mInflater.updateLayout(mView,
+          ViewInflater.getXml(new StringReader(mLayout)),
+          ViewInflater.getXml(new StringReader(layout)))) {
+        mLayout = layout;
+        return;
+      }
+    } catch (Exception e) {
+      mInflater.getErrors().add(e.toString());
+    }
+    loadLayout(layout);
+  }
+
   public void loadLayout(String layout) {
     ViewInflater inflater = new ViewInflater();
     View view;
@@ -229,6 +293,40 @@ public class FullScreenTask extends FutureActivityTask<Object> implements OnClic
     }
   }
 
+  private class SetProperties implements Runnable {
+    List<View> mViews;
+    List<String> mProperties;
+    List<String> mValues;
+    List<String> mResults;
+    CountDownLatch mLatch = new CountDownLatch(1);
+
+    SetProperties(List<View> views, List<String> properties, List<String> values,
+        List<String> results) {
+      mViews = views;
+      mProperties = properties;
+      mValues = values;
+      mResults = results;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < mViews.size(); i++) {
+        View view = mViews.get(i);
+        if (view == null) {
+          continue;
+        }
+        mInflater.getErrors().clear();
+        mInflater.setProperty(view, mProperties.get(i), mValues.get(i));
+        if (mInflater.getErrors().size() > 0) {
+          mResults.set(i, mInflater.getErrors().get(0));
+        }
+      }
+      // One invalidate for the whole screen instead of one per property.
+      mView.invalidate();
+      mLatch.countDown();
+    }
+  }
+
   private class SetList implements Runnable {
     View mView;
     JSONArray mItems;
@@ -249,15 +347,21 @@ public class FullScreenTask extends FutureActivityTask<Object> implements OnClic
 
   private class SetLayout implements Runnable {
     String mLayout;
+    boolean mUpdate;
     CountDownLatch mLatch = new CountDownLatch(1);
 
-    SetLayout(String layout) {
+    SetLayout(String layout, boolean update) {
       mLayout = layout;
+      mUpdate = update;
     }
 
     @Override
     public void run() {
-      loadLayout(mLayout);
+      if (mUpdate) {
+        updateLayout(mLayout);
+      } else {
+        loadLayout(mLayout);
+      }
       mLatch.countDown();
     }
   }
@@ -308,7 +412,15 @@ public class FullScreenTask extends FutureActivityTask<Object> implements OnClic
 
   // Used to hot-switch screens.
   public void setLayout(String layout) {
-    SetLayout p = new SetLayout(layout);
+    setLayout(layout, false);
+  }
+
+  /**
+   * Replaces the layout. If {@code update} is true, views that are unchanged in structure are
+   * updated in place instead of being rebuilt.
+   */
+  public void setLayout(String layout, boolean update) {
+    SetLayout p = new SetLayout(layout, update);
     mHandler.post(p);
     try {
       p.mLatch.await();
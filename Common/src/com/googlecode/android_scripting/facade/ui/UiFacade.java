@@ -529,11 +529,12 @@ public class UiFacade extends RpcReceiver {
   @Rpc(description = "Show Full Screen.")
   public List<String> fullShow(
       @RpcParameter(name = "layout", description = "String containing View layout") String layout,
-      @RpcParameter(name = "title", description = "Activity Title") @RpcOptional String title)
+      @RpcParameter(name = "title", description = "Activity Title") @RpcOptional String title,
+      @RpcParameter(name = "update", description = "If a screen is already shown, update the views whose attributes changed in place instead of rebuilding the screen. Falls back to a rebuild if the layouts differ in structure.") @RpcDefault("false") Boolean update)
       throws InterruptedException {
     if (mFullScreenTask != null) {
       // fullDismiss();
-      mFullScreenTask.setLayout(layout);
+      mFullScreenTask.setLayout(layout, update);
       if (title != null) {
         mFullScreenTask.setTitle(title);
       }
@@ -601,6 +602,17 @@ public class UiFacade extends RpcReceiver {
     return mFullScreenTask.setViewProperty(id, property, value);
   }
 
+  @Rpc(description = "Set several fullscreen widget properties in one pass",
+      returns = "A list with OK or an error message for each update")
+  public List<String> fullSetProperties(
+      @RpcParameter(name = "updates", description = "list of [id, property, value] lists or maps with those keys") JSONArray updates)
+      throws JSONException {
+    if (mFullScreenTask == null) {
+      throw new RuntimeException("No screen displayed.");
+    }
+    return mFullScreenTask.setViewProperties(updates);
+  }
+
   @Rpc(description = "Attach a list to a fullscreen widget")
   public String fullSetList(
       @RpcParameter(name = "id", description = "id of layout widget") String id,
@@ -660,7 +672,7 @@ public class UiFacade extends RpcReceiver {
   @Rpc(description = "Start tracking mouse cursor x coordinate.")
   public void startTrackingMouseXCoord() throws InterruptedException {
     View.OnGenericMotionListener l = new MouseMotionListener();
-    fullShow(blankLayout, "Blank");
+    fullShow(blankLayout, "Blank", false);
     mFullScreenTask.mView.setOnGenericMotionListener(l);
   }
 
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.ui;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of the reflective lookups made by {@link ViewInflater}.
+ *
+ * <p>Setters, fields, constructors and constants are resolved once per class and name, and misses
+ * are cached as well, so inflating the same layout again or updating a property repeatedly does no
+ * reflective lookups and throws no {@link NoSuchMethodException}s.
+ */
+class ViewBindings {
+
+  /** Marks a lookup that found nothing. ConcurrentHashMap does not accept null values. */
+  private static final Object MISSING = new Object();
+
+  private static final ConcurrentHashMap<MemberKey, Object> sMethods =
+      new ConcurrentHashMap<MemberKey, Object>();
+  private static final ConcurrentHashMap<MemberKey, Object> sFields =
+      new ConcurrentHashMap<MemberKey, Object>();
+  private static final ConcurrentHashMap<MemberKey, Object> sConstants =
+      new ConcurrentHashMap<MemberKey, Object>();
+  private static final ConcurrentHashMap<String, Object> sViewConstructors =
+      new ConcurrentHashMap<String, Object>();
+  private static final ConcurrentHashMap<Class<?>, Object> sLayoutParamsConstructors =
+      new ConcurrentHashMap<Class<?>, Object>();
+  private static final ConcurrentHashMap<String, Object> sClasses =
+      new ConcurrentHashMap<String, Object>();
+
+  private static class MemberKey {
+    private final Class<?> mmClass;
+    private final String mmName;
+    private final Class<?>[] mmParameters;
+    private final int mmHash;
+
+    private MemberKey(Class<?> clazz, String name, Class<?>[] parameters) {
+      mmClass = clazz;
+      mmName = name;
+      mmParameters = parameters;
+      mmHash = (clazz.hashCode() * 31 + name.hashCode()) * 31 + Arrays.hashCode(parameters);
+    }
+
+    @Override
+    public int hashCode() {
+      return mmHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MemberKey)) {
+        return false;
+      }
+      MemberKey other = (MemberKey) o;
+      return mmClass == other.mmClass && mmName.equals(other.mmName)
+          && Arrays.equals(mmParameters, other.mmParameters);
+    }
+  }
+
+  private ViewBindings() {
+  }
+
+  /**
+   * Returns the public method of the class with the given name and parameter types, or null.
+   */
+  static Method getMethod(Class<?> clazz, String name, Class<?>... parameters) {
+    MemberKey key = new MemberKey(clazz, name, parameters);
+    Object method = sMethods.get(key);
+    if (method == null) {
+      try {
+        method = clazz.getMethod(name, parameters);
+      } catch (Exception e) {
+        method = MISSING;
+      }
+      sMethods.putIfAbsent(key, method);
+    }
+    return method == MISSING ? null : (Method) method;
+  }
+
+  /**
+   * Returns the public field of the class with the given name, or null.
+   */
+  static Field getField(Class<?> clazz, String name) {
+    MemberKey key = new MemberKey(clazz, name, null);
+    Object field = sFields.get(key);
+    if (field == null) {
+      try {
+        field = clazz.getField(name);
+      } catch (Exception e) {
+        field = MISSING;
+      }
+      sFields.putIfAbsent(key, field);
+    }
+    return field == MISSING ? null : (Field) field;
+  }
+
+  /**
+   * Returns the value of the public static int field of the class with the given name, or null.
+   */
+  static Integer getConstant(Class<?> clazz, String name) {
+    MemberKey key = new MemberKey(clazz, name, null);
+    Object constant = sConstants.get(key);
+    if (constant == null) {
+      Field field = getField(clazz, name);
+      try {
+        constant = field == null ? MISSING : field.getInt(null);
+      } catch (Exception e) {
+        constant = MISSING;
+      }
+      sConstants.putIfAbsent(key, constant);
+    }
+    return constant == MISSING ? null : (Integer) constant;
+  }
+
+  /**
+   * Returns the class with the given name, or null.
+   */
+  static Class<?> findClass(String name) {
+    Object clazz = sClasses.get(name);
+    if (clazz == null) {
+      try {
+        clazz = Class.forName(name);
+      } catch (Exception e) {
+        clazz = MISSING;
+      } catch (LinkageError e) {
+        clazz = MISSING;
+      }
+      sClasses.putIfAbsent(name, clazz);
+    }
+    return clazz == MISSING ? null : (Class<?>) clazz;
+  }
+
+  /**
+   * Returns the (Context) constructor of the named view class, or null if there is no such view.
+   */
+  @SuppressWarnings("unchecked")
+  static Constructor<? extends View> getViewConstructor(String name) {
+    Object constructor = sViewConstructors.get(name);
+    if (constructor == null) {
+      constructor = MISSING;
+      Class<?> clazz = findClass(name);
+      if (clazz != null && View.class.isAssignableFrom(clazz)) {
+        try {
+          constructor = clazz.asSubclass(View.class).getConstructor(Context.class);
+        } catch (Exception e) {
+          // Not inflatable.
+        }
+      }
+      sViewConstructors.putIfAbsent(name, constructor);
+    }
+    return constructor == MISSING ? null : (Constructor<? extends View>) constructor;
+  }
+
+  /**
+   * Returns the (int, int) constructor of the LayoutParams nested in the class of the view group,
+   * or null if it has none.
+   */
+  @SuppressWarnings("unchecked")
+  static Constructor<? extends LayoutParams> getLayoutParamsConstructor(
+      Class<? extends ViewGroup> rootClass) {
+    Object constructor = sLayoutParamsConstructors.get(rootClass);
+    if (constructor == null) {
+      constructor = MISSING;
+      Class<?> clazz = findClass(rootClass.getName() + "$LayoutParams");
+      if (clazz != null && LayoutParams.class.isAssignableFrom(clazz)) {
+        try {
+          constructor = clazz.asSubclass(LayoutParams.class).getConstructor(int.class, int.class);
+        } catch (Exception e) {
+          // Falls back to plain LayoutParams.
+        }
+      }
+      sLayoutParamsConstructors.putIfAbsent(rootClass, constructor);
+    }
+    return constructor == MISSING ? null : (Constructor<? extends LayoutParams>) constructor;
+  }
+}
@@ -284,6 +284,111 @@ public class ViewInflater {
     return view;
   }
 
+  /**
+   * Brings views inflated from {@code oldXml} up to date with {@code newXml} by setting only the
+   * attributes whose values changed. Nothing is changed, and false is returned, if the layouts
+   * differ in anything but attribute values, if an id changes or if an attribute is removed; the
+   * new layout must then be inflated from scratch.
+   */
+  public boolean updateLayout(View view, XmlPullParser oldXml, XmlPullParser newXml)
+      throws XmlPullParserException, IOException {
+    LayoutNode oldRoot = LayoutNode.parse(oldXml);
+    LayoutNode newRoot = LayoutNode.parse(newXml);
+    List<Object[]> changes = new ArrayList<Object[]>();
+    if (oldRoot == null || newRoot == null || !diff(view, oldRoot, newRoot, changes)) {
+      return false;
+    }
+    mErrors.clear();
+    for (Object[] change : changes) {
+      setProperty((View) change[0], (String) change[1], (String) change[2]);
+    }
+    if (!changes.isEmpty()) {
+      view.requestLayout();
+      view.invalidate();
+    }
+    return true;
+  }
+
+  private static boolean diff(View view, LayoutNode oldNode, LayoutNode newNode,
+      List<Object[]> changes) {
+    if (!oldNode.mmName.equals(newNode.mmName)
+        || oldNode.mmChildren.size() != newNode.mmChildren.size()
+        || !oldNode.mmAttributes.keySet().equals(newNode.mmAttributes.keySet())) {
+      return false;
+    }
+    String viewClass = view.getClass().getName();
+    if (!viewClass.equals(newNode.mmName) && !viewClass.endsWith("." + newNode.mmName)) {
+      return false;
+    }
+    for (Entry<String, String> attribute : newNode.mmAttributes.entrySet()) {
+      String value = attribute.getValue();
+      if (!value.equals(oldNode.mmAttributes.get(attribute.getKey()))) {
+        if (attribute.getKey().equals("id")) {
+          return false;
+        }
+        changes.add(new Object[] { view, attribute.getKey(), value });
+      }
+    }
+    if (newNode.mmChildren.isEmpty()) {
+      return true;
+    }
+    // Tags that did not inflate to a view leave no child behind, so the counts would differ.
+    if (!(view instanceof ViewGroup)
+        || ((ViewGroup) view).getChildCount() != newNode.mmChildren.size()) {
+      return false;
+    }
+    ViewGroup group = (ViewGroup) view;
+    for (int i = 0; i < group.getChildCount(); i++) {
+      if (!diff(group.getChildAt(i), oldNode.mmChildren.get(i), newNode.mmChildren.get(i),
+          changes)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** A layout element reduced to its tag, android attributes and children. */
+  private static class LayoutNode {
+    private final String mmName;
+    private final Map<String, String> mmAttributes = new HashMap<String, String>();
+    private final List<LayoutNode> mmChildren = new ArrayList<LayoutNode>();
+
+    private LayoutNode(String name) {
+      mmName = name;
+    }
+
+    private static LayoutNode parse(XmlPullParser xml) throws XmlPullParserException,
+        IOException {
+      int event;
+      do {
+        event = xml.next();
+        if (event == XmlPullParser.END_DOCUMENT) {
+          return null;
+        }
+      } while (event != XmlPullParser.START_TAG);
+      return parseElement(xml);
+    }
+
+    private static LayoutNode parseElement(XmlPullParser xml) throws XmlPullParserException,
+        IOException {
+      LayoutNode node = new LayoutNode(xml.getName());
+      for (int i = 0; i < xml.getAttributeCount(); i++) {
+        if (ANDROID.equals(xml.getAttributeNamespace(i))) {
+          node.mmAttributes.put(xml.getAttributeName(i), xml.getAttributeValue(i));
+        }
+      }
+      int event;
+      while ((event = xml.next()) != XmlPullParser.END_DOCUMENT) {
+        if (event == XmlPullParser.START_TAG) {
+          node.mmChildren.add(parseElement(xml));
+        } else if (event == XmlPullParser.END_TAG) {
+          break;
+        }
+      }
+      return node;
+    }
+  }
+
   private void addln(Object msg) {
     Log.d(msg.toString());
   }
@@ -459,11 +564,9 @@ public class ViewInflater {
     LayoutParams result = null;
     if (root != null) {
       try {
-        String lookfor = root.getClass().getName() + "$LayoutParams";
-        addln(lookfor);
-        Class<? extends LayoutParams> clazz = Class.forName(lookfor).asSubclass(LayoutParams.class);
-        if (clazz != null) {
-          Constructor<? extends LayoutParams> ct = clazz.getConstructor(int.class, int.class);
+        Constructor<? extends LayoutParams> ct =
+            ViewBindings.getLayoutParamsConstructor(root.getClass());
+        if (ct != null) {
           result = ct.newInstance(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
         }
       } catch (Exception e) {
@@ -610,7 +713,10 @@ public class ViewInflater {
         Uri uri = Uri.parse(value);
         if ("file".equals(uri.getScheme())) {
           Bitmap bm = BitmapFactory.decodeFile(uri.getPath());
-          Method method = view.getClass().getMethod("setImageBitmap", Bitmap.class);
+          Method method = tryMethod(view, "setImageBitmap", Bitmap.class);
+          if (method == null) {
+            throw new NoSuchMethodException("setImageBitmap");
+          }
           method.invoke(view, bm);
         } else {
           mErrors.add("Only 'file' currently supported for images");
@@ -623,7 +729,10 @@ public class ViewInflater {
 
   private void setIntegerField(Object target, String fieldName, int value) {
     try {
-      Field f = target.getClass().getField(fieldName);
+      Field f = ViewBindings.getField(target.getClass(), fieldName);
+      if (f == null) {
+        throw new NoSuchFieldException(fieldName);
+      }
       f.setInt(target, value);
     } catch (Exception e) {
       mErrors.add("set field)" + fieldName + " failed. " + e.toString());
@@ -748,13 +857,7 @@ public class ViewInflater {
   }
 
   private Method tryMethod(Object o, String name, Class<?>... parameters) {
-    Method result;
-    try {
-      result = o.getClass().getMethod(name, parameters);
-    } catch (Exception e) {
-      result = null;
-    }
-    return result;
+    return ViewBindings.getMethod(o.getClass(), name, parameters);
   }
 
   public String camelCase(String s) {
@@ -793,10 +896,8 @@ public class ViewInflater {
           if (clazz == InputType.class) {
             return getInputType(value);
           }
-          try {
-            Field f = clazz.getField(value.toUpperCase());
-            result = f.getInt(null);
-          } catch (Exception ex) {
+          result = ViewBindings.getConstant(clazz, value.toUpperCase());
+          if (result == null) {
             mErrors.add("Unknown value: " + value);
             result = 0;
           }
@@ -827,9 +928,9 @@ public class ViewInflater {
         query += "$" + value.substring(0, i);
         value = value.substring(i + 1);
       }
-      Class<?> clazz = Class.forName(query);
-      Field f = clazz.getField(value);
-      result = f.getInt(null);
+      Class<?> clazz = ViewBindings.findClass(query);
+      Integer constant = clazz == null ? null : ViewBindings.getConstant(clazz, value);
+      result = constant == null ? 0 : constant;
     } catch (Exception e) {
       result = 0;
     }
@@ -851,9 +952,8 @@ public class ViewInflater {
   private View viewClassTry(Context context, String name) {
     View result = null;
     try {
-      Class<? extends View> viewclass = Class.forName(name).asSubclass(View.class);
-      if (viewclass != null) {
-        Constructor<? extends View> ct = viewclass.getConstructor(Context.class);
+      Constructor<? extends View> ct = ViewBindings.getViewConstructor(name);
+      if (ct != null) {
         result = ct.newInstance(context);
       }
     } catch (Exception e) {
@@ -1007,7 +1107,10 @@ public class ViewInflater {
       adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
       Method m = tryMethod(view, "setAdapter", SpinnerAdapter.class);
       if (m == null) {
-        m = view.getClass().getMethod("setAdapter", ListAdapter.class);
+        m = tryMethod(view, "setAdapter", ListAdapter.class);
+      }
+      if (m == null) {
+        throw new NoSuchMethodException("setAdapter");
       }
       m.invoke(view, adapter);
     } catch (Exception e) {
@@ -0,0 +1,579 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.wifi;
+
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.FileUtils;
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.facade.EventFacade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a URL to a file, or discards it, with constant memory.
+ *
+ * <p>Each transfer copies through one reused buffer of {@link #BUFFER_SIZE} bytes. A single stream
+ * download can resume a partial file with a {@code Range} request, and computes its SHA-256 while
+ * copying. If the server accepts ranges the body can also be fetched as several segments in
+ * parallel, written in place with positional {@link FileChannel} writes; the digest of a segmented
+ * download is then computed in one pass over the finished file. Range support is taken from the
+ * {@code Accept-Ranges} header of a HEAD request, or else probed with a one byte range request;
+ * a server that answers a range request with the whole body is downloaded as a single stream.
+ *
+ * <p>Events, prefixed with {@code HttpDownload<id>}: {@code onProgress}, at most once per progress
+ * interval, and either {@code onComplete} or {@code onError}.
+ */
+class HttpDownload implements Runnable {
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final String EVENT_PREFIX = "HttpDownload";
+
+    private final int mId;
+    private final EventFacade mEventFacade;
+    private final String mUrl;
+    private final String mOutPath;
+    private final boolean mDiscard;
+    private final int mSegments;
+    private final boolean mResume;
+    private final boolean mComputeDigest;
+    private final long mProgressIntervalNanos;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final List<HttpURLConnection> mConnections = new ArrayList<HttpURLConnection>();
+    private ExecutorService mSegmentExecutor;
+    private volatile boolean mCancelled = false;
+    private long mStartNanos;
+    private long mEndNanos;
+    private long mLastProgressNanos;
+    private long mTotal = -1;
+    private long mResumedFrom = 0;
+    private int mSegmentsUsed = 1;
+    private File mFile;
+    private String mSha256;
+    private String mError;
+    private boolean mDone = false;
+
+    /**
+     * @param outPath where to save the body, resolved like {@link #resolveOutputFile}; ignored
+     *            when {@code discard} is set
+     * @param segments number of parallel range requests, used if the server accepts ranges
+     */
+    HttpDownload(int id, EventFacade eventFacade, String url, String outPath, boolean discard,
+            int segments, boolean resume, boolean computeDigest, int progressIntervalMs) {
+        mId = id;
+        mEventFacade = eventFacade;
+        mUrl = url;
+        mOutPath = outPath;
+        mDiscard = discard;
+        mSegments = Math.max(segments, 1);
+        mResume = resume;
+        mComputeDigest = computeDigest;
+        mProgressIntervalNanos = progressIntervalMs * 1000000L;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            mStartNanos = System.nanoTime();
+            mLastProgressNanos = mStartNanos;
+        }
+        try {
+            download();
+            synchronized (this) {
+                mEndNanos = System.nanoTime();
+                mDone = true;
+            }
+            mEventFacade.postEvent(EVENT_PREFIX + mId + "onComplete", getStatus());
+        } catch (Exception e) {
+            synchronized (this) {
+                mEndNanos = System.nanoTime();
+                mDone = true;
+                mError = mCancelled ? "Cancelled." : e.toString();
+            }
+            Log.e("Download of " + mUrl + " failed: " + e);
+            mEventFacade.postEvent(EVENT_PREFIX + mId + "onError", getStatus());
+        }
+    }
+
+    private void download() throws Exception {
+        // Probe the size, range support and file name; servers that reject HEAD are simply
+        // downloaded as one stream.
+        long total = -1;
+        boolean acceptsRanges = false;
+        String contentDisposition = null;
+        if (mSegments > 1 || mResume || !mDiscard) {
+            HttpURLConnection head = open(-1, -1);
+            try {
+                head.setRequestMethod("HEAD");
+                if (head.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    total = parseLength(head);
+                    acceptsRanges = "bytes".equalsIgnoreCase(head.getHeaderField("Accept-Ranges"));
+                    contentDisposition = head.getHeaderField("Content-Disposition");
+                }
+            } catch (IOException e) {
+                Log.d("HEAD " + mUrl + " failed, downloading as a single stream: " + e);
+            } finally {
+                release(head);
+            }
+        }
+        if (!acceptsRanges && (mSegments > 1 || mResume)) {
+            // Many servers honor ranges without advertising them, or do not answer HEAD at all.
+            HttpURLConnection probe = open(0, 0);
+            try {
+                int code = probe.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    acceptsRanges = true;
+                    if (total < 0) {
+                        total = parseContentRangeTotal(probe.getHeaderField("Content-Range"));
+                    }
+                    if (contentDisposition == null) {
+                        contentDisposition = probe.getHeaderField("Content-Disposition");
+                    }
+                } else {
+                    Log.d("Range probe of " + mUrl + " returned HTTP " + code
+                            + ", downloading as a single stream.");
+                }
+            } catch (IOException e) {
+                Log.d("Range probe of " + mUrl + " failed, downloading as a single stream: " + e);
+            } finally {
+                release(probe);
+            }
+        }
+        File file = mDiscard ? null : resolveOutputFile(mUrl, mOutPath, contentDisposition);
+        synchronized (this) {
+            mTotal = total;
+            mFile = file;
+        }
+        if (mSegments > 1 && acceptsRanges && total >= (long) mSegments * BUFFER_SIZE) {
+            try {
+                downloadSegments(file, total);
+                return;
+            } catch (RangeIgnoredException e) {
+                Log.d(e.getMessage() + ", downloading " + mUrl + " as a single stream.");
+                mBytes.set(0);
+                synchronized (this) {
+                    mSegmentsUsed = 1;
+                }
+                acceptsRanges = false;
+            }
+        }
+        downloadStream(file, acceptsRanges);
+    }
+
+    private void downloadStream(File file, boolean acceptsRanges) throws Exception {
+        MessageDigest digest = mComputeDigest ? newDigest() : null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        RandomAccessFile out = null;
+        try {
+            long offset = 0;
+            if (file != null) {
+                out = new RandomAccessFile(file, "rw");
+                if (mResume && acceptsRanges && out.length() > 0) {
+                    offset = out.length();
+                    if (digest != null) {
+                        // Hash the part already on disk so the digest covers the whole file.
+                        out.seek(0);
+                        int read;
+                        while ((read = out.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                    }
+                }
+            }
+            if (mTotal >= 0 && offset == mTotal) {
+                Log.d(file + " is already complete.");
+                synchronized (this) {
+                    mResumedFrom = offset;
+                }
+            } else {
+                HttpURLConnection connection = open(offset, -1);
+                try {
+                    int code = connection.getResponseCode();
+                    if (offset > 0 && code == HttpURLConnection.HTTP_OK) {
+                        // The server ignored the range; start over.
+                        Log.d("Server ignored the range request, restarting " + mUrl);
+                        offset = 0;
+                        if (digest != null) {
+                            digest.reset();
+                        }
+                    } else if (code != HttpURLConnection.HTTP_OK
+                            && code != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("HTTP " + code + " " + connection.getResponseMessage());
+                    }
+                    synchronized (this) {
+                        mResumedFrom = offset;
+                        long length = parseLength(connection);
+                        if (mTotal < 0 && length >= 0) {
+                            mTotal = offset + length;
+                        }
+                    }
+                    if (out != null) {
+                        out.setLength(offset);
+                        out.seek(offset);
+                    }
+                    InputStream in = connection.getInputStream();
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        checkCancelled();
+                        if (out != null) {
+                            out.write(buffer, 0, read);
+                        }
+                        if (digest != null) {
+                            digest.update(buffer, 0, read);
+                        }
+                        transferred(read);
+                    }
+                    in.close();
+                } finally {
+                    release(connection);
+                }
+            }
+            if (out != null) {
+                out.getFD().sync();
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        if (digest != null) {
+            setDigest(digest);
+        }
+    }
+
+    private void downloadSegments(final File file, long total) throws Exception {
+        final RandomAccessFile out = file == null ? null : new RandomAccessFile(file, "rw");
+        synchronized (this) {
+            mSegmentsUsed = mSegments;
+            mSegmentExecutor = Executors.newFixedThreadPool(mSegments);
+        }
+        try {
+            if (out != null) {
+                out.setLength(total);
+            }
+            final FileChannel channel = out == null ? null : out.getChannel();
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (long[] range : splitRanges(total, mSegments)) {
+                final long first = range[0];
+                final long last = range[1];
+                results.add(mSegmentExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        downloadSegment(channel, first, last);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    abortTransfers();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw new Exception(cause);
+                }
+            }
+            if (channel != null) {
+                channel.force(false);
+            }
+        } finally {
+            mSegmentExecutor.shutdownNow();
+            // Segments still running must stop writing before the file is closed or reused.
+            mSegmentExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            if (out != null) {
+                out.close();
+            }
+        }
+        if (mComputeDigest && file != null) {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    checkCancelled();
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            setDigest(digest);
+        }
+    }
+
+    private void downloadSegment(FileChannel channel, long first, long last) throws Exception {
+        HttpURLConnection connection = open(first, last);
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                throw new RangeIgnoredException("Range " + first + "-" + last + " ignored");
+            } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Range " + first + "-" + last + " not honored: HTTP " + code);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            InputStream in = connection.getInputStream();
+            long position = first;
+            int read;
+            while (position <= last && (read = in.read(buffer)) != -1) {
+                checkCancelled();
+                if (channel != null) {
+                    wrapped.clear().limit(read);
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                } else {
+                    position += read;
+                }
+                transferred(read);
+            }
+            if (position != last + 1) {
+                throw new IOException("Range " + first + "-" + last + " ended at " + position);
+            }
+            in.close();
+        } finally {
+            release(connection);
+        }
+    }
+
+    /** Opens a connection, asking for bytes {@code first} to {@code last} if first is set. */
+    private HttpURLConnection open(long first, long last) throws IOException {
+        checkCancelled();
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        // Compressed bodies would make lengths and ranges refer to the encoded representation.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        if (first >= 0) {
+            connection.setRequestProperty("Range",
+                    "bytes=" + first + "-" + (last >= 0 ? String.valueOf(last) : ""));
+        }
+        synchronized (mConnections) {
+            mConnections.add(connection);
+        }
+        return connection;
+    }
+
+    private void release(HttpURLConnection connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Splits {@code total} bytes into at most {@code segments} ranges of equal size, the last
+     * one shorter if needed, each given as its first and last byte offset.
+     */
+    static List<long[]> splitRanges(long total, int segments) {
+        List<long[]> ranges = new ArrayList<long[]>(segments);
+        long segmentSize = (total + segments - 1) / segments;
+        for (long start = 0; start < total; start += segmentSize) {
+            ranges.add(new long[] {start, Math.min(start + segmentSize, total) - 1});
+        }
+        return ranges;
+    }
+
+    /** Returns the complete length from a Content-Range header, or -1 if it is unknown. */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // An unknown length is sent as "*".
+            return -1;
+        }
+    }
+
+    /** Returns the Content-Length, which may exceed an int, or -1 if it is unknown. */
+    private static long parseLength(HttpURLConnection connection) {
+        String length = connection.getHeaderField("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void setDigest(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        mSha256 = hex.toString();
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled) {
+            throw new IOException("Download cancelled.");
+        }
+    }
+
+    private void transferred(int count) {
+        mBytes.addAndGet(count);
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (now - mLastProgressNanos < mProgressIntervalNanos) {
+                return;
+            }
+            mLastProgressNanos = now;
+        }
+        mEventFacade.postEvent(EVENT_PREFIX + mId + "onProgress", getStatus());
+    }
+
+    /** Aborts the transfer; the download then ends with an onError event. */
+    void cancel() {
+        mCancelled = true;
+        abortTransfers();
+    }
+
+    /** Stops the segment threads and closes every open connection. */
+    private void abortTransfers() {
+        synchronized (this) {
+            if (mSegmentExecutor != null) {
+                mSegmentExecutor.shutdownNow();
+            }
+        }
+        List<HttpURLConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<HttpURLConnection>(mConnections);
+        }
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    /** Thrown when a server answers a segment's range request with the whole body. */
+    private static class RangeIgnoredException extends IOException {
+        RangeIgnoredException(String message) {
+            super(message);
+        }
+    }
+
+    synchronized boolean isDone() {
+        return mDone;
+    }
+
+    synchronized Bundle getStatus() {
+        long bytes = mBytes.get();
+        long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+        double seconds = (end - mStartNanos) / 1e9;
+        Bundle status = new Bundle();
+        status.putInt("Id", mId);
+        status.putString("Url", mUrl);
+        status.putString("Path", mFile == null ? null : mFile.getAbsolutePath());
+        status.putLong("Bytes", bytes);
+        status.putLong("Total", mTotal);
+        status.putLong("ResumedFrom", mResumedFrom);
+        status.putInt("Segments", mSegmentsUsed);
+        status.putDouble("Seconds", seconds);
+        status.putDouble("BytesPerSecond", seconds > 0 ? bytes / seconds : 0);
+        status.putBoolean("Done", mDone);
+        if (mSha256 != null) {
+            status.putString("Sha256", mSha256);
+        }
+        if (mError != null) {
+            status.putString("Error", mError);
+        }
+        return status;
+    }
+
+    /**
+     * Returns the file to save a download to. Relative paths are resolved against the download
+     * directory; if the result is a directory the file name comes from the Content-Disposition
+     * header or else from the last segment of the url.
+     */
+    static File resolveOutputFile(String url, String outPath, String contentDisposition)
+            throws IOException {
+        File outFile = FileUtils.getExternalDownload();
+        if (outPath != null && outPath.trim().length() != 0) {
+            // Check to see if the path is absolute.
+            if (outPath.startsWith("/")) {
+                outFile = new File(outPath);
+            } else {
+                outFile = new File(outFile, outPath);
+            }
+            // Check to see if specified path should be a dir.
+            if (outPath.endsWith("/")) {
+                if (!outFile.isDirectory() && !outFile.mkdirs()) {
+                    throw new IOException("Failed to create the path: " + outPath);
+                }
+            }
+        }
+        // If no filename was specified, use the filename provided by the server.
+        if (outFile.isDirectory()) {
+            String filename = "";
+            // Try to figure out the name of the file being downloaded.
+            // If the server returned a filename, use it.
+            if (contentDisposition != null) {
+                int idx = contentDisposition.toLowerCase().indexOf("filename");
+                if (idx != -1) {
+                    filename = contentDisposition.substring(idx + 9);
+                    Log.d("Using filename returned by server: " + filename);
+                }
+            }
+            // If the server did not provide a filename to us, use the last part of url.
+            if (filename.trim().length() == 0) {
+                int lastIdx = url.lastIndexOf('/');
+                filename = url.substring(lastIdx + 1);
+                Log.d("Using name from url: " + filename);
+            }
+            outFile = new File(outFile, filename);
+        }
+        return outFile;
+    }
+}
@@ -16,11 +16,15 @@
 
 package com.googlecode.android_scripting.facade.wifi;
 
-import com.googlecode.android_scripting.FileUtils;
+import android.os.Bundle;
+
 import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
+import com.googlecode.android_scripting.jsonrpc.HandleRegistry;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
 import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
@@ -40,6 +44,8 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -51,10 +57,20 @@ public class HttpFacade extends RpcReceiver {
     private int mServerTimeout = -1;
     private HashMap<Integer, Socket> mSockets = null;
     private int socketCnt = 0;
+    private final EventFacade mEventFacade;
+    private final HashMap<Integer, HttpTestServer> mTestServers;
+    private final HandleRegistry<HttpLoadClient> mLoadTests;
+    private final HandleRegistry<HttpDownload> mDownloads;
+    private final ExecutorService mDownloadExecutor;
 
     public HttpFacade(FacadeManager manager) throws IOException {
         super(manager);
         mSockets = new HashMap<Integer, Socket>();
+        mEventFacade = manager.getReceiver(EventFacade.class);
+        mTestServers = new HashMap<Integer, HttpTestServer>();
+        mLoadTests = createHandleRegistry("HTTP load test");
+        mDownloads = createHandleRegistry("HTTP download");
+        mDownloadExecutor = Executors.newCachedThreadPool();
     }
 
     private void inputStreamToOutputStream(InputStream in, OutputStream out) throws IOException {
@@ -68,7 +84,7 @@ public class HttpFacade extends RpcReceiver {
         }
         try {
             int read = 0;
-            byte[] bytes = new byte[1024];
+            byte[] bytes = new byte[HttpDownload.BUFFER_SIZE];
             while ((read = in.read(bytes)) != -1) {
                 out.write(bytes, 0, read);
             }
@@ -134,42 +150,8 @@ public class HttpFacade extends RpcReceiver {
         HttpURLConnection urlConnection = httpRequest(url);
         // Parse destination path and create the output stream. The function assumes that the path
         // is specified relative to the system default Download dir.
-        File outFile = FileUtils.getExternalDownload();
-        if (outPath != null && outPath.trim().length() != 0) {
-            // Check to see if the path is absolute.
-            if (outPath.startsWith("/")) {
-                outFile = new File(outPath);
-            } else {
-                outFile = new File(outFile, outPath);
-            }
-            // Check to see if specified path should be a dir.
-            if (outPath.endsWith("/")) {
-                if (!outFile.isDirectory() && !outFile.mkdirs()) {
-                    throw new IOException("Failed to create the path: " + outPath);
-                }
-            }
-        }
-        // If no filename was specified, use the filename provided by the server.
-        if (outFile.isDirectory()) {
-            String filename = "";
-            String contentDisposition = urlConnection.getHeaderField("Content-Disposition");
-            // Try to figure out the name of the file being downloaded.
-            // If the server returned a filename, use it.
-            if (contentDisposition != null) {
-                int idx = contentDisposition.toLowerCase().indexOf("filename");
-                if (idx != -1) {
-                    filename = contentDisposition.substring(idx + 9);
-                    Log.d("Using filename returned by server: " + filename);
-                }
-            }
-            // If the server did not provide a filename to us, use the last part of url.
-            if (filename.trim().length() == 0) {
-               int lastIdx = url.lastIndexOf('/');
-                filename = url.substring(lastIdx + 1);
-                Log.d("Using name from url: " + filename);
-            }
-            outFile = new File(outFile, filename);
-        }
+        File outFile = HttpDownload.resolveOutputFile(url, outPath,
+                urlConnection.getHeaderField("Content-Disposition"));
         InputStream in = new BufferedInputStream(urlConnection.getInputStream());
         OutputStream output = new FileOutputStream(outFile);
         inputStreamToOutputStream(in, output);
@@ -177,6 +159,60 @@ public class HttpFacade extends RpcReceiver {
         urlConnection.disconnect();
     }
 
+    @Rpc(description = "Start downloading a url in the background. Progress is reported by"
+            + " HttpDownload<id>onProgress events, the result by onComplete or onError.",
+            returns = "The id of the download.")
+    public Integer httpDownloadStart(
+            @RpcParameter(name = "url") String url,
+            @RpcParameter(name = "outPath",
+                    description = "Resolved like the outPath of httpDownloadFile.")
+            @RpcOptional String outPath,
+            @RpcParameter(name = "segments",
+                    description = "Parallel range requests, if the server accepts ranges.")
+            @RpcDefault("1") Integer segments,
+            @RpcParameter(name = "resume",
+                    description = "Continue a partial file with a range request.")
+            @RpcDefault("false") Boolean resume,
+            @RpcParameter(name = "sha256", description = "Compute the SHA-256 of the body.")
+            @RpcDefault("true") Boolean sha256,
+            @RpcParameter(name = "discard",
+                    description = "Do not save the body, only measure the transfer.")
+            @RpcDefault("false") Boolean discard,
+            @RpcParameter(name = "progressInterval",
+                    description = "Minimum milliseconds between progress events.")
+            @RpcDefault("1000") Integer progressInterval) {
+        int id = mDownloads.reserve();
+        HttpDownload download = new HttpDownload(id, mEventFacade, url, outPath, discard,
+                segments, resume, sha256, progressInterval);
+        mDownloads.put(id, download);
+        mDownloadExecutor.execute(download);
+        return id;
+    }
+
+    @Rpc(description = "Get the progress of a download, and its SHA-256 once it is done.")
+    public Bundle httpDownloadGetStatus(@RpcParameter(name = "id") Integer id) throws Exception {
+        return getDownload(id).getStatus();
+    }
+
+    @Rpc(description = "Cancel a download if it is still running and release it.",
+            returns = "The last status of the download.")
+    public Bundle httpDownloadCancel(@RpcParameter(name = "id") Integer id) throws Exception {
+        HttpDownload download = getDownload(id);
+        mDownloads.remove(id);
+        if (!download.isDone()) {
+            download.cancel();
+        }
+        return download.getStatus();
+    }
+
+    private HttpDownload getDownload(Integer id) throws Exception {
+        HttpDownload download = mDownloads.get(id);
+        if (download == null) {
+            throw new Exception("Invalid download id: " + id);
+        }
+        return download;
+    }
+
     @Rpc(description = "Make an http request and return the response message.")
     public HttpURLConnection httpPing(@RpcParameter(name = "url") String url) throws IOException {
         try {
@@ -244,8 +280,125 @@ public class HttpFacade extends RpcReceiver {
         */
     }
 
+    @Rpc(description = "Start an HTTP/1.1 test server that answers GET /<path>?size=<bytes>"
+            + "&chunk=<bytes> with a generated body of that size, chunked if chunk is set.",
+            returns = "The port the server listens on.")
+    public Integer httpTestServerStart(
+            @RpcParameter(name = "port", description = "0 picks a free port")
+            @RpcDefault("0") Integer port,
+            @RpcParameter(name = "loopbackOnly",
+                    description = "Only accept connections from this device.")
+            @RpcDefault("false") Boolean loopbackOnly,
+            @RpcParameter(name = "responseSize",
+                    description = "Body size of requests without a size parameter.")
+            @RpcDefault("65536") Integer responseSize,
+            @RpcParameter(name = "idleTimeout",
+                    description = "Milliseconds a kept-alive connection may stay idle.")
+            @RpcDefault("30000") Integer idleTimeout) throws IOException {
+        HttpTestServer server =
+                new HttpTestServer(port, loopbackOnly, responseSize, idleTimeout);
+        synchronized (mTestServers) {
+            mTestServers.put(server.getPort(), server);
+        }
+        Log.d("HTTP test server listening on port " + server.getPort());
+        return server.getPort();
+    }
+
+    @Rpc(description = "Get the per-connection and total stats of an HTTP test server.")
+    public Bundle httpTestServerGetStats(@RpcParameter(name = "port") Integer port)
+            throws Exception {
+        return getTestServer(port).getStats();
+    }
+
+    @Rpc(description = "Stop an HTTP test server and close its connections.",
+            returns = "The final stats of the server.")
+    public Bundle httpTestServerStop(@RpcParameter(name = "port") Integer port)
+            throws Exception {
+        HttpTestServer server = getTestServer(port);
+        synchronized (mTestServers) {
+            mTestServers.remove(port);
+        }
+        server.close();
+        return server.getStats();
+    }
+
+    private HttpTestServer getTestServer(Integer port) throws Exception {
+        synchronized (mTestServers) {
+            HttpTestServer server = mTestServers.get(port);
+            if (server == null) {
+                throw new Exception("No HTTP test server on port " + port);
+            }
+            return server;
+        }
+    }
+
+    @Rpc(description = "Start an HTTP load test. Each connection sends its requests over one"
+            + " keep-alive connection; an HttpLoadTest<id>onComplete event carries the stats.",
+            returns = "The id of the load test.")
+    public Integer httpLoadTestStart(
+            @RpcParameter(name = "host", description = "127.0.0.1 or the address of a peer.")
+            String host,
+            @RpcParameter(name = "port") Integer port,
+            @RpcParameter(name = "connections") @RpcDefault("1") Integer connections,
+            @RpcParameter(name = "requests", description = "Requests per connection.")
+            @RpcDefault("100") Integer requests,
+            @RpcParameter(name = "responseSize") @RpcDefault("65536") Integer responseSize,
+            @RpcParameter(name = "chunkSize",
+                    description = "Ask for chunked responses with chunks of this size.")
+            @RpcDefault("0") Integer chunkSize,
+            @RpcParameter(name = "timeout", description = "Socket timeout in milliseconds.")
+            @RpcDefault("10000") Integer timeout) throws Exception {
+        if (connections <= 0 || requests <= 0) {
+            throw new Exception("connections and requests must be positive.");
+        }
+        String path = "/data?size=" + responseSize;
+        if (chunkSize > 0) {
+            path += "&chunk=" + chunkSize;
+        }
+        int id = mLoadTests.reserve();
+        mLoadTests.put(id, new HttpLoadClient(id, mEventFacade, host, port, path, connections,
+                requests, timeout));
+        return id;
+    }
+
+    @Rpc(description = "Get the stats of an HTTP load test: bytes per second, TTFB and latency"
+            + " percentiles per connection and in total.")
+    public Bundle httpLoadTestGetStats(@RpcParameter(name = "id") Integer id) throws Exception {
+        return getLoadTest(id).getStats();
+    }
+
+    @Rpc(description = "Stop an HTTP load test if it is still running and release it.",
+            returns = "The final stats of the load test.")
+    public Bundle httpLoadTestStop(@RpcParameter(name = "id") Integer id) throws Exception {
+        HttpLoadClient client = getLoadTest(id);
+        mLoadTests.remove(id);
+        client.stop();
+        return client.getStats();
+    }
+
+    private HttpLoadClient getLoadTest(Integer id) throws Exception {
+        HttpLoadClient client = mLoadTests.get(id);
+        if (client == null) {
+            throw new Exception("Invalid load test id: " + id);
+        }
+        return client;
+    }
+
     @Override
     public void shutdown() {
+        for (HttpDownload download : mDownloads.values()) {
+            download.cancel();
+        }
+        mDownloadExecutor.shutdownNow();
+        for (HttpLoadClient client : mLoadTests.values()) {
+            client.stop();
+        }
+        synchronized (mTestServers) {
+            for (HttpTestServer server : mTestServers.values()) {
+                server.close();
+            }
+            mTestServers.clear();
+        }
         for (int key : mSockets.keySet()) {
             Socket sock = mSockets.get(key);
             try {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.wifi;
+
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.facade.EventFacade;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for {@link HttpTestServer}, or any HTTP/1.1 server.
+ *
+ * <p>Opens a number of keep-alive connections and sends a fixed number of GET requests on each,
+ * one at a time. TTFB is measured from sending the request to receiving the status line, latency
+ * to receiving the last body byte. Response bodies are read into a reused buffer and discarded.
+ * When every connection is done an {@code HttpLoadTest<id>onComplete} event carrying the stats is
+ * posted.
+ */
+class HttpLoadClient {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int mId;
+    private final EventFacade mEventFacade;
+    private final String mHost;
+    private final int mPort;
+    private final String mPath;
+    private final int mRequestsPerConnection;
+    private final int mTimeoutMs;
+    private final Worker[] mWorkers;
+    private final AtomicInteger mRunning;
+    private final ExecutorService mExecutor;
+    private volatile boolean mStopped = false;
+
+    HttpLoadClient(int id, EventFacade eventFacade, String host, int port, String path,
+            int connections, int requestsPerConnection, int timeoutMs) {
+        mId = id;
+        mEventFacade = eventFacade;
+        mHost = host;
+        mPort = port;
+        mPath = path;
+        mRequestsPerConnection = requestsPerConnection;
+        mTimeoutMs = timeoutMs;
+        mWorkers = new Worker[connections];
+        mRunning = new AtomicInteger(connections);
+        mExecutor = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            mExecutor.execute(worker);
+        }
+        mExecutor.shutdown();
+    }
+
+    boolean isRunning() {
+        return mRunning.get() > 0;
+    }
+
+    /** Returns per-connection stats and their totals. */
+    Bundle getStats() {
+        HttpTestStats total = new HttpTestStats();
+        ArrayList<Bundle> connections = new ArrayList<Bundle>();
+        for (Worker worker : mWorkers) {
+            Bundle stats = worker.mmStats.toBundle();
+            stats.putInt("Connection", worker.mmIndex);
+            stats.putInt("Connects", worker.mmConnects);
+            connections.add(stats);
+            total.merge(worker.mmStats);
+        }
+        Bundle result = new Bundle();
+        result.putInt("Id", mId);
+        result.putBoolean("Running", isRunning());
+        result.putParcelableArrayList("Connections", connections);
+        result.putBundle("Total", total.toBundle());
+        return result;
+    }
+
+    /** Aborts outstanding requests. */
+    void stop() {
+        mStopped = true;
+        for (Worker worker : mWorkers) {
+            worker.closeSocket();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private class Worker implements Runnable {
+        private final int mmIndex;
+        private final HttpTestStats mmStats = new HttpTestStats();
+        private final byte[] mmLine = new byte[HttpTestServer.MAX_LINE_LENGTH];
+        private final byte[] mmBuffer = new byte[BUFFER_SIZE];
+        private volatile Socket mmSocket;
+        private volatile int mmConnects = 0;
+
+        Worker(int index) {
+            mmIndex = index;
+        }
+
+        @Override
+        public void run() {
+            byte[] request = ("GET " + mPath + " HTTP/1.1\r\nHost: " + mHost + ":" + mPort
+                    + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            mmStats.start();
+            try {
+                InputStream in = null;
+                OutputStream out = null;
+                for (int i = 0; i < mRequestsPerConnection && !mStopped; i++) {
+                    if (mmSocket == null) {
+                        Socket socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(mTimeoutMs);
+                        mmSocket = socket;
+                        socket.connect(new InetSocketAddress(mHost, mPort), mTimeoutMs);
+                        mmConnects++;
+                        in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                        out = socket.getOutputStream();
+                    }
+                    if (!sendRequest(request, in, out)) {
+                        closeSocket();
+                    }
+                }
+            } catch (IOException e) {
+                if (!mStopped) {
+                    mmStats.recordError();
+                    Log.e("HTTP load connection " + mmIndex + " failed: " + e);
+                }
+            } finally {
+                closeSocket();
+                mmStats.finish();
+                if (mRunning.decrementAndGet() == 0) {
+                    mEventFacade.postEvent("HttpLoadTest" + mId + "onComplete", getStats());
+                }
+            }
+        }
+
+        /** Sends one request, reads the response and returns whether the connection is reusable. */
+        private boolean sendRequest(byte[] request, InputStream in, OutputStream out)
+                throws IOException {
+            long start = System.nanoTime();
+            out.write(request);
+            out.flush();
+            int length = HttpTestServer.readLine(in, mmLine);
+            if (length < 0) {
+                throw new IOException("Connection closed by server.");
+            }
+            long firstByte = System.nanoTime();
+            String status = new String(mmLine, 0, length, StandardCharsets.US_ASCII);
+            boolean ok = status.startsWith("HTTP/1.") && status.regionMatches(8, " 200", 0, 4);
+            boolean keepAlive = status.startsWith("HTTP/1.1");
+            boolean chunked = false;
+            long contentLength = -1;
+            while ((length = HttpTestServer.readLine(in, mmLine)) > 0) {
+                if (HttpTestServer.isHeader(mmLine, length, "content-length")) {
+                    contentLength = Long.parseLong(HttpTestServer.headerValue(mmLine, length));
+                } else if (HttpTestServer.isHeader(mmLine, length, "transfer-encoding")) {
+                    chunked = HttpTestServer.headerValue(mmLine, length)
+                            .equalsIgnoreCase("chunked");
+                } else if (HttpTestServer.isHeader(mmLine, length, "connection")) {
+                    keepAlive = !HttpTestServer.headerValue(mmLine, length)
+                            .equalsIgnoreCase("close");
+                }
+            }
+            if (length < 0) {
+                throw new IOException("Connection closed in response headers.");
+            }
+            long bytes = 0;
+            if (chunked) {
+                long chunk;
+                while ((chunk = readChunkSize(in)) > 0) {
+                    discard(in, chunk);
+                    bytes += chunk;
+                    HttpTestServer.readLine(in, mmLine);
+                }
+                while ((length = HttpTestServer.readLine(in, mmLine)) > 0) {
+                }
+            } else if (contentLength >= 0) {
+                discard(in, contentLength);
+                bytes = contentLength;
+            } else {
+                int read;
+                while ((read = in.read(mmBuffer)) != -1) {
+                    bytes += read;
+                }
+                keepAlive = false;
+            }
+            mmStats.recordRequest(firstByte - start, System.nanoTime() - start, bytes);
+            if (!ok) {
+                mmStats.recordError();
+            }
+            return keepAlive;
+        }
+
+        private long readChunkSize(InputStream in) throws IOException {
+            int length = HttpTestServer.readLine(in, mmLine);
+            if (length < 0) {
+                throw new IOException("Connection closed in chunked body.");
+            }
+            long size = 0;
+            for (int i = 0; i < length && mmLine[i] != ';'; i++) {
+                int digit = Character.digit(mmLine[i], 16);
+                if (digit < 0) {
+                    if (mmLine[i] == ' ') {
+                        continue;
+                    }
+                    throw new IOException("Malformed chunk size.");
+                }
+                size = (size << 4) | digit;
+            }
+            return size;
+        }
+
+        private void discard(InputStream in, long count) throws IOException {
+            while (count > 0) {
+                int read = in.read(mmBuffer, 0, (int) Math.min(count, mmBuffer.length));
+                if (read == -1) {
+                    throw new IOException("Connection closed in response body.");
+                }
+                count -= read;
+            }
+        }
+
+        void closeSocket() {
+            Socket socket = mmSocket;
+            mmSocket = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e("Failed to close HTTP load connection " + mmIndex, e);
+                }
+            }
+        }
+    }
+}
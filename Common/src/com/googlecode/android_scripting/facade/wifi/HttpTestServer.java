@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.wifi;
+
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP/1.1 server for throughput and latency tests.
+ *
+ * <p>Every request is answered with a generated body whose size and transfer encoding come from
+ * the query string, e.g. {@code GET /data?size=1048576&chunk=16384}. Without {@code size} the
+ * server's default response size is used; {@code chunk} selects chunked transfer with chunks of
+ * that many bytes. A {@code Range: bytes=first-last} header selects part of the body. Request
+ * bodies are read and discarded. Connections are kept alive unless the client asks otherwise,
+ * and each one is served by its own thread.
+ *
+ * <p>Bodies are written straight from the shared {@link #PATTERN} block, so serving a response
+ * does not allocate. Byte {@code i} of every body is {@code i % 251}.
+ */
+class HttpTestServer {
+
+    /** A whole number of 251 byte periods, so the pattern continues across block boundaries. */
+    static final byte[] PATTERN = new byte[251 * 256];
+
+    static {
+        for (int i = 0; i < PATTERN.length; i++) {
+            PATTERN[i] = (byte) (i % 251);
+        }
+    }
+
+    static final int MAX_LINE_LENGTH = 8192;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket mServerSocket;
+    private final long mDefaultSize;
+    private final int mIdleTimeoutMs;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Connection> mConnections = new CopyOnWriteArrayList<Connection>();
+    private final HttpTestStats mClosedStats = new HttpTestStats();
+    private int mConnectionCount = 0;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param port the port to listen on, or 0 for any free port
+     * @param loopbackOnly accept connections from this device only
+     * @param defaultSize body size of requests without a size parameter
+     * @param idleTimeoutMs how long a kept-alive connection may wait for its next request
+     */
+    HttpTestServer(int port, boolean loopbackOnly, long defaultSize, int idleTimeoutMs)
+            throws IOException {
+        mServerSocket = loopbackOnly
+                ? new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"))
+                : new ServerSocket(port);
+        mDefaultSize = defaultSize;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (!mClosed) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mClosed) {
+                    Log.e("HTTP test server failed to accept a connection.", e);
+                }
+                return;
+            }
+            Connection connection;
+            synchronized (this) {
+                connection = new Connection(++mConnectionCount, socket);
+            }
+            mConnections.add(connection);
+            try {
+                mExecutor.execute(connection);
+            } catch (RuntimeException e) {
+                connection.close();
+                mConnections.remove(connection);
+            }
+        }
+    }
+
+    /**
+     * Returns the port, per-connection stats of the open connections and the totals of all
+     * connections served so far.
+     */
+    Bundle getStats() {
+        HttpTestStats total = new HttpTestStats();
+        total.merge(mClosedStats);
+        ArrayList<Bundle> connections = new ArrayList<Bundle>();
+        for (Connection connection : mConnections) {
+            Bundle stats = connection.mmStats.toBundle();
+            stats.putInt("Connection", connection.mmId);
+            stats.putString("Remote", connection.mmSocket.getRemoteSocketAddress().toString());
+            connections.add(stats);
+            total.merge(connection.mmStats);
+        }
+        Bundle result = new Bundle();
+        result.putInt("Port", getPort());
+        synchronized (this) {
+            result.putInt("ConnectionsAccepted", mConnectionCount);
+        }
+        result.putParcelableArrayList("Connections", connections);
+        result.putBundle("Total", total.toBundle());
+        return result;
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e("Failed to close HTTP test server socket.", e);
+        }
+        for (Connection connection : mConnections) {
+            connection.close();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads a CRLF or LF terminated line into {@code line} and returns its length without the
+     * terminator, or -1 at end of stream.
+     */
+    static int readLine(InputStream in, byte[] line) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (length > 0 && line[length - 1] == '\r') {
+                    length--;
+                }
+                return length;
+            }
+            if (length == line.length) {
+                throw new IOException("Line longer than " + line.length + " bytes.");
+            }
+            line[length++] = (byte) b;
+        }
+        return length == 0 ? -1 : length;
+    }
+
+    /** Returns whether the line starts with the given lower case header name and a colon. */
+    static boolean isHeader(byte[] line, int length, String name) {
+        if (length <= name.length() || line[name.length()] != ':') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) line[i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the trimmed value of a header line. */
+    static String headerValue(byte[] line, int length) {
+        int colon = 0;
+        while (line[colon] != ':') {
+            colon++;
+        }
+        return new String(line, colon + 1, length - colon - 1, StandardCharsets.US_ASCII).trim();
+    }
+
+    /** Writes {@code length} bytes of the pattern, starting at body offset {@code offset}. */
+    static void writePattern(OutputStream out, long offset, long length) throws IOException {
+        while (length > 0) {
+            int start = (int) (offset % PATTERN.length);
+            int count = (int) Math.min(length, PATTERN.length - start);
+            out.write(PATTERN, start, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final int mmId;
+        private final Socket mmSocket;
+        private final HttpTestStats mmStats = new HttpTestStats();
+        private final byte[] mmLine = new byte[MAX_LINE_LENGTH];
+        private final byte[] mmHex = new byte[16];
+        // Large enough for any head this server writes; the longest variable part is a range.
+        private final byte[] mmHead = new byte[512];
+        private int mmHeadLength;
+
+        Connection(int id, Socket socket) {
+            mmId = id;
+            mmSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            mmStats.start();
+            try {
+                mmSocket.setTcpNoDelay(true);
+                mmSocket.setSoTimeout(mIdleTimeoutMs);
+                InputStream in = new BufferedInputStream(mmSocket.getInputStream());
+                OutputStream out = new BufferedOutputStream(mmSocket.getOutputStream());
+                while (!mClosed && serveRequest(in, out)) {
+                }
+            } catch (SocketTimeoutException e) {
+                Log.d("HTTP test connection " + mmId + " idle, closing.");
+            } catch (IOException e) {
+                if (!mClosed) {
+                    mmStats.recordError();
+                    Log.d("HTTP test connection " + mmId + " failed: " + e);
+                }
+            } finally {
+                close();
+                mmStats.finish();
+                mConnections.remove(this);
+                mClosedStats.merge(mmStats);
+            }
+        }
+
+        /** Serves one request and returns whether the connection stays open. */
+        private boolean serveRequest(InputStream in, OutputStream out) throws IOException {
+            int length;
+            do {
+                length = readLine(in, mmLine);
+            } while (length == 0);
+            if (length < 0) {
+                return false;
+            }
+            long start = System.nanoTime();
+            String[] request =
+                    new String(mmLine, 0, length, StandardCharsets.US_ASCII).split(" ");
+            if (request.length != 3 || !request[2].startsWith("HTTP/1.")) {
+                mmStats.recordError();
+                writeHead(out, "400 Bad Request", 0, 0, null, false);
+                out.flush();
+                return false;
+            }
+            boolean keepAlive = request[2].equals("HTTP/1.1");
+            long contentLength = 0;
+            String range = null;
+            while ((length = readLine(in, mmLine)) > 0) {
+                if (isHeader(mmLine, length, "connection")) {
+                    String value = headerValue(mmLine, length);
+                    if (value.equalsIgnoreCase("close")) {
+                        keepAlive = false;
+                    } else if (value.equalsIgnoreCase("keep-alive")) {
+                        keepAlive = true;
+                    }
+                } else if (isHeader(mmLine, length, "content-length")) {
+                    contentLength = Long.parseLong(headerValue(mmLine, length));
+                } else if (isHeader(mmLine, length, "range")) {
+                    range = headerValue(mmLine, length);
+                }
+            }
+            if (length < 0) {
+                return false;
+            }
+            while (contentLength > 0) {
+                long skipped = in.skip(contentLength);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                contentLength -= skipped;
+            }
+
+            long size = mDefaultSize;
+            int chunk = 0;
+            String target = request[1];
+            int query = target.indexOf('?');
+            if (query >= 0) {
+                try {
+                    for (String param : target.substring(query + 1).split("&")) {
+                        if (param.startsWith("size=")) {
+                            size = Long.parseLong(param.substring(5));
+                        } else if (param.startsWith("chunk=")) {
+                            chunk = Integer.parseInt(param.substring(6));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+            }
+            if (size < 0 || chunk < 0) {
+                mmStats.recordError();
+                writeHead(out, "400 Bad Request", 0, 0, null, keepAlive);
+                out.flush();
+                return keepAlive;
+            }
+            long first = 0;
+            String status = "200 OK";
+            String contentRange = null;
+            int dash = range == null ? -1 : range.indexOf('-');
+            if (dash > 6 && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+                try {
+                    first = Long.parseLong(range.substring(6, dash).trim());
+                    String end = range.substring(dash + 1).trim();
+                    long last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+                    if (first > last) {
+                        writeHead(out, "416 Range Not Satisfiable", 0, 0, "bytes */" + size,
+                                keepAlive);
+                        out.flush();
+                        return keepAlive;
+                    }
+                    status = "206 Partial Content";
+                    contentRange = "bytes " + first + "-" + last + "/" + size;
+                    size = last - first + 1;
+                } catch (NumberFormatException e) {
+                    first = 0;
+                }
+            }
+            boolean head = request[0].equals("HEAD");
+            writeHead(out, status, size, chunk, contentRange, keepAlive);
+            // The head is flushed on its own so that the time to first byte is taken once the
+            // response has actually reached the socket, not just the output buffer.
+            out.flush();
+            long firstByte = System.nanoTime();
+            if (head) {
+                mmStats.recordRequest(firstByte - start, firstByte - start, 0);
+                return keepAlive;
+            }
+            if (chunk == 0) {
+                writePattern(out, first, size);
+            } else {
+                for (long offset = 0; offset < size; offset += chunk) {
+                    long count = Math.min(size - offset, chunk);
+                    writeHex(out, count);
+                    out.write(CRLF);
+                    writePattern(out, first + offset, count);
+                    out.write(CRLF);
+                }
+                out.write(LAST_CHUNK);
+            }
+            out.flush();
+            mmStats.recordRequest(firstByte - start, System.nanoTime() - start, size);
+            return keepAlive;
+        }
+
+        private void writeHead(OutputStream out, String status, long size, int chunk,
+                String contentRange, boolean keepAlive) throws IOException {
+            mmHeadLength = 0;
+            appendHead("HTTP/1.1 ");
+            appendHead(status);
+            appendHead("\r\nContent-Type: application/octet-stream\r\nAccept-Ranges: bytes\r\n");
+            if (contentRange != null) {
+                appendHead("Content-Range: ");
+                appendHead(contentRange);
+                appendHead("\r\n");
+            }
+            if (chunk > 0) {
+                appendHead("Transfer-Encoding: chunked\r\n");
+            } else {
+                appendHead("Content-Length: ");
+                appendDecimal(size);
+                appendHead("\r\n");
+            }
+            appendHead(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+            out.write(mmHead, 0, mmHeadLength);
+        }
+
+        private void appendHead(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                mmHead[mmHeadLength++] = (byte) text.charAt(i);
+            }
+        }
+
+        private void appendDecimal(long value) {
+            int start = mmHeadLength;
+            do {
+                mmHead[mmHeadLength++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            for (int i = start, j = mmHeadLength - 1; i < j; i++, j--) {
+                byte digit = mmHead[i];
+                mmHead[i] = mmHead[j];
+                mmHead[j] = digit;
+            }
+        }
+
+        private void writeHex(OutputStream out, long value) throws IOException {
+            int start = mmHex.length;
+            do {
+                mmHex[--start] = HEX_DIGITS[(int) (value & 0xf)];
+                value >>>= 4;
+            } while (value != 0);
+            out.write(mmHex, start, mmHex.length - start);
+        }
+
+        void close() {
+            try {
+                mmSocket.close();
+            } catch (IOException e) {
+                Log.e("Failed to close HTTP test connection " + mmId, e);
+            }
+        }
+    }
+}
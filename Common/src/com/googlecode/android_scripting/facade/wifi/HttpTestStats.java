@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.wifi;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing counters of one HTTP test connection, or of several merged together.
+ *
+ * <p>Latency samples are kept in fixed size arrays; once they are full the oldest samples are
+ * overwritten, so percentiles describe the most recent {@link #MAX_SAMPLES} requests.
+ */
+class HttpTestStats {
+
+    static final int MAX_SAMPLES = 4096;
+
+    private final long[] mTtfbNanos = new long[MAX_SAMPLES];
+    private final long[] mLatencyNanos = new long[MAX_SAMPLES];
+    private int mSampleCount = 0;
+    private long mRequests = 0;
+    private long mErrors = 0;
+    private long mBytes = 0;
+    private long mStartNanos = 0;
+    private long mEndNanos = 0;
+
+    /** Marks the start of the measured interval. */
+    synchronized void start() {
+        mStartNanos = System.nanoTime();
+        mEndNanos = 0;
+    }
+
+    /** Marks the end of the measured interval. */
+    synchronized void finish() {
+        if (mEndNanos == 0) {
+            mEndNanos = System.nanoTime();
+        }
+    }
+
+    /** Records a completed request and the body bytes it transferred. */
+    synchronized void recordRequest(long ttfbNanos, long latencyNanos, long bytes) {
+        int slot = (int) (mRequests % MAX_SAMPLES);
+        mTtfbNanos[slot] = ttfbNanos;
+        mLatencyNanos[slot] = latencyNanos;
+        mSampleCount = Math.min(mSampleCount + 1, MAX_SAMPLES);
+        mRequests++;
+        mBytes += bytes;
+    }
+
+    synchronized void recordError() {
+        mErrors++;
+    }
+
+    synchronized long getRequests() {
+        return mRequests;
+    }
+
+    /** Adds the samples and counters of {@code other} to this instance. */
+    void merge(HttpTestStats other) {
+        long[] ttfb;
+        long[] latency;
+        long requests;
+        long errors;
+        long bytes;
+        long start;
+        long end;
+        synchronized (other) {
+            ttfb = Arrays.copyOf(other.mTtfbNanos, other.mSampleCount);
+            latency = Arrays.copyOf(other.mLatencyNanos, other.mSampleCount);
+            requests = other.mRequests;
+            errors = other.mErrors;
+            bytes = other.mBytes;
+            start = other.mStartNanos;
+            end = other.mEndNanos == 0 ? System.nanoTime() : other.mEndNanos;
+        }
+        synchronized (this) {
+            for (int i = 0; i < ttfb.length; i++) {
+                int slot = (int) ((mRequests + i) % MAX_SAMPLES);
+                mTtfbNanos[slot] = ttfb[i];
+                mLatencyNanos[slot] = latency[i];
+            }
+            mSampleCount = Math.min(mSampleCount + ttfb.length, MAX_SAMPLES);
+            mRequests += requests;
+            mErrors += errors;
+            mBytes += bytes;
+            if (start != 0 && (mStartNanos == 0 || start < mStartNanos)) {
+                mStartNanos = start;
+            }
+            if (end > mEndNanos) {
+                mEndNanos = end;
+            }
+        }
+    }
+
+    /** Returns the counters, throughput and TTFB and latency percentiles in microseconds. */
+    synchronized Bundle toBundle() {
+        long end = mEndNanos == 0 ? System.nanoTime() : mEndNanos;
+        double seconds = mStartNanos == 0 ? 0 : (end - mStartNanos) / 1e9;
+        long[] ttfb = Arrays.copyOf(mTtfbNanos, mSampleCount);
+        long[] latency = Arrays.copyOf(mLatencyNanos, mSampleCount);
+        Arrays.sort(ttfb);
+        Arrays.sort(latency);
+        Bundle stats = new Bundle();
+        stats.putLong("Requests", mRequests);
+        stats.putLong("Errors", mErrors);
+        stats.putLong("Bytes", mBytes);
+        stats.putDouble("Seconds", seconds);
+        stats.putDouble("BytesPerSecond", seconds > 0 ? mBytes / seconds : 0);
+        stats.putLong("TtfbP50Us", percentileMicros(ttfb, 50));
+        stats.putLong("TtfbP99Us", percentileMicros(ttfb, 99));
+        stats.putLong("LatencyP50Us", percentileMicros(latency, 50));
+        stats.putLong("LatencyP99Us", percentileMicros(latency, 99));
+        stats.putLong("LatencyMaxUs",
+                latency.length == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latency[latency.length - 1]));
+        return stats;
+    }
+
+    private static long percentileMicros(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(index, 0)]);
+    }
+}
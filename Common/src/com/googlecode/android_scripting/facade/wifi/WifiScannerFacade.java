@@ -17,9 +17,7 @@
 package com.googlecode.android_scripting.facade.wifi;
 
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -28,11 +26,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.googlecode.android_scripting.Log;
-import com.googlecode.android_scripting.MainThread;
 import com.googlecode.android_scripting.facade.EventFacade;
 import com.googlecode.android_scripting.facade.FacadeManager;
+import com.googlecode.android_scripting.jsonrpc.HandleRegistry;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcError;
 import com.googlecode.android_scripting.rpc.RpcOptional;
 import com.googlecode.android_scripting.rpc.RpcParameter;
 
@@ -56,15 +55,10 @@ public class WifiScannerFacade extends RpcReceiver {
     private final Service mService;
     private final EventFacade mEventFacade;
     private final WifiScanner mScan;
-    // These counters are just for indexing;
-    // they do not represent the total number of listeners
-    private static int WifiScanListenerCnt;
-    private static int WifiChangeListenerCnt;
-    private static int WifiBssidListenerCnt;
-    private final ConcurrentHashMap<Integer, WifiScanListener> scanListeners;
-    private final ConcurrentHashMap<Integer, WifiScanListener> scanBackgroundListeners;
-    private final ConcurrentHashMap<Integer, ChangeListener> trackChangeListeners;
-    private final ConcurrentHashMap<Integer, WifiBssidListener> trackBssidListeners;
+    private final HandleRegistry<WifiScanListener> scanListeners;
+    private final HandleRegistry<WifiScanListener> scanBackgroundListeners;
+    private final HandleRegistry<ChangeListener> trackChangeListeners;
+    private final HandleRegistry<WifiBssidListener> trackBssidListeners;
     private static ConcurrentHashMap<Integer, ScanResult[]> wifiScannerResultList;
     private static ConcurrentHashMap<Integer, ScanData[]> wifiScannerDataList;
 
@@ -73,10 +67,10 @@ public class WifiScannerFacade extends RpcReceiver {
         mService = manager.getService();
         mScan = (WifiScanner) mService.getSystemService(Context.WIFI_SCANNING_SERVICE);
         mEventFacade = manager.getReceiver(EventFacade.class);
-        scanListeners = new ConcurrentHashMap<Integer, WifiScanListener>();
-        scanBackgroundListeners = new ConcurrentHashMap<Integer, WifiScanListener>();
-        trackChangeListeners = new ConcurrentHashMap<Integer, ChangeListener>();
-        trackBssidListeners = new ConcurrentHashMap<Integer, WifiBssidListener>();
+        scanListeners = createHandleRegistry("single scan session");
+        scanBackgroundListeners = createHandleRegistry("background scan session");
+        trackChangeListeners = createHandleRegistry("wifi change tracking session");
+        trackBssidListeners = createHandleRegistry("bssid tracking session");
         wifiScannerResultList = new ConcurrentHashMap<Integer, ScanResult[]>();
         wifiScannerDataList = new ConcurrentHashMap<Integer, ScanData[]>();
     }
@@ -136,15 +130,22 @@ public class WifiScannerFacade extends RpcReceiver {
      *
      * @return WifiScanListener
      */
-    private WifiScanListener genWifiScanListener() {
-        WifiScanListener mWifiScannerListener = MainThread.run(mService,
-                new Callable<WifiScanListener>() {
-                    @Override
-                    public WifiScanListener call() throws Exception {
-                        return new WifiScanListener();
-                    }
-                });
-        scanListeners.put(mWifiScannerListener.mIndex, mWifiScannerListener);
+    private WifiScanListener genWifiScanListener() throws RpcError {
+        final int index = scanListeners.reserve();
+        WifiScanListener mWifiScannerListener;
+        try {
+            mWifiScannerListener = runOnMainThread(mService,
+                    new Callable<WifiScanListener>() {
+                        @Override
+                        public WifiScanListener call() throws Exception {
+                            return new WifiScanListener(index);
+                        }
+                    });
+        } catch (RpcError e) {
+            scanListeners.remove(index);
+            throw e;
+        }
+        scanListeners.put(index, mWifiScannerListener);
         return mWifiScannerListener;
     }
 
@@ -153,15 +154,22 @@ public class WifiScannerFacade extends RpcReceiver {
      *
      * @return WifiScanListener
      */
-    private WifiScanListener genBackgroundWifiScanListener() {
-        WifiScanListener mWifiScannerListener = MainThread.run(mService,
-                new Callable<WifiScanListener>() {
-                    @Override
-                    public WifiScanListener call() throws Exception {
-                        return new WifiScanListener();
-                    }
-                });
-        scanBackgroundListeners.put(mWifiScannerListener.mIndex, mWifiScannerListener);
+    private WifiScanListener genBackgroundWifiScanListener() throws RpcError {
+        final int index = scanBackgroundListeners.reserve();
+        WifiScanListener mWifiScannerListener;
+        try {
+            mWifiScannerListener = runOnMainThread(mService,
+                    new Callable<WifiScanListener>() {
+                        @Override
+                        public WifiScanListener call() throws Exception {
+                            return new WifiScanListener(index);
+                        }
+                    });
+        } catch (RpcError e) {
+            scanBackgroundListeners.remove(index);
+            throw e;
+        }
+        scanBackgroundListeners.put(index, mWifiScannerListener);
         return mWifiScannerListener;
     }
 
@@ -172,11 +180,10 @@ public class WifiScannerFacade extends RpcReceiver {
         private final WifiActionListener mWAL;
         public int mIndex;
 
-        public WifiScanListener() {
+        public WifiScanListener(int index) {
             mScanResults = new Bundle();
             mScanData = new Bundle();
-            WifiScanListenerCnt += 1;
-            mIndex = WifiScanListenerCnt;
+            mIndex = index;
             mWAL = new WifiActionListener(mEventType, mIndex, mScanResults,
                     SystemClock.elapsedRealtime());
         }
@@ -226,15 +233,22 @@ public class WifiScannerFacade extends RpcReceiver {
      *
      * @return ChangeListener
      */
-    private ChangeListener genWifiChangeListener() {
-        ChangeListener mWifiChangeListener = MainThread.run(mService,
-                new Callable<ChangeListener>() {
-                    @Override
-                    public ChangeListener call() throws Exception {
-                        return new ChangeListener();
-                    }
-                });
-        trackChangeListeners.put(mWifiChangeListener.mIndex, mWifiChangeListener);
+    private ChangeListener genWifiChangeListener() throws RpcError {
+        final int index = trackChangeListeners.reserve();
+        ChangeListener mWifiChangeListener;
+        try {
+            mWifiChangeListener = runOnMainThread(mService,
+                    new Callable<ChangeListener>() {
+                        @Override
+                        public ChangeListener call() throws Exception {
+                            return new ChangeListener(index);
+                        }
+                    });
+        } catch (RpcError e) {
+            trackChangeListeners.remove(index);
+            throw e;
+        }
+        trackChangeListeners.put(index, mWifiChangeListener);
         return mWifiChangeListener;
     }
 
@@ -244,10 +258,9 @@ public class WifiScannerFacade extends RpcReceiver {
         private final WifiActionListener mWAL;
         public int mIndex;
 
-        public ChangeListener() {
+        public ChangeListener(int index) {
             mResults = new Bundle();
-            WifiChangeListenerCnt += 1;
-            mIndex = WifiChangeListenerCnt;
+            mIndex = index;
             mWAL = new WifiActionListener(mEventType, mIndex, mResults,
                     SystemClock.elapsedRealtime());
         }
@@ -284,15 +297,22 @@ public class WifiScannerFacade extends RpcReceiver {
         }
     }
 
-    private WifiBssidListener genWifiBssidListener() {
-        WifiBssidListener mWifiBssidListener = MainThread.run(mService,
-                new Callable<WifiBssidListener>() {
-                    @Override
-                    public WifiBssidListener call() throws Exception {
-                        return new WifiBssidListener();
-                    }
-                });
-        trackBssidListeners.put(mWifiBssidListener.mIndex, mWifiBssidListener);
+    private WifiBssidListener genWifiBssidListener() throws RpcError {
+        final int index = trackBssidListeners.reserve();
+        WifiBssidListener mWifiBssidListener;
+        try {
+            mWifiBssidListener = runOnMainThread(mService,
+                    new Callable<WifiBssidListener>() {
+                        @Override
+                        public WifiBssidListener call() throws Exception {
+                            return new WifiBssidListener(index);
+                        }
+                    });
+        } catch (RpcError e) {
+            trackBssidListeners.remove(index);
+            throw e;
+        }
+        trackBssidListeners.put(index, mWifiBssidListener);
         return mWifiBssidListener;
     }
 
@@ -302,10 +322,9 @@ public class WifiScannerFacade extends RpcReceiver {
         private final WifiActionListener mWAL;
         public int mIndex;
 
-        public WifiBssidListener() {
+        public WifiBssidListener(int index) {
             mResults = new Bundle();
-            WifiBssidListenerCnt += 1;
-            mIndex = WifiBssidListenerCnt;
+            mIndex = index;
             mWAL = new WifiActionListener(mEventType, mIndex, mResults,
                     SystemClock.elapsedRealtime());
         }
@@ -392,7 +411,7 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Starts a WifiScanner Background scan")
     public Integer wifiScannerStartBackgroundScan(
             @RpcParameter(name = "scanSettings") JSONObject scanSettings)
-                    throws JSONException {
+                    throws JSONException, RpcError {
         ScanSettings ss = parseScanSettings(scanSettings);
         Log.d("startWifiScannerScan with " + ss.channels);
         WifiScanListener listener = genBackgroundWifiScanListener();
@@ -422,13 +441,14 @@ public class WifiScannerFacade extends RpcReceiver {
     public void wifiScannerStopBackgroundScan(
             @RpcParameter(name = "listener") Integer listenerIndex)
                     throws Exception {
-        if (!scanBackgroundListeners.containsKey(listenerIndex)) {
+        if (!scanBackgroundListeners.contains(listenerIndex)) {
             throw new Exception("Background scan session " + listenerIndex + " does not exist");
         }
         WifiScanListener listener = scanBackgroundListeners.get(listenerIndex);
         Log.d("stopWifiScannerScan listener " + listener.mIndex);
         mScan.stopBackgroundScan(listener);
         wifiScannerResultList.remove(listenerIndex);
+        wifiScannerDataList.remove(listenerIndex);
         scanBackgroundListeners.remove(listenerIndex);
     }
 
@@ -442,7 +462,7 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Starts a WifiScanner single scan")
     public Integer wifiScannerStartScan(
             @RpcParameter(name = "scanSettings") JSONObject scanSettings)
-                    throws JSONException {
+                    throws JSONException, RpcError {
         ScanSettings ss = parseScanSettings(scanSettings);
         Log.d("startWifiScannerScan with " + ss.channels);
         WifiScanListener listener = genWifiScanListener();
@@ -459,13 +479,14 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Stops an ongoing  WifiScanner Single scan")
     public void wifiScannerStopScan(@RpcParameter(name = "listener") Integer listenerIndex)
             throws Exception {
-        if (!scanListeners.containsKey(listenerIndex)) {
+        if (!scanListeners.contains(listenerIndex)) {
             throw new Exception("Single scan session " + listenerIndex + " does not exist");
         }
         WifiScanListener listener = scanListeners.get(listenerIndex);
         Log.d("stopWifiScannerScan listener " + listener.mIndex);
         mScan.stopScan(listener);
         wifiScannerResultList.remove(listener.mIndex);
+        wifiScannerDataList.remove(listener.mIndex);
         scanListeners.remove(listenerIndex);
     }
 
@@ -498,7 +519,7 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Stops tracking wifi changes")
     public void wifiScannerStopTrackingChange(
             @RpcParameter(name = "listener") Integer listenerIndex) throws Exception {
-        if (!trackChangeListeners.containsKey(listenerIndex)) {
+        if (!trackChangeListeners.contains(listenerIndex)) {
             throw new Exception("Wifi change tracking session " + listenerIndex
                     + " does not exist");
         }
@@ -518,7 +539,8 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Starts tracking changes of the specified bssids.")
     public Integer wifiScannerStartTrackingBssids(
             @RpcParameter(name = "bssidInfos") JSONArray bssidInfos,
-            @RpcParameter(name = "apLostThreshold") Integer apLostThreshold) throws JSONException {
+            @RpcParameter(name = "apLostThreshold") Integer apLostThreshold)
+            throws JSONException, RpcError {
         BssidInfo[] bssids = parseBssidInfo(bssidInfos);
         WifiBssidListener listener = genWifiBssidListener();
         mScan.startTrackingBssids(bssids, apLostThreshold, listener);
@@ -534,7 +556,7 @@ public class WifiScannerFacade extends RpcReceiver {
     @Rpc(description = "Stops tracking changes in the APs on the list")
     public void wifiScannerStopTrackingBssids(
             @RpcParameter(name = "listener") Integer listenerIndex) throws Exception {
-        if (!trackBssidListeners.containsKey(listenerIndex)) {
+        if (!trackBssidListeners.contains(listenerIndex)) {
             throw new Exception("Bssid tracking session " + listenerIndex + " does not exist");
         }
         WifiBssidListener listener = trackBssidListeners.get(listenerIndex);
@@ -569,8 +591,8 @@ public class WifiScannerFacade extends RpcReceiver {
     }
 
     @Rpc(description = "Returns a list of mIndexes of existing listeners")
-    public Set<Integer> wifiGetCurrentScanIndexes() {
-        return scanListeners.keySet();
+    public List<Integer> wifiGetCurrentScanIndexes() {
+        return scanListeners.handles();
     }
 
     /**
@@ -610,37 +632,17 @@ public class WifiScannerFacade extends RpcReceiver {
     @Override
     public void shutdown() {
         try {
-            if (!scanListeners.isEmpty()) {
-                Iterator<ConcurrentHashMap.Entry<Integer, WifiScanListener>> iter = scanListeners
-                        .entrySet().iterator();
-                while (iter.hasNext()) {
-                    ConcurrentHashMap.Entry<Integer, WifiScanListener> entry = iter.next();
-                    this.wifiScannerStopScan(entry.getKey());
-                }
+            for (Integer index : scanListeners.handles()) {
+                this.wifiScannerStopScan(index);
             }
-            if (!scanBackgroundListeners.isEmpty()) {
-                Iterator<ConcurrentHashMap.Entry<Integer, WifiScanListener>> iter = scanBackgroundListeners
-                        .entrySet().iterator();
-                while (iter.hasNext()) {
-                    ConcurrentHashMap.Entry<Integer, WifiScanListener> entry = iter.next();
-                    this.wifiScannerStopBackgroundScan(entry.getKey());
-                }
+            for (Integer index : scanBackgroundListeners.handles()) {
+                this.wifiScannerStopBackgroundScan(index);
             }
-            if (!trackChangeListeners.isEmpty()) {
-                Iterator<ConcurrentHashMap.Entry<Integer, ChangeListener>> iter = trackChangeListeners
-                        .entrySet().iterator();
-                while (iter.hasNext()) {
-                    ConcurrentHashMap.Entry<Integer, ChangeListener> entry = iter.next();
-                    this.wifiScannerStopTrackingChange(entry.getKey());
-                }
+            for (Integer index : trackChangeListeners.handles()) {
+                this.wifiScannerStopTrackingChange(index);
             }
-            if (!trackBssidListeners.isEmpty()) {
-                Iterator<ConcurrentHashMap.Entry<Integer, WifiBssidListener>> iter = trackBssidListeners
-                        .entrySet().iterator();
-                while (iter.hasNext()) {
-                    ConcurrentHashMap.Entry<Integer, WifiBssidListener> entry = iter.next();
-                    this.wifiScannerStopTrackingBssids(entry.getKey());
-                }
+            for (Integer index : trackBssidListeners.handles()) {
+                this.wifiScannerStopTrackingBssids(index);
             }
         } catch (Exception e) {
             Log.e("Shutdown failed: " + e.toString());
@@ -31,16 +31,27 @@ import android.net.Uri;
 
 import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.SingleThreadExecutor;
+import com.googlecode.android_scripting.future.FutureResult;
 import com.googlecode.android_scripting.interpreter.shell.ShellInterpreter;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages and provides access to the set of available interpreters.
@@ -48,59 +59,106 @@ import java.util.concurrent.ExecutorService;
  */
 public class InterpreterConfiguration {
 
+  // Building an interpreter costs a package lookup plus three provider queries, so packages are
+  // built concurrently on a small pool.
+  private static final int DISCOVERY_THREADS = 4;
+
   private final InterpreterListener mListener;
-  private final Set<Interpreter> mInterpreterSet;
   private final Set<ConfigurationObserver> mObserverSet;
+  private final Set<DiscoveryListener> mDiscoveryListenerSet;
   private final Context mContext;
-  private volatile boolean mIsDiscoveryComplete = false;
+  private final Object mIndexLock = new Object();
+  private volatile InterpreterIndex mIndex;
+  // Completed by the first discovery pass and never replaced, so completion is monotonic.
+  private final FutureResult<List<Interpreter>> mDiscoveryResult;
 
   public interface ConfigurationObserver {
     public void onConfigurationChanged();
   }
 
+  /**
+   * Notified each time a discovery pass started by {@link #startDiscovering()} finishes.
+   */
+  public interface DiscoveryListener {
+    public void onDiscoveryComplete(List<Interpreter> interpreters);
+  }
+
+  /**
+   * Immutable lookup tables over the known interpreters. Readers use whichever snapshot is current
+   * without locking; writers replace it wholesale under {@link #mIndexLock}.
+   */
+  private static class InterpreterIndex {
+    private final List<Interpreter> mmInterpreters;
+    private final Map<String, Interpreter> mmByName;
+    private final Map<String, Interpreter> mmByExtension;
+
+    private InterpreterIndex(Collection<Interpreter> interpreters) {
+      mmInterpreters = Collections.unmodifiableList(new ArrayList<Interpreter>(interpreters));
+      mmByName = new HashMap<String, Interpreter>();
+      mmByExtension = new HashMap<String, Interpreter>();
+      // The first interpreter registered for a name or extension wins, as it did when the set was
+      // searched linearly.
+      for (Interpreter interpreter : mmInterpreters) {
+        if (!mmByName.containsKey(interpreter.getName())) {
+          mmByName.put(interpreter.getName(), interpreter);
+        }
+        if (!mmByExtension.containsKey(interpreter.getExtension())) {
+          mmByExtension.put(interpreter.getExtension(), interpreter);
+        }
+      }
+    }
+  }
+
   private class InterpreterListener extends BroadcastReceiver {
     private final PackageManager mmPackageManager;
     private final ContentResolver mmResolver;
+    // Serializes discovery passes and package add/remove broadcasts.
     private final ExecutorService mmExecutor;
+    private final ExecutorService mmDiscoveryPool;
     private final Map<String, Interpreter> mmDiscoveredInterpreters;
 
     private InterpreterListener(Context context) {
       mmPackageManager = context.getPackageManager();
       mmResolver = context.getContentResolver();
       mmExecutor = new SingleThreadExecutor();
-      mmDiscoveredInterpreters = new HashMap<String, Interpreter>();
+      ThreadPoolExecutor pool =
+          new ThreadPoolExecutor(DISCOVERY_THREADS, DISCOVERY_THREADS, 30L, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>());
+      pool.allowCoreThreadTimeOut(true);
+      mmDiscoveryPool = pool;
+      mmDiscoveredInterpreters = new ConcurrentHashMap<String, Interpreter>();
     }
 
     private void discoverForType(final String mime) {
-      mmExecutor.execute(new Runnable() {
-        @Override
-        public void run() {
-          Intent intent = new Intent(InterpreterConstants.ACTION_DISCOVER_INTERPRETERS);
-          intent.addCategory(Intent.CATEGORY_LAUNCHER);
-          intent.setType(mime);
-          List<ResolveInfo> resolveInfos = mmPackageManager.queryIntentActivities(intent, 0);
-          for (ResolveInfo info : resolveInfos) {
-            addInterpreter(info.activityInfo.packageName);
-          }
-          mIsDiscoveryComplete = true;
-          notifyConfigurationObservers();
-        }
-      });
+      discover(mime);
     }
 
     private void discoverAll() {
+      discover(InterpreterConstants.MIME + "*");
+    }
+
+    private void discover(final String mime) {
       mmExecutor.execute(new Runnable() {
         @Override
         public void run() {
-          Intent intent = new Intent(InterpreterConstants.ACTION_DISCOVER_INTERPRETERS);
-          intent.addCategory(Intent.CATEGORY_LAUNCHER);
-          intent.setType(InterpreterConstants.MIME + "*");
-          List<ResolveInfo> resolveInfos = mmPackageManager.queryIntentActivities(intent, 0);
-          for (ResolveInfo info : resolveInfos) {
-            addInterpreter(info.activityInfo.packageName);
+          try {
+            Intent intent = new Intent(InterpreterConstants.ACTION_DISCOVER_INTERPRETERS);
+            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+            intent.setType(mime);
+            List<ResolveInfo> resolveInfos = mmPackageManager.queryIntentActivities(intent, 0);
+            Set<String> packageNames = new LinkedHashSet<String>();
+            for (ResolveInfo info : resolveInfos) {
+              packageNames.add(info.activityInfo.packageName);
+            }
+            addInterpreters(packageNames);
+          } finally {
+            List<Interpreter> interpreters = getSupportedInterpreters();
+            if (!mDiscoveryResult.isDone()) {
+              mDiscoveryResult.set(interpreters);
+            }
+            notifyConfigurationObservers();
+            notifyDiscoveryListeners(interpreters);
           }
-          mIsDiscoveryComplete = true;
-          notifyConfigurationObservers();
         }
       });
     }
@@ -111,18 +169,67 @@ public class InterpreterConfiguration {
       }
     }
 
-    private void addInterpreter(final String packageName) {
-      if (mmDiscoveredInterpreters.containsKey(packageName)) {
+    private void notifyDiscoveryListeners(List<Interpreter> interpreters) {
+      for (DiscoveryListener listener : mDiscoveryListenerSet) {
+        listener.onDiscoveryComplete(interpreters);
+      }
+    }
+
+    /**
+     * Builds the interpreters of all packages concurrently and returns once all are done. They
+     * are published in the order of the packages once all are built, so that which interpreter
+     * wins a name or extension conflict does not depend on which package answered first.
+     */
+    private void addInterpreters(Collection<String> packageNames) {
+      List<String> pending = new ArrayList<String>();
+      List<Callable<Interpreter>> tasks = new ArrayList<Callable<Interpreter>>();
+      for (final String packageName : packageNames) {
+        if (mmDiscoveredInterpreters.containsKey(packageName)) {
+          continue;
+        }
+        pending.add(packageName);
+        tasks.add(new Callable<Interpreter>() {
+          @Override
+          public Interpreter call() {
+            return buildInterpreter(packageName);
+          }
+        });
+      }
+      if (tasks.isEmpty()) {
         return;
       }
-      Interpreter discoveredInterpreter = buildInterpreter(packageName);
-      if (discoveredInterpreter == null) {
+      List<Future<Interpreter>> results;
+      try {
+        results = mmDiscoveryPool.invokeAll(tasks);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         return;
       }
-      mmDiscoveredInterpreters.put(packageName, discoveredInterpreter);
-      mInterpreterSet.add(discoveredInterpreter);
-      Log.v("Interpreter discovered: " + packageName + "\nBinary: "
-          + discoveredInterpreter.getBinary());
+      List<Interpreter> discovered = new ArrayList<Interpreter>();
+      for (int i = 0; i < results.size(); i++) {
+        String packageName = pending.get(i);
+        Interpreter interpreter;
+        try {
+          interpreter = results.get(i).get();
+        } catch (ExecutionException e) {
+          Log.e("Failed to discover interpreter in " + packageName, e.getCause());
+          continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (interpreter != null
+            && mmDiscoveredInterpreters.put(packageName, interpreter) == null) {
+          discovered.add(interpreter);
+          Log.v("Interpreter discovered: " + packageName + "\nBinary: "
+              + interpreter.getBinary());
+        }
+      }
+      addToIndex(discovered);
+    }
+
+    private void addInterpreter(final String packageName) {
+      addInterpreters(Collections.singletonList(packageName));
     }
 
     private void remove(final String packageName) {
@@ -137,7 +244,7 @@ public class InterpreterConfiguration {
             Log.v("Interpreter for " + packageName + " not installed.");
             return;
           }
-          mInterpreterSet.remove(interpreter);
+          removeFromIndex(interpreter);
           mmDiscoveredInterpreters.remove(packageName);
           notifyConfigurationObservers();
         }
@@ -211,9 +318,10 @@ public class InterpreterConfiguration {
 
   public InterpreterConfiguration(Context context) {
     mContext = context;
-    mInterpreterSet = new CopyOnWriteArraySet<Interpreter>();
-    mInterpreterSet.add(new ShellInterpreter());
+    mIndex = new InterpreterIndex(Collections.<Interpreter>singletonList(new ShellInterpreter()));
+    mDiscoveryResult = new FutureResult<List<Interpreter>>();
     mObserverSet = new CopyOnWriteArraySet<ConfigurationObserver>();
+    mDiscoveryListenerSet = new CopyOnWriteArraySet<DiscoveryListener>();
     IntentFilter filter = new IntentFilter();
     filter.addAction(InterpreterConstants.ACTION_INTERPRETER_ADDED);
     filter.addAction(InterpreterConstants.ACTION_INTERPRETER_REMOVED);
@@ -233,8 +341,49 @@ public class InterpreterConfiguration {
     mListener.discoverForType(mime);
   }
 
+  /** Returns true once the first discovery pass has finished. */
   public boolean isDiscoveryComplete() {
-    return mIsDiscoveryComplete;
+    return mDiscoveryResult.isDone();
+  }
+
+  /**
+   * Returns a future that yields the known interpreters once the first discovery pass has
+   * finished. Lookups do not need to wait for it; later passes are reported to
+   * {@link DiscoveryListener}s.
+   */
+  public Future<List<Interpreter>> getDiscoveryResult() {
+    return mDiscoveryResult;
+  }
+
+  public void registerDiscoveryListener(DiscoveryListener listener) {
+    if (listener != null) {
+      mDiscoveryListenerSet.add(listener);
+    }
+  }
+
+  public void unregisterDiscoveryListener(DiscoveryListener listener) {
+    if (listener != null) {
+      mDiscoveryListenerSet.remove(listener);
+    }
+  }
+
+  private void addToIndex(Collection<Interpreter> interpreters) {
+    if (interpreters.isEmpty()) {
+      return;
+    }
+    synchronized (mIndexLock) {
+      Set<Interpreter> updated = new LinkedHashSet<Interpreter>(mIndex.mmInterpreters);
+      updated.addAll(interpreters);
+      mIndex = new InterpreterIndex(updated);
+    }
+  }
+
+  private void removeFromIndex(Interpreter interpreter) {
+    synchronized (mIndexLock) {
+      List<Interpreter> updated = new ArrayList<Interpreter>(mIndex.mmInterpreters);
+      updated.remove(interpreter);
+      mIndex = new InterpreterIndex(updated);
+    }
   }
 
   public void registerObserver(ConfigurationObserver observer) {
@@ -252,8 +401,8 @@ public class InterpreterConfiguration {
   /**
    * Returns the list of all known interpreters.
    */
-  public List<? extends Interpreter> getSupportedInterpreters() {
-    return new ArrayList<Interpreter>(mInterpreterSet);
+  public List<Interpreter> getSupportedInterpreters() {
+    return new ArrayList<Interpreter>(mIndex.mmInterpreters);
   }
 
   /**
@@ -261,7 +410,7 @@ public class InterpreterConfiguration {
    */
   public List<Interpreter> getInstalledInterpreters() {
     List<Interpreter> interpreters = new ArrayList<Interpreter>();
-    for (Interpreter i : mInterpreterSet) {
+    for (Interpreter i : mIndex.mmInterpreters) {
       if (i.isInstalled()) {
         interpreters.add(i);
       }
@@ -274,7 +423,7 @@ public class InterpreterConfiguration {
    */
   public List<Interpreter> getInteractiveInterpreters() {
     List<Interpreter> interpreters = new ArrayList<Interpreter>();
-    for (Interpreter i : mInterpreterSet) {
+    for (Interpreter i : mIndex.mmInterpreters) {
       if (i.isInstalled() && i.hasInteractiveMode()) {
         interpreters.add(i);
       }
@@ -286,12 +435,7 @@ public class InterpreterConfiguration {
    * Returns the interpreter matching the provided name or null if no interpreter was found.
    */
   public Interpreter getInterpreterByName(String interpreterName) {
-    for (Interpreter i : mInterpreterSet) {
-      if (i.getName().equals(interpreterName)) {
-        return i;
-      }
-    }
-    return null;
+    return mIndex.mmByName.get(interpreterName);
   }
 
   /**
@@ -303,12 +447,6 @@ public class InterpreterConfiguration {
     if (dotIndex == -1) {
       return null;
     }
-    String ext = scriptName.substring(dotIndex);
-    for (Interpreter i : mInterpreterSet) {
-      if (i.getExtension().equals(ext)) {
-        return i;
-      }
-    }
-    return null;
+    return mIndex.mmByExtension.get(scriptName.substring(dotIndex));
   }
 }
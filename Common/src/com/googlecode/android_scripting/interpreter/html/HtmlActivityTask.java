@@ -50,11 +50,17 @@ import com.googlecode.android_scripting.rpc.RpcError;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -68,10 +74,40 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
   private static final String ANDROID_PROTOTYPE_JS =
       "Android.prototype.%1$s = function(var_args) { "
           + "return this._call(\"%1$s\", Array.prototype.slice.call(arguments)); };";
+  private static final String ANDROID_PROTOTYPE_ASYNC_JS =
+      "Android.prototype.%1$sAsync = function(var_args) { "
+          + "return this._callAsync(\"%1$s\", Array.prototype.slice.call(arguments)); };";
+
+  /**
+   * Promise shim for {@link JavaScriptWrapper#callAsync}. The bridge returns a call id
+   * immediately and the response is later delivered through droid._resolve().
+   */
+  private static final String ANDROID_ASYNC_JS =
+      "Android.prototype._pending = {};"
+          + "Android.prototype._callAsync = function(method, params) { "
+          + "var pending = this._pending; "
+          + "return new Promise(function(resolve, reject) { "
+          + "var id = _rpc_wrapper.callAsync(JSON.stringify("
+          + "{'id': 0, 'method': method, 'params': params})); "
+          + "pending[id] = {'resolve': resolve, 'reject': reject}; }); };"
+          + "Android.prototype._resolve = function(id, response) { "
+          + "var call = this._pending[id]; "
+          + "if (!call) { return; } "
+          + "delete this._pending[id]; "
+          + "if (response.error) { call.reject(response.error); } "
+          + "else { call.resolve(response.result); } };";
+
+  // Async calls may block, e.g. on eventWait, so each runs on a thread of its own rather than
+  // queueing behind others. Calls beyond this many at once are failed rather than queued.
+  private static final int MAX_ASYNC_CALLS = 32;
 
   private static final String PREFIX = "file://";
   private static final String BASE_URL = PREFIX + InterpreterConstants.SCRIPTS_ROOT;
 
+  /** API wrappers keyed by the set of receiver classes they were generated from. */
+  private static final Map<Set<Class<? extends RpcReceiver>>, String> sAPIWrapperCache =
+      new HashMap<Set<Class<? extends RpcReceiver>>, String>();
+
   private final RpcReceiverManager mReceiverManager;
   private final String mJsonSource;
   private final String mAndroidJsSource;
@@ -81,21 +117,41 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
   private final HtmlEventObserver mObserver;
   private final UiFacade mUiFacade;
   private ChromeClient mChromeClient;
-  private WebView mView;
+  private volatile WebView mView;
   private MyWebViewClient mWebViewClient;
   private static HtmlActivityTask reference;
   private boolean mDestroyManager;
 
+  private final ExecutorService mAsyncExecutor = newAsyncExecutor();
+  private final AtomicInteger mAsyncCallId = new AtomicInteger();
+
+  private final StringBuilder mPendingScript = new StringBuilder();
+  private boolean mFlushScheduled = false;
+  private final Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      String script;
+      synchronized (mPendingScript) {
+        mFlushScheduled = false;
+        script = mPendingScript.toString();
+        mPendingScript.setLength(0);
+      }
+      WebView view = mView;
+      if (view != null && script.length() > 0) {
+        view.evaluateJavascript(script, null);
+      }
+    }
+  };
+
   public HtmlActivityTask(RpcReceiverManager manager, String androidJsSource, String jsonSource,
       String url, boolean destroyManager) {
     reference = this;
     mReceiverManager = manager;
     mJsonSource = jsonSource;
     mAndroidJsSource = androidJsSource;
-    mAPIWrapperSource = generateAPIWrapper();
+    mAPIWrapperSource = getAPIWrapper(mReceiverManager.getRpcReceiverClasses());
     mWrapper = new JavaScriptWrapper();
-    mObserver = new HtmlEventObserver();
-    mReceiverManager.getReceiver(EventFacade.class).addGlobalEventObserver(mObserver);
+    mObserver = new HtmlEventObserver(mReceiverManager.getReceiver(EventFacade.class));
     mUiFacade = mReceiverManager.getReceiver(UiFacade.class);
     mUrl = url;
     mDestroyManager = destroyManager;
@@ -180,6 +236,11 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
   @Override
   public void onDestroy() {
     mReceiverManager.getReceiver(EventFacade.class).removeEventObserver(mObserver);
+    mObserver.clear();
+    mAsyncExecutor.shutdownNow();
+    synchronized (mPendingScript) {
+      mPendingScript.setLength(0);
+    }
     if (mDestroyManager) {
       mReceiverManager.shutdown();
     }
@@ -195,6 +256,11 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
     }
   }
 
+  private static ExecutorService newAsyncExecutor() {
+    return new ThreadPoolExecutor(0, MAX_ASYNC_CALLS, 30L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>());
+  }
+
   @Override
   public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
     mUiFacade.onCreateContextMenu(menu, v, menuInfo);
@@ -205,11 +271,62 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
     return mUiFacade.onPrepareOptionsMenu(menu);
   }
 
-  private String generateAPIWrapper() {
-    StringBuilder wrapper = new StringBuilder();
-    for (Class<? extends RpcReceiver> clazz : mReceiverManager.getRpcReceiverClasses()) {
+  /**
+   * Queues a script for the page. Scripts queued before the next animation frame are evaluated
+   * together in a single call, so each statement should be wrapped with {@link #isolate} to keep
+   * an exception from dropping the rest of the batch.
+   */
+  private void dispatchScript(CharSequence script) {
+    synchronized (mPendingScript) {
+      mPendingScript.append(script);
+      if (mFlushScheduled) {
+        return;
+      }
+      mFlushScheduled = true;
+    }
+    getActivity().runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        WebView view = mView;
+        if (view == null) {
+          synchronized (mPendingScript) {
+            mFlushScheduled = false;
+            mPendingScript.setLength(0);
+          }
+          return;
+        }
+        view.postOnAnimation(mFlush);
+      }
+    });
+  }
+
+  /** Appends the statement wrapped in a try block that reports, rather than throws, errors. */
+  private static StringBuilder isolate(StringBuilder script, CharSequence statement) {
+    return script.append("try { ").append(statement).append(" } catch (e) { console.error(e); }");
+  }
+
+  /**
+   * Returns the JavaScript RPC wrapper for the given receivers, reflecting over them only the
+   * first time this set of receivers is seen.
+   */
+  private static String getAPIWrapper(Collection<Class<? extends RpcReceiver>> classes) {
+    Set<Class<? extends RpcReceiver>> key = new HashSet<Class<? extends RpcReceiver>>(classes);
+    synchronized (sAPIWrapperCache) {
+      String wrapper = sAPIWrapperCache.get(key);
+      if (wrapper == null) {
+        wrapper = generateAPIWrapper(key);
+        sAPIWrapperCache.put(key, wrapper);
+      }
+      return wrapper;
+    }
+  }
+
+  private static String generateAPIWrapper(Collection<Class<? extends RpcReceiver>> classes) {
+    StringBuilder wrapper = new StringBuilder(ANDROID_ASYNC_JS);
+    for (Class<? extends RpcReceiver> clazz : classes) {
       for (MethodDescriptor rpc : MethodDescriptor.collectFrom(clazz)) {
         wrapper.append(String.format(ANDROID_PROTOTYPE_JS, rpc.getName()));
+        wrapper.append(String.format(ANDROID_PROTOTYPE_ASYNC_JS, rpc.getName()));
       }
     }
     return wrapper.toString();
@@ -220,9 +337,40 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
     public String call(String data) throws JSONException {
       Log.v("Received: " + data);
       JSONObject request = new JSONObject(data);
-      int id = request.getInt("id");
-      String method = request.getString("method");
-      JSONArray params = request.getJSONArray("params");
+      return invoke(request.getInt("id"), request.getString("method"),
+          request.getJSONArray("params"));
+    }
+
+    /**
+     * Runs the request on a worker thread and returns its call id immediately. The response is
+     * delivered to droid._resolve() with the other scripts queued for the next frame.
+     */
+    @SuppressWarnings("unused")
+    public int callAsync(String data) throws JSONException {
+      Log.v("Received async: " + data);
+      JSONObject request = new JSONObject(data);
+      final int id = mAsyncCallId.incrementAndGet();
+      final String method = request.getString("method");
+      final JSONArray params = request.getJSONArray("params");
+      try {
+        mAsyncExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            String response = invoke(id, method, params);
+            dispatchScript(isolate(new StringBuilder(),
+                "droid._resolve(" + id + ", " + response + ");"));
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        String reason = mAsyncExecutor.isShutdown() ? "Activity is shutting down."
+            : "Too many asynchronous calls in progress.";
+        dispatchScript(isolate(new StringBuilder(), "droid._resolve(" + id + ", "
+            + JsonRpcResult.error(id, new RpcError(reason)) + ");"));
+      }
+      return id;
+    }
+
+    private String invoke(int id, String method, JSONArray params) {
       MethodDescriptor rpc = mReceiverManager.getMethodDescriptor(method);
       if (rpc == null) {
         return JsonRpcResult.error(id, new RpcError("Unknown RPC.")).toString();
@@ -242,37 +390,62 @@ public class HtmlActivityTask extends FutureActivityTask<Void> {
     }
   }
 
+  /**
+   * Forwards subscribed events to the page. Only event names registered from JavaScript are
+   * observed, and callbacks are delivered through {@link HtmlActivityTask#dispatchScript}.
+   */
   private class HtmlEventObserver implements EventObserver {
-    private Map<String, Set<Integer>> mEventMap = new HashMap<String, Set<Integer>>();
+    private final EventFacade mmEventFacade;
+    private final Map<String, Set<Integer>> mEventMap = new HashMap<String, Set<Integer>>();
+
+    public HtmlEventObserver(EventFacade eventFacade) {
+      mmEventFacade = eventFacade;
+    }
 
     public void register(String eventName, Integer id) {
-      if (mEventMap.containsKey(eventName)) {
-        mEventMap.get(eventName).add(id);
-      } else {
-        Set<Integer> idSet = new HashSet<Integer>();
+      boolean subscribe = false;
+      synchronized (mEventMap) {
+        Set<Integer> idSet = mEventMap.get(eventName);
+        if (idSet == null) {
+          idSet = new HashSet<Integer>();
+          mEventMap.put(eventName, idSet);
+          subscribe = true;
+        }
         idSet.add(id);
-        mEventMap.put(eventName, idSet);
+      }
+      if (subscribe) {
+        mmEventFacade.addNamedEventObserver(eventName, this);
+      }
+    }
+
+    public void clear() {
+      synchronized (mEventMap) {
+        mEventMap.clear();
       }
     }
 
     @Override
     public void onEventReceived(Event event) {
+      Integer[] ids;
+      synchronized (mEventMap) {
+        Set<Integer> idSet = mEventMap.get(event.getName());
+        if (idSet == null || idSet.isEmpty()) {
+          return;
+        }
+        ids = idSet.toArray(new Integer[idSet.size()]);
+      }
       final JSONObject json = new JSONObject();
       try {
         json.put("data", JsonBuilder.build(event.getData()));
       } catch (JSONException e) {
         Log.e(e);
       }
-      if (mEventMap.containsKey(event.getName())) {
-        for (final Integer id : mEventMap.get(event.getName())) {
-          getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-              mView.loadUrl(String.format("javascript:droid._callback(%d, %s);", id, json));
-            }
-          });
-        }
+      String payload = json.toString();
+      StringBuilder script = new StringBuilder();
+      for (Integer id : ids) {
+        isolate(script, "droid._callback(" + id + ", " + payload + ");");
       }
+      dispatchScript(script);
     }
 
     @SuppressWarnings("unused")
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import com.googlecode.android_scripting.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps integer handles handed to scripts onto the objects they refer to.
+ *
+ * <p>A handle packs a type tag, a generation and a slot index. Lookups index the slot directly and
+ * check the tag and generation, so a handle of another registry, or one whose object was removed
+ * and whose slot has since been reused, is rejected instead of resolving to the wrong object.
+ * Registries are created through {@link RpcReceiver#createHandleRegistry}; their entries are
+ * released when the session ends and, if an idle timeout is set, once they go unused that long.
+ *
+ * <p>All methods are thread safe, so handles may be resolved from binder callbacks while RPC
+ * threads register and remove them.
+ */
+public class HandleRegistry<T> {
+
+  /** Called for each object removed by idle reclamation or when the registry is closed. */
+  public interface Releaser<T> {
+    void release(T value);
+  }
+
+  /**
+   * Idle timeout for immutable values, such as settings and filters, that scripts build and pass
+   * back to other RPCs. Callbacks and connections are never reclaimed while idle.
+   */
+  public static final long VALUE_IDLE_TIMEOUT_MS = 60 * 60 * 1000;
+
+  private static final int SLOT_BITS = 16;
+  private static final int GENERATION_BITS = 8;
+  private static final int TAG_BITS = 7;
+  private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+  private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+  static final int MAX_TAG = (1 << TAG_BITS) - 1;
+
+  private static ScheduledExecutorService sReaper;
+
+  private final String mName;
+  private final int mTag;
+  private final long mIdleTimeoutMs;
+  private final Releaser<T> mReleaser;
+
+  // Slot 0 is never used, so no handle is 0.
+  private Object[] mValues = new Object[16];
+  private int[] mGenerations = new int[16];
+  private long[] mLastAccess = new long[16];
+  private boolean[] mUsed = new boolean[16];
+  private final ArrayDeque<Integer> mFreeSlots = new ArrayDeque<Integer>();
+  private int mNextSlot = 1;
+  private int mSize;
+  private ScheduledFuture<?> mReaperTask;
+
+  HandleRegistry(String name, int tag, long idleTimeoutMs, Releaser<T> releaser) {
+    mName = name;
+    mTag = tag;
+    mIdleTimeoutMs = idleTimeoutMs;
+    mReleaser = releaser;
+    if (idleTimeoutMs > 0) {
+      long period = Math.max(idleTimeoutMs / 2, 1000);
+      mReaperTask = getReaper().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          reclaimIdle(System.currentTimeMillis());
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getReaper() {
+    if (sReaper == null) {
+      sReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "HandleRegistryReaper");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return sReaper;
+  }
+
+  /** Registers the value and returns its new handle. */
+  public synchronized int register(T value) {
+    int handle = reserve();
+    mValues[handle & SLOT_MASK] = value;
+    return handle;
+  }
+
+  /**
+   * Allocates a handle before its object exists, for objects that need to know their own handle.
+   * {@link #get} returns null for the handle until {@link #put} is called.
+   */
+  public synchronized int reserve() {
+    int slot;
+    if (!mFreeSlots.isEmpty()) {
+      slot = mFreeSlots.poll();
+    } else {
+      if (mNextSlot > SLOT_MASK) {
+        throw new IllegalStateException("Too many " + mName + " handles.");
+      }
+      slot = mNextSlot++;
+      if (slot == mValues.length) {
+        grow();
+      }
+    }
+    mUsed[slot] = true;
+    mValues[slot] = null;
+    mLastAccess[slot] = System.currentTimeMillis();
+    mSize++;
+    return (mTag << (SLOT_BITS + GENERATION_BITS)) | (mGenerations[slot] << SLOT_BITS) | slot;
+  }
+
+  /** Sets the object of a handle returned by {@link #reserve}. */
+  public synchronized void put(int handle, T value) {
+    int slot = resolve(handle);
+    if (slot < 0) {
+      throw new IllegalArgumentException("Invalid " + mName + " " + handle);
+    }
+    mValues[slot] = value;
+  }
+
+  /** Returns the object of the handle, or null if the handle is unknown or was removed. */
+  @SuppressWarnings("unchecked")
+  public synchronized T get(Integer handle) {
+    if (handle == null) {
+      return null;
+    }
+    int slot = resolve(handle);
+    if (slot < 0) {
+      return null;
+    }
+    mLastAccess[slot] = System.currentTimeMillis();
+    return (T) mValues[slot];
+  }
+
+  public synchronized boolean contains(Integer handle) {
+    return get(handle) != null;
+  }
+
+  /**
+   * Removes the handle without releasing its object and returns the object, or null if the handle
+   * is unknown.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized T remove(Integer handle) {
+    if (handle == null) {
+      return null;
+    }
+    int slot = resolve(handle);
+    if (slot < 0) {
+      return null;
+    }
+    T value = (T) mValues[slot];
+    free(slot);
+    return value;
+  }
+
+  /** Returns the handles currently registered. */
+  public synchronized List<Integer> handles() {
+    List<Integer> handles = new ArrayList<Integer>(mSize);
+    for (int slot = 1; slot < mNextSlot; slot++) {
+      if (mUsed[slot]) {
+        handles.add((mTag << (SLOT_BITS + GENERATION_BITS)) | (mGenerations[slot] << SLOT_BITS)
+            | slot);
+      }
+    }
+    return handles;
+  }
+
+  /** Returns the objects currently registered. */
+  @SuppressWarnings("unchecked")
+  public synchronized List<T> values() {
+    List<T> values = new ArrayList<T>(mSize);
+    for (int slot = 1; slot < mNextSlot; slot++) {
+      if (mUsed[slot] && mValues[slot] != null) {
+        values.add((T) mValues[slot]);
+      }
+    }
+    return values;
+  }
+
+  public synchronized int size() {
+    return mSize;
+  }
+
+  public synchronized boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  /** Removes and releases every entry not looked up for longer than the idle timeout. */
+  void reclaimIdle(long now) {
+    List<T> reclaimed = new ArrayList<T>();
+    synchronized (this) {
+      for (int slot = 1; slot < mNextSlot; slot++) {
+        if (mUsed[slot] && now - mLastAccess[slot] > mIdleTimeoutMs) {
+          @SuppressWarnings("unchecked")
+          T value = (T) mValues[slot];
+          if (value != null) {
+            reclaimed.add(value);
+          }
+          free(slot);
+        }
+      }
+    }
+    if (!reclaimed.isEmpty()) {
+      Log.v("Reclaimed " + reclaimed.size() + " idle " + mName + " handles.");
+    }
+    release(reclaimed);
+  }
+
+  /** Removes and releases every entry and stops idle reclamation. */
+  public void close() {
+    List<T> values;
+    synchronized (this) {
+      if (mReaperTask != null) {
+        mReaperTask.cancel(false);
+        mReaperTask = null;
+      }
+      values = values();
+      for (int slot = 1; slot < mNextSlot; slot++) {
+        if (mUsed[slot]) {
+          free(slot);
+        }
+      }
+    }
+    release(values);
+  }
+
+  // Releasers may call into the framework, so they run without holding the lock.
+  private void release(List<T> values) {
+    if (mReleaser == null) {
+      return;
+    }
+    for (T value : values) {
+      try {
+        mReleaser.release(value);
+      } catch (RuntimeException e) {
+        Log.e("Failed to release " + mName + ".", e);
+      }
+    }
+  }
+
+  private int resolve(int handle) {
+    int slot = handle & SLOT_MASK;
+    if ((handle >>> (SLOT_BITS + GENERATION_BITS)) != mTag || slot == 0 || slot >= mNextSlot
+        || !mUsed[slot] || ((handle >>> SLOT_BITS) & GENERATION_MASK) != mGenerations[slot]) {
+      return -1;
+    }
+    return slot;
+  }
+
+  private void free(int slot) {
+    mUsed[slot] = false;
+    mValues[slot] = null;
+    // A new generation makes handles to the old entry stale once the slot is reused.
+    mGenerations[slot] = (mGenerations[slot] + 1) & GENERATION_MASK;
+    mFreeSlots.add(slot);
+    mSize--;
+  }
+
+  private void grow() {
+    int length = Math.min(mValues.length * 2, SLOT_MASK + 1);
+    Object[] values = new Object[length];
+    System.arraycopy(mValues, 0, values, 0, mValues.length);
+    mValues = values;
+    int[] generations = new int[length];
+    System.arraycopy(mGenerations, 0, generations, 0, mGenerations.length);
+    mGenerations = generations;
+    long[] lastAccess = new long[length];
+    System.arraycopy(mLastAccess, 0, lastAccess, 0, mLastAccess.length);
+    mLastAccess = lastAccess;
+    boolean[] used = new boolean[length];
+    System.arraycopy(mUsed, 0, used, 0, mUsed.length);
+    mUsed = used;
+  }
+}
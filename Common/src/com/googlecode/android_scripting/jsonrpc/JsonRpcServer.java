@@ -28,6 +28,7 @@ import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.SimpleServer;
 import com.googlecode.android_scripting.rpc.MethodDescriptor;
 import com.googlecode.android_scripting.rpc.RpcError;
+import com.googlecode.android_scripting.rpc.RpcMetrics;
 
 /**
  * A JSON RPC server that forwards RPC calls to a specified receiver object.
@@ -90,14 +91,16 @@ public class JsonRpcServer extends SimpleServer {
 
             MethodDescriptor rpc = receiverManager.getMethodDescriptor(method);
             if (rpc == null) {
-                send(writer, JsonRpcResult.error(id, new RpcError("Unknown RPC: " + method)), UID);
+                send(writer, JsonRpcResult.error(id, new RpcError("Unknown RPC: " + method)), UID,
+                        RpcMetrics.UNKNOWN);
                 continue;
             }
             try {
-                send(writer, JsonRpcResult.result(id, rpc.invoke(receiverManager, params)), UID);
+                send(writer, JsonRpcResult.result(id, rpc.invoke(receiverManager, params)), UID,
+                        rpc.isMetered() ? method : null);
             } catch (Throwable t) {
                 Log.e("Invocation error.", t);
-                send(writer, JsonRpcResult.error(id, t), UID);
+                send(writer, JsonRpcResult.error(id, t), UID, rpc.isMetered() ? method : null);
             }
             if (method.equals(CMD_CLOSE_SESSION)) {
                 Log.d("Got shutdown signal");
@@ -114,10 +117,17 @@ public class JsonRpcServer extends SimpleServer {
         }
     }
 
-    private void send(PrintWriter writer, JSONObject result, int UID) {
-        writer.write(result + "\n");
+    /**
+     * Sends a response line and records its length under metricsKey, unless metricsKey is null.
+     */
+    private void send(PrintWriter writer, JSONObject result, int UID, String metricsKey) {
+        String response = result.toString();
+        writer.write(response + "\n");
         writer.flush();
-        Log.v("Session " + UID + " Sent: " + result);
+        if (metricsKey != null) {
+            RpcMetrics.getInstance().recordResponse(metricsKey, response.length());
+        }
+        Log.v("Session " + UID + " Sent: " + response);
     }
 
     @Override
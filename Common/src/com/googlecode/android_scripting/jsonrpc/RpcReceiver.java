@@ -16,10 +16,27 @@
 
 package com.googlecode.android_scripting.jsonrpc;
 
+import android.content.Context;
+
+import com.googlecode.android_scripting.MainThread;
+import com.googlecode.android_scripting.rpc.RpcError;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public abstract class RpcReceiver {
 
+  /** How long a task queued by {@link #runOnMainThread} may wait for the main thread. */
+  public static final long MAIN_THREAD_TIMEOUT_MS = 10000;
+
   protected final RpcReceiverManager mManager;
 
+  private final List<HandleRegistry<?>> mHandleRegistries =
+      new CopyOnWriteArrayList<HandleRegistry<?>>();
+
   public RpcReceiver(RpcReceiverManager manager) {
     // To make reflection easier, we ensures that all the subclasses agree on this common
     // constructor.
@@ -28,4 +45,56 @@ public abstract class RpcReceiver {
 
   /** Invoked when the receiver is shut down. */
   public abstract void shutdown();
+
+  /**
+   * Creates a registry of handles owned by this receiver. Its entries live until they are removed
+   * or the session ends.
+   *
+   * @param name
+   *          what the handles refer to, used in error messages
+   */
+  protected <T> HandleRegistry<T> createHandleRegistry(String name) {
+    return createHandleRegistry(name, 0, null);
+  }
+
+  /**
+   * Creates a registry of handles owned by this receiver.
+   *
+   * @param name
+   *          what the handles refer to, used in error messages
+   * @param idleTimeoutMs
+   *          if positive, entries not looked up for this long are removed and released
+   * @param releaser
+   *          releases objects that are reclaimed or left over at the end of the session; may be
+   *          null
+   */
+  protected <T> HandleRegistry<T> createHandleRegistry(String name, long idleTimeoutMs,
+      HandleRegistry.Releaser<T> releaser) {
+    if (mHandleRegistries.size() >= HandleRegistry.MAX_TAG) {
+      throw new IllegalStateException("Too many handle registries.");
+    }
+    HandleRegistry<T> registry =
+        new HandleRegistry<T>(name, mHandleRegistries.size() + 1, idleTimeoutMs, releaser);
+    mHandleRegistries.add(registry);
+    return registry;
+  }
+
+  /**
+   * Runs the task on the main thread and returns its result. Fails the call rather than hanging the
+   * session if the main thread does not get to the task in time.
+   */
+  protected static <T> T runOnMainThread(Context context, Callable<T> task) throws RpcError {
+    try {
+      return MainThread.run(context, task, MAIN_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new RpcError(e.getMessage());
+    }
+  }
+
+  /** Releases the entries of all registries created by this receiver. */
+  public void releaseHandles() {
+    for (HandleRegistry<?> registry : mHandleRegistries) {
+      registry.close();
+    }
+  }
 }
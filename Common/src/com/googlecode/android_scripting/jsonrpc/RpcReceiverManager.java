@@ -94,6 +94,7 @@ public abstract class RpcReceiverManager {
             try {
                 if (receiver != null) {
                     receiver.shutdown();
+                    receiver.releaseHandles();
                 }
             } catch (Exception e) {
                 Log.e("Failed to shut down an RpcReceiver", e);
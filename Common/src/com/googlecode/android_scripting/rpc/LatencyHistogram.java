@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.rpc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of latencies in microseconds.
+ *
+ * <p>Each power of two is split into {@link #SUB_BUCKETS} linear buckets, so a recorded value is
+ * placed within 12.5% of its true value. Recordings are spread over a fixed number of shards by
+ * thread id, so concurrent sessions rarely contend on the same counters and memory does not grow
+ * with the number of threads that have ever recorded; readers sum the shards.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values of 2^32 microseconds (about 71 minutes) and above share the last bucket.
+  private static final int MAX_EXPONENT = 32;
+  private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  // Shard layout: [count, sum, max, bucket 0 ... bucket N-1].
+  private static final int COUNT = 0;
+  private static final int SUM = 1;
+  private static final int MAX = 2;
+  private static final int FIRST_BUCKET = 3;
+  private static final int SHARD_LENGTH = FIRST_BUCKET + BUCKET_COUNT;
+
+  // A power of two, so a thread id maps to a shard with a mask.
+  private static final int SHARD_COUNT = 8;
+
+  private final AtomicLongArray[] mShards = new AtomicLongArray[SHARD_COUNT];
+
+  public LatencyHistogram() {
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      mShards[i] = new AtomicLongArray(SHARD_LENGTH);
+    }
+  }
+
+  /**
+   * Records one latency.
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    long id = Thread.currentThread().getId();
+    AtomicLongArray shard = mShards[(int) (id ^ (id >>> 3)) & (SHARD_COUNT - 1)];
+    shard.incrementAndGet(COUNT);
+    shard.addAndGet(SUM, micros);
+    long max = shard.get(MAX);
+    while (micros > max && !shard.compareAndSet(MAX, max, micros)) {
+      max = shard.get(MAX);
+    }
+    shard.incrementAndGet(FIRST_BUCKET + bucketIndex(micros));
+  }
+
+  /**
+   * Returns the sum of all shards. Recording may continue concurrently; the snapshot reflects some
+   * interleaving of the recordings in flight.
+   */
+  public Snapshot snapshot() {
+    long[] totals = new long[SHARD_LENGTH];
+    for (AtomicLongArray shard : mShards) {
+      for (int i = 0; i < SHARD_LENGTH; i++) {
+        if (i == MAX) {
+          totals[MAX] = Math.max(totals[MAX], shard.get(MAX));
+        } else {
+          totals[i] += shard.get(i);
+        }
+      }
+    }
+    return new Snapshot(totals);
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKET_COUNT - 1);
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int subBucket = index % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /**
+   * An immutable view of a histogram at one point in time. Snapshots can be subtracted, which is
+   * how a histogram is reset without stopping its writers.
+   */
+  public static class Snapshot {
+    private final long[] mTotals;
+
+    private Snapshot(long[] totals) {
+      mTotals = totals;
+    }
+
+    public static Snapshot empty() {
+      return new Snapshot(new long[SHARD_LENGTH]);
+    }
+
+    /**
+     * Returns the recordings made after the baseline was taken. The maximum cannot be subtracted
+     * and is reported as the maximum of the remaining buckets.
+     */
+    public Snapshot since(Snapshot baseline) {
+      long[] totals = new long[SHARD_LENGTH];
+      for (int i = 0; i < SHARD_LENGTH; i++) {
+        totals[i] = mTotals[i] - baseline.mTotals[i];
+      }
+      totals[MAX] = 0;
+      for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+        if (totals[FIRST_BUCKET + i] > 0) {
+          totals[MAX] = i == BUCKET_COUNT - 1
+              ? mTotals[MAX] : Math.min(bucketUpperBound(i), mTotals[MAX]);
+          break;
+        }
+      }
+      return new Snapshot(totals);
+    }
+
+    public long getCount() {
+      return mTotals[COUNT];
+    }
+
+    public long getMax() {
+      return mTotals[MAX];
+    }
+
+    public double getMean() {
+      long count = getCount();
+      return count == 0 ? 0 : (double) mTotals[SUM] / count;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile (0-100) of the recorded latencies.
+     */
+    public long getPercentile(double percentile) {
+      long count = getCount();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(count * percentile / 100.0);
+      if (rank < 1) {
+        rank = 1;
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += mTotals[FIRST_BUCKET + i];
+        if (seen >= rank) {
+          // The last bucket is open-ended.
+          return i == BUCKET_COUNT - 1 ? getMax() : Math.min(bucketUpperBound(i), getMax());
+        }
+      }
+      return getMax();
+    }
+  }
+}
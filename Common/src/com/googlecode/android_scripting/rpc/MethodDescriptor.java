@@ -50,10 +50,19 @@ public final class MethodDescriptor {
 
   private final Method mMethod;
   private final Class<? extends RpcReceiver> mClass;
+  private final String mName;
+  private final boolean mMetered;
 
   public MethodDescriptor(Class<? extends RpcReceiver> clazz, Method method) {
     mClass = clazz;
     mMethod = method;
+    mMetered = !method.isAnnotationPresent(RpcUnmetered.class)
+        && !clazz.isAnnotationPresent(RpcUnmetered.class);
+    if (method.isAnnotationPresent(RpcName.class)) {
+      mName = method.getAnnotation(RpcName.class).name();
+    } else {
+      mName = method.getName();
+    }
   }
 
   @Override
@@ -82,7 +91,18 @@ public final class MethodDescriptor {
    * @throws Throwable
    */
   public Object invoke(RpcReceiverManager manager, final JSONArray parameters) throws Throwable {
+    return invoke(manager, convertParameters(parameters));
+  }
 
+  /**
+   * Converts the JSON parameters of a call into the arguments of the underlying method, filling in
+   * default values for trailing parameters that were left out.
+   *
+   * @param parameters
+   *          {@code JSONArray} containing the parameters
+   * @return the arguments to pass to {@link #invoke(RpcReceiverManager, Object[])}
+   */
+  public Object[] convertParameters(final JSONArray parameters) throws JSONException, RpcError {
     final Type[] parameterTypes = getGenericParameterTypes();
     final Object[] args = new Object[parameterTypes.length];
     final Annotation annotations[][] = getParameterAnnotations();
@@ -101,8 +121,7 @@ public final class MethodDescriptor {
         throw new RpcError("Argument " + (i + 1) + " is not present");
       }
     }
-
-    return invoke(manager, args);
+    return args;
   }
 
   /**
@@ -132,16 +151,49 @@ public final class MethodDescriptor {
     return invoke(manager, args);
   }
 
-  private Object invoke(RpcReceiverManager manager, Object[] args) throws Throwable{
+  /**
+   * Invokes the call that belongs to this object with already converted arguments.
+   *
+   * @param args
+   *          arguments as returned by {@link #convertParameters(JSONArray)}
+   * @return result
+   * @throws Throwable
+   */
+  public Object invoke(RpcReceiverManager manager, Object[] args) throws Throwable {
+    return invoke(manager, args, isMetered());
+  }
+
+  /**
+   * Invokes the RPC without recording it in {@link RpcMetrics}, for benchmarks that would
+   * otherwise skew the latencies of real calls.
+   */
+  public Object invokeUnmetered(RpcReceiverManager manager, Object[] args) throws Throwable {
+    return invoke(manager, args, false);
+  }
+
+  private Object invoke(RpcReceiverManager manager, Object[] args, boolean metered)
+      throws Throwable {
     Object result = null;
+    boolean failed = true;
+    long start = System.nanoTime();
     try {
       result = manager.invoke(mClass, mMethod, args);
+      failed = false;
     } catch (Throwable t) {
       throw t.getCause();
+    } finally {
+      if (metered) {
+        RpcMetrics.getInstance().recordCall(getName(), System.nanoTime() - start, failed);
+      }
     }
     return result;
   }
 
+  /** Returns false for RPCs marked {@link RpcUnmetered}, which are not recorded in metrics. */
+  public boolean isMetered() {
+    return mMetered;
+  }
+
   /**
    * Converts a parameter from JSON into a Java Object.
    *
@@ -282,10 +334,7 @@ public final class MethodDescriptor {
   }
 
   public String getName() {
-    if (mMethod.isAnnotationPresent(RpcName.class)) {
-      return mMethod.getAnnotation(RpcName.class).name();
-    }
-    return mMethod.getName();
+    return mName;
   }
 
   public Type[] getGenericParameterTypes() {
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.rpc;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters for RPC calls and events, shared by all sessions.
+ *
+ * <p>Recording never blocks: counters are atomic and latencies go to striped histogram shards.
+ * {@link #reset()} records a baseline instead of clearing anything, and snapshots report what
+ * happened since the last reset.
+ *
+ * <p>Keys stay bounded over the life of the server: callers report RPCs that do not resolve to a
+ * registered method as {@link #UNKNOWN}, ids and UUIDs embedded in event names are replaced with
+ * {@code #}, and names beyond {@link #MAX_KEYS} share the {@link #UNKNOWN} entry.
+ */
+public class RpcMetrics {
+
+  /** Key for RPCs that are not registered and for names recorded once the key limit is hit. */
+  public static final String UNKNOWN = "<unknown>";
+
+  /** Most distinct RPC or event names tracked. */
+  public static final int MAX_KEYS = 1024;
+
+  // Per-instance ids in event names: UUIDs, MAC addresses, and numbers that end the name or come
+  // right before the callback name, as in HttpDownload3onProgress.
+  private static final int[] UUID_GROUPS = {8, 4, 4, 4, 12};
+  private static final int[] MAC_GROUPS = {2, 2, 2, 2, 2, 2};
+
+  private static final RpcMetrics sInstance = new RpcMetrics();
+
+  private final ConcurrentHashMap<String, MethodMetrics> mMethods =
+      new ConcurrentHashMap<String, MethodMetrics>();
+  private final ConcurrentHashMap<String, EventMetrics> mEvents =
+      new ConcurrentHashMap<String, EventMetrics>();
+  private volatile long mResetTimeMillis = System.currentTimeMillis();
+
+  private static class MethodMetrics {
+    private final AtomicLong mmCalls = new AtomicLong();
+    private final AtomicLong mmErrors = new AtomicLong();
+    private final AtomicLong mmResponses = new AtomicLong();
+    private final AtomicLong mmResponseChars = new AtomicLong();
+    private final AtomicLong mmMaxResponseChars = new AtomicLong();
+    private final LatencyHistogram mmLatency = new LatencyHistogram();
+    private volatile LatencyHistogram.Snapshot mmBaseline = LatencyHistogram.Snapshot.empty();
+
+    private void reset() {
+      mmCalls.set(0);
+      mmErrors.set(0);
+      mmResponses.set(0);
+      mmResponseChars.set(0);
+      mmMaxResponseChars.set(0);
+      mmBaseline = mmLatency.snapshot();
+    }
+
+    private JSONObject toJson() throws JSONException {
+      LatencyHistogram.Snapshot latency = mmLatency.snapshot().since(mmBaseline);
+      long responses = mmResponses.get();
+      JSONObject json = new JSONObject();
+      json.put("calls", mmCalls.get());
+      json.put("errors", mmErrors.get());
+      json.put("latencyMeanUs", latency.getMean());
+      json.put("latencyP50Us", latency.getPercentile(50));
+      json.put("latencyP90Us", latency.getPercentile(90));
+      json.put("latencyP99Us", latency.getPercentile(99));
+      json.put("latencyMaxUs", latency.getMax());
+      json.put("responseCharsMean", responses == 0 ? 0 : mmResponseChars.get() / responses);
+      json.put("responseCharsMax", mmMaxResponseChars.get());
+      return json;
+    }
+  }
+
+  private static class EventMetrics {
+    private final AtomicLong mmPosted = new AtomicLong();
+    private final AtomicLong mmDropped = new AtomicLong();
+
+    private void reset() {
+      mmPosted.set(0);
+      mmDropped.set(0);
+    }
+
+    private JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("posted", mmPosted.get());
+      json.put("dropped", mmDropped.get());
+      return json;
+    }
+  }
+
+  private RpcMetrics() {
+  }
+
+  public static RpcMetrics getInstance() {
+    return sInstance;
+  }
+
+  /** Records a completed invocation of the named RPC. */
+  public void recordCall(String method, long latencyNanos, boolean failed) {
+    MethodMetrics metrics = getMethod(method);
+    metrics.mmCalls.incrementAndGet();
+    if (failed) {
+      metrics.mmErrors.incrementAndGet();
+    }
+    metrics.mmLatency.record(latencyNanos / 1000);
+  }
+
+  /** Records the length of a response line sent for the named RPC. */
+  public void recordResponse(String method, int chars) {
+    MethodMetrics metrics = getMethod(method);
+    metrics.mmResponses.incrementAndGet();
+    metrics.mmResponseChars.addAndGet(chars);
+    long max;
+    do {
+      max = metrics.mmMaxResponseChars.get();
+    } while (chars > max && !metrics.mmMaxResponseChars.compareAndSet(max, chars));
+  }
+
+  /** Records an event posted to an event queue. */
+  public void recordEventPosted(String name) {
+    getEvent(normalizeEventName(name)).mmPosted.incrementAndGet();
+  }
+
+  /** Records an event discarded because its queue was full. */
+  public void recordEventDropped(String name) {
+    getEvent(normalizeEventName(name)).mmDropped.incrementAndGet();
+  }
+
+  /**
+   * Replaces the ids that callback events embed in their names, e.g. HttpDownload3onProgress
+   * becomes HttpDownload#onProgress. Events are recorded on every post, so this scans by hand
+   * and only allocates for names that contain an id.
+   */
+  static String normalizeEventName(String name) {
+    StringBuilder normalized = null;
+    int copied = 0;
+    int i = 0;
+    while (i < name.length()) {
+      int end = matchEventId(name, i);
+      if (end < 0) {
+        i++;
+        continue;
+      }
+      if (normalized == null) {
+        normalized = new StringBuilder(name.length());
+      }
+      normalized.append(name, copied, i).append('#');
+      copied = i = end;
+    }
+    if (normalized == null) {
+      return name;
+    }
+    return normalized.append(name, copied, name.length()).toString();
+  }
+
+  /** Returns the end of the id starting at start, or -1 if there is none. */
+  private static int matchEventId(String name, int start) {
+    int end = matchHexGroups(name, start, UUID_GROUPS, '-');
+    if (end < 0) {
+      end = matchHexGroups(name, start, MAC_GROUPS, ':');
+    }
+    if (end < 0) {
+      end = start;
+      while (end < name.length() && isDigit(name.charAt(end))) {
+        end++;
+      }
+      if (end == start || (end < name.length() && !name.startsWith("on", end))) {
+        end = -1;
+      }
+    }
+    return end;
+  }
+
+  /** Matches runs of hex digits of the given lengths joined by the separator. */
+  private static int matchHexGroups(String name, int start, int[] groups, char separator) {
+    int end = start;
+    for (int group = 0; group < groups.length; group++) {
+      if (group > 0) {
+        if (end >= name.length() || name.charAt(end) != separator) {
+          return -1;
+        }
+        end++;
+      }
+      for (int i = 0; i < groups[group]; i++, end++) {
+        if (end >= name.length() || !isHexDigit(name.charAt(end))) {
+          return -1;
+        }
+      }
+    }
+    return end;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isHexDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  /**
+   * Starts a new measurement period. Counters restart from zero and histograms report only later
+   * recordings.
+   */
+  public void reset() {
+    for (MethodMetrics metrics : mMethods.values()) {
+      metrics.reset();
+    }
+    for (EventMetrics metrics : mEvents.values()) {
+      metrics.reset();
+    }
+    mResetTimeMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns the metrics recorded since the last reset, keyed by RPC and event name.
+   */
+  public JSONObject snapshot() throws JSONException {
+    JSONObject methods = new JSONObject();
+    for (Map.Entry<String, MethodMetrics> entry : mMethods.entrySet()) {
+      methods.put(entry.getKey(), entry.getValue().toJson());
+    }
+    JSONObject events = new JSONObject();
+    for (Map.Entry<String, EventMetrics> entry : mEvents.entrySet()) {
+      events.put(entry.getKey(), entry.getValue().toJson());
+    }
+    JSONObject snapshot = new JSONObject();
+    snapshot.put("since", mResetTimeMillis);
+    snapshot.put("time", System.currentTimeMillis());
+    snapshot.put("methods", methods);
+    snapshot.put("events", events);
+    return snapshot;
+  }
+
+  private MethodMetrics getMethod(String method) {
+    MethodMetrics metrics = mMethods.get(method);
+    if (metrics == null) {
+      if (mMethods.size() >= MAX_KEYS && !UNKNOWN.equals(method)) {
+        return getMethod(UNKNOWN);
+      }
+      MethodMetrics created = new MethodMetrics();
+      metrics = mMethods.putIfAbsent(method, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+
+  private EventMetrics getEvent(String name) {
+    EventMetrics metrics = mEvents.get(name);
+    if (metrics == null) {
+      if (mEvents.size() >= MAX_KEYS && !UNKNOWN.equals(name)) {
+        return getEvent(UNKNOWN);
+      }
+      EventMetrics created = new EventMetrics();
+      metrics = mEvents.putIfAbsent(name, created);
+      if (metrics == null) {
+        metrics = created;
+      }
+    }
+    return metrics;
+  }
+}
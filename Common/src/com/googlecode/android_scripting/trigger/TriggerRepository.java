@@ -147,7 +147,7 @@ public class TriggerRepository {
     }
     try {
       final ByteArrayInputStream inputStream =
-          new ByteArrayInputStream(Base64Codec.decodeBase64(triggers.getBytes()));
+          new ByteArrayInputStream(Base64Codec.decodeBase64(triggers));
       final ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
       return (Multimap<String, Trigger>) objectInputStream.readObject();
     } catch (Exception e) {
@@ -162,7 +162,7 @@ public class TriggerRepository {
       final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
       final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
       objectOutputStream.writeObject(triggers);
-      return new String(Base64Codec.encodeBase64(outputStream.toByteArray()));
+      return Base64Codec.encodeBase64String(outputStream.toByteArray(), false);
     } catch (IOException e) {
       Log.e(e);
       return null;
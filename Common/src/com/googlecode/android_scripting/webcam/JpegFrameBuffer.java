@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.webcam;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Holds the latest encoded frame of an MJPEG stream.
+ *
+ * <p>Each published frame gets the next sequence number and is framed as a complete multipart
+ * part once, so every client writes the same bytes with a single write. Clients wait for a
+ * sequence number newer than the last one they sent; a client that falls behind simply picks up
+ * the latest frame and never sees the ones in between.
+ */
+class JpegFrameBuffer implements JpegProvider {
+
+  static final String BOUNDARY = "--BoundaryString";
+
+  private static final byte[] TRAILER = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private Frame mFrame;
+  private long mSequence;
+  private boolean mClosed;
+
+  /**
+   * One multipart part: boundary, headers, JPEG data and trailer.
+   */
+  static class Frame {
+    private final long mmSequence;
+    private final byte[] mmPart;
+
+    private Frame(long sequence, byte[] part) {
+      mmSequence = sequence;
+      mmPart = part;
+    }
+
+    long getSequence() {
+      return mmSequence;
+    }
+
+    byte[] getPart() {
+      return mmPart;
+    }
+  }
+
+  /**
+   * Publishes {@code length} bytes of JPEG data starting at {@code offset} as the next frame and
+   * wakes all waiting clients.
+   */
+  void publish(byte[] jpeg, int offset, int length) {
+    byte[] header = (BOUNDARY + "\r\n" + "Content-type: image/jpg\r\n" + "Content-Length: "
+        + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] part = new byte[header.length + length + TRAILER.length];
+    System.arraycopy(header, 0, part, 0, header.length);
+    System.arraycopy(jpeg, offset, part, header.length, length);
+    System.arraycopy(TRAILER, 0, part, header.length + length, TRAILER.length);
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mFrame = new Frame(++mSequence, part);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Opens the buffer for a new stream. Sequence numbers keep increasing across streams.
+   */
+  synchronized void open() {
+    mFrame = null;
+    mClosed = false;
+  }
+
+  /**
+   * Drops the current frame, so that clients wait for the next one.
+   */
+  synchronized void clear() {
+    mFrame = null;
+  }
+
+  /**
+   * Ends the stream. Waiting clients wake up and receive null.
+   */
+  synchronized void close() {
+    mClosed = true;
+    mFrame = null;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized Frame awaitFrame(long lastSequence) throws InterruptedException {
+    while (!mClosed && (mFrame == null || mFrame.mmSequence <= lastSequence)) {
+      wait();
+    }
+    return mClosed ? null : mFrame;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.webcam;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A reusable JPEG output buffer whose contents can be read in place. A buffer is claimed before a
+ * frame is compressed into it and released once every consumer of that frame is done with it.
+ */
+class JpegOutputBuffer extends ByteArrayOutputStream {
+
+  private final Semaphore mAvailable = new Semaphore(1);
+
+  JpegOutputBuffer(int initialSize) {
+    super(initialSize);
+  }
+
+  /**
+   * Claims the buffer and clears it, or returns false if a consumer still holds it.
+   */
+  boolean tryClaim() {
+    if (!mAvailable.tryAcquire()) {
+      return false;
+    }
+    reset();
+    return true;
+  }
+
+  void release() {
+    mAvailable.release();
+  }
+
+  /**
+   * Returns the backing array. Only the first {@link #size()} bytes are valid, and only while the
+   * buffer is claimed.
+   */
+  byte[] getData() {
+    return buf;
+  }
+}
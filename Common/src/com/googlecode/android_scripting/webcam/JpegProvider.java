@@ -17,5 +17,9 @@
 package com.googlecode.android_scripting.webcam;
 
 interface JpegProvider {
-  public byte[] getJpeg();
-}
\ No newline at end of file
+  /**
+   * Blocks until a frame newer than {@code lastSequence} is available and returns it, or returns
+   * null once the stream has ended.
+   */
+  public JpegFrameBuffer.Frame awaitFrame(long lastSequence) throws InterruptedException;
+}
@@ -34,8 +34,8 @@ class MjpegServer extends SimpleServer {
   @Override
   protected void handleConnection(Socket socket) throws Exception {
     Log.d("handle Mjpeg connection");
-    byte[] data = mProvider.getJpeg();
-    if (data == null) {
+    JpegFrameBuffer.Frame frame = mProvider.awaitFrame(0);
+    if (frame == null) {
       return;
     }
     OutputStream outputStream = socket.getOutputStream();
@@ -47,18 +47,15 @@ class MjpegServer extends SimpleServer {
         "Expires: 0\r\n" +
         "Cache-Control: no-cache, private\r\n" +
         "Pragma: no-cache\r\n" +
-        "Content-Type: multipart/x-mixed-replace; boundary=--BoundaryString\r\n\r\n").getBytes());
-    while (true) {
-      data = mProvider.getJpeg();
-      if (data == null) {
-        return;
-      }
-      outputStream.write("--BoundaryString\r\n".getBytes());
-      outputStream.write("Content-type: image/jpg\r\n".getBytes());
-      outputStream.write(("Content-Length: " + data.length + "\r\n\r\n").getBytes());
-      outputStream.write(data);
-      outputStream.write("\r\n\r\n".getBytes());
+        "Content-Type: multipart/x-mixed-replace; boundary=" + JpegFrameBuffer.BOUNDARY
+        + "\r\n\r\n").getBytes());
+    while (frame != null) {
+      // The part is shared by all clients and already carries its boundary and headers. While
+      // this write blocks on a slow client, newer frames replace each other in the buffer and the
+      // client resumes with the latest one.
+      outputStream.write(frame.getPart());
       outputStream.flush();
+      frame = mProvider.awaitFrame(frame.getSequence());
     }
   }
 
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.webcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped file divided into fixed-size slots that preview frames are written to in turn.
+ * A local client maps the same file and reads a frame at the offset given in its event, instead of
+ * receiving the image inline. A slot is overwritten after {@code slotCount} further frames, so
+ * clients must copy a frame out before then.
+ */
+class PreviewFrameRing {
+
+  private final File mFile;
+  private final RandomAccessFile mRandomAccessFile;
+  private final MappedByteBuffer mBuffer;
+  private final int mSlotCount;
+  private final int mSlotSize;
+  private long mSequence;
+
+  PreviewFrameRing(File file, int slotCount, int slotSize) throws IOException {
+    mFile = file;
+    mSlotCount = slotCount;
+    mSlotSize = slotSize;
+    mRandomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      mRandomAccessFile.setLength((long) slotCount * slotSize);
+      mBuffer = mRandomAccessFile.getChannel()
+          .map(FileChannel.MapMode.READ_WRITE, 0, (long) slotCount * slotSize);
+    } catch (IOException e) {
+      mRandomAccessFile.close();
+      throw e;
+    }
+  }
+
+  File getFile() {
+    return mFile;
+  }
+
+  /**
+   * Returns the number of frames written so far, which is also the sequence number of the last.
+   */
+  synchronized long getSequence() {
+    return mSequence;
+  }
+
+  /**
+   * Copies the frame into the next slot and returns its offset in the file, or -1 if the frame
+   * does not fit in a slot.
+   */
+  synchronized int write(byte[] data, int length) {
+    if (length > mSlotSize) {
+      return -1;
+    }
+    int offset = (int) (mSequence++ % mSlotCount) * mSlotSize;
+    mBuffer.position(offset);
+    mBuffer.put(data, 0, length);
+    return offset;
+  }
+
+  synchronized void close() {
+    try {
+      mRandomAccessFile.close();
+    } catch (IOException e) {
+      // Nothing left to do with the file.
+    }
+    mFile.delete();
+  }
+}
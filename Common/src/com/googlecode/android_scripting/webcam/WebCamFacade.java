@@ -16,7 +16,6 @@
 
 package com.googlecode.android_scripting.webcam;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -25,9 +24,9 @@ import java.net.InetSocketAddress;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
 import android.app.Service;
@@ -76,10 +75,12 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
  * <li><b>quality</b> - JPEG quality. Number from 1-100
  * <li><b>filename</b> - Name of file where image was saved. Only relevant if filepath defined.
  * <li><b>error</b> - included if there was an IOException saving file, ie, disk full or path write protected.
- * <li><b>encoding</b> - Data encoding. If filepath defined, will be "file" otherwise "base64"
+ * <li><b>encoding</b> - Data encoding. If filepath defined, will be "file" otherwise "base64", unless requested otherwise.
  * <li><b>data</b> - Base64 encoded image data.
+ * <li><b>offset</b>, <b>length</b>, <b>sequence</b> - With the "mmap" encoding, where the frame sits in the file named by "filename". The file holds a ring of 8 frames, so a frame must be read before 8 more arrive.
  * </ul>
  *<br>Note that "filename", "error" and "data" are mutual exclusive.
+ *<br>Frames are captured into a small pool of buffers and compressed on a separate thread, so a slow consumer causes frames to be dropped rather than delayed. Use "frameSkip" and "scale" to reduce the event rate and image size.
  *<br>
  *<br>The webcam and preview modes use the same resources, so you can't use them both at the same time. Stop one mode before starting the other.
  *
@@ -87,25 +88,48 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
  */
 public class WebCamFacade extends RpcReceiver {
 
+  private static final String PREVIEW_ENCODING_BASE64 = "base64";
+  private static final String PREVIEW_ENCODING_FILE = "file";
+  private static final String PREVIEW_ENCODING_MMAP = "mmap";
+  private static final int CALLBACK_BUFFER_COUNT = 3;
+  private static final int FRAME_RING_SLOTS = 8;
+
   private final Service mService;
   private final Executor mJpegCompressionExecutor = new SingleThreadExecutor();
-  private final ByteArrayOutputStream mJpegCompressionBuffer = new ByteArrayOutputStream();
+  private final Executor mPreviewDeliveryExecutor = new SingleThreadExecutor();
+  // Frames alternate between the two buffers, so one can be compressed into while the previous
+  // frame is still being delivered.
+  private final JpegOutputBuffer[] mJpegBuffers =
+      { new JpegOutputBuffer(64 * 1024), new JpegOutputBuffer(64 * 1024) };
+  private final Object mCameraLock = new Object();
+
+  private final JpegFrameBuffer mFrameBuffer = new JpegFrameBuffer();
 
-  private volatile byte[] mJpegData;
+  // YuvImage keeps a reference to its data, so one is created per pooled callback buffer.
+  private final Map<byte[], YuvImage> mYuvImages = new IdentityHashMap<byte[], YuvImage>();
+  private int mJpegBufferIndex;
+  private YuvImage mScaledYuvImage;
+  private Rect mJpegRect;
 
-  private CountDownLatch mJpegDataReady;
   private boolean mStreaming;
   private int mPreviewHeight;
   private int mPreviewWidth;
   private int mJpegQuality;
+  private int mJpegHeight;
+  private int mJpegWidth;
+  private int mScale = 1;
+  private int mFrameSkip;
+  private int mFrameCount;
 
   private MjpegServer mJpegServer;
   private FutureActivityTask<SurfaceHolder> mPreviewTask;
-  private Camera mCamera;
+  private volatile Camera mCamera;
   private Parameters mParameters;
   private final EventFacade mEventFacade;
   private boolean mPreview;
   private File mDest;
+  private volatile String mPreviewEncoding;
+  private volatile PreviewFrameRing mFrameRing;
 
   private final PreviewCallback mPreviewCallback = new PreviewCallback() {
     @Override
@@ -113,10 +137,10 @@ public class WebCamFacade extends RpcReceiver {
       mJpegCompressionExecutor.execute(new Runnable() {
         @Override
         public void run() {
-          mJpegData = compressYuvToJpeg(data);
-          mJpegDataReady.countDown();
-          if (mStreaming) {
-            camera.setOneShotPreviewCallback(mPreviewCallback);
+          JpegOutputBuffer jpeg = compressYuvToJpeg(data, camera);
+          if (jpeg != null) {
+            mFrameBuffer.publish(jpeg.getData(), 0, jpeg.size());
+            jpeg.release();
           }
         }
       });
@@ -126,35 +150,27 @@ public class WebCamFacade extends RpcReceiver {
   private final PreviewCallback mPreviewEvent = new PreviewCallback() {
     @Override
     public void onPreviewFrame(final byte[] data, final Camera camera) {
+      if (mFrameCount++ % (mFrameSkip + 1) != 0) {
+        returnCallbackBuffer(data, camera);
+        return;
+      }
       mJpegCompressionExecutor.execute(new Runnable() {
         @Override
         public void run() {
-          mJpegData = compressYuvToJpeg(data);
-          Map<String,Object> map = new HashMap<String, Object>();
-          map.put("format", "jpeg");
-          map.put("width", mPreviewWidth);
-          map.put("height", mPreviewHeight);
-          map.put("quality", mJpegQuality);
-          if (mDest!=null) {
-            try {
-              File dest=File.createTempFile("prv",".jpg",mDest);
-              OutputStream output = new FileOutputStream(dest);
-              output.write(mJpegData);
-              output.close();
-              map.put("encoding","file");
-              map.put("filename",dest.toString());
-            } catch (IOException e) {
-              map.put("error", e.toString());
-            }
-          }
-          else {
-            map.put("encoding","Base64");
-            map.put("data", Base64.encodeToString(mJpegData, Base64.DEFAULT));
-          }
-          mEventFacade.postEvent("preview", map);
-          if (mPreview) {
-            camera.setOneShotPreviewCallback(mPreviewEvent);
+          final JpegOutputBuffer jpeg = compressYuvToJpeg(data, camera);
+          if (jpeg == null) {
+            return;
           }
+          mPreviewDeliveryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                postPreviewEvent(jpeg);
+              } finally {
+                jpeg.release();
+              }
+            }
+          });
         }
       });
     }
@@ -163,27 +179,122 @@ public class WebCamFacade extends RpcReceiver {
   public WebCamFacade(FacadeManager manager) {
     super(manager);
     mService = manager.getService();
-    mJpegDataReady = new CountDownLatch(1);
     mEventFacade = manager.getReceiver(EventFacade.class);
   }
 
-  private byte[] compressYuvToJpeg(final byte[] yuvData) {
-    mJpegCompressionBuffer.reset();
-    YuvImage yuvImage =
-        new YuvImage(yuvData, ImageFormat.NV21, mPreviewWidth, mPreviewHeight, null);
-    yuvImage.compressToJpeg(new Rect(0, 0, mPreviewWidth, mPreviewHeight), mJpegQuality,
-        mJpegCompressionBuffer);
-    return mJpegCompressionBuffer.toByteArray();
+  /**
+   * Compresses the frame into the next free JPEG buffer and hands the callback buffer back to the
+   * camera. Returns the claimed buffer, or null if the frame was dropped because the previous
+   * frame in that buffer is still being delivered.
+   */
+  private JpegOutputBuffer compressYuvToJpeg(final byte[] yuvData, Camera camera) {
+    JpegOutputBuffer jpeg = mJpegBuffers[mJpegBufferIndex];
+    // Frames from a camera that has since been reopened no longer match the preview size.
+    if (camera != mCamera || !jpeg.tryClaim()) {
+      returnCallbackBuffer(yuvData, camera);
+      return null;
+    }
+    mJpegBufferIndex = (mJpegBufferIndex + 1) % mJpegBuffers.length;
+    YuvImage yuvImage;
+    if (mScale > 1) {
+      yuvImage = mScaledYuvImage;
+      downscaleNv21(yuvData, mPreviewWidth, mPreviewHeight, mScale, yuvImage.getYuvData(),
+          mJpegWidth, mJpegHeight);
+      returnCallbackBuffer(yuvData, camera);
+      yuvImage.compressToJpeg(mJpegRect, mJpegQuality, jpeg);
+    } else {
+      yuvImage = mYuvImages.get(yuvData);
+      if (yuvImage == null) {
+        yuvImage = new YuvImage(yuvData, ImageFormat.NV21, mPreviewWidth, mPreviewHeight, null);
+        mYuvImages.put(yuvData, yuvImage);
+      }
+      yuvImage.compressToJpeg(mJpegRect, mJpegQuality, jpeg);
+      returnCallbackBuffer(yuvData, camera);
+    }
+    return jpeg;
+  }
+
+  /**
+   * Keeps every {@code scale}th pixel of an NV21 frame. Chroma samples are kept in V/U pairs.
+   */
+  private static void downscaleNv21(byte[] in, int width, int height, int scale, byte[] out,
+      int outWidth, int outHeight) {
+    int o = 0;
+    for (int y = 0; y < outHeight; y++) {
+      int row = y * scale * width;
+      for (int x = 0; x < outWidth; x++) {
+        out[o++] = in[row + x * scale];
+      }
+    }
+    int chroma = width * height;
+    for (int y = 0; y < outHeight / 2; y++) {
+      int row = chroma + y * scale * width;
+      for (int x = 0; x < outWidth; x += 2) {
+        int i = row + x * scale;
+        out[o++] = in[i];
+        out[o++] = in[i + 1];
+      }
+    }
+  }
+
+  private void returnCallbackBuffer(byte[] data, Camera camera) {
+    synchronized (mCameraLock) {
+      // The camera may have been released while the frame was being compressed.
+      if (camera == mCamera) {
+        camera.addCallbackBuffer(data);
+      }
+    }
+  }
+
+  private void postPreviewEvent(JpegOutputBuffer jpeg) {
+    Map<String,Object> map = new HashMap<String, Object>();
+    map.put("format", "jpeg");
+    map.put("width", mJpegWidth);
+    map.put("height", mJpegHeight);
+    map.put("quality", mJpegQuality);
+    PreviewFrameRing ring = mFrameRing;
+    if (PREVIEW_ENCODING_MMAP.equals(mPreviewEncoding) && ring != null) {
+      int offset = ring.write(jpeg.getData(), jpeg.size());
+      if (offset < 0) {
+        map.put("error", "Frame of " + jpeg.size() + " bytes does not fit in a ring slot.");
+      } else {
+        map.put("encoding", PREVIEW_ENCODING_MMAP);
+        map.put("filename", ring.getFile().toString());
+        map.put("offset", offset);
+        map.put("length", jpeg.size());
+        map.put("sequence", ring.getSequence());
+      }
+    } else if (PREVIEW_ENCODING_FILE.equals(mPreviewEncoding)) {
+      try {
+        File dest=File.createTempFile("prv",".jpg",mDest);
+        OutputStream output = new FileOutputStream(dest);
+        try {
+          output.write(jpeg.getData(), 0, jpeg.size());
+        } finally {
+          output.close();
+        }
+        map.put("encoding","file");
+        map.put("filename",dest.toString());
+      } catch (IOException e) {
+        map.put("error", e.toString());
+      }
+    }
+    else {
+      map.put("encoding","Base64");
+      map.put("data", Base64.encodeToString(jpeg.getData(), 0, jpeg.size(), Base64.DEFAULT));
+    }
+    mEventFacade.postEvent("preview", map);
   }
 
   @Rpc(description = "Starts an MJPEG stream and returns a Tuple of address and port for the stream.")
   public InetSocketAddress webcamStart(
       @RpcParameter(name = "resolutionLevel", description = "increasing this number provides higher resolution") @RpcDefault("0") Integer resolutionLevel,
       @RpcParameter(name = "jpegQuality", description = "a number from 0-100") @RpcDefault("20") Integer jpegQuality,
-      @RpcParameter(name = "port", description = "If port is specified, the webcam service will bind to port, otherwise it will pick any available port.") @RpcDefault("0") Integer port)
+      @RpcParameter(name = "port", description = "If port is specified, the webcam service will bind to port, otherwise it will pick any available port.") @RpcDefault("0") Integer port,
+      @RpcParameter(name = "scale", description = "Downscale factor applied before compression: 1, 2 or 4.") @RpcDefault("1") Integer scale)
       throws Exception {
     try {
-      openCamera(resolutionLevel, jpegQuality);
+      openCamera(resolutionLevel, jpegQuality, scale);
       return startServer(port);
     } catch (Exception e) {
       webcamStop();
@@ -192,17 +303,8 @@ public class WebCamFacade extends RpcReceiver {
   }
 
   private InetSocketAddress startServer(Integer port) {
-    mJpegServer = new MjpegServer(new JpegProvider() {
-      @Override
-      public byte[] getJpeg() {
-        try {
-          mJpegDataReady.await();
-        } catch (InterruptedException e) {
-          Log.e(e);
-        }
-        return mJpegData;
-      }
-    });
+    mFrameBuffer.open();
+    mJpegServer = new MjpegServer(mFrameBuffer);
     mJpegServer.addObserver(new SimpleServerObserver() {
       @Override
       public void onDisconnect() {
@@ -222,6 +324,7 @@ public class WebCamFacade extends RpcReceiver {
   }
 
   private void stopServer() {
+    mFrameBuffer.close();
     if (mJpegServer != null) {
       mJpegServer.shutdown();
       mJpegServer = null;
@@ -231,23 +334,25 @@ public class WebCamFacade extends RpcReceiver {
   @Rpc(description = "Adjusts the quality of the webcam stream while it is running.")
   public void webcamAdjustQuality(
       @RpcParameter(name = "resolutionLevel", description = "increasing this number provides higher resolution") @RpcDefault("0") Integer resolutionLevel,
-      @RpcParameter(name = "jpegQuality", description = "a number from 0-100") @RpcDefault("20") Integer jpegQuality)
+      @RpcParameter(name = "jpegQuality", description = "a number from 0-100") @RpcDefault("20") Integer jpegQuality,
+      @RpcParameter(name = "scale", description = "Downscale factor applied before compression: 1, 2 or 4.") @RpcDefault("1") Integer scale)
       throws Exception {
     if (mStreaming == false) {
       throw new IllegalStateException("Webcam not streaming.");
     }
     stopStream();
     releaseCamera();
-    openCamera(resolutionLevel, jpegQuality);
+    openCamera(resolutionLevel, jpegQuality, scale);
     startStream();
   }
 
-  private void openCamera(Integer resolutionLevel, Integer jpegQuality) throws IOException,
-      InterruptedException {
+  private void openCamera(Integer resolutionLevel, Integer jpegQuality, Integer scale)
+      throws IOException, InterruptedException {
     mCamera = Camera.open();
     mParameters = mCamera.getParameters();
     mParameters.setPictureFormat(ImageFormat.JPEG);
-    mParameters.setPreviewFormat(ImageFormat.JPEG);
+    // Frames are compressed with YuvImage, which expects NV21.
+    mParameters.setPreviewFormat(ImageFormat.NV21);
     List<Size> supportedPreviewSizes = mParameters.getSupportedPreviewSizes();
     Collections.sort(supportedPreviewSizes, new Comparator<Size>() {
       @Override
@@ -262,19 +367,51 @@ public class WebCamFacade extends RpcReceiver {
     mParameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
     mJpegQuality = Math.min(Math.max(jpegQuality, 0), 100);
     mCamera.setParameters(mParameters);
+    configureCompression(scale);
     // TODO(damonkohler): Rotate image based on orientation.
     mPreviewTask = createPreviewTask();
     mCamera.startPreview();
   }
 
+  /**
+   * Sizes the JPEG output for the downscale factor and hands the camera a pool of preview buffers,
+   * so that the camera keeps capturing while a frame is being compressed. When every buffer is in
+   * use the camera drops frames instead of queueing them.
+   */
+  private void configureCompression(Integer scale) {
+    mScale = scale >= 4 ? 4 : scale >= 2 ? 2 : 1;
+    // NV21 needs even dimensions.
+    mJpegWidth = (mPreviewWidth / mScale) & ~1;
+    mJpegHeight = (mPreviewHeight / mScale) & ~1;
+    mJpegRect = new Rect(0, 0, mJpegWidth, mJpegHeight);
+    mScaledYuvImage = mScale > 1 ? new YuvImage(new byte[mJpegWidth * mJpegHeight * 3 / 2],
+        ImageFormat.NV21, mJpegWidth, mJpegHeight, null) : null;
+    // Cleared on the compression thread, which is the only one that uses the map.
+    mJpegCompressionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        mYuvImages.clear();
+      }
+    });
+    int bufferSize =
+        mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+    for (int i = 0; i < CALLBACK_BUFFER_COUNT; i++) {
+      mCamera.addCallbackBuffer(new byte[bufferSize]);
+    }
+  }
+
   private void startStream() {
     mStreaming = true;
-    mCamera.setOneShotPreviewCallback(mPreviewCallback);
+    mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
   }
 
   private void stopStream() {
-    mJpegDataReady = new CountDownLatch(1);
+    // Drop the last frame so that a client connecting later does not start with a stale one.
+    mFrameBuffer.clear();
     mStreaming = false;
+    if (mCamera != null) {
+      mCamera.setPreviewCallbackWithBuffer(null);
+    }
     if (mPreviewTask != null) {
       mPreviewTask.finish();
       mPreviewTask = null;
@@ -282,9 +419,11 @@ public class WebCamFacade extends RpcReceiver {
   }
 
   private void releaseCamera() {
-    if (mCamera != null) {
-      mCamera.release();
-      mCamera = null;
+    synchronized (mCameraLock) {
+      if (mCamera != null) {
+        mCamera.release();
+        mCamera = null;
+      }
     }
     mParameters = null;
   }
@@ -334,7 +473,10 @@ public class WebCamFacade extends RpcReceiver {
   public boolean cameraStartPreview(
           @RpcParameter(name = "resolutionLevel", description = "increasing this number provides higher resolution") @RpcDefault("0") Integer resolutionLevel,
           @RpcParameter(name = "jpegQuality", description = "a number from 0-100") @RpcDefault("20") Integer jpegQuality,
-          @RpcParameter(name = "filepath", description = "Path to store jpeg files.") @RpcOptional String filepath)
+          @RpcParameter(name = "filepath", description = "Path to store jpeg files.") @RpcOptional String filepath,
+          @RpcParameter(name = "encoding", description = "How frames are passed in events: base64, file (a new file per frame in filepath) or mmap (a ring of frames in one memory-mapped file). Defaults to file if filepath is given, otherwise base64.") @RpcOptional String encoding,
+          @RpcParameter(name = "frameSkip", description = "Number of camera frames to skip between events.") @RpcDefault("0") Integer frameSkip,
+          @RpcParameter(name = "scale", description = "Downscale factor applied before compression: 1, 2 or 4.") @RpcDefault("1") Integer scale)
       throws InterruptedException {
     mDest=null;
     if (filepath!=null && (filepath.length()>0)) {
@@ -344,11 +486,28 @@ public class WebCamFacade extends RpcReceiver {
         return false;
       }
     }
+    if (encoding == null) {
+      encoding = mDest != null ? PREVIEW_ENCODING_FILE : PREVIEW_ENCODING_BASE64;
+    }
+    encoding = encoding.toLowerCase();
+    if (PREVIEW_ENCODING_FILE.equals(encoding) && mDest == null) {
+      throw new IllegalArgumentException("The file encoding requires a filepath.");
+    }
+    mPreviewEncoding = encoding;
+    mFrameSkip = Math.max(frameSkip, 0);
+    mFrameCount = 0;
 
     try {
-      openCamera(resolutionLevel, jpegQuality);
+      openCamera(resolutionLevel, jpegQuality, scale);
+      if (PREVIEW_ENCODING_MMAP.equals(encoding)) {
+        File directory = mDest != null ? mDest : mService.getCacheDir();
+        // A JPEG of a YUV 4:2:0 frame is practically never larger than the raw frame.
+        mFrameRing = new PreviewFrameRing(File.createTempFile("prv", ".ring", directory),
+            FRAME_RING_SLOTS, mJpegWidth * mJpegHeight * 3 / 2);
+      }
     } catch (IOException e) {
       Log.e(e);
+      stopPreview();
       return false;
     }
     startPreview();
@@ -362,17 +521,24 @@ public class WebCamFacade extends RpcReceiver {
 
   private void startPreview() {
     mPreview = true;
-    mCamera.setOneShotPreviewCallback(mPreviewEvent);
+    mCamera.setPreviewCallbackWithBuffer(mPreviewEvent);
   }
 
   private void stopPreview() {
     mPreview = false;
+    if (mCamera != null) {
+      mCamera.setPreviewCallbackWithBuffer(null);
+    }
     if (mPreviewTask!=null)
     {
       mPreviewTask.finish();
       mPreviewTask=null;
     }
     releaseCamera();
+    if (mFrameRing != null) {
+      mFrameRing.close();
+      mFrameRing = null;
+    }
   }
 
   @Override
@@ -77,6 +77,9 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
      */
     static final byte[] CHUNK_SEPARATOR = {'\r', '\n'};
 
+    /** {@link #CHUNK_SEPARATOR} as characters, for encoding straight to a String. */
+    private static final char[] CHUNK_SEPARATOR_CHARS = {'\r', '\n'};
+
     /**
      * This array is a lookup table that translates 6-bit positive integer index values into their "Base64 Alphabet"
      * equivalents as specified in Table 1 of RFC 2045.
@@ -650,7 +653,20 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
      * @since 1.4
      */
     public static String encodeBase64String(byte[] binaryData) {
-        return StringUtils.newStringUtf8(encodeBase64(binaryData, true));
+        return encodeBase64String(binaryData, true, false);
+    }
+
+    /**
+     * Encodes binary data using the base64 algorithm, optionally chunking the output into 76 character blocks.
+     *
+     * @param binaryData
+     *            binary data to encode
+     * @param isChunked
+     *            if <code>true</code> this encoder will chunk the base64 output into 76 character blocks
+     * @return String containing Base64 characters.
+     */
+    public static String encodeBase64String(byte[] binaryData, boolean isChunked) {
+        return encodeBase64String(binaryData, isChunked, false);
     }
 
     /**
@@ -676,7 +692,22 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
      * @since 1.4
      */
     public static String encodeBase64URLSafeString(byte[] binaryData) {
-        return StringUtils.newStringUtf8(encodeBase64(binaryData, false, true));
+        return encodeBase64String(binaryData, false, true);
+    }
+
+    /**
+     * Encodes straight into the characters of the result rather than going through a UTF-8 byte[].
+     */
+    private static String encodeBase64String(byte[] binaryData, boolean isChunked, boolean urlSafe) {
+        if (binaryData == null) {
+            return null;
+        }
+        int lineLength = isChunked ? CHUNK_SIZE : 0;
+        char[] chars = new char[FastBase64.encodedLength(binaryData.length, urlSafe, lineLength,
+                CHUNK_SEPARATOR_CHARS.length)];
+        FastBase64.encode(binaryData, 0, binaryData.length, chars, 0, urlSafe, lineLength,
+                CHUNK_SEPARATOR_CHARS);
+        return new String(chars);
     }
 
     /**
@@ -813,8 +844,12 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
                 maxResultSize);
         }
 
-        Base64Codec b64 = isChunked ? new Base64Codec(urlSafe) : new Base64Codec(0, CHUNK_SEPARATOR, urlSafe);
-        return b64.encode(binaryData);
+        int lineLength = isChunked ? CHUNK_SIZE : 0;
+        byte[] result = new byte[FastBase64.encodedLength(binaryData.length, urlSafe, lineLength,
+                CHUNK_SEPARATOR.length)];
+        FastBase64.encode(binaryData, 0, binaryData.length, result, 0, urlSafe, lineLength,
+                CHUNK_SEPARATOR);
+        return result;
     }
 
     /**
@@ -826,7 +861,13 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
      * @since 1.4
      */
     public static byte[] decodeBase64(String base64String) {
-        return new Base64Codec().decode(base64String);
+        if (base64String == null) {
+            return null;
+        }
+        int length = base64String.length();
+        byte[] result = new byte[FastBase64.decodedLength(base64String, 0, length)];
+        FastBase64.decode(base64String, 0, length, result, 0);
+        return result;
     }
 
     /**
@@ -837,7 +878,12 @@ public class Base64Codec implements BinaryEncoder, BinaryDecoder {
      * @return Array containing decoded data.
      */
     public static byte[] decodeBase64(byte[] base64Data) {
-        return new Base64Codec().decode(base64Data);
+        if (base64Data == null || base64Data.length == 0) {
+            return base64Data;
+        }
+        byte[] result = new byte[FastBase64.decodedLength(base64Data, 0, base64Data.length)];
+        FastBase64.decode(base64Data, 0, base64Data.length, result, 0);
+        return result;
     }
 
     /**
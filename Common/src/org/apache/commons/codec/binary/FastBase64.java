@@ -0,0 +1,664 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.codec.binary;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven Base64 encoding and decoding between caller provided regions.
+ *
+ * <p>
+ * Unlike the streaming {@link Base64Codec}, nothing here allocates: input is read from and output
+ * written to the arrays or buffers given, and the caller sizes the output with
+ * {@link #encodedLength} or {@link #decodedLength}. Decoding follows {@link Base64Codec}: characters
+ * outside the alphabet are skipped, both the standard and URL-safe alphabets are accepted, and the
+ * first pad character ends the data. URL-safe encoding omits padding, as {@link Base64Codec} does.
+ * </p>
+ * <p>
+ * {@link Encoder} and {@link Decoder} carry the few bits of state needed to process chunked input.
+ * </p>
+ */
+public final class FastBase64 {
+
+    private static final byte[] STANDARD_ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+    };
+
+    private static final byte[] URL_SAFE_ENCODE_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M',
+            'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z',
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z',
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '_'
+    };
+
+    private static final byte PAD = '=';
+
+    /** Decode table entry for characters outside the alphabet, which are skipped. */
+    private static final int INVALID = -1;
+
+    /** Decode table entry for the pad character, which ends the data. */
+    private static final int PADDING = -2;
+
+    /**
+     * Maps every byte value to its 6 bit value, {@link #INVALID} or {@link #PADDING}. Covering all
+     * 256 values lets the decoder index with {@code b & 0xff} and no range check.
+     */
+    private static final int[] DECODE_TABLE = new int[256];
+
+    static {
+        Arrays.fill(DECODE_TABLE, INVALID);
+        for (int i = 0; i < 64; i++) {
+            DECODE_TABLE[STANDARD_ENCODE_TABLE[i]] = i;
+            DECODE_TABLE[URL_SAFE_ENCODE_TABLE[i]] = i;
+        }
+        DECODE_TABLE[PAD] = PADDING;
+    }
+
+    /*
+     * Decoder state is packed into an int so the loops below can hand it back without allocating:
+     * the low 24 bits accumulate the pending 6 bit values, the next two count them and one more
+     * records that a pad character was seen.
+     */
+    private static final int STATE_BITS_MASK = 0xffffff;
+    private static final int STATE_COUNT_SHIFT = 24;
+    private static final int STATE_DONE = 1 << 26;
+
+    private FastBase64() {
+        // Utility class.
+    }
+
+    /**
+     * Returns the number of characters needed to encode length bytes.
+     *
+     * @param lineLength
+     *            characters per line, rounded down to a multiple of 4, or 0 for no line breaks
+     * @param separatorLength
+     *            length of the separator written after every line, including the last one
+     */
+    public static int encodedLength(int length, boolean urlSafe, int lineLength,
+            int separatorLength) {
+        long len = urlSafe ? (length * 4L + 2) / 3 : ((length + 2L) / 3) * 4;
+        int quadsPerLine = lineLength / 4;
+        if (quadsPerLine > 0 && length > 0) {
+            long quads = (length + 2L) / 3;
+            len += ((quads + quadsPerLine - 1) / quadsPerLine) * separatorLength;
+        }
+        if (len > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Input too big, the output would be " + len
+                    + " characters");
+        }
+        return (int) len;
+    }
+
+    /**
+     * Returns the exact number of bytes that decoding the region will produce.
+     */
+    public static int decodedLength(byte[] src, int srcPos, int srcLength) {
+        int count = 0;
+        for (int i = srcPos, end = srcPos + srcLength; i < end; i++) {
+            int value = DECODE_TABLE[src[i] & 0xff];
+            if (value >= 0) {
+                count++;
+            } else if (value == PADDING) {
+                break;
+            }
+        }
+        return bytesForCount(count);
+    }
+
+    /**
+     * Returns the exact number of bytes that decoding the region will produce.
+     */
+    public static int decodedLength(CharSequence src, int srcPos, int srcLength) {
+        int count = 0;
+        for (int i = srcPos, end = srcPos + srcLength; i < end; i++) {
+            char c = src.charAt(i);
+            int value = c < 256 ? DECODE_TABLE[c] : INVALID;
+            if (value >= 0) {
+                count++;
+            } else if (value == PADDING) {
+                break;
+            }
+        }
+        return bytesForCount(count);
+    }
+
+    /**
+     * Returns the exact number of bytes that decoding the region will produce.
+     */
+    public static int decodedLength(char[] src, int srcPos, int srcLength) {
+        int count = 0;
+        for (int i = srcPos, end = srcPos + srcLength; i < end; i++) {
+            char c = src[i];
+            int value = c < 256 ? DECODE_TABLE[c] : INVALID;
+            if (value >= 0) {
+                count++;
+            } else if (value == PADDING) {
+                break;
+            }
+        }
+        return bytesForCount(count);
+    }
+
+    private static int bytesForCount(int count) {
+        int remainder = count & 3;
+        return (count >>> 2) * 3 + (remainder > 1 ? remainder - 1 : 0);
+    }
+
+    /**
+     * Encodes a region of bytes.
+     *
+     * @param lineLength
+     *            characters per line, rounded down to a multiple of 4, or 0 for no line breaks
+     * @param separator
+     *            written after every line, including the last one; ignored without line breaks
+     * @return the number of bytes written to dst
+     */
+    public static int encode(byte[] src, int srcPos, int srcLength, byte[] dst, int dstPos,
+            boolean urlSafe, int lineLength, byte[] separator) {
+        byte[] table = urlSafe ? URL_SAFE_ENCODE_TABLE : STANDARD_ENCODE_TABLE;
+        int start = dstPos;
+        int end = srcPos + srcLength;
+        int quadsPerLine = lineLength / 4;
+        int lineEnd = quadsPerLine > 0 ? srcPos + quadsPerLine * 3 : end;
+        while (end - srcPos >= 3) {
+            int blockEnd = Math.min(lineEnd, end - (end - srcPos) % 3);
+            while (srcPos < blockEnd) {
+                int bits = (src[srcPos] & 0xff) << 16 | (src[srcPos + 1] & 0xff) << 8
+                        | (src[srcPos + 2] & 0xff);
+                dst[dstPos] = table[bits >>> 18];
+                dst[dstPos + 1] = table[(bits >>> 12) & 0x3f];
+                dst[dstPos + 2] = table[(bits >>> 6) & 0x3f];
+                dst[dstPos + 3] = table[bits & 0x3f];
+                srcPos += 3;
+                dstPos += 4;
+            }
+            if (quadsPerLine > 0 && srcPos == lineEnd) {
+                System.arraycopy(separator, 0, dst, dstPos, separator.length);
+                dstPos += separator.length;
+                lineEnd = srcPos + quadsPerLine * 3;
+            }
+        }
+        int remainder = end - srcPos;
+        if (remainder > 0) {
+            int bits = (src[srcPos] & 0xff) << 16
+                    | (remainder == 2 ? (src[srcPos + 1] & 0xff) << 8 : 0);
+            dst[dstPos++] = table[bits >>> 18];
+            dst[dstPos++] = table[(bits >>> 12) & 0x3f];
+            if (remainder == 2) {
+                dst[dstPos++] = table[(bits >>> 6) & 0x3f];
+            } else if (!urlSafe) {
+                dst[dstPos++] = PAD;
+            }
+            if (!urlSafe) {
+                dst[dstPos++] = PAD;
+            }
+        }
+        if (quadsPerLine > 0 && lineEnd - quadsPerLine * 3 < end) {
+            System.arraycopy(separator, 0, dst, dstPos, separator.length);
+            dstPos += separator.length;
+        }
+        return dstPos - start;
+    }
+
+    /**
+     * Encodes a region of bytes into characters, which saves the charset decoding of
+     * {@link String#String(byte[], String)} when a String is wanted.
+     *
+     * @param lineLength
+     *            characters per line, rounded down to a multiple of 4, or 0 for no line breaks
+     * @param separator
+     *            written after every line, including the last one; ignored without line breaks
+     * @return the number of characters written to dst
+     */
+    public static int encode(byte[] src, int srcPos, int srcLength, char[] dst, int dstPos,
+            boolean urlSafe, int lineLength, char[] separator) {
+        byte[] table = urlSafe ? URL_SAFE_ENCODE_TABLE : STANDARD_ENCODE_TABLE;
+        int start = dstPos;
+        int end = srcPos + srcLength;
+        int quadsPerLine = lineLength / 4;
+        int lineEnd = quadsPerLine > 0 ? srcPos + quadsPerLine * 3 : end;
+        while (end - srcPos >= 3) {
+            int blockEnd = Math.min(lineEnd, end - (end - srcPos) % 3);
+            while (srcPos < blockEnd) {
+                int bits = (src[srcPos] & 0xff) << 16 | (src[srcPos + 1] & 0xff) << 8
+                        | (src[srcPos + 2] & 0xff);
+                dst[dstPos] = (char) table[bits >>> 18];
+                dst[dstPos + 1] = (char) table[(bits >>> 12) & 0x3f];
+                dst[dstPos + 2] = (char) table[(bits >>> 6) & 0x3f];
+                dst[dstPos + 3] = (char) table[bits & 0x3f];
+                srcPos += 3;
+                dstPos += 4;
+            }
+            if (quadsPerLine > 0 && srcPos == lineEnd) {
+                System.arraycopy(separator, 0, dst, dstPos, separator.length);
+                dstPos += separator.length;
+                lineEnd = srcPos + quadsPerLine * 3;
+            }
+        }
+        int remainder = end - srcPos;
+        if (remainder > 0) {
+            int bits = (src[srcPos] & 0xff) << 16
+                    | (remainder == 2 ? (src[srcPos + 1] & 0xff) << 8 : 0);
+            dst[dstPos++] = (char) table[bits >>> 18];
+            dst[dstPos++] = (char) table[(bits >>> 12) & 0x3f];
+            if (remainder == 2) {
+                dst[dstPos++] = (char) table[(bits >>> 6) & 0x3f];
+            } else if (!urlSafe) {
+                dst[dstPos++] = PAD;
+            }
+            if (!urlSafe) {
+                dst[dstPos++] = PAD;
+            }
+        }
+        if (quadsPerLine > 0 && lineEnd - quadsPerLine * 3 < end) {
+            System.arraycopy(separator, 0, dst, dstPos, separator.length);
+            dstPos += separator.length;
+        }
+        return dstPos - start;
+    }
+
+    /**
+     * Encodes the remaining bytes of src into dst without line breaks, advancing both positions.
+     *
+     * @throws BufferOverflowException
+     *             if dst has less room than {@link #encodedLength} requires
+     */
+    public static void encode(ByteBuffer src, ByteBuffer dst, boolean urlSafe) {
+        int length = src.remaining();
+        int needed = encodedLength(length, urlSafe, 0, 0);
+        if (dst.remaining() < needed) {
+            throw new BufferOverflowException();
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            encode(src.array(), src.arrayOffset() + src.position(), length, dst.array(),
+                    dst.arrayOffset() + dst.position(), urlSafe, 0, null);
+            src.position(src.limit());
+            dst.position(dst.position() + needed);
+            return;
+        }
+        byte[] table = urlSafe ? URL_SAFE_ENCODE_TABLE : STANDARD_ENCODE_TABLE;
+        while (src.remaining() >= 3) {
+            int bits = (src.get() & 0xff) << 16 | (src.get() & 0xff) << 8 | (src.get() & 0xff);
+            dst.put(table[bits >>> 18]).put(table[(bits >>> 12) & 0x3f])
+                    .put(table[(bits >>> 6) & 0x3f]).put(table[bits & 0x3f]);
+        }
+        int remainder = src.remaining();
+        if (remainder > 0) {
+            int bits = (src.get() & 0xff) << 16 | (remainder == 2 ? (src.get() & 0xff) << 8 : 0);
+            dst.put(table[bits >>> 18]).put(table[(bits >>> 12) & 0x3f]);
+            if (remainder == 2) {
+                dst.put(table[(bits >>> 6) & 0x3f]);
+            } else if (!urlSafe) {
+                dst.put(PAD);
+            }
+            if (!urlSafe) {
+                dst.put(PAD);
+            }
+        }
+    }
+
+    /**
+     * Decodes a region of Base64 characters.
+     *
+     * @return the number of bytes written to dst, which {@link #decodedLength} gives in advance
+     */
+    public static int decode(byte[] src, int srcPos, int srcLength, byte[] dst, int dstPos) {
+        long result = decode(src, srcPos, srcPos + srcLength, dst, dstPos, 0);
+        int end = finish((int) result, dst, (int) (result >>> 32));
+        return end - dstPos;
+    }
+
+    /**
+     * Decodes a region of Base64 characters.
+     *
+     * @return the number of bytes written to dst, which {@link #decodedLength} gives in advance
+     */
+    public static int decode(char[] src, int srcPos, int srcLength, byte[] dst, int dstPos) {
+        long result = decode(src, srcPos, srcPos + srcLength, dst, dstPos, 0);
+        int end = finish((int) result, dst, (int) (result >>> 32));
+        return end - dstPos;
+    }
+
+    /**
+     * Decodes a region of Base64 characters.
+     *
+     * @return the number of bytes written to dst, which {@link #decodedLength} gives in advance
+     */
+    public static int decode(CharSequence src, int srcPos, int srcLength, byte[] dst,
+            int dstPos) {
+        long result = decode(src, srcPos, srcPos + srcLength, dst, dstPos, 0);
+        int end = finish((int) result, dst, (int) (result >>> 32));
+        return end - dstPos;
+    }
+
+    /**
+     * Decodes the remaining characters of src into dst, advancing both positions. The caller makes
+     * sure dst has room for {@code src.remaining() * 3 / 4} bytes.
+     */
+    public static void decode(ByteBuffer src, ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray()) {
+            int written = decode(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.limit());
+            dst.position(dst.position() + written);
+            return;
+        }
+        int state = 0;
+        while (src.hasRemaining()) {
+            int value = DECODE_TABLE[src.get() & 0xff];
+            if (value >= 0) {
+                int bits = (state & STATE_BITS_MASK) << 6 | value;
+                int count = (state >>> STATE_COUNT_SHIFT) + 1;
+                if (count == 4) {
+                    dst.put((byte) (bits >> 16)).put((byte) (bits >> 8)).put((byte) bits);
+                    state = 0;
+                } else {
+                    state = count << STATE_COUNT_SHIFT | bits;
+                }
+            } else if (value == PADDING) {
+                break;
+            }
+        }
+        int count = state >>> STATE_COUNT_SHIFT;
+        int bits = state & STATE_BITS_MASK;
+        if (count == 2) {
+            dst.put((byte) (bits >> 4));
+        } else if (count == 3) {
+            dst.put((byte) (bits >> 10)).put((byte) (bits >> 2));
+        }
+    }
+
+    /*
+     * The decode loops take whole groups of four alphabet characters on the fast path and fall
+     * back to one character at a time around anything else. They return the new output position
+     * in the high 32 bits and the packed state in the low 32 bits.
+     */
+
+    private static long decode(byte[] src, int srcPos, int srcEnd, byte[] dst, int dstPos,
+            int state) {
+        if ((state & STATE_DONE) != 0) {
+            return (long) dstPos << 32 | state;
+        }
+        int bits = state & STATE_BITS_MASK;
+        int count = state >>> STATE_COUNT_SHIFT;
+        int[] table = DECODE_TABLE;
+        while (srcPos < srcEnd) {
+            if (count == 0) {
+                while (srcEnd - srcPos >= 4) {
+                    int quad = table[src[srcPos] & 0xff] << 18 | table[src[srcPos + 1] & 0xff] << 12
+                            | table[src[srcPos + 2] & 0xff] << 6 | table[src[srcPos + 3] & 0xff];
+                    if (quad < 0) {
+                        break;
+                    }
+                    dst[dstPos] = (byte) (quad >> 16);
+                    dst[dstPos + 1] = (byte) (quad >> 8);
+                    dst[dstPos + 2] = (byte) quad;
+                    srcPos += 4;
+                    dstPos += 3;
+                }
+                if (srcPos == srcEnd) {
+                    break;
+                }
+            }
+            int value = table[src[srcPos++] & 0xff];
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    dst[dstPos] = (byte) (bits >> 16);
+                    dst[dstPos + 1] = (byte) (bits >> 8);
+                    dst[dstPos + 2] = (byte) bits;
+                    dstPos += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                return (long) dstPos << 32 | STATE_DONE | count << STATE_COUNT_SHIFT | bits;
+            }
+        }
+        return (long) dstPos << 32 | count << STATE_COUNT_SHIFT | bits;
+    }
+
+    private static long decode(char[] src, int srcPos, int srcEnd, byte[] dst, int dstPos,
+            int state) {
+        if ((state & STATE_DONE) != 0) {
+            return (long) dstPos << 32 | state;
+        }
+        int bits = state & STATE_BITS_MASK;
+        int count = state >>> STATE_COUNT_SHIFT;
+        int[] table = DECODE_TABLE;
+        while (srcPos < srcEnd) {
+            if (count == 0) {
+                while (srcEnd - srcPos >= 4) {
+                    char c0 = src[srcPos];
+                    char c1 = src[srcPos + 1];
+                    char c2 = src[srcPos + 2];
+                    char c3 = src[srcPos + 3];
+                    if ((c0 | c1 | c2 | c3) > 0xff) {
+                        break;
+                    }
+                    int quad = table[c0] << 18 | table[c1] << 12 | table[c2] << 6 | table[c3];
+                    if (quad < 0) {
+                        break;
+                    }
+                    dst[dstPos] = (byte) (quad >> 16);
+                    dst[dstPos + 1] = (byte) (quad >> 8);
+                    dst[dstPos + 2] = (byte) quad;
+                    srcPos += 4;
+                    dstPos += 3;
+                }
+                if (srcPos == srcEnd) {
+                    break;
+                }
+            }
+            char c = src[srcPos++];
+            int value = c < 256 ? table[c] : INVALID;
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    dst[dstPos] = (byte) (bits >> 16);
+                    dst[dstPos + 1] = (byte) (bits >> 8);
+                    dst[dstPos + 2] = (byte) bits;
+                    dstPos += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                return (long) dstPos << 32 | STATE_DONE | count << STATE_COUNT_SHIFT | bits;
+            }
+        }
+        return (long) dstPos << 32 | count << STATE_COUNT_SHIFT | bits;
+    }
+
+    private static long decode(CharSequence src, int srcPos, int srcEnd, byte[] dst, int dstPos,
+            int state) {
+        if ((state & STATE_DONE) != 0) {
+            return (long) dstPos << 32 | state;
+        }
+        int bits = state & STATE_BITS_MASK;
+        int count = state >>> STATE_COUNT_SHIFT;
+        int[] table = DECODE_TABLE;
+        while (srcPos < srcEnd) {
+            if (count == 0) {
+                while (srcEnd - srcPos >= 4) {
+                    char c0 = src.charAt(srcPos);
+                    char c1 = src.charAt(srcPos + 1);
+                    char c2 = src.charAt(srcPos + 2);
+                    char c3 = src.charAt(srcPos + 3);
+                    if ((c0 | c1 | c2 | c3) > 0xff) {
+                        break;
+                    }
+                    int quad = table[c0] << 18 | table[c1] << 12 | table[c2] << 6 | table[c3];
+                    if (quad < 0) {
+                        break;
+                    }
+                    dst[dstPos] = (byte) (quad >> 16);
+                    dst[dstPos + 1] = (byte) (quad >> 8);
+                    dst[dstPos + 2] = (byte) quad;
+                    srcPos += 4;
+                    dstPos += 3;
+                }
+                if (srcPos == srcEnd) {
+                    break;
+                }
+            }
+            char c = src.charAt(srcPos++);
+            int value = c < 256 ? table[c] : INVALID;
+            if (value >= 0) {
+                bits = bits << 6 | value;
+                if (++count == 4) {
+                    dst[dstPos] = (byte) (bits >> 16);
+                    dst[dstPos + 1] = (byte) (bits >> 8);
+                    dst[dstPos + 2] = (byte) bits;
+                    dstPos += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING) {
+                return (long) dstPos << 32 | STATE_DONE | count << STATE_COUNT_SHIFT | bits;
+            }
+        }
+        return (long) dstPos << 32 | count << STATE_COUNT_SHIFT | bits;
+    }
+
+    /** Writes the bytes left in a partial group of characters and returns the end position. */
+    private static int finish(int state, byte[] dst, int dstPos) {
+        int count = (state >>> STATE_COUNT_SHIFT) & 3;
+        int bits = state & STATE_BITS_MASK;
+        if (count == 2) {
+            dst[dstPos++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            dst[dstPos++] = (byte) (bits >> 10);
+            dst[dstPos++] = (byte) (bits >> 2);
+        }
+        return dstPos;
+    }
+
+    /**
+     * Encodes data arriving in chunks of any size. Up to two bytes are held back between calls
+     * until a full group of three is available.
+     */
+    public static final class Encoder {
+        private final boolean urlSafe;
+        private final byte[] pending = new byte[3];
+        private int pendingLength;
+
+        public Encoder(boolean urlSafe) {
+            this.urlSafe = urlSafe;
+        }
+
+        /** Returns the most characters a call to {@link #update} with length bytes can write. */
+        public int maxUpdateLength(int length) {
+            return ((pendingLength + length) / 3) * 4;
+        }
+
+        /**
+         * Encodes the whole groups of three bytes available so far.
+         *
+         * @return the number of bytes written to dst
+         */
+        public int update(byte[] src, int srcPos, int srcLength, byte[] dst, int dstPos) {
+            int start = dstPos;
+            if (pendingLength > 0) {
+                while (pendingLength < 3 && srcLength > 0) {
+                    pending[pendingLength++] = src[srcPos++];
+                    srcLength--;
+                }
+                if (pendingLength < 3) {
+                    return 0;
+                }
+                dstPos += encode(pending, 0, 3, dst, dstPos, urlSafe, 0, null);
+                pendingLength = 0;
+            }
+            int whole = srcLength - srcLength % 3;
+            dstPos += encode(src, srcPos, whole, dst, dstPos, urlSafe, 0, null);
+            for (int i = srcPos + whole, end = srcPos + srcLength; i < end; i++) {
+                pending[pendingLength++] = src[i];
+            }
+            return dstPos - start;
+        }
+
+        /**
+         * Encodes the bytes held back, with padding unless URL-safe, and resets the encoder. At
+         * most 4 bytes are written.
+         *
+         * @return the number of bytes written to dst
+         */
+        public int finish(byte[] dst, int dstPos) {
+            int written = encode(pending, 0, pendingLength, dst, dstPos, urlSafe, 0, null);
+            pendingLength = 0;
+            return written;
+        }
+    }
+
+    /**
+     * Decodes characters arriving in chunks of any size. Groups of four characters may be split
+     * across calls, as may line separators or other skipped characters.
+     */
+    public static final class Decoder {
+        private int state;
+
+        /**
+         * Decodes the characters available so far. At most {@code (srcLength + 3) / 4 * 3} bytes
+         * are written.
+         *
+         * @return the number of bytes written to dst
+         */
+        public int update(byte[] src, int srcPos, int srcLength, byte[] dst, int dstPos) {
+            long result = decode(src, srcPos, srcPos + srcLength, dst, dstPos, state);
+            state = (int) result;
+            return (int) (result >>> 32) - dstPos;
+        }
+
+        /**
+         * Decodes the characters available so far. At most {@code (srcLength + 3) / 4 * 3} bytes
+         * are written.
+         *
+         * @return the number of bytes written to dst
+         */
+        public int update(char[] src, int srcPos, int srcLength, byte[] dst, int dstPos) {
+            long result = decode(src, srcPos, srcPos + srcLength, dst, dstPos, state);
+            state = (int) result;
+            return (int) (result >>> 32) - dstPos;
+        }
+
+        /** Returns true once a pad character has been seen; later input is ignored. */
+        public boolean isDone() {
+            return (state & STATE_DONE) != 0;
+        }
+
+        /**
+         * Writes the bytes left in a partial group of characters and resets the decoder. At most 2
+         * bytes are written.
+         *
+         * @return the number of bytes written to dst
+         */
+        public int finish(byte[] dst, int dstPos) {
+            int written = FastBase64.finish(state, dst, dstPos) - dstPos;
+            state = 0;
+            return written;
+        }
+    }
+}
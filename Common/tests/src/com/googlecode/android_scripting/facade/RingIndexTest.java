@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests the ring buffer paging shared by {@link LocationRecorder}, {@link SensorCapture} and
+ * {@link BatterySampler}.
+ */
+public class RingIndexTest {
+
+  @Test
+  public void readOfEmptyBufferReturnsNothing() {
+    long first = RingIndex.first(0, 0, 4);
+    assertEquals(0, first);
+    assertEquals(0, RingIndex.end(first, 10, 0));
+    assertEquals(0, RingIndex.dropped(0, first));
+  }
+
+  @Test
+  public void readBeforeWrapReturnsRequestedRange() {
+    long first = RingIndex.first(1, 3, 4);
+    assertEquals(1, first);
+    assertEquals(2, RingIndex.end(first, 1, 3));
+    assertEquals(3, RingIndex.end(first, 10, 3));
+    assertEquals(0, RingIndex.dropped(1, first));
+  }
+
+  @Test
+  public void readAfterWrapSkipsOverwrittenRecords() {
+    assertEquals(6, RingIndex.oldest(10, 4));
+    long first = RingIndex.first(2, 10, 4);
+    assertEquals(6, first);
+    assertEquals(10, RingIndex.end(first, 10, 10));
+    assertEquals(4, RingIndex.dropped(2, first));
+  }
+
+  @Test
+  public void readPastNewestRecordReturnsNothing() {
+    long first = RingIndex.first(15, 10, 4);
+    assertEquals(10, first);
+    assertEquals(10, RingIndex.end(first, 10, 10));
+    assertEquals(0, RingIndex.dropped(15, first));
+  }
+
+  @Test
+  public void negativeSinceReadsFromOldestRecord() {
+    long first = RingIndex.first(-5, 3, 4);
+    assertEquals(0, first);
+    assertEquals(0, RingIndex.dropped(-5, first));
+  }
+
+  @Test
+  public void zeroMaxCountReturnsNothing() {
+    long first = RingIndex.first(0, 3, 4);
+    assertEquals(first, RingIndex.end(first, 0, 3));
+  }
+
+  @Test
+  public void slotsWrapAroundCapacity() {
+    assertEquals(0, RingIndex.slot(0, 4));
+    assertEquals(3, RingIndex.slot(3, 4));
+    assertEquals(0, RingIndex.slot(4, 4));
+    assertEquals(1, RingIndex.slot(4L * Integer.MAX_VALUE + 1, 4));
+  }
+
+  @Test
+  public void pagedReaderSeesEveryRecordOnceOrCountsItDropped() {
+    int capacity = 5;
+    long[] ring = new long[capacity];
+    long next = 0;
+    long since = 0;
+    long returned = 0;
+    long dropped = 0;
+    // Writes of 1 to 7 records alternate with reads of up to 3, so the reader falls behind.
+    for (int round = 0; round < 200; round++) {
+      int writes = round % 7 + 1;
+      for (int i = 0; i < writes; i++) {
+        ring[RingIndex.slot(next, capacity)] = next * 31;
+        next++;
+      }
+      long first = RingIndex.first(since, next, capacity);
+      long end = RingIndex.end(first, 3, next);
+      dropped += RingIndex.dropped(since, first);
+      for (long sequence = first; sequence < end; sequence++) {
+        assertEquals(sequence * 31, ring[RingIndex.slot(sequence, capacity)]);
+        returned++;
+      }
+      since = end;
+    }
+    long first = RingIndex.first(since, next, capacity);
+    returned += next - first;
+    dropped += RingIndex.dropped(since, first);
+    assertEquals(next, returned + dropped);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade.wifi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the range arithmetic behind segmented downloads in {@link HttpDownload}.
+ */
+public class HttpDownloadTest {
+
+    @Test
+    public void splitRangesGivesShorterLastSegment() {
+        List<long[]> ranges = HttpDownload.splitRanges(10, 3);
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new long[] {0, 3}, ranges.get(0));
+        assertArrayEquals(new long[] {4, 7}, ranges.get(1));
+        assertArrayEquals(new long[] {8, 9}, ranges.get(2));
+    }
+
+    @Test
+    public void splitRangesGivesEqualSegmentsWhenDivisible() {
+        List<long[]> ranges = HttpDownload.splitRanges(12, 4);
+        assertEquals(4, ranges.size());
+        assertArrayEquals(new long[] {9, 11}, ranges.get(3));
+    }
+
+    @Test
+    public void splitRangesNeverGivesEmptySegments() {
+        List<long[]> ranges = HttpDownload.splitRanges(3, 8);
+        assertEquals(3, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(new long[] {i, i}, ranges.get(i));
+        }
+    }
+
+    @Test
+    public void splitRangesCoverTotalContiguously() {
+        long[] totals = {1, 2, 7, 100, 4096, 1000003, 5L * Integer.MAX_VALUE};
+        int[] segments = {1, 2, 3, 4, 7, 16};
+        for (long total : totals) {
+            for (int count : segments) {
+                List<long[]> ranges = HttpDownload.splitRanges(total, count);
+                assertTrue(ranges.size() <= count);
+                long next = 0;
+                for (long[] range : ranges) {
+                    assertEquals(next, range[0]);
+                    assertTrue(range[1] >= range[0]);
+                    next = range[1] + 1;
+                }
+                assertEquals(total, next);
+            }
+        }
+    }
+
+    @Test
+    public void parseContentRangeTotalReadsCompleteLength() {
+        assertEquals(12345, HttpDownload.parseContentRangeTotal("bytes 0-0/12345"));
+        assertEquals(5L * Integer.MAX_VALUE,
+                HttpDownload.parseContentRangeTotal("bytes 0-0/" + 5L * Integer.MAX_VALUE));
+        assertEquals(10, HttpDownload.parseContentRangeTotal("bytes 0-0/ 10 "));
+    }
+
+    @Test
+    public void parseContentRangeTotalRejectsUnknownLength() {
+        assertEquals(-1, HttpDownload.parseContentRangeTotal(null));
+        assertEquals(-1, HttpDownload.parseContentRangeTotal("bytes 0-0/*"));
+        assertEquals(-1, HttpDownload.parseContentRangeTotal("bytes 0-0"));
+        assertEquals(-1, HttpDownload.parseContentRangeTotal("bytes */"));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.commons.codec.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link FastBase64} against {@link Base64Codec}, which it has to match byte for byte.
+ */
+public class FastBase64Test {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final char[] CRLF_CHARS = {'\r', '\n'};
+
+    private static final int[] SIZES = {0, 1, 2, 3, 4, 5, 56, 57, 58, 113, 114, 1000, 4099};
+
+    private final Random random = new Random(42);
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encode(byte[] data, boolean urlSafe, int lineLength) {
+        byte[] out = new byte[FastBase64.encodedLength(data.length, urlSafe, lineLength,
+                CRLF.length)];
+        int written = FastBase64.encode(data, 0, data.length, out, 0, urlSafe, lineLength, CRLF);
+        assertEquals(out.length, written);
+        return out;
+    }
+
+    private static byte[] decode(byte[] encoded) {
+        byte[] out = new byte[FastBase64.decodedLength(encoded, 0, encoded.length)];
+        int written = FastBase64.decode(encoded, 0, encoded.length, out, 0);
+        assertEquals(out.length, written);
+        return out;
+    }
+
+    @Test
+    public void unchunkedEncodingMatchesBase64Codec() {
+        for (int size : SIZES) {
+            byte[] data = randomBytes(size);
+            assertArrayEquals("size " + size, Base64Codec.encodeBase64(data, false),
+                    encode(data, false, 0));
+        }
+    }
+
+    @Test
+    public void chunkedEncodingMatchesBase64Codec() {
+        for (int size : SIZES) {
+            byte[] data = randomBytes(size);
+            assertArrayEquals("size " + size, Base64Codec.encodeBase64(data, true),
+                    encode(data, false, Base64Codec.CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    public void urlSafeEncodingMatchesBase64Codec() {
+        for (int size : SIZES) {
+            byte[] data = randomBytes(size);
+            assertArrayEquals("size " + size, Base64Codec.encodeBase64URLSafe(data),
+                    encode(data, true, 0));
+        }
+    }
+
+    @Test
+    public void charEncodingMatchesByteEncoding() {
+        for (int size : SIZES) {
+            byte[] data = randomBytes(size);
+            byte[] expected = encode(data, false, Base64Codec.CHUNK_SIZE);
+            char[] out = new char[expected.length];
+            int written = FastBase64.encode(data, 0, data.length, out, 0, false,
+                    Base64Codec.CHUNK_SIZE, CRLF_CHARS);
+            assertEquals(expected.length, written);
+            assertEquals(new String(expected, 0, expected.length), new String(out));
+        }
+    }
+
+    @Test
+    public void encodeRespectsOffsets() {
+        byte[] data = randomBytes(30);
+        byte[] out = new byte[50];
+        int written = FastBase64.encode(data, 5, 20, out, 3, false, 0, null);
+        byte[] expected = Base64Codec.encodeBase64(Arrays.copyOfRange(data, 5, 25));
+        assertEquals(expected.length, written);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 3, 3 + written));
+        assertEquals(0, out[0]);
+        assertEquals(0, out[3 + written]);
+    }
+
+    @Test
+    public void roundTripRestoresInput() {
+        for (int size : SIZES) {
+            byte[] data = randomBytes(size);
+            assertArrayEquals("size " + size, data, decode(encode(data, false, 0)));
+            assertArrayEquals("size " + size, data, decode(encode(data, true, 0)));
+            assertArrayEquals("size " + size, data,
+                    decode(encode(data, false, Base64Codec.CHUNK_SIZE)));
+        }
+    }
+
+    @Test
+    public void roundTripOfRandomSizes() {
+        for (int i = 0; i < 200; i++) {
+            byte[] data = randomBytes(random.nextInt(300));
+            boolean urlSafe = random.nextBoolean();
+            int lineLength = random.nextBoolean() ? 0 : 4 * (1 + random.nextInt(20));
+            assertArrayEquals(data, decode(encode(data, urlSafe, lineLength)));
+        }
+    }
+
+    @Test
+    public void decodingMatchesBase64Codec() {
+        for (int size : SIZES) {
+            byte[] encoded = Base64Codec.encodeBase64(randomBytes(size), true);
+            assertArrayEquals("size " + size, Base64Codec.decodeBase64(encoded), decode(encoded));
+        }
+    }
+
+    @Test
+    public void charAndStringDecodingMatchByteDecoding() {
+        byte[] data = randomBytes(1000);
+        String encoded = Base64Codec.encodeBase64String(data);
+        byte[] fromChars = new byte[FastBase64.decodedLength(encoded.toCharArray(), 0,
+                encoded.length())];
+        FastBase64.decode(encoded.toCharArray(), 0, encoded.length(), fromChars, 0);
+        assertArrayEquals(data, fromChars);
+        byte[] fromString = new byte[FastBase64.decodedLength(encoded, 0, encoded.length())];
+        FastBase64.decode(encoded, 0, encoded.length(), fromString, 0);
+        assertArrayEquals(data, fromString);
+    }
+
+    @Test
+    public void encodedLengthCountsSeparatorAfterLastLine() {
+        assertEquals(0, FastBase64.encodedLength(0, false, 76, 2));
+        assertEquals(4, FastBase64.encodedLength(1, false, 0, 2));
+        assertEquals(2, FastBase64.encodedLength(1, true, 0, 2));
+        assertEquals(78, FastBase64.encodedLength(57, false, 76, 2));
+        assertEquals(84, FastBase64.encodedLength(58, false, 76, 2));
+        // Line lengths are rounded down to a multiple of four.
+        assertEquals(FastBase64.encodedLength(100, false, 76, 2),
+                FastBase64.encodedLength(100, false, 78, 2));
+    }
+
+    @Test
+    public void byteBuffersMatchArrays() {
+        byte[] data = randomBytes(1001);
+        byte[] expected = encode(data, false, 0);
+        ByteBuffer[] encodedBuffers = {ByteBuffer.allocate(expected.length),
+                ByteBuffer.allocateDirect(expected.length)};
+        for (ByteBuffer encoded : encodedBuffers) {
+            ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+            src.put(data).flip();
+            FastBase64.encode(src, encoded, false);
+            assertEquals(0, src.remaining());
+            encoded.flip();
+            byte[] actual = new byte[encoded.remaining()];
+            encoded.duplicate().get(actual);
+            assertArrayEquals(expected, actual);
+
+            ByteBuffer decoded = ByteBuffer.allocateDirect(data.length);
+            FastBase64.decode(encoded, decoded);
+            decoded.flip();
+            byte[] roundTrip = new byte[decoded.remaining()];
+            decoded.get(roundTrip);
+            assertArrayEquals(data, roundTrip);
+        }
+    }
+
+    @Test
+    public void streamingEncoderMatchesOneShot() {
+        byte[] data = randomBytes(1000);
+        for (boolean urlSafe : new boolean[] {false, true}) {
+            FastBase64.Encoder encoder = new FastBase64.Encoder(urlSafe);
+            byte[] out = new byte[FastBase64.encodedLength(data.length, urlSafe, 0, 0)];
+            int pos = 0;
+            int offset = 0;
+            while (offset < data.length) {
+                int chunk = Math.min(1 + random.nextInt(10), data.length - offset);
+                pos += encoder.update(data, offset, chunk, out, pos);
+                offset += chunk;
+            }
+            pos += encoder.finish(out, pos);
+            assertEquals(out.length, pos);
+            assertArrayEquals(encode(data, urlSafe, 0), out);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import android.os.FileObserver;
+
+import com.googlecode.android_scripting.interpreter.Interpreter;
+import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
+import com.googlecode.android_scripting.interpreter.InterpreterConfiguration.ConfigurationObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the script directories.
+ *
+ * <p>Each directory is scanned once, the first time it is queried, and is then kept current by a
+ * {@link FileObserver}. Every entry records the interpreter resolved for the file along with its
+ * size and modification time, so listing, filtering and searching never touch the file system or
+ * walk the interpreter set again.
+ *
+ */
+public class ScriptIndex implements ConfigurationObserver {
+
+  private static final int WATCH_MASK =
+      FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+          | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+  /** Directories first, then by path; the order {@link ScriptStorageAdapter} has always used. */
+  private static final Comparator<File> DIRECTORIES_FIRST = new Comparator<File>() {
+    @Override
+    public int compare(File file1, File file2) {
+      if (file1.isDirectory() && !file2.isDirectory()) {
+        return -1;
+      } else if (!file1.isDirectory() && file2.isDirectory()) {
+        return 1;
+      }
+      return file1.compareTo(file2);
+    }
+  };
+
+  private final InterpreterConfiguration mConfiguration;
+  private final ConcurrentHashMap<File, DirectoryNode> mDirectories;
+
+  /**
+   * A script {@link File} whose attributes were captured when it was indexed. Overriding the
+   * attribute getters keeps list adapters from issuing a stat() per row.
+   */
+  @SuppressWarnings("serial")
+  public static class IndexedFile extends File {
+    private final boolean mIsDirectory;
+    private final long mLength;
+    private final long mLastModified;
+    private final String mLowerCaseName;
+    private final Interpreter mInterpreter;
+
+    private IndexedFile(File file, Interpreter interpreter) {
+      super(file.getPath());
+      mIsDirectory = file.isDirectory();
+      mLength = file.length();
+      mLastModified = file.lastModified();
+      mLowerCaseName = file.getName().toLowerCase();
+      mInterpreter = mIsDirectory ? null : interpreter;
+    }
+
+    private IndexedFile(IndexedFile other, Interpreter interpreter) {
+      super(other.getPath());
+      mIsDirectory = other.mIsDirectory;
+      mLength = other.mLength;
+      mLastModified = other.mLastModified;
+      mLowerCaseName = other.mLowerCaseName;
+      mInterpreter = mIsDirectory ? null : interpreter;
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return mIsDirectory;
+    }
+
+    @Override
+    public boolean isFile() {
+      return !mIsDirectory;
+    }
+
+    @Override
+    public long length() {
+      return mLength;
+    }
+
+    @Override
+    public long lastModified() {
+      return mLastModified;
+    }
+
+    /**
+     * Returns the interpreter registered for this script's extension, or null if there is none or
+     * this is a directory.
+     */
+    public Interpreter getInterpreter() {
+      return mInterpreter;
+    }
+
+    private boolean matches(String lowerCaseQuery) {
+      return mLowerCaseName.contains(lowerCaseQuery);
+    }
+  }
+
+  private class DirectoryNode extends FileObserver {
+    private final File mmDirectory;
+    private final Map<String, IndexedFile> mmEntries;
+    // Sorted copy of mmEntries handed out to readers. Rebuilt lazily after a change so that a burst
+    // of file events (e.g. adb push of a test suite) costs one sort rather than one per file.
+    private volatile List<IndexedFile> mmSnapshot;
+
+    private DirectoryNode(File directory) {
+      super(directory.getAbsolutePath(), WATCH_MASK);
+      mmDirectory = directory;
+      mmEntries = new HashMap<String, IndexedFile>();
+    }
+
+    private synchronized void scan() {
+      mmEntries.clear();
+      File[] files = mmDirectory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          mmEntries.put(file.getName(), index(file));
+        }
+      }
+      mmSnapshot = null;
+    }
+
+    private synchronized void refresh(String name) {
+      File file = new File(mmDirectory, name);
+      if (file.exists()) {
+        mmEntries.put(name, index(file));
+      } else {
+        mmEntries.remove(name);
+        DirectoryNode child = mDirectories.remove(file);
+        if (child != null) {
+          child.stopWatching();
+        }
+      }
+      mmSnapshot = null;
+    }
+
+    private synchronized void reresolveInterpreters() {
+      for (Map.Entry<String, IndexedFile> entry : mmEntries.entrySet()) {
+        IndexedFile file = entry.getValue();
+        if (!file.isDirectory()) {
+          entry.setValue(new IndexedFile(file, resolveInterpreter(file.getName())));
+        }
+      }
+      mmSnapshot = null;
+    }
+
+    private List<IndexedFile> getSnapshot() {
+      List<IndexedFile> snapshot = mmSnapshot;
+      if (snapshot != null) {
+        return snapshot;
+      }
+      synchronized (this) {
+        if (mmSnapshot == null) {
+          List<IndexedFile> sorted = new ArrayList<IndexedFile>(mmEntries.values());
+          Collections.sort(sorted, DIRECTORIES_FIRST);
+          mmSnapshot = Collections.unmodifiableList(sorted);
+        }
+        return mmSnapshot;
+      }
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      event &= FileObserver.ALL_EVENTS;
+      if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+        stopWatching();
+        mDirectories.remove(mmDirectory, this);
+        return;
+      }
+      if (path != null) {
+        refresh(path);
+      }
+    }
+  }
+
+  public ScriptIndex(InterpreterConfiguration configuration) {
+    mConfiguration = configuration;
+    mDirectories = new ConcurrentHashMap<File, DirectoryNode>();
+    mConfiguration.registerObserver(this);
+  }
+
+  /**
+   * Returns the indexed contents of the directory, directories first.
+   */
+  public List<IndexedFile> list(File directory) {
+    DirectoryNode node = getNode(directory);
+    if (node == null) {
+      return Collections.emptyList();
+    }
+    return node.getSnapshot();
+  }
+
+  /**
+   * Returns the directories and scripts in the directory for which there is an interpreter
+   * installed.
+   */
+  public List<IndexedFile> listExecutable(File directory) {
+    return filter(list(directory), null, getInstalledInterpreters());
+  }
+
+  /**
+   * Returns all scripts in the directory and its subdirectories for which there is an interpreter
+   * installed.
+   */
+  public List<IndexedFile> listExecutableRecursively(File directory) {
+    List<IndexedFile> scripts = new ArrayList<IndexedFile>();
+    collect(directory, null, getInstalledInterpreters(), scripts);
+    Collections.sort(scripts);
+    return scripts;
+  }
+
+  /**
+   * Returns the entries of the directory whose names contain the query, ignoring case.
+   *
+   * @param executableOnly
+   *          if true, scripts without an installed interpreter are left out
+   */
+  public List<IndexedFile> search(File directory, String query, boolean executableOnly) {
+    String lowerCaseQuery = query == null ? "" : query.toLowerCase();
+    Set<Interpreter> installed = executableOnly ? getInstalledInterpreters() : null;
+    return filter(list(directory), lowerCaseQuery, installed);
+  }
+
+  /**
+   * Returns all scripts in the directory and its subdirectories whose names contain the query,
+   * ignoring case, and for which there is an interpreter installed.
+   */
+  public List<IndexedFile> searchRecursively(File directory, String query) {
+    String lowerCaseQuery = query == null ? "" : query.toLowerCase();
+    List<IndexedFile> scripts = new ArrayList<IndexedFile>();
+    collect(directory, lowerCaseQuery, getInstalledInterpreters(), scripts);
+    Collections.sort(scripts);
+    return scripts;
+  }
+
+  /**
+   * Returns the index entry for the file, or null if it does not exist.
+   */
+  public IndexedFile get(File file) {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent == null) {
+      return null;
+    }
+    String name = file.getName();
+    for (IndexedFile entry : list(parent)) {
+      if (entry.getName().equals(name)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stops watching all directories and drops the index.
+   */
+  public void shutdown() {
+    mConfiguration.unregisterObserver(this);
+    synchronized (mDirectories) {
+      for (DirectoryNode node : mDirectories.values()) {
+        node.stopWatching();
+      }
+      mDirectories.clear();
+    }
+  }
+
+  @Override
+  public void onConfigurationChanged() {
+    for (DirectoryNode node : mDirectories.values()) {
+      node.reresolveInterpreters();
+    }
+  }
+
+  private DirectoryNode getNode(File directory) {
+    directory = directory.getAbsoluteFile();
+    DirectoryNode node = mDirectories.get(directory);
+    if (node != null) {
+      return node;
+    }
+    // Nodes are created under a lock so that a directory never gets a second observer. Observers
+    // of the same path share one inotify watch, so stopping a duplicate would also silence the
+    // node that stays in the map.
+    synchronized (mDirectories) {
+      node = mDirectories.get(directory);
+      if (node != null) {
+        return node;
+      }
+      if (!directory.isDirectory()) {
+        return null;
+      }
+      node = new DirectoryNode(directory);
+      // Start watching before the scan so that no change between the two is lost. Events that
+      // arrive during the scan block on the node and are applied after it. The node is only
+      // published once scanned, so no reader can see, and cache, an empty listing.
+      node.startWatching();
+      node.scan();
+      mDirectories.put(directory, node);
+      return node;
+    }
+  }
+
+  private void collect(File directory, String lowerCaseQuery, Set<Interpreter> installed,
+      List<IndexedFile> result) {
+    for (IndexedFile file : list(directory)) {
+      if (file.isDirectory()) {
+        collect(file, lowerCaseQuery, installed, result);
+      } else if (installed.contains(file.getInterpreter())
+          && (lowerCaseQuery == null || file.matches(lowerCaseQuery))) {
+        result.add(file);
+      }
+    }
+  }
+
+  private static List<IndexedFile> filter(List<IndexedFile> files, String lowerCaseQuery,
+      Set<Interpreter> installed) {
+    List<IndexedFile> result = new ArrayList<IndexedFile>(files.size());
+    for (IndexedFile file : files) {
+      if (lowerCaseQuery != null && !file.matches(lowerCaseQuery)) {
+        continue;
+      }
+      if (file.isDirectory() || installed == null || installed.contains(file.getInterpreter())) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private IndexedFile index(File file) {
+    return new IndexedFile(file, resolveInterpreter(file.getName()));
+  }
+
+  private Interpreter resolveInterpreter(String name) {
+    return mConfiguration.getInterpreterForScript(name);
+  }
+
+  // Interpreter.isInstalled() stats the interpreter binary, so it is checked once per query rather
+  // than once per script.
+  private Set<Interpreter> getInstalledInterpreters() {
+    return new HashSet<Interpreter>(mConfiguration.getInstalledInterpreters());
+  }
+}
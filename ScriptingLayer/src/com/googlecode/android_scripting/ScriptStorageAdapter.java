@@ -16,7 +16,6 @@
 
 package com.googlecode.android_scripting;
 
-import com.googlecode.android_scripting.interpreter.Interpreter;
 import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
 import com.googlecode.android_scripting.interpreter.InterpreterConstants;
 
@@ -28,9 +27,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Manages storage and retrieval of scripts on the file system.
@@ -38,6 +37,14 @@ import java.util.List;
  */
 public class ScriptStorageAdapter {
 
+  // One index for the whole process. The application and the script provider each have their own
+  // configuration, but they index the same directories, and two observers of one directory share,
+  // and can tear down, the same inotify watch. The index resolves interpreters through the first
+  // configuration; they all discover the same interpreters.
+  private static ScriptIndex sIndex;
+  private static final Set<InterpreterConfiguration> sIndexUsers =
+      new HashSet<InterpreterConfiguration>();
+
   private ScriptStorageAdapter() {
     // Utility class.
   }
@@ -84,26 +91,46 @@ public class ScriptStorageAdapter {
     return new ArrayList<File>();
   }
 
+  /**
+   * Returns the process-wide {@link ScriptIndex}, creating it on first use, and records the
+   * configuration as one of its users.
+   */
+  public static ScriptIndex getScriptIndex(InterpreterConfiguration config) {
+    synchronized (sIndexUsers) {
+      if (sIndex == null) {
+        sIndex = new ScriptIndex(config);
+      }
+      sIndexUsers.add(config);
+      return sIndex;
+    }
+  }
+
+  /**
+   * Removes the configuration from the users of the {@link ScriptIndex}, and stops the index once
+   * it has no users left. Call when the configuration is no longer used.
+   */
+  public static void releaseScriptIndex(InterpreterConfiguration config) {
+    ScriptIndex index = null;
+    synchronized (sIndexUsers) {
+      if (sIndexUsers.remove(config) && sIndexUsers.isEmpty()) {
+        index = sIndex;
+        sIndex = null;
+      }
+    }
+    if (index != null) {
+      index.shutdown();
+    }
+  }
+
   /**
    * Returns a list of script {@link File}s from the given folder for which there is an interpreter
    * installed.
    */
   public static List<File> listExecutableScripts(File directory, InterpreterConfiguration config) {
-    // NOTE(damonkohler): Creating a LinkedList here is necessary in order to be able to filter it
-    // later.
-    List<File> scripts = new LinkedList<File>(listAllScripts(directory));
-    // Filter out any files that don't have interpreters installed.
-    for (Iterator<File> it = scripts.iterator(); it.hasNext();) {
-      File script = it.next();
-      if (script.isDirectory()) {
-        continue;
-      }
-      Interpreter interpreter = config.getInterpreterForScript(script.getName());
-      if (interpreter == null || !interpreter.isInstalled()) {
-        it.remove();
-      }
+    if (directory == null) {
+      directory = new File(InterpreterConstants.SCRIPTS_ROOT);
     }
-    return scripts;
+    return new ArrayList<File>(getScriptIndex(config).listExecutable(directory));
   }
 
   /**
@@ -112,23 +139,9 @@ public class ScriptStorageAdapter {
    */
   public static List<File> listExecutableScriptsRecursively(File directory,
       InterpreterConfiguration config) {
-    // NOTE(damonkohler): Creating a LinkedList here is necessary in order to be able to filter it
-    // later.
-    List<File> scripts = new LinkedList<File>();
-    List<File> files = listAllScripts(directory);
-
-    // Filter out any files that don't have interpreters installed.
-    for (Iterator<File> it = files.iterator(); it.hasNext();) {
-      File file = it.next();
-      if (file.isDirectory()) {
-        scripts.addAll(listExecutableScriptsRecursively(file, config));
-      }
-      Interpreter interpreter = config.getInterpreterForScript(file.getName());
-      if (interpreter != null && interpreter.isInstalled()) {
-        scripts.add(file);
-      }
+    if (directory == null) {
+      directory = new File(InterpreterConstants.SCRIPTS_ROOT);
     }
-    Collections.sort(scripts);
-    return scripts;
+    return new ArrayList<File>(getScriptIndex(config).listExecutableRecursively(directory));
   }
-}
\ No newline at end of file
+}
@@ -16,6 +16,8 @@
 
 package com.googlecode.android_scripting.facade;
 
+import android.os.SystemProperties;
+
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -84,6 +86,9 @@ public class FacadeConfiguration {
 
     private static int sSdkLevel;
 
+    /** Registers the benchmark RPCs when true. Off by default so installs do not expose them. */
+    private static final String BENCHMARK_PROPERTY = "debug.sl4a.benchmark";
+
     static {
         sSdkLevel = android.os.Build.VERSION.SDK_INT;
 
@@ -106,6 +111,7 @@ public class FacadeConfiguration {
         sFacadeClassList.add(MediaRecorderFacade.class);
         sFacadeClassList.add(MediaScannerFacade.class);
         sFacadeClassList.add(MediaSessionFacade.class);
+        sFacadeClassList.add(MetricsFacade.class);
         sFacadeClassList.add(SensorManagerFacade.class);
         sFacadeClassList.add(SettingsFacade.class);
         sFacadeClassList.add(SmsFacade.class);
@@ -154,6 +160,10 @@ public class FacadeConfiguration {
             sFacadeClassList.add(BluetoothMapClientFacade.class);
         }
 
+        if (SystemProperties.getBoolean(BENCHMARK_PROPERTY, false)) {
+            sFacadeClassList.add(RpcBenchmarkFacade.class);
+        }
+
         for (Class<? extends RpcReceiver> recieverClass : sFacadeClassList) {
             for (MethodDescriptor rpcMethod : MethodDescriptor.collectFrom(recieverClass)) {
                 sRpcs.put(rpcMethod.getName(), rpcMethod);
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import com.googlecode.android_scripting.rpc.MethodDescriptor;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+import com.googlecode.android_scripting.util.VisibleForTesting;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A prefix and token index over the supported RPCs, built once per process from the
+ * {@link FacadeConfiguration} registry.
+ *
+ * <p>
+ * RPC names, their camel case parts, parameter names and description words are kept in sorted
+ * arrays, so a lookup is a binary search followed by a walk over the matching prefix range.
+ */
+public class RpcSearchIndex {
+    private static final int SCORE_EXACT_NAME = 1000;
+    private static final int SCORE_NAME_PREFIX = 800;
+    private static final int SCORE_NAME_TOKEN = 600;
+    private static final int SCORE_NAME_SUBSTRING = 400;
+    private static final int SCORE_PARAMETER = 300;
+    private static final int SCORE_DESCRIPTION = 100;
+
+    private static RpcSearchIndex sInstance;
+
+    private final MethodDescriptor[] mDescriptors;
+    private final List<MethodDescriptor> mDescriptorList;
+    private final Map<String, Integer> mIds;
+    private final String[] mNames;
+    private final String[] mSummaries;
+    private final String[][] mParameterHints;
+    private final TokenTable mFullNames;
+    private final TokenTable mNameTokens;
+    private final TokenTable mParameterTokens;
+    private final TokenTable mDescriptionTokens;
+
+    /** Returns the process wide index, building it on first use. */
+    public static synchronized RpcSearchIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new RpcSearchIndex(FacadeConfiguration.collectSupportedMethodDescriptors());
+        }
+        return sInstance;
+    }
+
+    /** Builds an index over the descriptors, which must be in name order. */
+    @VisibleForTesting
+    RpcSearchIndex(List<MethodDescriptor> descriptors) {
+        int count = descriptors.size();
+        mDescriptors = descriptors.toArray(new MethodDescriptor[count]);
+        mDescriptorList = Collections.unmodifiableList(Arrays.asList(mDescriptors));
+        mIds = new HashMap<String, Integer>(count * 2);
+        mNames = new String[count];
+        mSummaries = new String[count];
+        mParameterHints = new String[count][];
+        TokenTable.Builder fullNames = new TokenTable.Builder();
+        TokenTable.Builder nameTokens = new TokenTable.Builder();
+        TokenTable.Builder parameterTokens = new TokenTable.Builder();
+        TokenTable.Builder descriptionTokens = new TokenTable.Builder();
+        for (int id = 0; id < count; id++) {
+            MethodDescriptor descriptor = mDescriptors[id];
+            String name = descriptor.getName();
+            mIds.put(name, id);
+            mNames[id] = name.toLowerCase();
+            fullNames.add(mNames[id], id);
+            String description = descriptor.getMethod().getAnnotation(Rpc.class).description();
+            mSummaries[id] = description.replaceAll("\\s+", " ").trim();
+            mParameterHints[id] = descriptor.getParameterHints();
+            addIdentifierTokens(nameTokens, name, id);
+            for (Annotation[] annotations : descriptor.getParameterAnnotations()) {
+                for (Annotation annotation : annotations) {
+                    if (annotation instanceof RpcParameter) {
+                        String parameter = ((RpcParameter) annotation).name();
+                        parameterTokens.add(parameter.toLowerCase(), id);
+                        addIdentifierTokens(parameterTokens, parameter, id);
+                    }
+                }
+            }
+            addWordTokens(descriptionTokens, mSummaries[id], id);
+        }
+        mFullNames = fullNames.build();
+        mNameTokens = nameTokens.build();
+        mParameterTokens = parameterTokens.build();
+        mDescriptionTokens = descriptionTokens.build();
+    }
+
+    /** Returns the supported RPCs in name order. */
+    public List<MethodDescriptor> getDescriptors() {
+        return mDescriptorList;
+    }
+
+    public MethodDescriptor getDescriptor(int id) {
+        return mDescriptors[id];
+    }
+
+    /** Returns the RPC description with whitespace collapsed to single spaces. */
+    public String getSummary(int id) {
+        return mSummaries[id];
+    }
+
+    /** Returns the parameter hints of an RPC by name, or null if it is not supported. */
+    public String[] getParameterHints(String name) {
+        Integer id = mIds.get(name);
+        return id == null ? null : mParameterHints[id];
+    }
+
+    /**
+     * Returns the ids of the RPCs matching every word of the query, best match first.
+     *
+     * <p>
+     * A word matches an exact name, a name prefix, a camel case part of the name, a parameter name
+     * or a description word prefix, in decreasing order of rank. Names that contain the word
+     * anywhere else rank between camel case parts and parameter names.
+     *
+     * @param limit
+     *            maximum number of results, or a non-positive value for no limit
+     */
+    public int[] search(String query, int limit) {
+        String[] words = query.toLowerCase().trim().split("\\s+");
+        int[] total = null;
+        for (String word : words) {
+            if (word.length() == 0) {
+                continue;
+            }
+            int[] scores = scoreWord(word);
+            if (total == null) {
+                total = scores;
+                continue;
+            }
+            for (int id = 0; id < total.length; id++) {
+                total[id] = (total[id] == 0 || scores[id] == 0) ? 0 : total[id] + scores[id];
+            }
+        }
+        if (total == null) {
+            int[] all = new int[mDescriptors.length];
+            for (int id = 0; id < all.length; id++) {
+                all[id] = id;
+            }
+            return limit > 0 && limit < all.length ? Arrays.copyOf(all, limit) : all;
+        }
+        // Sort by descending score, then by shorter name, then by name order. Packing these into
+        // a long keeps the sort allocation free.
+        int matches = 0;
+        long[] keys = new long[total.length];
+        for (int id = 0; id < total.length; id++) {
+            if (total[id] > 0) {
+                keys[matches++] = ((long) (Integer.MAX_VALUE - total[id]) << 40)
+                        | ((long) Math.min(mNames[id].length(), 0xffff) << 24) | id;
+            }
+        }
+        Arrays.sort(keys, 0, matches);
+        int size = limit > 0 ? Math.min(limit, matches) : matches;
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (int) (keys[i] & 0xffffff);
+        }
+        return result;
+    }
+
+    /** Returns the RPCs matching the query in name order. */
+    public List<MethodDescriptor> filter(String query) {
+        int[] ids = search(query, 0);
+        Arrays.sort(ids);
+        List<MethodDescriptor> result = new ArrayList<MethodDescriptor>(ids.length);
+        for (int id : ids) {
+            result.add(mDescriptors[id]);
+        }
+        return result;
+    }
+
+    private int[] scoreWord(String word) {
+        int[] scores = new int[mDescriptors.length];
+        mFullNames.score(word, SCORE_NAME_PREFIX, SCORE_EXACT_NAME, scores);
+        mNameTokens.score(word, SCORE_NAME_TOKEN, SCORE_NAME_TOKEN, scores);
+        mParameterTokens.score(word, SCORE_PARAMETER, SCORE_PARAMETER, scores);
+        mDescriptionTokens.score(word, SCORE_DESCRIPTION, SCORE_DESCRIPTION, scores);
+        // Substring hits such as "can" in wifiStartScan are not reached by any prefix walk.
+        for (int id = 0; id < mNames.length; id++) {
+            if (scores[id] < SCORE_NAME_SUBSTRING && mNames[id].contains(word)) {
+                scores[id] = SCORE_NAME_SUBSTRING;
+            }
+        }
+        return scores;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Adds the lower case camel case parts of an identifier, e.g. wifi, get, scan, results. */
+    private static void addIdentifierTokens(TokenTable.Builder builder, String identifier, int id) {
+        int start = 0;
+        int length = identifier.length();
+        for (int i = 1; i <= length; i++) {
+            if (i == length || isTokenBoundary(identifier, i)) {
+                if (i > start) {
+                    builder.add(identifier.substring(start, i).toLowerCase(), id);
+                }
+                start = i;
+            }
+        }
+    }
+
+    private static boolean isTokenBoundary(String identifier, int i) {
+        char c = identifier.charAt(i);
+        char previous = identifier.charAt(i - 1);
+        if (!Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        if (Character.isUpperCase(c)) {
+            return !Character.isUpperCase(previous)
+                    || (i + 1 < identifier.length()
+                            && Character.isLowerCase(identifier.charAt(i + 1)));
+        }
+        return false;
+    }
+
+    private static void addWordTokens(TokenTable.Builder builder, String text, int id) {
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.length() > 1) {
+                builder.add(word, id);
+            }
+        }
+    }
+
+    /** Sorted tokens with the ids of the RPCs containing each of them. */
+    private static class TokenTable {
+        private final String[] mmTokens;
+        private final int[][] mmIds;
+
+        private TokenTable(String[] tokens, int[][] ids) {
+            mmTokens = tokens;
+            mmIds = ids;
+        }
+
+        /**
+         * Raises the score of every RPC with a token starting with the prefix, using exactScore
+         * when the token is the prefix itself.
+         */
+        void score(String prefix, int score, int exactScore, int[] scores) {
+            int from = lowerBound(mmTokens, prefix);
+            for (int i = from; i < mmTokens.length && mmTokens[i].startsWith(prefix); i++) {
+                int tokenScore = mmTokens[i].length() == prefix.length() ? exactScore : score;
+                for (int id : mmIds[i]) {
+                    if (scores[id] < tokenScore) {
+                        scores[id] = tokenScore;
+                    }
+                }
+            }
+        }
+
+        static class Builder {
+            private final SortedMap<String, List<Integer>> mmPostings =
+                    new TreeMap<String, List<Integer>>();
+
+            void add(String token, int id) {
+                List<Integer> ids = mmPostings.get(token);
+                if (ids == null) {
+                    ids = new ArrayList<Integer>();
+                    mmPostings.put(token, ids);
+                }
+                if (ids.isEmpty() || ids.get(ids.size() - 1) != id) {
+                    ids.add(id);
+                }
+            }
+
+            TokenTable build() {
+                String[] tokens = new String[mmPostings.size()];
+                int[][] ids = new int[tokens.length][];
+                int i = 0;
+                for (Map.Entry<String, List<Integer>> entry : mmPostings.entrySet()) {
+                    tokens[i] = entry.getKey();
+                    List<Integer> list = entry.getValue();
+                    ids[i] = new int[list.size()];
+                    for (int j = 0; j < ids[i].length; j++) {
+                        ids[i][j] = list.get(j);
+                    }
+                    i++;
+                }
+                return new TokenTable(tokens, ids);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiverManager;
+import com.googlecode.android_scripting.rpc.MethodDescriptor;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the ranking of {@link RpcSearchIndex} over a small fixed set of RPCs.
+ */
+public class RpcSearchIndexTest {
+
+    /** The RPCs to index; never instantiated. */
+    public static class FakeFacade extends RpcReceiver {
+        public FakeFacade(RpcReceiverManager manager) {
+            super(manager);
+        }
+
+        @Rpc(description = "Cancels device discovery.")
+        public void bluetoothCancelDiscovery() {
+        }
+
+        @Rpc(description = "Starts device discovery.")
+        public void bluetoothStartDiscovery() {
+        }
+
+        @Rpc(description = "Takes a picture.")
+        public void cameraCapturePicture(
+                @RpcParameter(name = "targetPath", description = "Where to save the picture.")
+                String targetPath) {
+        }
+
+        @Rpc(description = "Connects to an access point.")
+        public void wifiConnect(@RpcParameter(name = "ssid") String ssid) {
+        }
+
+        @Rpc(description = "Returns the  results\n   of the last scan.")
+        public void wifiGetScanResults() {
+        }
+
+        @Rpc(description = "Starts a scan for access points.")
+        public void wifiStartScan() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    private final RpcSearchIndex mIndex = new RpcSearchIndex(collectDescriptors());
+
+    private static List<MethodDescriptor> collectDescriptors() {
+        List<MethodDescriptor> descriptors =
+                new ArrayList<MethodDescriptor>(MethodDescriptor.collectFrom(FakeFacade.class));
+        Collections.sort(descriptors, new Comparator<MethodDescriptor>() {
+            @Override
+            public int compare(MethodDescriptor a, MethodDescriptor b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return descriptors;
+    }
+
+    private String[] search(String query, int limit) {
+        int[] ids = mIndex.search(query, limit);
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = mIndex.getDescriptor(ids[i]).getName();
+        }
+        return names;
+    }
+
+    @Test
+    public void exactNameRanksFirstIgnoringCase() {
+        assertEquals("wifiStartScan", search("WifiStartScan", 0)[0]);
+    }
+
+    @Test
+    public void namePrefixMatchesShorterNamesFirst() {
+        assertArrayEquals(new String[] {"wifiConnect", "wifiStartScan", "wifiGetScanResults"},
+                search("wifi", 0));
+    }
+
+    @Test
+    public void camelCasePartRanksAboveDescriptionWord() {
+        assertArrayEquals(new String[] {"wifiStartScan", "bluetoothStartDiscovery"},
+                search("start", 0));
+    }
+
+    @Test
+    public void substringMatchesAreAlwaysIncluded() {
+        // "can" is a prefix of the cancel name part, and only a substring of the scan RPCs.
+        assertArrayEquals(
+                new String[] {"bluetoothCancelDiscovery", "wifiStartScan", "wifiGetScanResults"},
+                search("can", 0));
+    }
+
+    @Test
+    public void parameterNameMatches() {
+        assertArrayEquals(new String[] {"cameraCapturePicture"}, search("path", 0));
+    }
+
+    @Test
+    public void descriptionWordMatches() {
+        assertArrayEquals(new String[] {"wifiConnect", "wifiStartScan"}, search("access", 0));
+    }
+
+    @Test
+    public void everyWordMustMatch() {
+        assertArrayEquals(new String[] {"wifiStartScan", "wifiGetScanResults"},
+                search("wifi scan", 0));
+        assertArrayEquals(new String[0], search("wifi discovery", 0));
+    }
+
+    @Test
+    public void limitKeepsBestMatches() {
+        assertArrayEquals(new String[] {"wifiConnect", "wifiStartScan"}, search("wifi", 2));
+    }
+
+    @Test
+    public void emptyQueryReturnsEveryRpcInNameOrder() {
+        assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5}, mIndex.search("  ", 0));
+        assertArrayEquals(new int[] {0, 1}, mIndex.search("", 2));
+    }
+
+    @Test
+    public void filterReturnsMatchesInNameOrder() {
+        List<MethodDescriptor> matches = mIndex.filter("scan");
+        assertEquals(2, matches.size());
+        assertEquals("wifiGetScanResults", matches.get(0).getName());
+        assertEquals("wifiStartScan", matches.get(1).getName());
+    }
+
+    @Test
+    public void summaryCollapsesWhitespace() {
+        assertEquals("Returns the results of the last scan.", mIndex.getSummary(4));
+    }
+
+    @Test
+    public void parameterHintsAreLookedUpByName() {
+        assertArrayEquals(new String[] {"targetPath: Where to save the picture."},
+                mIndex.getParameterHints("cameraCapturePicture"));
+        assertNull(mIndex.getParameterHints("wifiDisconnect"));
+    }
+}
@@ -25,5 +25,6 @@ public class Sl4aApplication extends BaseApplication {
 
   @Override
   public void onTerminate() {
+    ScriptStorageAdapter.releaseScriptIndex(mConfiguration);
   }
 }
@@ -36,23 +36,18 @@ import android.widget.ListView;
 import android.widget.SectionIndexer;
 import android.widget.TextView;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 import com.googlecode.android_scripting.BaseApplication;
 import com.googlecode.android_scripting.Constants;
 import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.R;
 import com.googlecode.android_scripting.facade.FacadeConfiguration;
+import com.googlecode.android_scripting.facade.RpcSearchIndex;
 import com.googlecode.android_scripting.interpreter.Interpreter;
 import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
 import com.googlecode.android_scripting.language.SupportedLanguages;
 import com.googlecode.android_scripting.rpc.MethodDescriptor;
 import com.googlecode.android_scripting.rpc.ParameterDescriptor;
-import com.googlecode.android_scripting.rpc.RpcDeprecated;
-import com.googlecode.android_scripting.rpc.RpcMinSdk;
 
-import java.lang.reflect.Method;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -99,27 +94,13 @@ public class ApiBrowser extends ListActivity {
     setResult(RESULT_CANCELED);
   }
 
-  private void updateAndFilterMethodDescriptors(final String query) {
-    mMethodDescriptors =
-        Lists.newArrayList(Collections2.filter(FacadeConfiguration.collectMethodDescriptors(),
-            new Predicate<MethodDescriptor>() {
-              @Override
-              public boolean apply(MethodDescriptor descriptor) {
-                Method method = descriptor.getMethod();
-                if (method.isAnnotationPresent(RpcDeprecated.class)) {
-                  return false;
-                } else if (method.isAnnotationPresent(RpcMinSdk.class)) {
-                  int requiredSdkLevel = method.getAnnotation(RpcMinSdk.class).value();
-                  if (FacadeConfiguration.getSdkLevel() < requiredSdkLevel) {
-                    return false;
-                  }
-                }
-                if (query == null) {
-                  return true;
-                }
-                return descriptor.getName().toLowerCase().contains(query.toLowerCase());
-              }
-            }));
+  private void updateAndFilterMethodDescriptors(String query) {
+    RpcSearchIndex searchIndex = RpcSearchIndex.getInstance();
+    if (query == null) {
+      mMethodDescriptors = searchIndex.getDescriptors();
+    } else {
+      mMethodDescriptors = searchIndex.filter(query);
+    }
   }
 
   @Override
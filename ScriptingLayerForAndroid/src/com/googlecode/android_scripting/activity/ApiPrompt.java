@@ -35,6 +35,7 @@ import android.widget.TextView;
 import com.googlecode.android_scripting.Constants;
 import com.googlecode.android_scripting.R;
 import com.googlecode.android_scripting.facade.FacadeConfiguration;
+import com.googlecode.android_scripting.facade.RpcSearchIndex;
 import com.googlecode.android_scripting.rpc.MethodDescriptor;
 
 /**
@@ -58,7 +59,10 @@ public class ApiPrompt extends Activity {
     mRpc =
         FacadeConfiguration.getMethodDescriptor(getIntent().getStringExtra(
             Constants.EXTRA_API_PROMPT_RPC_NAME));
-    mHints = mRpc.getParameterHints();
+    mHints = RpcSearchIndex.getInstance().getParameterHints(mRpc.getName());
+    if (mHints == null) {
+      mHints = mRpc.getParameterHints();
+    }
     mValues = getIntent().getStringArrayExtra(Constants.EXTRA_API_PROMPT_VALUES);
     mAdapter = new ApiPromptAdapter();
     ((ListView) findViewById(R.id.list)).setAdapter(mAdapter);
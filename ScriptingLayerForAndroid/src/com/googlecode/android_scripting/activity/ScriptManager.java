@@ -39,9 +39,6 @@ import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 import com.googlecode.android_scripting.ActivityFlinger;
 import com.googlecode.android_scripting.BaseApplication;
 import com.googlecode.android_scripting.Constants;
@@ -57,6 +54,7 @@ import com.googlecode.android_scripting.interpreter.InterpreterConfiguration.Con
 import com.googlecode.android_scripting.interpreter.InterpreterConstants;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -150,18 +148,9 @@ public class ScriptManager extends ListActivity {
 
   @SuppressWarnings("serial")
   private void updateAndFilterScriptList(final String query) {
-    List<File> scripts;
-    if (mPreferences.getBoolean("show_all_files", false)) {
-      scripts = ScriptStorageAdapter.listAllScripts(mCurrentDir);
-    } else {
-      scripts = ScriptStorageAdapter.listExecutableScripts(mCurrentDir, mConfiguration);
-    }
-    mScripts = Lists.newArrayList(Collections2.filter(scripts, new Predicate<File>() {
-      @Override
-      public boolean apply(File file) {
-        return file.getName().toLowerCase().contains(query.toLowerCase());
-      }
-    }));
+    boolean executableOnly = !mPreferences.getBoolean("show_all_files", false);
+    mScripts = new ArrayList<File>(ScriptStorageAdapter.getScriptIndex(mConfiguration).search(
+        mCurrentDir, query, executableOnly));
 
     // TODO(tturney): Add a text view that shows the queried text.
     synchronized (mQuery) {
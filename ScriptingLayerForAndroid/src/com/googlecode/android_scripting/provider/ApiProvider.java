@@ -25,16 +25,7 @@ import android.database.MatrixCursor;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.googlecode.android_scripting.facade.FacadeConfiguration;
-import com.googlecode.android_scripting.rpc.MethodDescriptor;
-import com.googlecode.android_scripting.rpc.Rpc;
-import com.googlecode.android_scripting.rpc.RpcDeprecated;
-import com.googlecode.android_scripting.rpc.RpcMinSdk;
-
-import java.lang.reflect.Method;
-import java.util.Collection;
+import com.googlecode.android_scripting.facade.RpcSearchIndex;
 
 public class ApiProvider extends ContentProvider {
 
@@ -46,28 +37,10 @@ public class ApiProvider extends ContentProvider {
   public static final String SUGGESTIONS = "searchSuggestions/*/*";
 
   private final UriMatcher mUriMatcher;
-  private final Collection<MethodDescriptor> mMethodDescriptors;
 
   public ApiProvider() {
     mUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     mUriMatcher.addURI(AUTHORITY, SUGGESTIONS, SUGGESTIONS_ID);
-    mMethodDescriptors =
-        Collections2.filter(FacadeConfiguration.collectMethodDescriptors(),
-            new Predicate<MethodDescriptor>() {
-              @Override
-              public boolean apply(MethodDescriptor descriptor) {
-                Method method = descriptor.getMethod();
-                if (method.isAnnotationPresent(RpcDeprecated.class)) {
-                  return false;
-                } else if (method.isAnnotationPresent(RpcMinSdk.class)) {
-                  int requiredSdkLevel = method.getAnnotation(RpcMinSdk.class).value();
-                  if (FacadeConfiguration.getSdkLevel() < requiredSdkLevel) {
-                    return false;
-                  }
-                }
-                return true;
-              }
-            });
   }
 
   @Override
@@ -95,28 +68,32 @@ public class ApiProvider extends ContentProvider {
       String sortOrder) {
     switch (mUriMatcher.match(uri)) {
     case SUGGESTIONS_ID:
-      String query = uri.getLastPathSegment().toLowerCase();
-      return querySearchSuggestions(query);
+      String query = uri.getLastPathSegment();
+      int limit = 0;
+      String limitParameter = uri.getQueryParameter(SearchManager.SUGGEST_PARAMETER_LIMIT);
+      if (limitParameter != null) {
+        try {
+          limit = Integer.parseInt(limitParameter);
+        } catch (NumberFormatException e) {
+          // Ignore and return every match.
+        }
+      }
+      return querySearchSuggestions(query, limit);
     }
     return null;
   }
 
-  private Cursor querySearchSuggestions(String query) {
+  private Cursor querySearchSuggestions(String query, int limit) {
     String[] columns =
         { BaseColumns._ID, SearchManager.SUGGEST_COLUMN_TEXT_1,
           SearchManager.SUGGEST_COLUMN_TEXT_2, SearchManager.SUGGEST_COLUMN_QUERY };
     MatrixCursor cursor = new MatrixCursor(columns);
-    int index = 0;
-    for (MethodDescriptor descriptor : mMethodDescriptors) {
-      String name = descriptor.getMethod().getName();
-      if (!name.toLowerCase().contains(query)) {
-        continue;
-      }
-      String description = descriptor.getMethod().getAnnotation(Rpc.class).description();
-      description = description.replaceAll("\\s+", " ");
-      Object[] row = { index, name, description, name };
+    RpcSearchIndex searchIndex = RpcSearchIndex.getInstance();
+    int[] ids = searchIndex.search(query, limit);
+    for (int index = 0; index < ids.length; index++) {
+      String name = searchIndex.getDescriptor(ids[index]).getName();
+      Object[] row = { index, name, searchIndex.getSummary(ids[index]), name };
       cursor.addRow(row);
-      ++index;
     }
     return cursor;
   }
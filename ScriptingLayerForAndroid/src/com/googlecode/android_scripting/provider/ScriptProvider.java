@@ -32,6 +32,7 @@ import android.provider.LiveFolders;
 import com.googlecode.android_scripting.FeaturedInterpreters;
 import com.googlecode.android_scripting.IntentBuilders;
 import com.googlecode.android_scripting.R;
+import com.googlecode.android_scripting.ScriptIndex.IndexedFile;
 import com.googlecode.android_scripting.ScriptStorageAdapter;
 import com.googlecode.android_scripting.interpreter.Interpreter;
 import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
@@ -80,6 +81,11 @@ public class ScriptProvider extends ContentProvider {
     return null;
   }
 
+  @Override
+  public void shutdown() {
+    ScriptStorageAdapter.releaseScriptIndex(mConfiguration);
+  }
+
   @Override
   public boolean onCreate() {
     mContext = getContext();
@@ -109,12 +115,14 @@ public class ScriptProvider extends ContentProvider {
           SearchManager.SUGGEST_COLUMN_QUERY, SearchManager.SUGGEST_COLUMN_SHORTCUT_ID };
     MatrixCursor cursor = new MatrixCursor(columns);
     int index = 0;
-    for (File script : ScriptStorageAdapter.listExecutableScripts(null, mConfiguration)) {
-      String scriptName = script.getName().toLowerCase();
-      if (!scriptName.contains(query)) {
+    File root = new File(InterpreterConstants.SCRIPTS_ROOT);
+    for (IndexedFile script : ScriptStorageAdapter.getScriptIndex(mConfiguration).search(root,
+        query, true)) {
+      if (script.isDirectory()) {
         continue;
       }
-      Interpreter interpreter = mConfiguration.getInterpreterForScript(scriptName);
+      String scriptName = script.getName().toLowerCase();
+      Interpreter interpreter = script.getInterpreter();
       String secondLine = interpreter.getNiceName();
       int icon = FeaturedInterpreters.getInterpreterIcon(mContext, interpreter.getExtension());
       Object[] row =
@@ -39,12 +39,25 @@ public class Relay implements Runnable {
 
   private static final int BUFFER_SIZE = 4096;
 
+  // Buffers double, up to this size, whenever a read fills them so that bursts of output are
+  // handled in fewer, larger chunks.
+  private static final int MAX_BUFFER_SIZE = 32 * 1024;
+
+  // No character below U+1100 has an East Asian width of Wide or Fullwidth, so only characters at
+  // or above it need measuring. Ambiguous-width characters start just above ASCII, so in legacy
+  // East Asian mode, and when widths come from Paint rather than Unicode data, only ASCII is
+  // assumed narrow.
+  private static final char FIRST_WIDE_CHAR = 0x1100;
+  private static final char FIRST_NON_ASCII_CHAR = 0x80;
+
   private static boolean useJNI = true;
 
   private TerminalBridge bridge;
 
   private Charset currentCharset;
-  private CharsetDecoder decoder;
+  // Replaced as a whole by setCharset(); the relay thread picks up the new decoder on its next
+  // chunk, so decoding does not need to hold the monitor.
+  private volatile CharsetDecoder decoder;
   private boolean isLegacyEastAsian = false;
 
   private AbsTransport transport;
@@ -57,6 +70,12 @@ public class Relay implements Runnable {
   private byte[] byteArray;
   private char[] charArray;
 
+  /* for both JNI and non-JNI method */
+  private byte[] wideAttribute;
+
+  /* non-JNI fallback method */
+  private float[] widths;
+
   static {
     useJNI = EastAsianWidth.useJNI;
   }
@@ -86,27 +105,11 @@ public class Relay implements Runnable {
     newCd.onMalformedInput(CodingErrorAction.REPLACE);
 
     currentCharset = charset;
-    synchronized (this) {
-      decoder = newCd;
-    }
+    decoder = newCd;
   }
 
   public void run() {
-    byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-    charBuffer = CharBuffer.allocate(BUFFER_SIZE);
-
-    /* for both JNI and non-JNI method */
-    byte[] wideAttribute = new byte[BUFFER_SIZE];
-
-    /* non-JNI fallback method */
-    float[] widths = null;
-
-    if (!useJNI) {
-      widths = new float[BUFFER_SIZE];
-    }
-
-    byteArray = byteBuffer.array();
-    charArray = charBuffer.array();
+    allocateBuffers(BUFFER_SIZE);
 
     CoderResult result;
 
@@ -116,6 +119,9 @@ public class Relay implements Runnable {
     int offset;
     int charWidth;
 
+    CharsetDecoder cd = null;
+    boolean asciiCompatible = false;
+
     try {
       while (true) {
         charWidth = bridge.charWidth;
@@ -126,29 +132,40 @@ public class Relay implements Runnable {
         if (bytesRead > 0) {
           byteBuffer.limit(byteBuffer.limit() + bytesRead);
 
-          synchronized (this) {
-            result = decoder.decode(byteBuffer, charBuffer, false);
+          if (cd != decoder) {
+            cd = decoder;
+            asciiCompatible = isAsciiCompatible(cd.charset());
           }
 
-          if (result.isUnderflow() && byteBuffer.limit() == byteBuffer.capacity()) {
+          do {
+            if (asciiCompatible) {
+              copyAscii();
+            }
+            if (byteBuffer.hasRemaining()) {
+              result = cd.decode(byteBuffer, charBuffer, false);
+            } else {
+              result = CoderResult.UNDERFLOW;
+            }
+
+            offset = charBuffer.position();
+            measureWidths(offset, charWidth);
+            buffer.putString(charArray, wideAttribute, 0, offset);
+            charBuffer.clear();
+          } while (result.isOverflow());
+
+          if (!byteBuffer.hasRemaining()) {
+            byteBuffer.position(0);
+            byteBuffer.limit(0);
+          } else if (byteBuffer.limit() == byteBuffer.capacity()) {
             byteBuffer.compact();
             byteBuffer.limit(byteBuffer.position());
             byteBuffer.position(0);
           }
 
-          offset = charBuffer.position();
-
-          if (!useJNI) {
-            bridge.getPaint().getTextWidths(charArray, 0, offset, widths);
-            for (int i = 0; i < offset; i++) {
-              wideAttribute[i] = (byte) (((int) widths[i] != charWidth) ? 1 : 0);
-            }
-          } else {
-            EastAsianWidth.measure(charArray, 0, charBuffer.position(), wideAttribute,
-                isLegacyEastAsian);
+          if (bytesRead == bytesToRead && byteBuffer.capacity() < MAX_BUFFER_SIZE) {
+            growBuffers();
           }
-          buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
-          charBuffer.clear();
+
           bridge.redraw();
         }
       }
@@ -156,4 +173,83 @@ public class Relay implements Runnable {
       Log.e("Problem while handling incoming data in relay thread", e);
     }
   }
+
+  private void allocateBuffers(int size) {
+    byteBuffer = ByteBuffer.allocate(size);
+    charBuffer = CharBuffer.allocate(size);
+    byteArray = byteBuffer.array();
+    charArray = charBuffer.array();
+    wideAttribute = new byte[size];
+    if (!useJNI) {
+      widths = new float[size];
+    }
+  }
+
+  /**
+   * Doubles the buffers, carrying over any bytes that have been read but not yet decoded.
+   */
+  private void growBuffers() {
+    ByteBuffer pending = byteBuffer;
+    allocateBuffers(pending.capacity() * 2);
+    byteBuffer.put(pending);
+    byteBuffer.limit(byteBuffer.position());
+    byteBuffer.position(0);
+  }
+
+  /**
+   * Copies the run of ASCII bytes at the head of the byte buffer straight into the char buffer,
+   * leaving the first non-ASCII byte and everything after it for the decoder.
+   */
+  private void copyAscii() {
+    int base = byteBuffer.arrayOffset();
+    int in = byteBuffer.position();
+    int out = charBuffer.position();
+    int end = in + Math.min(byteBuffer.remaining(), charBuffer.remaining());
+    while (in < end) {
+      byte b = byteArray[base + in];
+      if (b < 0) {
+        break;
+      }
+      charArray[out++] = (char) b;
+      in++;
+    }
+    byteBuffer.position(in);
+    charBuffer.position(out);
+  }
+
+  /**
+   * Fills wideAttribute for the first count decoded characters, measuring only runs of characters
+   * that may be wide.
+   */
+  private void measureWidths(int count, int charWidth) {
+    char narrowLimit = (useJNI && !isLegacyEastAsian) ? FIRST_WIDE_CHAR : FIRST_NON_ASCII_CHAR;
+    int i = 0;
+    while (i < count) {
+      if (charArray[i] < narrowLimit) {
+        wideAttribute[i++] = 0;
+        continue;
+      }
+      int runStart = i;
+      while (i < count && charArray[i] >= narrowLimit) {
+        i++;
+      }
+      if (useJNI) {
+        EastAsianWidth.measure(charArray, runStart, i, wideAttribute, isLegacyEastAsian);
+      } else {
+        bridge.getPaint().getTextWidths(charArray, runStart, i - runStart, widths);
+        for (int j = runStart; j < i; j++) {
+          wideAttribute[j] = (byte) (((int) widths[j - runStart] != charWidth) ? 1 : 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if the charset decodes bytes 0x00-0x7F to the same code points, so that those
+   * bytes can bypass the decoder.
+   */
+  private static boolean isAsciiCompatible(Charset charset) {
+    String name = charset.name();
+    return name.equals("UTF-8") || name.equals("US-ASCII") || name.equals("ISO-8859-1");
+  }
 }
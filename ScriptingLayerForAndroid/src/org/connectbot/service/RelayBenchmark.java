@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import android.os.Bundle;
+
+import de.mud.terminal.vt320;
+
+import org.connectbot.transport.AbsTransport;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Measures how fast a {@link Relay} moves terminal output into a {@link vt320}.
+ *
+ * <p>The relay reads a synthetic payload from an in-memory transport, so the figures cover
+ * decoding, width measurement and terminal emulation, but not the pty or drawing. Run it on a
+ * device through {@code rpcBenchmarkTerminalRelay}.
+ */
+public class RelayBenchmark {
+
+  private static final float FONT_SIZE = 10;
+
+  private RelayBenchmark() {
+    // Utility class.
+  }
+
+  /**
+   * Relays text, repeated to at least size bytes once encoded, into an 80x24 terminal.
+   *
+   * @return a map of the bytes relayed, the nanoseconds taken and the resulting bytes per second
+   */
+  public static Bundle run(String text, int size, String encoding)
+      throws UnsupportedEncodingException {
+    if (text.length() == 0 || size <= 0) {
+      throw new IllegalArgumentException("Text must not be empty and size must be positive.");
+    }
+    byte[] unit = text.getBytes(encoding);
+    byte[] payload = new byte[(size + unit.length - 1) / unit.length * unit.length];
+    for (int i = 0; i < payload.length; i += unit.length) {
+      System.arraycopy(unit, 0, payload, i, unit.length);
+    }
+
+    TerminalBridge bridge = new TerminalBridge();
+    bridge.setFontSize(FONT_SIZE);
+    vt320 buffer = (vt320) bridge.getVDUBuffer();
+    Relay relay = new Relay(bridge, new PayloadTransport(payload), buffer, encoding);
+
+    long start = System.nanoTime();
+    // Returns once the transport reports the end of the payload.
+    relay.run();
+    long nanos = System.nanoTime() - start;
+
+    Bundle stats = new Bundle();
+    stats.putInt("bytes", payload.length);
+    stats.putLong("nanos", nanos);
+    stats.putLong("bytesPerSecond", nanos > 0 ? payload.length * 1000000000L / nanos : 0);
+    return stats;
+  }
+
+  /**
+   * Serves a fixed payload as fast as it is read, then fails the next read the way a closed
+   * session does.
+   */
+  private static class PayloadTransport extends AbsTransport {
+    private final byte[] payload;
+    private int position = 0;
+
+    PayloadTransport(byte[] payload) {
+      this.payload = payload;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (position == payload.length) {
+        throw new IOException("end of benchmark payload");
+      }
+      int count = Math.min(length, payload.length - position);
+      System.arraycopy(payload, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void write(byte[] buffer) {
+    }
+
+    @Override
+    public void write(int c) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void setDimensions(int columns, int rows, int width, int height) {
+    }
+
+    @Override
+    public boolean isConnected() {
+      return position < payload.length;
+    }
+
+    @Override
+    public boolean isSessionOpen() {
+      return isConnected();
+    }
+  }
+}
@@ -142,6 +142,7 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
       public void debug(String s) {
       }
     };
+    buffer.setDisplay(this);
 
     manager = null;
 
@@ -154,7 +155,8 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
 
     transport = null;
 
-    keyListener = new TerminalKeyListener(manager, this, buffer, null);
+    // Without a manager there are no preferences to read or keys to handle.
+    keyListener = null;
 
     mProcess = null;
 
@@ -162,7 +164,7 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
     mDefaultBgColor = 0;
     promptHelper = null;
 
-    updateCharset();
+    encoding = Charset.defaultCharset().name();
   }
 
   /**
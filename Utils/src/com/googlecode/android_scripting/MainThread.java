@@ -18,50 +18,159 @@ package com.googlecode.android_scripting;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.Looper;
 
 import com.googlecode.android_scripting.future.FutureResult;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Runs tasks on the main thread.
+ *
+ * <p>All tasks go through one queue and one {@link Handler}. Tasks posted while the main thread is
+ * busy are run together by a single message, so a burst of calls from RPC threads costs one
+ * message rather than one each. A pass only runs the tasks queued when it starts, so a steady
+ * stream of posts cannot keep the main looper from other messages.
+ */
 public class MainThread {
 
+  // States of a task run with a timeout. The runner and a caller that gives up both claim the
+  // task from PENDING, so exactly one of them wins.
+  private static final int PENDING = 0;
+  private static final int RUNNING = 1;
+  private static final int ABANDONED = 2;
+
+  private static final Handler sHandler = new Handler(Looper.getMainLooper());
+  private static final ConcurrentLinkedQueue<Runnable> sPending =
+      new ConcurrentLinkedQueue<Runnable>();
+  private static final AtomicInteger sPendingCount = new AtomicInteger();
+  private static final AtomicBoolean sDrainScheduled = new AtomicBoolean();
+
+  private static final Runnable sDrain = new Runnable() {
+    @Override
+    public void run() {
+      // Cleared before counting so that a task posted after the count schedules another pass
+      // rather than being missed.
+      sDrainScheduled.set(false);
+      for (int count = sPendingCount.get(); count > 0; count--) {
+        Runnable task = sPending.poll();
+        sPendingCount.decrementAndGet();
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          Log.e(e);
+        }
+      }
+    }
+  };
+
   private MainThread() {
     // Utility class.
   }
 
   /**
    * Executed in the main thread, returns the result of an execution. Anything that runs here should
-   * finish quickly to avoid hanging the UI thread.
+   * finish quickly to avoid hanging the UI thread. Waits for the task however long it takes.
    */
   public static <T> T run(Context context, final Callable<T> task) {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      return call(task);
+    }
     final FutureResult<T> result = new FutureResult<T>();
-    Handler handler = new Handler(context.getMainLooper());
-    handler.post(new Runnable() {
+    enqueue(new Runnable() {
       @Override
       public void run() {
-        try {
-          result.set(task.call());
-        } catch (Exception e) {
-          Log.e(e);
-          result.set(null);
+        result.set(call(task));
+      }
+    });
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Log.e(e);
+    }
+    return null;
+  }
+
+  /**
+   * Like {@link #run(Context, Callable)}, but gives up if the task has not started within the
+   * given time, so that a wedged main thread cannot hang the caller. A task that has started is
+   * always waited for, so its side effects never go unreported.
+   *
+   * @throws TimeoutException if the task did not start in time; it is then skipped
+   */
+  public static <T> T run(Context context, final Callable<T> task, long timeout, TimeUnit unit)
+      throws TimeoutException {
+    if (Looper.myLooper() == Looper.getMainLooper()) {
+      return call(task);
+    }
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    final FutureResult<T> result = new FutureResult<T>();
+    enqueue(new Runnable() {
+      @Override
+      public void run() {
+        if (state.compareAndSet(PENDING, RUNNING)) {
+          result.set(call(task));
         }
       }
     });
     try {
+      T value = result.get(timeout, unit);
+      if (result.isDone()) {
+        return value;
+      }
+      if (state.compareAndSet(PENDING, ABANDONED)) {
+        throw new TimeoutException(
+            "Main thread task did not start within " + unit.toMillis(timeout) + " ms.");
+      }
       return result.get();
     } catch (InterruptedException e) {
+      if (!state.compareAndSet(PENDING, ABANDONED)) {
+        Log.e("Interrupted while a main thread task was running.");
+      }
       Log.e(e);
     }
     return null;
   }
 
-  public static void run(Context context, final Runnable task) {
-    Handler handler = new Handler(context.getMainLooper());
-    handler.post(new Runnable() {
+  /**
+   * Schedules the task on the main thread and returns immediately. The returned future yields the
+   * task's result, or null if it failed.
+   */
+  public static <T> Future<T> submit(Context context, final Callable<T> task) {
+    final FutureResult<T> result = new FutureResult<T>();
+    enqueue(new Runnable() {
       @Override
       public void run() {
-        task.run();
+        result.set(call(task));
       }
     });
+    return result;
+  }
+
+  public static void run(Context context, final Runnable task) {
+    enqueue(task);
+  }
+
+  private static <T> T call(Callable<T> task) {
+    try {
+      return task.call();
+    } catch (Exception e) {
+      Log.e(e);
+      return null;
+    }
+  }
+
+  private static void enqueue(Runnable task) {
+    sPending.add(task);
+    sPendingCount.incrementAndGet();
+    if (sDrainScheduled.compareAndSet(false, true)) {
+      sHandler.post(sDrain);
+    }
   }
 }
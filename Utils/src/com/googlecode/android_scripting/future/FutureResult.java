@@ -58,7 +58,8 @@ public class FutureResult<T> implements Future<T> {
 
     @Override
     public boolean isDone() {
-        return mResult != null;
+        // A null result is still a result.
+        return mLatch.getCount() == 0;
     }
 
 }